@@ -0,0 +1,89 @@
+/*
+ *  AbstractReportSink.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.batch;
+
+import gate.util.GateException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Base class for report sinks, with support for moving aside the report
+ * left by a previous run of the batch so that the results it contains can
+ * be carried over into the new report.
+ */
+public abstract class AbstractReportSink implements ReportSink {
+
+  private static Logger logger =
+          LoggerFactory.getLogger(AbstractReportSink.class);
+
+  /**
+   * Does nothing, subclasses that take options should override.
+   */
+  public void config(Map<String, String> configData) throws IOException,
+          GateException {
+  }
+
+  /**
+   * Ensure the directory for the given report file exists and, if the
+   * report file itself exists, move (or copy) it to a backup file.
+   *
+   * @param reportFile the report file
+   * @return the backup file, or <code>null</code> if there was no
+   *         existing report file.
+   */
+  protected File backupExistingReport(File reportFile) throws GateException {
+    // make sure the parent dir exists
+    if(!reportFile.getParentFile().exists()
+            && !reportFile.getParentFile().mkdirs()) { throw new GateException(
+            "Could not create directories for " + reportFile.getAbsolutePath()); }
+    if(!reportFile.exists()) {
+      return null;
+    }
+    File backupFile = new File(reportFile.getAbsolutePath() + ".bak");
+    logger.info("Existing report file found at \""
+            + reportFile.getAbsolutePath() + "\", attempting to restart");
+    if(!reportFile.renameTo(backupFile)) {
+      // try copying
+      try {
+        byte[] buff = new byte[32 * 1024];
+        InputStream in =
+                new BufferedInputStream(new FileInputStream(reportFile));
+        try {
+          OutputStream out =
+                  new BufferedOutputStream(new FileOutputStream(backupFile));
+          try {
+            int read = in.read(buff);
+            while(read != -1) {
+              out.write(buff, 0, read);
+              read = in.read(buff);
+            }
+          } finally {
+            out.close();
+          }
+        } finally {
+          in.close();
+        }
+      } catch(IOException e) {
+        throw new GateException("Could not restart batch", e);
+      }
+    }
+    return backupFile;
+  }
+}
@@ -11,7 +11,11 @@
  */
 package gate.cloud.batch;
 
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 
 /**
  * Definition of the annotations to be output from a single annotation
@@ -23,10 +27,20 @@ private String annotationSetName;
   
   private List<String> annotationTypes;
 
+  /**
+   * The annotation types as a set, built once when the definition is
+   * created rather than every time annotations are selected.
+   */
+  private Set<String> annotationTypeSet;
+
   public AnnotationSetDefinition(String annotationSetName,
           List<String> annotationTypes) {
     this.annotationSetName = annotationSetName;
     this.annotationTypes = annotationTypes;
+    if(annotationTypes != null && !annotationTypes.isEmpty()) {
+      annotationTypeSet = Collections.unmodifiableSet(
+              new HashSet<String>(annotationTypes));
+    }
   }
 
   /**
@@ -46,6 +60,37 @@ private String annotationSetName;
   public List<String> getAnnotationTypes() {
     return annotationTypes;
   }
+
+  /**
+   * Gets the annotation types to be saved as an unmodifiable set, or
+   * <tt>null</tt> if all annotations should be saved.
+   * @return a {@link Set} of {@link String}s.
+   */
+  public Set<String> getAnnotationTypeSet() {
+    return annotationTypeSet;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if(this == obj) return true;
+    if(!(obj instanceof AnnotationSetDefinition)) return false;
+    AnnotationSetDefinition other = (AnnotationSetDefinition)obj;
+    return Objects.equals(normalizedSetName(), other.normalizedSetName())
+            && Objects.equals(annotationTypeSet, other.annotationTypeSet);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(normalizedSetName(), annotationTypeSet);
+  }
+
+  /**
+   * The set name, with "" (which GATE treats as the default set) mapped
+   * to <tt>null</tt>.
+   */
+  private String normalizedSetName() {
+    return "".equals(annotationSetName) ? null : annotationSetName;
+  }
   
   public String toString() {
     StringBuilder res = new StringBuilder();
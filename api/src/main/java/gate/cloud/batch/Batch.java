@@ -12,35 +12,25 @@
 package gate.cloud.batch;
 
 import gate.CorpusController;
+import gate.cloud.io.DocumentPreFilter;
 import gate.cloud.io.InputHandler;
 import gate.cloud.io.OutputHandler;
-import gate.cloud.util.Tools;
 import gate.util.GateException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
-import javax.xml.XMLConstants;
-import javax.xml.namespace.QName;
-import javax.xml.stream.XMLEventReader;
-import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
-import javax.xml.stream.events.XMLEvent;
 
 /**
  * Class representing a cloud batch job.
@@ -61,174 +51,66 @@ public class Batch {
    */
   private static Logger logger = LoggerFactory.getLogger(Batch.class);
 
-  private static XMLOutputFactory staxOutputFactory = 
-      XMLOutputFactory.newInstance();
-  
-  private static XMLInputFactory staxInputFactory =
-    XMLInputFactory.newInstance();
-  
   /**
    * Prepares this batch for execution:
    * <ul>
    * <li>check that all the required values have been set</li>
-   * <li>opens the {@link XMLStreamWriter} for the report file</li>
-   * <li>updates the documentIDs value if the batch is being restarted after a
-   * partial execution</li>
+   * <li>opens the {@link ReportSink} for the report file</li>
+   * <li>updates the documentIDs value (or filters the document ID iterator)
+   * if the batch is being restarted after a partial execution</li>
    * </ul>
    * If any problems are found, a {@link GateException} is thrown.
    */
   public void init() throws GateException {
     if(reportFile == null) throw new GateException("No report file set!");
-    // restarting logic
-    boolean restarting = false;
-    // make sure the parent dir exists
-    if(!reportFile.getParentFile().exists()
-            && !reportFile.getParentFile().mkdirs()) { throw new GateException(
-            "Could not create directories for " + reportFile.getAbsolutePath()); }
-    File backupFile = new File(reportFile.getAbsolutePath() + ".bak");
-    if(reportFile.exists()) {
-      // restarting
-      restarting = true;
-      logger.info("Existing report file found at \""
-              + reportFile.getAbsolutePath() + "\", attempting to restart");
-      if(!reportFile.renameTo(backupFile)) {
-        // try copying
-        try {
-          byte[] buff = new byte[32 * 1024];
-          InputStream in =
-                  new BufferedInputStream(new FileInputStream(reportFile));
-          try {
-            OutputStream out =
-                    new BufferedOutputStream(new FileOutputStream(backupFile));
-            try {
-              int read = in.read(buff);
-              while(read != -1) {
-                out.write(buff, 0, read);
-                read = in.read(buff);
-              }
-            } finally {
-              out.close();
-            }
-          } finally {
-            in.close();
-          }
-        } catch(IOException e) {
-          throw new GateException("Could not restart batch", e);
-        }
-      }
+    if(reportSink == null) {
+      reportSink = new XMLReportSink();
     }
-    // at this point we have the batch file moved/copied to the backup file,
-    // so we can overwrite the report file.
-    // prepare the report writer
     try {
-      reportWriter =
-              staxOutputFactory
-                      .createXMLStreamWriter(new BufferedOutputStream(
-                              new FileOutputStream(reportFile)));
-      reportWriter.writeStartDocument();
-      reportWriter.writeCharacters("\n");
-      reportWriter.setDefaultNamespace(Tools.REPORT_NAMESPACE);
-      reportWriter.writeStartElement(Tools.REPORT_NAMESPACE, "cloudReport");
-      reportWriter.writeDefaultNamespace(Tools.REPORT_NAMESPACE);
-      reportWriter.writeCharacters("\n");
-      reportWriter.writeStartElement(Tools.REPORT_NAMESPACE, "documents");
-   
-    } catch(XMLStreamException e) {
-      throw new GateException("Cannot write to the report file!", e);
+      completedDocuments.addAll(reportSink.open(reportFile));
     } catch(IOException e) {
       throw new GateException("Cannot write to the report file!", e);
     }
-    if(restarting) {
-      try {
-        // in the report XML, the document IDs are only represented as Strings
-        logger.debug("Processing existing report file");
-        InputStream bakIn =
-                new BufferedInputStream(new FileInputStream(backupFile));
-        XMLEventReader xer = staxInputFactory.createXMLEventReader(bakIn);
-        try {
-          // skip until we find the starting documents tag
-          XMLEvent event;
-          while(xer.hasNext()) {
-            event = xer.nextEvent();
-            if(event.isStartElement()
-                    && event.asStartElement().getName().getLocalPart()
-                            .equals("documents")) {
-              break;
-            }
-          }
-          // read events from the input reader, write them to the report
-          // writer, and remove any completed docIDs from the to-do list
-          List<XMLEvent> events = new LinkedList<XMLEvent>();
-          String currentReturnCode = null;
-          String currentDocid = null;
-          while(xer.hasNext()) {
-            event = xer.nextEvent();
-            events.add(event);
-            // if this is the start of a processResult, store the return code
-            // and ID for later
-            if(event.isStartElement()
-                    && event.asStartElement().getName().getLocalPart()
-                            .equals("processResult")) {
-              currentReturnCode =
-                      event.asStartElement().getAttributeByName(
-                              new QName(XMLConstants.NULL_NS_URI,
-                                      "returnCode")).getValue();
-              currentDocid =
-                      event.asStartElement().getAttributeByName(
-                              new QName(XMLConstants.NULL_NS_URI, "id"))
-                              .getValue();
-            }
-            // if we have reached the end of a complete processResult
-            // element, write it to the output stream writer
-            if(event.isEndElement()
-                    && event.asEndElement().getName().getLocalPart().equals(
-                            "processResult")) {
-              if(currentReturnCode.equals("SUCCESS") && currentDocid != null) {
-                completedDocuments.add(currentDocid);
-                for(XMLEvent evt : events) {
-                  Tools.writeStaxEvent(evt, reportWriter);
-                }
-              }
-              events.clear();
-              currentReturnCode = null;
-              currentDocid = null;
-            }
-            // stop if we reach the end of the <documents> element
-            if(event.isEndElement()
-                    && event.asEndElement().getName().getLocalPart().equals(
-                            "documents")) {
-              break;
+    // restarting logic - filter the documents already processed, if the
+    // full list is known up front
+    if(documentIDs != null && !completedDocuments.isEmpty()) {
+      List<DocumentID> unprocessedDocs = new ArrayList<DocumentID>();
+      for(DocumentID docId : documentIDs) {
+        if(!completedDocuments.contains(docId.getKey())) {
+          unprocessedDocs.add(docId);
+        }
+      }
+      unprocessedDocumentIDs = unprocessedDocs.toArray(
+              new DocumentID[unprocessedDocs.size()]);
+    } else {
+      // fresh start
+      unprocessedDocumentIDs = documentIDs;
+    }
+    if(documentIDIterator != null && !completedDocuments.isEmpty()) {
+      unprocessedDocumentIterator = new Iterator<DocumentID>() {
+        private DocumentID next;
+
+        public boolean hasNext() {
+          while(next == null && documentIDIterator.hasNext()) {
+            DocumentID docId = documentIDIterator.next();
+            if(!completedDocuments.contains(docId.getKey())) {
+              next = docId;
             }
           }
-        } catch(Exception e) {
-          // ignore, it probably just means end of file, as the XML we
-          // are parsing will almost certainly be malformed
-          logger.debug("Exception while parsing old report file - probably "
-                  + "reached the end of old report", e);
-        } finally {
-          xer.close();
-          bakIn.close();
-          backupFile.delete();
+          return next != null;
         }
-        // filter the documents already processed, if the full list is known up front
-        if(documentIDs != null) {
-          List<DocumentID> unprocessedDocs = new ArrayList<DocumentID>();
-          for(DocumentID docId : documentIDs) {
-            if(!completedDocuments.contains(docId.getIdText())) {
-              unprocessedDocs.add(docId);
-            }
+
+        public DocumentID next() {
+          if(!hasNext()) {
+            throw new NoSuchElementException();
           }
-          unprocessedDocumentIDs = unprocessedDocs.toArray(
-                  new DocumentID[unprocessedDocs.size()]);
+          DocumentID docId = next;
+          next = null;
+          return docId;
         }
-      } catch(XMLStreamException e) {
-        throw new GateException("Cannot write to the report file!", e);
-      } catch(IOException e) {
-        throw new GateException("Cannot write to the report file!", e);
-      }
+      };
     } else {
-      // fresh start
-      unprocessedDocumentIDs = documentIDs;
+      unprocessedDocumentIterator = documentIDIterator;
     }
   }
 
@@ -237,18 +119,38 @@ public class Batch {
   private DocumentID[] documentIDs;
 
   private DocumentID[] unprocessedDocumentIDs;
+
+  private Iterator<DocumentID> documentIDIterator;
+
+  private Iterator<DocumentID> unprocessedDocumentIterator;
   
   private Set<String> completedDocuments = new HashSet<String>();
 
   private CorpusController gateApplication;
 
+  private String applicationFingerprint;
+
+  private File resultCacheDirectory;
+
+  private long resultCacheMaxSize;
+
+  private List<String> resultCacheIgnoredFeatures;
+
+  private Map<String, String> nearDuplicateConfig;
+
+  private int exportThreads = -1;
+
+  private List<DocumentPreFilter> preFilters = new ArrayList<DocumentPreFilter>();
+
+  private List<DocumentManifest> manifests = new ArrayList<DocumentManifest>();
+
   private File reportFile;
 
   private InputHandler inputHandler;
 
   private List<OutputHandler> outputHandlers;
 
-  private XMLStreamWriter reportWriter;
+  private ReportSink reportSink;
 
   /**
    * Gets the ID of the this batch.
@@ -338,6 +240,151 @@ public class Batch {
     this.gateApplication = app;
   }
   
+  /**
+   * Gets a fingerprint identifying the GATE application for this batch,
+   * which changes whenever the saved application file changes.  May be
+   * null if the application was not loaded from a file.
+   */
+  public String getApplicationFingerprint() {
+    return applicationFingerprint;
+  }
+
+  /**
+   * Sets the fingerprint identifying the GATE application for this batch.
+   */
+  public void setApplicationFingerprint(String applicationFingerprint) {
+    this.applicationFingerprint = applicationFingerprint;
+  }
+
+  /**
+   * Gets the directory holding the cache of processing results used to
+   * avoid reprocessing identical documents, or null if results should not
+   * be cached.
+   */
+  public File getResultCacheDirectory() {
+    return resultCacheDirectory;
+  }
+
+  /**
+   * Sets the directory holding the result cache for this batch.
+   *
+   * @param resultCacheDirectory the cache directory, or null to disable
+   *          the cache.
+   */
+  public void setResultCacheDirectory(File resultCacheDirectory) {
+    this.resultCacheDirectory = resultCacheDirectory;
+  }
+
+  /**
+   * Gets the maximum total size in bytes of the result cache.
+   */
+  public long getResultCacheMaxSize() {
+    return resultCacheMaxSize;
+  }
+
+  /**
+   * Sets the maximum total size in bytes of the result cache.  When the
+   * cache grows beyond this size the least recently used entries are
+   * discarded.
+   */
+  public void setResultCacheMaxSize(long resultCacheMaxSize) {
+    this.resultCacheMaxSize = resultCacheMaxSize;
+  }
+
+  /**
+   * Gets the names of the document features, beyond the defaults, that
+   * should be left out of the result cache key, or null if there are none.
+   */
+  public List<String> getResultCacheIgnoredFeatures() {
+    return resultCacheIgnoredFeatures;
+  }
+
+  /**
+   * Sets the names of further document features to leave out of the
+   * result cache key, typically features set by the input handler that
+   * identify where each document came from.  A name ending in
+   * <code>*</code> matches any feature whose name starts with the rest.
+   */
+  public void setResultCacheIgnoredFeatures(
+          List<String> resultCacheIgnoredFeatures) {
+    this.resultCacheIgnoredFeatures = resultCacheIgnoredFeatures;
+  }
+
+  /**
+   * Gets the number of threads used to run the output handlers for each
+   * document in parallel, or -1 if the batch does not specify it.
+   */
+  public int getExportThreads() {
+    return exportThreads;
+  }
+
+  /**
+   * Sets the number of threads used to run the output handlers for each
+   * document in parallel, i.e. the <code>threads</code> attribute of the
+   * <code>export</code> element of the batch definition.
+   *
+   * @param exportThreads the number of threads, 0 to run the output
+   *          handlers one after the other, or -1 for the default.
+   */
+  public void setExportThreads(int exportThreads) {
+    this.exportThreads = exportThreads;
+  }
+
+  /**
+   * Gets the configuration of the near-duplicate filter for this batch,
+   * or null if every document should be processed.
+   */
+  public Map<String, String> getNearDuplicateConfig() {
+    return nearDuplicateConfig;
+  }
+
+  /**
+   * Sets the configuration of the near-duplicate filter, i.e. the
+   * attributes of the <code>nearDuplicates</code> element of the batch
+   * definition.
+   *
+   * @param nearDuplicateConfig the configuration, or null to disable the
+   *          filter.
+   */
+  public void setNearDuplicateConfig(Map<String, String> nearDuplicateConfig) {
+    this.nearDuplicateConfig = nearDuplicateConfig;
+  }
+
+  /**
+   * Gets the filters applied to the raw content of each document before
+   * it is loaded, in the order they were declared.
+   */
+  public List<DocumentPreFilter> getPreFilters() {
+    return preFilters;
+  }
+
+  /**
+   * Sets the filters applied to the raw content of each document before
+   * it is loaded.
+   *
+   * @param preFilters the filters, which may be empty.
+   */
+  public void setPreFilters(List<DocumentPreFilter> preFilters) {
+    this.preFilters = preFilters;
+  }
+
+  /**
+   * Gets the manifests that must be told when documents in this batch
+   * have been processed successfully, if the batch is running
+   * incrementally.
+   */
+  public List<DocumentManifest> getManifests() {
+    return manifests;
+  }
+
+  /**
+   * Adds a manifest that should be told when documents in this batch have
+   * been processed successfully.
+   */
+  public void addManifest(DocumentManifest manifest) {
+    manifests.add(manifest);
+  }
+
   /**
    * Gets the input handler used by this batch.
    * @return a {@link InputHandler} value.
@@ -363,20 +410,39 @@ public class Batch {
     return outputHandlers;
   }
 
+  /**
+   * Gets the sink to which the report for this batch is written.
+   */
+  public ReportSink getReportSink() {
+    return reportSink;
+  }
+
+  /**
+   * Sets the sink to which the report for this batch should be written.
+   * If no sink is set before {@link #init()} is called, the standard XML
+   * report is written.
+   */
+  public void setReportSink(ReportSink reportSink) {
+    this.reportSink = reportSink;
+  }
+
   /**
    * This gets an {@link XMLStreamWriter} that writes to the
-   * report file for this batch.
+   * report file for this batch, if the batch is using the standard XML
+   * report format.
    * @return a writer for the report file, positioned ready to
    * write the next entry for a completed or failed processing
-   * job.
-   * @throws IOException if an I/O error occurs while creating
-   * the writer
-   * @throws XMLStreamException if a StAX error occurs while
-   * creating the writer.
+   * job, or <code>null</code> if this batch does not write an XML
+   * report.
+   * @deprecated use {@link #getReportSink()}
    */
+  @Deprecated
   public XMLStreamWriter getReportWriter() throws IOException,
           XMLStreamException {
-    return reportWriter;
+    if(reportSink instanceof XMLReportSink) {
+      return ((XMLReportSink)reportSink).getReportWriter();
+    }
+    return null;
   }
 
   /**
@@ -384,12 +450,42 @@ public class Batch {
    * are still to be processed.  For a clean batch this would be the
    * same as {@link #getDocumentIDs()} but for a batch that has
    * been interrupted and restarted the values may be different.
-   * May be null for streaming batches, where the full list of
-   * document IDs is not known up-front.
+   * May be null for streaming batches, and for batches whose IDs come
+   * from a {@link #getDocumentIDIterator() document ID iterator}, where
+   * the full list of document IDs is not known up-front.
    */
   public DocumentID[] getUnprocessedDocumentIDs() {
     return unprocessedDocumentIDs;
   }
+
+  /**
+   * Gets the iterator that produces the document IDs for this batch while
+   * it runs, or null if the IDs are given by {@link #getDocumentIDs()} or
+   * come from a streaming input handler.
+   */
+  public Iterator<DocumentID> getDocumentIDIterator() {
+    return documentIDIterator;
+  }
+
+  /**
+   * Sets an iterator to produce the document IDs for this batch while it
+   * runs, instead of a complete array of IDs, so that processing can start
+   * before all the IDs are known (for example while a large directory tree
+   * is still being walked).  The total number of documents is then unknown
+   * until the batch finishes.
+   */
+  public void setDocumentIDIterator(Iterator<DocumentID> documentIDIterator) {
+    this.documentIDIterator = documentIDIterator;
+  }
+
+  /**
+   * Gets the iterator set by {@link #setDocumentIDIterator}, skipping any
+   * documents that were completed by an earlier run of a restarted batch.
+   * Only valid after {@link #init()}.
+   */
+  public Iterator<DocumentID> getUnprocessedDocumentIterator() {
+    return unprocessedDocumentIterator;
+  }
   
   /**
    * This gets the set of all document IDs from this batch that
@@ -397,7 +493,9 @@ public class Batch {
    * batch this would be empty, but for a batch that has been
    * interrupted and restarted the set will contain document
    * IDs that are marked as SUCCEEDED in the partial report
-   * file from the previous run.
+   * file from the previous run.  The IDs are represented by their
+   * {@link DocumentID#getKey() keys}, which for IDs without attributes
+   * are just the ID text.
    */
   public Set<String> getCompletedDocuments() {
     return completedDocuments;
@@ -416,10 +514,12 @@ public class Batch {
             + "\nReport file:      "
             + reportFile
             + "\nInput documents:        "
-            + (documentIDs == null ? 0 : documentIDs.length)
+            + (documentIDs == null
+                    ? (documentIDIterator == null ? "0" : "unknown")
+                    : documentIDs.length)
             + "\nUnprocessed documents:  "
             + (unprocessedDocumentIDs == null
-                    ? 0
+                    ? (documentIDIterator == null ? "0" : "unknown")
                     : unprocessedDocumentIDs.length);
   }
   
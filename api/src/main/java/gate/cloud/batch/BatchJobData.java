@@ -26,8 +26,8 @@ public interface BatchJobData {
   
   /**
    * Gets the number of document that were processed so far. The result of this
-   * call is the sum of {@link #getSuccessDocumentCount()} and
-   * {@link #getErrorDocumentCount()}.
+   * call is the sum of {@link #getSuccessDocumentCount()},
+   * {@link #getErrorDocumentCount()} and {@link #getFilteredDocumentCount()}.
    * @return an int value.
    */
   public int getProcessedDocumentCount();
@@ -58,6 +58,16 @@ public interface BatchJobData {
    */
   public int getErrorDocumentCount();
   
+  /**
+   * Gets the number of documents from this batch that were filtered out
+   * rather than processed.  The default implementation returns 0, for
+   * implementations that do not filter documents.
+   * @return an int value.
+   */
+  public default int getFilteredDocumentCount() {
+    return 0;
+  }
+  
   /**
    * Gets the moment in time when the execution of this batch was started.
    * @return a long value, obtained from {@link System#currentTimeMillis()}.
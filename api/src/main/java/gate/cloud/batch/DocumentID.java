@@ -14,6 +14,7 @@ package gate.cloud.batch;
 import gate.cloud.io.InputHandler;
 
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Class representing a document ID. When listed inside a batch XML
@@ -50,6 +51,11 @@ public class DocumentID {
    * Cached copy of the toString representation.
    */
   private String toString;
+
+  /**
+   * Cached copy of the key.
+   */
+  private String key;
   
   public DocumentID(String idText) {
     this(idText, null);
@@ -74,6 +80,61 @@ public class DocumentID {
     return attributes;
   }
 
+  /**
+   * Get a string that identifies this ID, including its attributes, as
+   * used to record completed documents in the batch report.  For an ID
+   * without attributes this is just the ID text; otherwise it is an
+   * xml-like representation like {@link #toString()}, but with the
+   * attributes in name order and the values escaped, so that equal IDs
+   * always have the same key.
+   */
+  public String getKey() {
+    if(key == null) {
+      if(attributes != null && attributes.size() > 0) {
+        StringBuilder str = new StringBuilder("<id");
+        for(Map.Entry<String, String> attr : new TreeMap<String, String>(
+                attributes).entrySet()) {
+          str.append(' ').append(attr.getKey()).append("=\"");
+          escape(attr.getValue(), str);
+          str.append('"');
+        }
+        if(idText != null) {
+          str.append('>');
+          escape(idText, str);
+          str.append("</id>");
+        } else {
+          str.append("/>");
+        }
+        key = str.toString();
+      } else {
+        key = idText != null ? idText : "";
+      }
+    }
+    return key;
+  }
+
+  private static void escape(String value, StringBuilder str) {
+    if(value == null) {
+      return;
+    }
+    for(int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch(c) {
+        case '&':
+          str.append("&amp;");
+          break;
+        case '<':
+          str.append("&lt;");
+          break;
+        case '"':
+          str.append("&quot;");
+          break;
+        default:
+          str.append(c);
+      }
+    }
+  }
+
   /* (non-Javadoc)
    * @see java.lang.Object#toString()
    */
@@ -0,0 +1,185 @@
+/*
+ *  DocumentManifest.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.batch;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Record of the documents that previous runs of a batch have processed
+ * successfully, used to run a batch incrementally, processing only the
+ * documents that are new or have changed since the last run.
+ * <p>
+ * For each document the manifest holds a <em>state</em> string, which
+ * summarises the document (e.g. its size and modification time) and the
+ * application that processed it.  An enumerator compares the current
+ * state of each document with the state in the manifest, and only
+ * enumerates those that differ, registering their new state as
+ * <em>pending</em>.  The pending state is only written to the manifest
+ * when the batch reports that the document was processed successfully,
+ * so a document that fails will be tried again next time.
+ * <p>
+ * The manifest file is a UTF-8 text file with one line per document, the
+ * state and the document ID separated by a tab.  New states are appended
+ * to the end of the file as documents complete, and the file is compacted
+ * each time it is opened.
+ */
+public class DocumentManifest {
+
+  private static final Logger log =
+          LoggerFactory.getLogger(DocumentManifest.class);
+
+  protected File file;
+
+  /**
+   * States recorded by previous runs.
+   */
+  protected Map<String, String> recorded = new HashMap<String, String>();
+
+  /**
+   * New states for documents that have been enumerated in this run but
+   * not yet completed.
+   */
+  protected Map<String, String> pending =
+          new ConcurrentHashMap<String, String>();
+
+  /**
+   * Writer appending to the manifest file, opened when the first document
+   * completes.
+   */
+  protected Writer appender;
+
+  /**
+   * Open a manifest, reading any existing entries from the given file.
+   *
+   * @param file the manifest file, which need not exist yet.
+   */
+  public DocumentManifest(File file) throws IOException {
+    this.file = file;
+    if(file.exists()) {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(
+              new FileInputStream(file), StandardCharsets.UTF_8));
+      try {
+        String line;
+        while((line = reader.readLine()) != null) {
+          int tab = line.indexOf('\t');
+          if(tab > 0) {
+            // later entries override earlier ones
+            recorded.put(line.substring(tab + 1), line.substring(0, tab));
+          }
+        }
+      } finally {
+        reader.close();
+      }
+      compact();
+      log.info("Manifest {} records {} previously processed documents", file,
+              recorded.size());
+    }
+  }
+
+  /**
+   * Rewrite the manifest file with a single line per document.
+   */
+  protected void compact() throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    Writer w = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(tmp), StandardCharsets.UTF_8));
+    try {
+      for(Map.Entry<String, String> e : recorded.entrySet()) {
+        writeEntry(w, e.getKey(), e.getValue());
+      }
+    } finally {
+      w.close();
+    }
+    Files.move(tmp.toPath(), file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static void writeEntry(Writer w, String id, String state)
+          throws IOException {
+    w.write(state);
+    w.write('\t');
+    w.write(id);
+    w.write('\n');
+  }
+
+  /**
+   * Is the given document unchanged since it was last processed
+   * successfully?
+   *
+   * @param id the document ID
+   * @param state the current state of the document, which must not
+   *          contain tab or newline characters.
+   */
+  public boolean isUnchanged(String id, String state) {
+    return state.equals(recorded.get(id));
+  }
+
+  /**
+   * Register the current state of a document that is to be processed.
+   */
+  public void pending(String id, String state) {
+    pending.put(id, state);
+  }
+
+  /**
+   * Record that the given document has been processed successfully.  This
+   * does nothing if the document was not registered by {@link #pending}.
+   */
+  public synchronized void completed(String id) throws IOException {
+    String state = pending.remove(id);
+    if(state != null) {
+      if(appender == null) {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if(!parent.exists() && !parent.mkdirs()) {
+          throw new IOException("Could not create directory " + parent);
+        }
+        appender = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, true), StandardCharsets.UTF_8));
+      }
+      writeEntry(appender, id, state);
+      recorded.put(id, state);
+    }
+  }
+
+  /**
+   * Flush any completed entries to the manifest file.
+   */
+  public synchronized void flush() throws IOException {
+    if(appender != null) {
+      appender.flush();
+    }
+  }
+
+  /**
+   * Close the manifest file.
+   */
+  public synchronized void close() throws IOException {
+    if(appender != null) {
+      appender.close();
+      appender = null;
+    }
+  }
+}
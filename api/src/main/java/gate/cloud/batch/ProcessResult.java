@@ -20,9 +20,12 @@ import java.util.Map;
  */
 public interface ProcessResult {
   /**
-   * An enumeration of possible return codes.
+   * An enumeration of possible return codes.  {@link #FILTERED} marks a
+   * document that was deliberately not processed (for example because it
+   * is a near-duplicate of one processed earlier), which counts as
+   * complete when a batch is restarted.
    */
-  public enum ReturnCode {SUCCESS, FAIL, END_OF_BATCH};
+  public enum ReturnCode {SUCCESS, FAIL, FILTERED, END_OF_BATCH};
   
   /**
    * Gets the return code of a process.
@@ -65,7 +68,8 @@ public interface ProcessResult {
   /**
    * Gets a textual representation of the error that caused a failure. This 
    * field will be be set in the case of process failure (which is marked by the
-   * value of {@link #getReturnCode()}.
+   * value of {@link #getReturnCode()}, and gives the reason a document was
+   * filtered out for results with the code {@link ReturnCode#FILTERED}.
    *  
    * @return a String object.
    */
@@ -0,0 +1,67 @@
+/*
+ *  ReportSink.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.batch;
+
+import gate.util.GateException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Interface for a component that writes the report for a batch: a record
+ * of the result of processing each document, followed by a summary of the
+ * whole batch.  The default implementation is {@link XMLReportSink}.
+ * <p>
+ * Methods other than {@link #config} and {@link #open} are only ever
+ * called from a single thread.
+ */
+public interface ReportSink {
+
+  /**
+   * Configures this sink by providing a {@link Map} containing
+   * configuration options, taken from the attributes of the
+   * <code>report</code> element in the batch definition.
+   */
+  public void config(Map<String, String> configData) throws IOException,
+          GateException;
+
+  /**
+   * Open the report file, ready to write results.  If the file already
+   * exists (i.e. the batch is being restarted) then the results of the
+   * documents that were completed successfully by the previous run should
+   * be carried over into the new report, and their IDs returned.
+   *
+   * @param reportFile the report file
+   * @return the IDs of the documents that do not need to be processed
+   *         again. If the sink cannot determine this, it should return an
+   *         empty set.
+   */
+  public Set<String> open(File reportFile) throws IOException, GateException;
+
+  /**
+   * Add the result of processing a single document to the report.
+   */
+  public void writeResult(ProcessResult result) throws IOException;
+
+  /**
+   * Flush any buffered results to the report file.  This is called
+   * periodically while the batch is running, so that the report remains
+   * up to date in case the process is killed.
+   */
+  public void flush() throws IOException;
+
+  /**
+   * Write the summary for the whole batch and close the report.
+   *
+   * @param jobData the data for the complete batch.
+   */
+  public void close(BatchJobData jobData) throws IOException;
+}
@@ -0,0 +1,207 @@
+/*
+ *  XMLReportSink.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.batch;
+
+import gate.cloud.util.Tools;
+import gate.util.GateException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.XMLEvent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Report sink that writes the standard GCP XML report, with one
+ * <code>processResult</code> element per document followed by a
+ * <code>batchReport</code> summary.
+ */
+public class XMLReportSink extends AbstractReportSink {
+
+  private static Logger logger = LoggerFactory.getLogger(XMLReportSink.class);
+
+  private static XMLOutputFactory staxOutputFactory =
+      XMLOutputFactory.newInstance();
+
+  private static XMLInputFactory staxInputFactory =
+    XMLInputFactory.newInstance();
+
+  protected XMLStreamWriter reportWriter;
+
+  protected OutputStream reportStream;
+
+  public Set<String> open(File reportFile) throws IOException, GateException {
+    Set<String> completedDocuments = new HashSet<String>();
+    File backupFile = backupExistingReport(reportFile);
+    // at this point we have the batch file moved/copied to the backup file,
+    // so we can overwrite the report file.
+    // prepare the report writer
+    try {
+      reportStream =
+              new BufferedOutputStream(new FileOutputStream(reportFile));
+      reportWriter = staxOutputFactory.createXMLStreamWriter(reportStream);
+      reportWriter.writeStartDocument();
+      reportWriter.writeCharacters("\n");
+      reportWriter.setDefaultNamespace(Tools.REPORT_NAMESPACE);
+      reportWriter.writeStartElement(Tools.REPORT_NAMESPACE, "cloudReport");
+      reportWriter.writeDefaultNamespace(Tools.REPORT_NAMESPACE);
+      reportWriter.writeCharacters("\n");
+      reportWriter.writeStartElement(Tools.REPORT_NAMESPACE, "documents");
+
+    } catch(XMLStreamException e) {
+      throw new GateException("Cannot write to the report file!", e);
+    }
+    if(backupFile != null) {
+      try {
+        // in the report XML, the document IDs are represented by their keys
+        logger.debug("Processing existing report file");
+        InputStream bakIn =
+                new BufferedInputStream(new FileInputStream(backupFile));
+        XMLEventReader xer = staxInputFactory.createXMLEventReader(bakIn);
+        try {
+          // skip until we find the starting documents tag
+          XMLEvent event;
+          while(xer.hasNext()) {
+            event = xer.nextEvent();
+            if(event.isStartElement()
+                    && event.asStartElement().getName().getLocalPart()
+                            .equals("documents")) {
+              break;
+            }
+          }
+          // read events from the input reader, write them to the report
+          // writer, and remove any completed docIDs from the to-do list
+          List<XMLEvent> events = new LinkedList<XMLEvent>();
+          String currentReturnCode = null;
+          String currentDocid = null;
+          while(xer.hasNext()) {
+            event = xer.nextEvent();
+            events.add(event);
+            // if this is the start of a processResult, store the return code
+            // and ID for later
+            if(event.isStartElement()
+                    && event.asStartElement().getName().getLocalPart()
+                            .equals("processResult")) {
+              currentReturnCode =
+                      event.asStartElement().getAttributeByName(
+                              new QName(XMLConstants.NULL_NS_URI,
+                                      "returnCode")).getValue();
+              // the key attribute is only written for IDs with
+              // attributes, and identifies the document completely
+              Attribute keyAttr =
+                      event.asStartElement().getAttributeByName(
+                              new QName(XMLConstants.NULL_NS_URI, "key"));
+              currentDocid = keyAttr != null ? keyAttr.getValue()
+                      : event.asStartElement().getAttributeByName(
+                              new QName(XMLConstants.NULL_NS_URI, "id"))
+                              .getValue();
+            }
+            // if we have reached the end of a complete processResult
+            // element, write it to the output stream writer
+            if(event.isEndElement()
+                    && event.asEndElement().getName().getLocalPart().equals(
+                            "processResult")) {
+              if((currentReturnCode.equals("SUCCESS")
+                      || currentReturnCode.equals("FILTERED"))
+                      && currentDocid != null) {
+                completedDocuments.add(currentDocid);
+                for(XMLEvent evt : events) {
+                  Tools.writeStaxEvent(evt, reportWriter);
+                }
+              }
+              events.clear();
+              currentReturnCode = null;
+              currentDocid = null;
+            }
+            // stop if we reach the end of the <documents> element
+            if(event.isEndElement()
+                    && event.asEndElement().getName().getLocalPart().equals(
+                            "documents")) {
+              break;
+            }
+          }
+        } catch(Exception e) {
+          // ignore, it probably just means end of file, as the XML we
+          // are parsing will almost certainly be malformed
+          logger.debug("Exception while parsing old report file - probably "
+                  + "reached the end of old report", e);
+        } finally {
+          xer.close();
+          bakIn.close();
+          backupFile.delete();
+        }
+      } catch(XMLStreamException e) {
+        throw new GateException("Cannot write to the report file!", e);
+      }
+    }
+    return completedDocuments;
+  }
+
+  /**
+   * Get the underlying XML writer, positioned ready to write the next
+   * <code>processResult</code>.
+   */
+  public XMLStreamWriter getReportWriter() {
+    return reportWriter;
+  }
+
+  public void writeResult(ProcessResult result) throws IOException {
+    try {
+      reportWriter.writeCharacters("\n");
+      Tools.writeResultToXml(result, reportWriter);
+    } catch(XMLStreamException e) {
+      throw new IOException("Error writing to report file", e);
+    }
+  }
+
+  public void flush() throws IOException {
+    try {
+      reportWriter.flush();
+    } catch(XMLStreamException e) {
+      throw new IOException("Error writing to report file", e);
+    }
+  }
+
+  public void close(BatchJobData jobData) throws IOException {
+    try {
+      //close the <documents> element
+      reportWriter.writeCharacters("\n");
+      reportWriter.writeEndElement();
+      //write the whole batch report element
+      Tools.writeBatchResultToXml(jobData, reportWriter);
+      reportWriter.flush();
+      reportWriter.close();
+    } catch(XMLStreamException e) {
+      throw new IOException("Error writing to report file", e);
+    } finally {
+      // closing the XMLStreamWriter does not close the underlying stream
+      reportStream.close();
+    }
+  }
+}
@@ -13,7 +13,6 @@ package gate.cloud.io;
 
 
 import gate.Annotation;
-import gate.AnnotationSet;
 import gate.Document;
 import gate.cloud.batch.AnnotationSetDefinition;
 import gate.cloud.batch.DocumentID;
@@ -21,11 +20,8 @@ import gate.util.GateException;
 
 import java.io.IOException;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * Base class for output handlers.
@@ -89,32 +85,36 @@ public abstract class AbstractOutputHandler implements OutputHandler {
     // TODO Auto-generated method stub
   }
 
+  /**
+   * Select the annotations that this handler should output, according to
+   * its annotation set definitions.
+   *
+   * @return a new map from annotation set name (<code>null</code> for the
+   *         default set) to the selected annotations from that set.
+   */
   protected Map<String, Collection<Annotation>> collectAnnotations(Document document) {
-    // build the map of annotations that we are interested in
-    Map<String, Collection<Annotation>> annotationSetsMap =
-      new HashMap<String, Collection<Annotation>>();
+    return collectAnnotations(document, null);
+  }
 
-    if(annSetDefinitions != null && annSetDefinitions.size() > 0) {
-      for(AnnotationSetDefinition asDef : annSetDefinitions) {
-        AnnotationSet annotationSet = document.getAnnotations(
-                asDef.getAnnotationSetName());
-        // restrict to specified types, if necessary
-        if(asDef.getAnnotationTypes() != null && 
-           !asDef.getAnnotationTypes().isEmpty()) {
-          Set<String> types = new HashSet<String>(asDef.getAnnotationTypes());
-          annotationSet = annotationSet.get(types);
-        }
-        // map "" name to null
-        annotationSetsMap.put(("".equals(asDef.getAnnotationSetName())
-                ? null : asDef.getAnnotationSetName()), annotationSet);
-      }
-    } else {
-      annotationSetsMap.put(null, document.getAnnotations());
-      if(document.getNamedAnnotationSets() != null) {
-        annotationSetsMap.putAll(document.getNamedAnnotationSets());
-      }
+  /**
+   * Select the annotations that this handler should output, according to
+   * its annotation set definitions.  If a snapshot is given the selection
+   * is taken from (and shared via) the snapshot, otherwise it is computed
+   * directly.
+   *
+   * @param document the document
+   * @param snapshot the snapshot of the document passed to
+   *          {@link #outputDocumentImpl(Document, DocumentID, AnnotationSnapshot)},
+   *          or <code>null</code>.
+   * @return a new map from annotation set name (<code>null</code> for the
+   *         default set) to the selected annotations from that set.
+   */
+  protected Map<String, Collection<Annotation>> collectAnnotations(
+          Document document, AnnotationSnapshot snapshot) {
+    if(snapshot == null) {
+      snapshot = new AnnotationSnapshot(document);
     }
-    return annotationSetsMap;
+    return snapshot.select(annSetDefinitions);
   }
   
   /**
@@ -130,6 +130,52 @@ public abstract class AbstractOutputHandler implements OutputHandler {
     return (value.equals("true")||  value.equals("yes") || value.equals("on"));
   }
 
+  /**
+   * Convenience method for processing integer-valued configuration
+   * parameters.
+   * 
+   * @param configData the configuration parameters
+   * @param name the name of the parameter
+   * @param defaultValue the value to return if the parameter is not set
+   * @return the (whitespace-trimmed) parameter value, parsed as an int, or
+   *         the default value if it is null or empty.
+   * @throws GateException if the value is not an integer number.
+   */
+  public static int intValueOf(Map<String, String> configData, String name,
+          int defaultValue) throws GateException {
+    long value = longValueOf(configData, name, defaultValue);
+    if(value != (int)value) {
+      throw new GateException("Invalid " + name +
+          " value (out of range for an integer).");
+    }
+    return (int)value;
+  }
+
+  /**
+   * Convenience method for processing long-valued configuration
+   * parameters.
+   * 
+   * @param configData the configuration parameters
+   * @param name the name of the parameter
+   * @param defaultValue the value to return if the parameter is not set
+   * @return the (whitespace-trimmed) parameter value, parsed as a long, or
+   *         the default value if it is null or empty.
+   * @throws GateException if the value is not an integer number.
+   */
+  public static long longValueOf(Map<String, String> configData, String name,
+          long defaultValue) throws GateException {
+    String value = configData.get(name);
+    if(value == null || value.trim().length() == 0) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch(NumberFormatException e) {
+      throw new GateException("Invalid " + name +
+          " value (not an integer number).", e);
+    }
+  }
+
   /**
    * Implementation of the 
    * {@link gate.cloud.io.OutputHandler#outputDocument(gate.Document, gate.cloud.batch.DocumentID)}
@@ -147,11 +193,41 @@ public abstract class AbstractOutputHandler implements OutputHandler {
    */
   public final void outputDocument(Document document, DocumentID documentId)
     throws IOException, GateException {
+    outputDocument(document, documentId, null);
+  }
+
+  /**
+   * As {@link #outputDocument(Document, DocumentID)}, passing the shared
+   * annotation snapshot on to
+   * {@link #outputDocumentImpl(Document, DocumentID, AnnotationSnapshot)}.
+   */
+  public final void outputDocument(Document document, DocumentID documentId,
+    AnnotationSnapshot snapshot) throws IOException, GateException {
     if(conditionalSaveFeatureName != null) {
       Object featureValue = document.getFeatures().get(conditionalSaveFeatureName);
       if(featureValue == null) return;
       if(!booleanValueOf(featureValue.toString())) return;
     }
+    outputDocumentImpl(document, documentId, snapshot);
+  }
+
+  /**
+   * Output a document, selecting its annotations from the given snapshot
+   * (by passing it to {@link #collectAnnotations(Document, AnnotationSnapshot)}).
+   * The default implementation ignores the snapshot and calls
+   * {@link #outputDocumentImpl(Document, DocumentID)}, so subclasses that
+   * select annotations should override this method, and implement the
+   * two-argument version by calling this one with a <code>null</code>
+   * snapshot.
+   * @param document the document being saved
+   * @param documentId the ID for the saved document
+   * @param snapshot the annotations already selected from the document, or
+   * <code>null</code>.
+   * @throws IOException if an I/O error occurs while outputting.
+   * @throws GateException if any other error occurs while outputting.
+   */
+  protected void outputDocumentImpl(Document document, DocumentID documentId,
+      AnnotationSnapshot snapshot) throws IOException, GateException {
     outputDocumentImpl(document, documentId);
   }
 
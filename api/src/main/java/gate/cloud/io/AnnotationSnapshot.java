@@ -0,0 +1,133 @@
+/*
+ *  AnnotationSnapshot.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.cloud.batch.AnnotationSetDefinition;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The annotations selected from a processed document for output.  The
+ * document processor creates a snapshot for each document once processing
+ * is complete and passes it (in {@link DocumentData#snapshot}) to all the
+ * output handlers, which select their annotations from it via
+ * {@link AbstractOutputHandler#collectAnnotations(Document, AnnotationSnapshot)},
+ * and to the report statistics.  They then share the same selections
+ * rather than each repeating the work of selecting the annotations named
+ * by their {@link AnnotationSetDefinition}s.
+ * <p>
+ * Selections are cached by definition, so two handlers that save the same
+ * annotations share a single selection.  A snapshot may be used by several
+ * threads at once.
+ */
+public class AnnotationSnapshot {
+
+  private Document document;
+
+  /**
+   * Selected annotations for each definition.
+   */
+  private Map<AnnotationSetDefinition, AnnotationSet> selections =
+          new ConcurrentHashMap<AnnotationSetDefinition, AnnotationSet>();
+
+  /**
+   * Annotation counts by type for each definition.
+   */
+  private Map<AnnotationSetDefinition, Map<String, Integer>> typeCounts =
+          new ConcurrentHashMap<AnnotationSetDefinition, Map<String, Integer>>();
+
+  public AnnotationSnapshot(Document document) {
+    this.document = document;
+  }
+
+  public Document getDocument() {
+    return document;
+  }
+
+  /**
+   * Get the annotations selected by a single definition.
+   */
+  public AnnotationSet select(AnnotationSetDefinition asDef) {
+    AnnotationSet selected = selections.get(asDef);
+    if(selected == null) {
+      selected = document.getAnnotations(asDef.getAnnotationSetName());
+      // restrict to specified types, if necessary
+      if(asDef.getAnnotationTypeSet() != null) {
+        selected = selected.get(asDef.getAnnotationTypeSet());
+      }
+      selections.put(asDef, selected);
+    }
+    return selected;
+  }
+
+  /**
+   * Build the map of annotations selected by the given definitions, in the
+   * form returned by {@link AbstractOutputHandler#collectAnnotations}.
+   * The map itself is new for every call (so callers may modify it), but
+   * the annotation sets it contains are shared.
+   *
+   * @param annSetDefinitions the definitions, or <code>null</code> or an
+   *          empty list to select all annotations.
+   */
+  public Map<String, Collection<Annotation>> select(
+          List<AnnotationSetDefinition> annSetDefinitions) {
+    Map<String, Collection<Annotation>> annotationSetsMap =
+            new HashMap<String, Collection<Annotation>>();
+    if(annSetDefinitions != null && annSetDefinitions.size() > 0) {
+      for(AnnotationSetDefinition asDef : annSetDefinitions) {
+        // map "" name to null
+        annotationSetsMap.put(("".equals(asDef.getAnnotationSetName())
+                ? null : asDef.getAnnotationSetName()), select(asDef));
+      }
+    } else {
+      annotationSetsMap.put(null, document.getAnnotations());
+      if(document.getNamedAnnotationSets() != null) {
+        annotationSetsMap.putAll(document.getNamedAnnotationSets());
+      }
+    }
+    return annotationSetsMap;
+  }
+
+  /**
+   * Count the annotations of each type selected by the given definition,
+   * in a single pass over the selection.
+   *
+   * @return an unmodifiable map from type name to count, containing only
+   *         the types that actually occur.
+   */
+  public Map<String, Integer> countByType(AnnotationSetDefinition asDef) {
+    Map<String, Integer> counts = typeCounts.get(asDef);
+    if(counts == null) {
+      Map<String, int[]> tally = new HashMap<String, int[]>();
+      for(Annotation a : select(asDef)) {
+        int[] c = tally.get(a.getType());
+        if(c == null) {
+          c = new int[1];
+          tally.put(a.getType(), c);
+        }
+        c[0]++;
+      }
+      counts = new HashMap<String, Integer>(tally.size() * 2);
+      for(Map.Entry<String, int[]> e : tally.entrySet()) {
+        counts.put(e.getKey(), e.getValue()[0]);
+      }
+      counts = Collections.unmodifiableMap(counts);
+      typeCounts.put(asDef, counts);
+    }
+    return counts;
+  }
+}
@@ -32,4 +32,33 @@ public class DocumentData {
   public long fileSize = -1;
   public long documentLength = -1;
   public long processingTime = -1;
+
+  /**
+   * The annotations selected for output, shared by the output handlers,
+   * once the document has been processed.
+   */
+  public AnnotationSnapshot snapshot;
+
+  /**
+   * If the document was rejected by a {@link DocumentPreFilter}, the
+   * reason it was rejected, in which case there is no
+   * {@link #document}.
+   */
+  public String filterReason;
+
+  /**
+   * Create the data returned by an input handler for a document rejected
+   * by a {@link DocumentPreFilter}.
+   *
+   * @param id the document ID
+   * @param reason the reason returned by the filter
+   * @param fileSize the size of the document, or -1 if not known
+   */
+  public static DocumentData filtered(DocumentID id, String reason,
+          long fileSize) {
+    DocumentData docData = new DocumentData(null, id);
+    docData.filterReason = reason;
+    docData.fileSize = fileSize;
+    return docData;
+  }
 }
@@ -42,4 +42,16 @@ public interface DocumentEnumerator extends Iterator<DocumentID> {
    * call to {@link #hasNext()} and {@link #next()}. 
    */
   public void init() throws IOException, GateException;
+
+  /**
+   * Should the IDs from this enumerator be passed to the batch as they are
+   * produced, rather than all collected before the batch starts?  This
+   * suits enumerators that find their IDs gradually, such as a walk of a
+   * large directory tree, but the total number of documents in the batch
+   * is then unknown until the batch finishes.  The default is
+   * <code>false</code>.
+   */
+  public default boolean isStreaming() {
+    return false;
+  }
 }
@@ -0,0 +1,49 @@
+/*
+ *  DocumentPreFilter.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io;
+
+import gate.util.GateException;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A cheap check applied to the raw content of a document before the GATE
+ * document is created, to reject documents that would be thrown away
+ * anyway (too large, in the wrong language, binary data, etc.) without
+ * paying for parsing and annotation.  Filters are declared with
+ * <code>preFilter</code> elements in the batch definition and are applied
+ * by input handlers that implement {@link PreFilteringInputHandler}.
+ * Rejected documents are reported with the return code
+ * <code>FILTERED</code>.
+ */
+public interface DocumentPreFilter {
+
+  /**
+   * Configures this filter from the attributes of its
+   * <code>preFilter</code> element.
+   *
+   * @param configData the configuration data from the batch descriptor.
+   * @throws IOException if an I/O error occurs during configuration.
+   * @throws GateException if the configuration is not valid.
+   */
+  public void config(Map<String, String> configData) throws IOException,
+          GateException;
+
+  /**
+   * Checks a document.  This method may be called from multiple threads,
+   * so implementations must be thread-safe!
+   *
+   * @param document the raw document content
+   * @return a short description of the reason the document is rejected,
+   *         or <code>null</code> if it should be processed.
+   * @throws IOException if the document content cannot be read.
+   */
+  public String check(RawDocument document) throws IOException;
+}
@@ -127,6 +127,36 @@ public class IOConstants {
    * interested in.
    */
   public static final String PARAM_EXCLUDE_STATUS_CODES = "excludeStatusCodes";
+
+  /**
+   * Location of a CDX-style index of the records in a web archive.
+   */
+  public static final String PARAM_INDEX_FILE = "indexFile";
+
+  /**
+   * Should a web archive enumerator write an index of the archive when
+   * it has to scan the archive itself?
+   */
+  public static final String PARAM_WRITE_INDEX = "writeIndex";
+
+  /**
+   * Minimum number of bytes to fetch in each HTTP range request when
+   * reading records from a remote web archive, so that neighbouring
+   * records can be served from the same request.
+   */
+  public static final String PARAM_READ_AHEAD = "readAhead";
+
+  /**
+   * Should the next block of a remote web archive be fetched in the
+   * background while the current one is being processed?
+   */
+  public static final String PARAM_PREFETCH = "prefetch";
+
+  /**
+   * Number of web archives that a multi-archive input handler should
+   * read concurrently.
+   */
+  public static final String PARAM_ARCHIVE_THREADS = "archiveThreads";
   
   /**
    * The default encoding that should be used to read records from an
@@ -154,6 +184,53 @@ public class IOConstants {
    * Should Ant-based enumerators use the default Ant exclude patterns?
    */
   public static final String PARAM_DEFAULT_EXCLUDES = "defaultExcludes";
+
+  /**
+   * Manifest file in which an enumerator records the state of the
+   * documents that have been processed successfully, so that later runs
+   * of the batch only process new or changed documents.
+   */
+  public static final String PARAM_MANIFEST = "manifest";
+
+  /**
+   * How an incremental enumerator decides whether a document has changed
+   * since it was last processed: {@link #VALUE_CHANGE_DETECTION_MTIME}
+   * (the default) compares size and modification time,
+   * {@link #VALUE_CHANGE_DETECTION_HASH} compares size and a hash of the
+   * content.
+   */
+  public static final String PARAM_CHANGE_DETECTION = "changeDetection";
+
+  public static final String VALUE_CHANGE_DETECTION_MTIME = "mtime";
+
+  public static final String VALUE_CHANGE_DETECTION_HASH = "hash";
+
+  /**
+   * Number of threads the file enumerator should use to walk the
+   * directory tree.  If unset (or zero) the tree is scanned by a single
+   * Ant DirectoryScanner and the results sorted, otherwise it is walked in
+   * parallel and the IDs are returned as they are found.
+   */
+  public static final String PARAM_SCAN_THREADS = "scanThreads";
+
+  /**
+   * Order of the IDs returned by a parallel directory walk:
+   * {@link #VALUE_SCAN_ORDER_DIRECTORY} (the default) returns the files in
+   * each directory in name order, {@link #VALUE_SCAN_ORDER_NONE} in the
+   * order in which the file system lists them.
+   */
+  public static final String PARAM_SCAN_ORDER = "scanOrder";
+
+  public static final String VALUE_SCAN_ORDER_DIRECTORY = "directory";
+
+  public static final String VALUE_SCAN_ORDER_NONE = "none";
+
+  /**
+   * Fingerprint of the batch's GATE application, passed to enumerators by
+   * the batch parser.
+   */
+  public static final String PARAM_APPLICATION_FINGERPRINT =
+          "applicationFingerprint";
   
   /**
    * File name pattern for naming strategies.
@@ -165,6 +242,13 @@ public class IOConstants {
    * current platform default encoding.
    */
   public static final String PARAM_FILE_NAME_ENCODING = "fileNameEncoding";
+
+  /**
+   * Should the zip input handler memory-map the zip file and share it
+   * between all processing threads, rather than opening a separate
+   * ZipFile for each thread?
+   */
+  public static final String PARAM_MEMORY_MAPPED = "memoryMapped";
   
   /**
    * JSON Pointer expression defining where to find the document ID in a
@@ -201,6 +285,82 @@ public class IOConstants {
    * Target size for a single output file from a streaming output handler.
    */
   public static final String PARAM_CHUNK_SIZE = "chunkSize";
+
+  /**
+   * Number of bytes a streaming output handler may write to a chunk file
+   * before it forces a flush of any buffered data.  If neither this nor
+   * {@link #PARAM_FLUSH_INTERVAL} is set, data is only flushed when the
+   * output buffer fills up or the chunk is closed.
+   */
+  public static final String PARAM_FLUSH_BYTES = "flushBytes";
+
+  /**
+   * Maximum time in milliseconds that a streaming output handler may hold
+   * written data in its buffers before flushing it to the chunk file.
+   */
+  public static final String PARAM_FLUSH_INTERVAL = "flushInterval";
+
+  /**
+   * Number of parallel writer threads used by a streaming output handler.
+   * Each writer has its own current chunk file.
+   */
+  public static final String PARAM_WRITER_THREADS = "writerThreads";
+
+  /**
+   * Maximum number of in-memory buffers a streaming output handler may use
+   * to pass serialized documents to its writer thread(s).  Processing
+   * threads block when all the buffers are in use.
+   */
+  public static final String PARAM_BUFFER_POOL_SIZE = "bufferPoolSize";
+
+  /**
+   * Buffers that have grown larger than this many bytes are discarded
+   * after use rather than being returned to a streaming output handler's
+   * buffer pool.
+   */
+  public static final String PARAM_MAX_RETAINED_BUFFER_SIZE =
+          "maxRetainedBufferSize";
+
+  /**
+   * Archive format in which a file-based output handler should pack its
+   * output files, rather than writing each one separately to disk.  Valid
+   * values are {@link #VALUE_ARCHIVE_NONE} (the default),
+   * {@link #VALUE_ARCHIVE_ZIP}, {@link #VALUE_ARCHIVE_TAR} and
+   * {@link #VALUE_ARCHIVE_TAR_GZ}.  The same parameter gives the format of
+   * the archive read by a streaming archive input handler, which also
+   * accepts {@link #VALUE_ARCHIVE_TAR_ZST}.
+   */
+  public static final String PARAM_ARCHIVE_FORMAT = "archive";
+
+  /**
+   * Maximum size in bytes of an archive entry read by a streaming archive
+   * input handler.  Larger entries are skipped without being read.
+   */
+  public static final String PARAM_MAX_ENTRY_SIZE = "maxEntrySize";
+
+  public static final String VALUE_ARCHIVE_NONE = "none";
+
+  public static final String VALUE_ARCHIVE_ZIP = "zip";
+
+  public static final String VALUE_ARCHIVE_TAR = "tar";
+
+  public static final String VALUE_ARCHIVE_TAR_GZ = "tar.gz";
+
+  public static final String VALUE_ARCHIVE_TAR_ZST = "tar.zst";
+
+  /**
+   * Approximate maximum size in bytes of a single output archive, after
+   * which the handler starts a new one.
+   */
+  public static final String PARAM_ARCHIVE_SIZE = "archiveSize";
+
+  /**
+   * <code>String.format</code> pattern, with a single integer placeholder,
+   * used to name output archives.  This is separate from
+   * {@link #PARAM_PATTERN} as the latter is also used by some naming
+   * strategies.
+   */
+  public static final String PARAM_ARCHIVE_PATTERN = "archivePattern";
   
   /**
    * Parameter indicating that a component should collect or make use
@@ -208,6 +368,52 @@ public class IOConstants {
    */
   public static final String PARAM_REPOSITIONING_INFO = "repositioningInfo";
 
+  /**
+   * Minimum size of a document accepted by a size pre-filter.
+   */
+  public static final String PARAM_MIN_SIZE = "minSize";
+
+  /**
+   * Maximum size of a document accepted by a size pre-filter.
+   */
+  public static final String PARAM_MAX_SIZE = "maxSize";
+
+  /**
+   * A space-separated list of mime types rejected by a mime type
+   * pre-filter.
+   */
+  public static final String PARAM_EXCLUDE_MIME_TYPES = "excludeMimeTypes";
+
+  /**
+   * Comma- or space-separated list of language codes accepted by a
+   * language pre-filter.
+   */
+  public static final String PARAM_LANGUAGES = "languages";
+
+  /**
+   * Should a language pre-filter accept documents whose language cannot
+   * be identified?
+   */
+  public static final String PARAM_ACCEPT_UNKNOWN = "acceptUnknown";
+
+  /**
+   * Number of characters from the start of a document examined by the
+   * pre-filters that look at its text.
+   */
+  public static final String PARAM_SAMPLE_SIZE = "sampleSize";
+
+  /**
+   * Maximum proportion of control characters accepted by a character
+   * class pre-filter.
+   */
+  public static final String PARAM_MAX_CONTROL_RATIO = "maxControlRatio";
+
+  /**
+   * Minimum proportion of letters accepted by a character class
+   * pre-filter.
+   */
+  public static final String PARAM_MIN_LETTER_RATIO = "minLetterRatio";
+
   /**
    * XML namespace used for all elements in a batch definition XML file.
    */
@@ -84,6 +84,40 @@ public interface OutputHandler {
    * @throws GateException if any other error occurs during outputting.
    */
   public void outputDocument(Document document, DocumentID documentId) throws IOException, GateException;
+
+  /**
+   * Outputs the data from a processed GATE document, selecting the
+   * annotations to save from the given snapshot, which is shared with the
+   * other output handlers.  The default implementation ignores the
+   * snapshot.
+   * @param document the document to be sent for output.
+   * @param documentId the identifier for the document to be output
+   * @param snapshot the annotations already selected from the document, or
+   * <code>null</code>.
+   * @throws IOException if an I/O error occurs during outputting.
+   * @throws GateException if any other error occurs during outputting.
+   */
+  public default void outputDocument(Document document, DocumentID documentId,
+          AnnotationSnapshot snapshot) throws IOException, GateException {
+    outputDocument(document, documentId);
+  }
+
+  /**
+   * Can this handler output a document while other handlers are outputting
+   * the same document on other threads?  This is only the case if the
+   * handler never modifies the document, and only reads the document
+   * content, the document features, and the annotations it selects from
+   * the snapshot passed to
+   * {@link #outputDocument(Document, DocumentID, AnnotationSnapshot)}
+   * (GATE builds some annotation set indexes lazily, so even looking up
+   * other annotations can modify the document).  The default
+   * implementation returns <code>false</code>, in which case the handler
+   * is never run at the same time as any other handler for the same
+   * document.
+   */
+  public default boolean supportsConcurrentExport() {
+    return false;
+  }
   
   /**
    * Notifies this handler that all required documents have now been output, and
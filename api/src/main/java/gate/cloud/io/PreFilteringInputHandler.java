@@ -0,0 +1,28 @@
+/*
+ *  PreFilteringInputHandler.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io;
+
+/**
+ * An input handler that can apply a {@link DocumentPreFilter} to the raw
+ * content of each document before creating the GATE document.  For a
+ * rejected document the handler returns a {@link DocumentData} with no
+ * document and the reason in {@link DocumentData#filterReason}, created
+ * by {@link DocumentData#filtered}.
+ */
+public interface PreFilteringInputHandler extends InputHandler {
+
+  /**
+   * Sets the filter to apply.  This is called (if at all) before the first
+   * document is requested.
+   *
+   * @param filter the filter, or <code>null</code> to accept every
+   *          document.
+   */
+  public void setPreFilter(DocumentPreFilter filter);
+}
@@ -0,0 +1,226 @@
+/*
+ *  RawDocument.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io;
+
+import gate.cloud.batch.DocumentID;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The content of a document as seen by a {@link DocumentPreFilter},
+ * before it is parsed into a GATE document.  The content is held either
+ * as bytes or as text, and converted to the other form only if a filter
+ * asks for it.  Handlers that would otherwise leave GATE to read the
+ * content from a URL (e.g. a file) can give the URL instead, so that the
+ * content is only read if a filter needs more than the size.
+ */
+public class RawDocument {
+
+  protected DocumentID id;
+
+  protected String mimeType;
+
+  protected String encoding;
+
+  protected long size;
+
+  protected byte[] content;
+
+  protected String text;
+
+  protected URL url;
+
+  /**
+   * Create a raw document from bytes.
+   *
+   * @param id the document ID
+   * @param content the content
+   * @param mimeType the MIME type, if known
+   * @param encoding the character encoding, if known
+   */
+  public RawDocument(DocumentID id, byte[] content, String mimeType,
+          String encoding) {
+    this(id, content.length, mimeType, encoding);
+    this.content = content;
+  }
+
+  /**
+   * Create a raw document from text.
+   *
+   * @param id the document ID
+   * @param text the content
+   * @param mimeType the MIME type, if known
+   */
+  public RawDocument(DocumentID id, String text, String mimeType) {
+    this(id, text.length(), mimeType, null);
+    this.text = text;
+  }
+
+  /**
+   * Create a raw document whose content is read from a URL when it is
+   * first needed, for handlers that would otherwise pass the URL to GATE.
+   *
+   * @param id the document ID
+   * @param url the URL of the content
+   * @param size the size of the content in bytes
+   * @param mimeType the MIME type, if known
+   * @param encoding the character encoding, if known
+   */
+  public RawDocument(DocumentID id, URL url, long size, String mimeType,
+          String encoding) {
+    this(id, size, mimeType, encoding);
+    this.url = url;
+  }
+
+  /**
+   * Create a raw document whose content is read by
+   * {@link #loadContent()} when it is first needed.
+   *
+   * @param id the document ID
+   * @param size the size of the content in bytes
+   * @param mimeType the MIME type, if known
+   * @param encoding the character encoding, if known
+   */
+  protected RawDocument(DocumentID id, long size, String mimeType,
+          String encoding) {
+    this.id = id;
+    this.size = size;
+    this.mimeType = mimeType;
+    this.encoding = encoding;
+  }
+
+  public DocumentID getId() {
+    return id;
+  }
+
+  /**
+   * The MIME type of the document, or <code>null</code> if it is not
+   * known.
+   */
+  public String getMimeType() {
+    return mimeType;
+  }
+
+  /**
+   * The size of the document, in bytes if it was created from bytes or
+   * in characters if it was created from text.
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * The content as bytes.  Content given as text is encoded as UTF-8.
+   */
+  public byte[] getContent() throws IOException {
+    if(content == null) {
+      if(text != null) {
+        content = text.getBytes(StandardCharsets.UTF_8);
+      } else {
+        content = loadContent();
+      }
+    }
+    return content;
+  }
+
+  /**
+   * The content as text.  Content given as bytes is decoded with the
+   * document's encoding, or UTF-8 if that is not known, replacing any
+   * malformed input.  Markup is not removed.
+   */
+  public String getText() throws IOException {
+    if(text == null) {
+      text = new String(getContent(), charset());
+    }
+    return text;
+  }
+
+  /**
+   * The first part of the content as text, for filters that only need to
+   * look at a sample.  Unlike {@link #getText()}, this only decodes as
+   * many bytes as it needs, and if the content is to be read from a URL
+   * and has not been read yet, only that many bytes are read.
+   *
+   * @param maxLength the maximum number of characters to return
+   */
+  public String getTextSample(int maxLength) throws IOException {
+    if(text != null) {
+      return text.length() <= maxLength ? text : text.substring(0, maxLength);
+    }
+    byte[] bytes;
+    if(content == null && url != null) {
+      bytes = readUrl(maxLength);
+      if(bytes.length < maxLength) {
+        // that was all of it
+        content = bytes;
+      }
+    } else {
+      bytes = getContent();
+    }
+    if(bytes == content && bytes.length <= maxLength) {
+      // the whole content fits in the sample
+      return getText();
+    }
+    // every encoding we are likely to see has at least one byte per
+    // character (UTF-16 has two, giving a shorter sample)
+    String sample = new String(bytes, 0, maxLength, charset());
+    if(sample.length() > 0 && sample.charAt(sample.length() - 1) == '\uFFFD') {
+      // probably a character cut in half
+      sample = sample.substring(0, sample.length() - 1);
+    }
+    return sample.length() <= maxLength ? sample : sample.substring(0, maxLength);
+  }
+
+  protected Charset charset() {
+    if(encoding != null) {
+      try {
+        return Charset.forName(encoding);
+      } catch(IllegalArgumentException e) {
+        // unknown or invalid name, use the default
+      }
+    }
+    return StandardCharsets.UTF_8;
+  }
+
+  /**
+   * Read the content of a document that was created without it.
+   */
+  protected byte[] loadContent() throws IOException {
+    if(url == null) {
+      throw new IOException("No content available for document " + id);
+    }
+    return readUrl(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Read up to the given number of bytes from the start of the content
+   * URL.
+   */
+  protected byte[] readUrl(int maxBytes) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(
+            size > 0 && size < maxBytes ? (int)size : Math.min(maxBytes, 8192));
+    InputStream in = url.openStream();
+    try {
+      byte[] buf = new byte[8192];
+      int read;
+      while(out.size() < maxBytes && (read = in.read(buf, 0,
+              Math.min(buf.length, maxBytes - out.size()))) >= 0) {
+        out.write(buf, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+}
@@ -20,8 +20,10 @@ import gate.util.GateException;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.net.URI;
 import java.util.Map;
 import java.util.zip.GZIPOutputStream;
 
@@ -44,6 +46,18 @@ public abstract class AbstractFileOutputHandler extends AbstractOutputHandler {
    */
   protected String encoding;
 
+  /**
+   * If output files are being packed into archives, the writer that
+   * manages the archives, otherwise <code>null</code>.
+   */
+  protected RollingArchiveWriter archiveWriter;
+
+  /**
+   * Base directory against which entry names are computed when writing to
+   * archives.
+   */
+  protected File archiveRoot;
+
   /**
    * Sets the various internal flags (made available as protected fields) based
    * on the config map. Subclasses that need to extract their own values from
@@ -76,6 +90,43 @@ public abstract class AbstractFileOutputHandler extends AbstractOutputHandler {
     }
     // get the encoding value
     encoding = configData.get(PARAM_ENCODING);
+
+    // archive output
+    String archiveFormat = configData.get(PARAM_ARCHIVE_FORMAT);
+    if(archiveFormat != null && archiveFormat.length() > 0
+            && !VALUE_ARCHIVE_NONE.equals(archiveFormat)) {
+      String docRootStr = configData.get(PARAM_DOCUMENT_ROOT);
+      if(docRootStr == null || docRootStr.trim().length() == 0) {
+        throw new IllegalArgumentException(
+                "No value was provided for the required parameter \""
+                        + PARAM_DOCUMENT_ROOT + "\"!");
+      }
+      archiveRoot = new File(docRootStr);
+      if(!archiveRoot.isAbsolute()) {
+        String batchFileStr = configData.get(PARAM_BATCH_FILE_LOCATION);
+        File batchDir = null;
+        if(batchFileStr != null) {
+          batchDir = new File(batchFileStr).getParentFile();
+        }
+        archiveRoot = new File(batchDir, docRootStr);
+      }
+      String pattern = configData.get(PARAM_ARCHIVE_PATTERN);
+      if(pattern == null) {
+        pattern = "part-%03d";
+      }
+      long archiveSize = 99000000L;
+      String archiveSizeStr = configData.get(PARAM_ARCHIVE_SIZE);
+      if(archiveSizeStr != null && archiveSizeStr.length() > 0) {
+        try {
+          archiveSize = Long.parseLong(archiveSizeStr);
+        } catch(NumberFormatException e) {
+          throw new GateException("Invalid " + PARAM_ARCHIVE_SIZE + " value \""
+                  + archiveSizeStr + "\" (not an integer number).", e);
+        }
+      }
+      archiveWriter = new RollingArchiveWriter(archiveRoot, pattern,
+              archiveFormat, archiveSize);
+    }
   }
 
   /**
@@ -87,7 +138,9 @@ public abstract class AbstractFileOutputHandler extends AbstractOutputHandler {
    * <code>compression</code> field is set to a supported compression algorithm,
    * then the file output stream is wrapped into an output stream that performs
    * the appropriate compression. It is the responsibility of the client code to
-   * close the output stream provided after it is no longer required.
+   * close the output stream provided after it is no longer required, and to
+   * call {@link #discardFileOutputStream} before closing it if writing the
+   * document fails part way through.
    * 
    * @param docId
    *          the identifier for the document
@@ -96,6 +149,11 @@ public abstract class AbstractFileOutputHandler extends AbstractOutputHandler {
   protected OutputStream getFileOutputStream(DocumentID docId)
           throws IOException {
     File docFile = namingStrategy.toFile(docId);
+    if(archiveWriter != null) {
+      RollingArchiveWriter.Entry entry =
+              archiveWriter.openEntry(archiveEntryName(docFile));
+      return new FileOutput(wrapStream(entry), entry);
+    }
     File parent = docFile.getParentFile();
     if(!parent.exists()) {
       // target directory does not exist: create it
@@ -107,7 +165,52 @@ public abstract class AbstractFileOutputHandler extends AbstractOutputHandler {
                 + " destination directory!");
       }
     }
-    OutputStream os = new FileOutputStream(docFile);
+    return new FileOutput(wrapStream(new FileOutputStream(docFile)), null);
+  }
+
+  /**
+   * Mark a stream returned by {@link #getFileOutputStream} as incomplete,
+   * because writing the document to it failed part way through.  This
+   * must be called before the stream (or any writer wrapped around it) is
+   * closed.  When writing to an archive, an entry is added when its stream
+   * is closed, unless it has been discarded, so a failed document leaves
+   * no truncated entry in the archive.  Separate output files are written
+   * as they go, so for them this makes no difference.
+   *
+   * @param outputStream the stream returned by {@link #getFileOutputStream}
+   */
+  protected void discardFileOutputStream(OutputStream outputStream) {
+    if(outputStream instanceof FileOutput) {
+      RollingArchiveWriter.Entry entry = ((FileOutput)outputStream).entry;
+      if(entry != null) {
+        entry.discard();
+      }
+    }
+  }
+
+  /**
+   * The buffered stream returned by {@link #getFileOutputStream},
+   * remembering the archive entry (if any) underneath it.
+   */
+  private static class FileOutput extends FilterOutputStream {
+    private final RollingArchiveWriter.Entry entry;
+
+    FileOutput(OutputStream out, RollingArchiveWriter.Entry entry) {
+      super(out);
+      this.entry = entry;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+    }
+  }
+
+  /**
+   * Apply the configured compression (if any) and buffering to the given
+   * raw output stream.
+   */
+  private OutputStream wrapStream(OutputStream os) throws IOException {
     // apply compression is required.
     if(compression != null) {
       if(compression.equals(VALUE_COMPRESSION_GZIP)) {
@@ -119,6 +222,37 @@ public abstract class AbstractFileOutputHandler extends AbstractOutputHandler {
     return new BufferedOutputStream(os);
   }
 
+  /**
+   * Determine the archive entry name for the given output file, which is
+   * the path of the file relative to the output directory.  Files that the
+   * naming strategy places outside the output directory are stored under
+   * their simple file name.
+   */
+  protected String archiveEntryName(File docFile) {
+    URI rootUri = archiveRoot.getAbsoluteFile().toURI();
+    // directory URIs must end with a slash
+    if(!rootUri.toString().endsWith("/")) {
+      rootUri = URI.create(rootUri.toString() + "/");
+    }
+    String relative =
+            rootUri.relativize(docFile.getAbsoluteFile().toURI()).getPath();
+    if(relative.startsWith("/")) {
+      // not under the root
+      relative = docFile.getName();
+    }
+    return relative;
+  }
+
+  /**
+   * Close the current output archive, if any.
+   */
+  @Override
+  public void close() throws IOException, GateException {
+    if(archiveWriter != null) {
+      archiveWriter.close();
+    }
+  }
+
   @Override
   public String toString() {
     StringBuilder text = new StringBuilder();
@@ -0,0 +1,316 @@
+/*
+ *  RollingArchiveWriter.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io.file;
+
+import static gate.cloud.io.IOConstants.VALUE_ARCHIVE_TAR;
+import static gate.cloud.io.IOConstants.VALUE_ARCHIVE_TAR_GZ;
+import static gate.cloud.io.IOConstants.VALUE_ARCHIVE_ZIP;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes output files as entries in a rolling sequence of zip or tar
+ * archives, rather than as separate files on disk.  Each entry is first
+ * written to an in-memory buffer by the calling thread (via the stream
+ * returned from {@link #openEntry}).  When that stream is closed, unless it
+ * was discarded first, the entry is compressed on the calling thread
+ * and then appended to the current archive, so that only the final copy
+ * into the archive file is done under the writer's lock.  Once the current
+ * archive reaches the configured size it is closed and the next entry
+ * starts a new one.
+ * <p>
+ * Zip entries are deflated individually and added to the archive as raw
+ * pre-compressed data.  A tar entry (with its headers and padding) is
+ * built separately for each document, and for <code>tar.gz</code> each
+ * entry is compressed as a separate gzip member; a sequence of gzip
+ * members is itself a valid gzip file, so the result can be read by any
+ * tool that reads <code>.tar.gz</code> files.
+ * <p>
+ * Archive files are named by instantiating a <code>String.format</code>
+ * pattern with successive integers starting from 0, skipping any names
+ * that already exist (so restarting a batch never overwrites the archives
+ * from a previous run), and adding an extension appropriate to the archive
+ * format.
+ */
+public class RollingArchiveWriter {
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(RollingArchiveWriter.class);
+
+  /**
+   * Size of a tar record.
+   */
+  private static final int TAR_RECORD_SIZE = 512;
+
+  protected File directory;
+
+  protected String pattern;
+
+  protected String format;
+
+  protected String extension;
+
+  protected long archiveSize;
+
+  /**
+   * Number used to generate the next archive file name.
+   */
+  protected int nextArchiveNumber = 0;
+
+  /**
+   * Counts the bytes written to the current archive file, or
+   * <code>null</code> if no archive is open.
+   */
+  protected CountingOutputStream currentCounter;
+
+  /**
+   * The zip stream writing the current archive, when writing zip.
+   */
+  protected ZipArchiveOutputStream currentZip;
+
+  /**
+   * Stream for one archive entry.  The data is held in memory, and is
+   * added to the archive when the stream is closed, unless
+   * {@link #discard()} has been called first (because writing the document
+   * failed part way through), so no truncated entry is left in the
+   * archive.
+   */
+  public class Entry extends ByteArrayOutputStream {
+    private final String entryName;
+
+    private boolean discarded = false;
+
+    private boolean closed = false;
+
+    protected Entry(String entryName) {
+      this.entryName = entryName;
+    }
+
+    /**
+     * Mark the entry as incomplete, so that it is not added to the archive
+     * when the stream is closed.
+     */
+    public void discard() {
+      if(!closed && !discarded) {
+        discarded = true;
+        logger.warn("Discarding incomplete archive entry " + entryName);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if(!closed) {
+        closed = true;
+        if(!discarded) {
+          writeEntry(entryName, buf, count);
+        }
+        // release the memory either way
+        buf = new byte[0];
+        count = 0;
+      }
+    }
+  }
+
+  /**
+   * Create a writer.
+   *
+   * @param directory the directory in which archives will be created.
+   * @param pattern <code>String.format</code> pattern with a single integer
+   *          placeholder, from which archive file names will be generated.
+   * @param format the archive format, one of
+   *          {@link gate.cloud.io.IOConstants#VALUE_ARCHIVE_ZIP},
+   *          {@link gate.cloud.io.IOConstants#VALUE_ARCHIVE_TAR} or
+   *          {@link gate.cloud.io.IOConstants#VALUE_ARCHIVE_TAR_GZ}.
+   * @param archiveSize approximate maximum size of each archive in bytes.
+   */
+  public RollingArchiveWriter(File directory, String pattern, String format,
+      long archiveSize) {
+    if(VALUE_ARCHIVE_ZIP.equals(format)) {
+      extension = ".zip";
+    } else if(VALUE_ARCHIVE_TAR.equals(format)) {
+      extension = ".tar";
+    } else if(VALUE_ARCHIVE_TAR_GZ.equals(format)) {
+      extension = ".tar.gz";
+    } else {
+      throw new IllegalArgumentException("Unknown archive format " + format);
+    }
+    if(String.format(pattern, 0).equals(String.format(pattern, 1))) {
+      throw new IllegalArgumentException("Archive name pattern \"" + pattern
+          + "\" must include an integer placeholder");
+    }
+    this.directory = directory;
+    this.pattern = pattern;
+    this.format = format;
+    this.archiveSize = archiveSize;
+  }
+
+  /**
+   * Open a stream for a new archive entry.  The data written to the
+   * returned stream is added to the archive when the stream is closed,
+   * unless {@link Entry#discard()} was called first.
+   *
+   * @param entryName the path of the entry within the archive.
+   */
+  public Entry openEntry(final String entryName) {
+    return new Entry(entryName);
+  }
+
+  /**
+   * Compress a complete entry and append it to the current archive.
+   */
+  protected void writeEntry(String entryName, byte[] data, int length)
+      throws IOException {
+    if(VALUE_ARCHIVE_ZIP.equals(format)) {
+      CRC32 crc = new CRC32();
+      crc.update(data, 0, length);
+      Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      ByteArrayOutputStream compressed =
+          new ByteArrayOutputStream(length / 2 + 64);
+      try {
+        DeflaterOutputStream dos =
+            new DeflaterOutputStream(compressed, deflater);
+        dos.write(data, 0, length);
+        dos.finish();
+      } finally {
+        deflater.end();
+      }
+      ZipArchiveEntry entry = new ZipArchiveEntry(entryName);
+      entry.setMethod(ZipEntry.DEFLATED);
+      entry.setSize(length);
+      entry.setCompressedSize(compressed.size());
+      entry.setCrc(crc.getValue());
+      entry.setTime(System.currentTimeMillis());
+      appendZipEntry(entry, compressed.toByteArray());
+    } else {
+      ByteArrayOutputStream tarBytes =
+          new ByteArrayOutputStream(length + 2 * TAR_RECORD_SIZE);
+      TarArchiveOutputStream tos =
+          new TarArchiveOutputStream(tarBytes, TAR_RECORD_SIZE, "UTF-8");
+      tos.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+      tos.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+      TarArchiveEntry entry = new TarArchiveEntry(entryName);
+      entry.setSize(length);
+      entry.setModTime(new Date());
+      tos.putArchiveEntry(entry);
+      tos.write(data, 0, length);
+      tos.closeArchiveEntry();
+      // not finished, as the end of archive marker is only written when
+      // the whole archive is closed
+      tos.flush();
+      appendBytes(maybeGzip(tarBytes.toByteArray()));
+    }
+  }
+
+  /**
+   * Compress data as a single gzip member, if writing tar.gz.
+   */
+  private byte[] maybeGzip(byte[] data) throws IOException {
+    if(!VALUE_ARCHIVE_TAR_GZ.equals(format)) {
+      return data;
+    }
+    ByteArrayOutputStream compressed =
+        new ByteArrayOutputStream(data.length / 2 + 64);
+    GZIPOutputStream gzos = new GZIPOutputStream(compressed);
+    gzos.write(data);
+    gzos.close();
+    return compressed.toByteArray();
+  }
+
+  protected synchronized void appendZipEntry(ZipArchiveEntry entry,
+      byte[] compressed) throws IOException {
+    if(currentCounter == null) {
+      openArchive();
+    }
+    currentZip.addRawArchiveEntry(entry,
+        new ByteArrayInputStream(compressed));
+    rollIfFull();
+  }
+
+  protected synchronized void appendBytes(byte[] bytes) throws IOException {
+    if(currentCounter == null) {
+      openArchive();
+    }
+    currentCounter.write(bytes);
+    rollIfFull();
+  }
+
+  private void rollIfFull() throws IOException {
+    if(currentCounter.getByteCount() >= archiveSize) {
+      closeArchive();
+    }
+  }
+
+  protected void openArchive() throws IOException {
+    File archiveFile;
+    do {
+      archiveFile = new File(directory,
+          String.format(pattern, nextArchiveNumber++) + extension);
+    } while(archiveFile.exists());
+    File parent = archiveFile.getParentFile();
+    if(!parent.exists() && !parent.mkdirs()) {
+      throw new IOException("Could not create " + parent.getAbsolutePath()
+          + " destination directory!");
+    }
+    logger.debug("Opening new archive {}", archiveFile);
+    currentCounter = new CountingOutputStream(
+        new BufferedOutputStream(new FileOutputStream(archiveFile)));
+    if(VALUE_ARCHIVE_ZIP.equals(format)) {
+      currentZip = new ZipArchiveOutputStream(currentCounter);
+      currentZip.setEncoding("UTF-8");
+    }
+  }
+
+  protected void closeArchive() throws IOException {
+    try {
+      if(currentZip != null) {
+        currentZip.finish();
+      } else {
+        // end of archive marker: two empty records
+        currentCounter.write(maybeGzip(new byte[2 * TAR_RECORD_SIZE]));
+      }
+    } finally {
+      if(currentZip != null) {
+        currentZip.close();
+      } else {
+        currentCounter.close();
+      }
+      currentZip = null;
+      currentCounter = null;
+    }
+  }
+
+  /**
+   * Close the current archive, if one is open.
+   */
+  public synchronized void close() throws IOException {
+    if(currentCounter != null) {
+      closeArchive();
+    }
+  }
+}
@@ -11,13 +11,18 @@ package gate.cloud.io.file;
 import static gate.cloud.io.IOConstants.PARAM_BATCH_FILE_LOCATION;
 import static gate.cloud.io.IOConstants.PARAM_CHUNK_SIZE;
 import static gate.cloud.io.IOConstants.PARAM_COMPRESSION;
+import static gate.cloud.io.IOConstants.PARAM_FLUSH_BYTES;
+import static gate.cloud.io.IOConstants.PARAM_FLUSH_INTERVAL;
 import static gate.cloud.io.IOConstants.PARAM_NAMING_STRATEGY;
 import static gate.cloud.io.IOConstants.PARAM_PATTERN;
+import static gate.cloud.io.IOConstants.PARAM_WRITER_THREADS;
 import static gate.cloud.io.IOConstants.VALUE_COMPRESSION_GZIP;
 import static gate.cloud.io.IOConstants.VALUE_COMPRESSION_NONE;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.ProcessBuilder.Redirect;
@@ -26,6 +31,8 @@ import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.ToIntFunction;
 import java.util.zip.GZIPOutputStream;
 
@@ -33,11 +40,20 @@ import gate.Gate;
 import gate.cloud.batch.DocumentID;
 import gate.cloud.io.IOConstants;
 import gate.util.GateException;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Helper for streaming output handlers that want to write to a series of chunk files.
+ * Items are handed to one or more writer threads (see
+ * {@link IOConstants#PARAM_WRITER_THREADS}), each of which writes to its own
+ * sequence of chunk files.  Writer <i>i</i> of <i>N</i> uses the chunk numbers
+ * <i>i</i>, <i>i+N</i>, <i>i+2N</i>, etc. so the files from all writers
+ * together still form a single <code>part-%03d</code> sequence.  Data is
+ * buffered and only flushed according to the configured flush policy (see
+ * {@link IOConstants#PARAM_FLUSH_BYTES} and
+ * {@link IOConstants#PARAM_FLUSH_INTERVAL}) or when a chunk is closed.
  *
  * @param <TItem> the type of the items that will be streamed to this helper.
  * @param <TWriter> the type of the object that will be used to write items to the files.
@@ -67,10 +83,37 @@ public class StreamingFileOutputHelper<TItem, TWriter extends AutoCloseable> {
 
   protected NamingStrategy namingStrategy;
 
-  protected BlockingQueue<TItem> results = new ArrayBlockingQueue<>(100);
+  /**
+   * Flush the current chunk after this many bytes have been written to it
+   * since the last flush, or -1 to disable.
+   */
+  protected long flushBytes = -1L;
+
+  /**
+   * Flush the current chunk if it holds data that has not been flushed for
+   * this many milliseconds, or -1 to disable.
+   */
+  protected long flushInterval = -1L;
+
+  /**
+   * Number of parallel writer threads.
+   */
+  protected int writerThreads = 1;
+
+  protected BlockingQueue<TItem> results;
 
   protected ExecutorService processWaiter = Executors.newCachedThreadPool();
 
+  /**
+   * The writer threads, started by {@link #init()}.
+   */
+  protected Thread[] writers;
+
+  /**
+   * Number of writers that have not yet finished.
+   */
+  protected AtomicInteger activeWriters = new AtomicInteger();
+
   protected TItem endOfData;
 
   protected WriterCreator<TWriter> openWriter;
@@ -91,7 +134,11 @@ public class StreamingFileOutputHelper<TItem, TWriter extends AutoCloseable> {
    *          writer object for the item type.
    * @param writeItem operation that writes the given item to the given writer.
    * @param itemSize function that computes an approcimate size in bytes of the
-   *          given item, used to determine when to check for chunk roll-over.
+   *          given item, used by the flush policy and (when compressing with
+   *          an external process) to determine when to check for chunk
+   *          roll-over.  It is called before the item is written, so the
+   *          write operation may release or reuse the item once it has
+   *          been written.
    */
   public StreamingFileOutputHelper(TItem endOfData,
       WriterCreator<TWriter> openWriter,
@@ -142,11 +189,39 @@ public class StreamingFileOutputHelper<TItem, TWriter extends AutoCloseable> {
       // default
       compression = IOConstants.VALUE_COMPRESSION_NONE;
     }
+    // flush policy
+    flushBytes = parseLong(configData, PARAM_FLUSH_BYTES, -1L);
+    flushInterval = parseLong(configData, PARAM_FLUSH_INTERVAL, -1L);
+    // number of writers
+    writerThreads = (int)parseLong(configData, PARAM_WRITER_THREADS, 1L);
+    if(writerThreads < 1) {
+      throw new GateException(PARAM_WRITER_THREADS + " must be at least 1");
+    }
+  }
+
+  private static long parseLong(Map<String, String> configData, String param,
+      long defaultValue) throws GateException {
+    String valueStr = configData.get(param);
+    if(valueStr == null || valueStr.trim().length() == 0) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(valueStr.trim());
+    } catch(NumberFormatException e) {
+      throw new GateException("Invalid " + param
+          + " value (not an integer number).", e);
+    }
   }
 
   public void init() throws IOException, GateException {
-    // TODO Auto-generated method stub
-    new Thread(new StreamOutputter()).start();
+    results = new ArrayBlockingQueue<>(100 * writerThreads);
+    writers = new Thread[writerThreads];
+    activeWriters.set(writerThreads);
+    for(int i = 0; i < writerThreads; i++) {
+      writers[i] = new Thread(new StreamOutputter(i),
+          "StreamingFileOutputHelper-writer-" + i);
+      writers[i].start();
+    }
   }
 
   public void sendItem(TItem item) {
@@ -157,9 +232,35 @@ public class StreamingFileOutputHelper<TItem, TWriter extends AutoCloseable> {
     }
   }
 
+  /**
+   * Signal the end of the data to all the writer threads and wait for them
+   * to close their current chunks.  If {@link #init()} was never called
+   * there is nothing to close, and if all the writer threads have died the
+   * end markers are not delivered rather than blocking on a full queue.
+   */
   public void close() throws IOException, GateException {
+    if(results == null) {
+      processWaiter.shutdown();
+      return;
+    }
     try {
-      results.put(endOfData);
+      // one end marker per writer, each writer stops at the first one it sees
+      for(int i = 0; i < writerThreads; i++) {
+        while(!results.offer(endOfData, 1, TimeUnit.SECONDS)) {
+          if(activeWriters.get() == 0) {
+            logger.error("All writer threads have stopped, "
+                + results.size() + " items were not written");
+            results.clear();
+            break;
+          }
+        }
+      }
+      for(Thread w : writers) {
+        w.join();
+      }
+      // normally done by the last writer, but make sure
+      processWaiter.shutdown();
+      processWaiter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
     } catch(InterruptedException e) {
       Thread.currentThread().interrupt();
     }
@@ -168,18 +269,51 @@ public class StreamingFileOutputHelper<TItem, TWriter extends AutoCloseable> {
   protected class StreamOutputter implements Runnable {
     private File currentFile;
 
-    private int currentChunk = -1;
+    private int currentChunk;
 
     private TWriter currentOutput;
 
+    /**
+     * Counts the bytes that actually reach the current chunk file (i.e. after
+     * compression).  Null when compressing with an external process, as the
+     * file is then written by the process rather than by us.
+     */
+    private CountingOutputStream currentCounter;
+
+    /**
+     * The buffer under the current writer, flushed by the flush policy.
+     */
+    private OutputStream currentBuffer;
+
     private Process currentProcess;
 
+    /**
+     * Bytes (as reported by the item size function) written since the last
+     * flush.
+     */
+    private long bytesSinceLastFlush;
+
+    /**
+     * Time of the last flush, or of the first unflushed write.
+     */
+    private long lastFlushTime;
+
+    public StreamOutputter(int writerIndex) {
+      // the first call to openNextChunk will step this on to writerIndex
+      this.currentChunk = writerIndex - writerThreads;
+    }
+
     public void run() {
       TItem item = null;
       try {
         try {
           int bytesSinceLastCheck = 0;
-          while((item = results.take()) != endOfData) {
+          while((item = nextItem()) != endOfData) {
+            if(item == null) {
+              // timed out waiting for data, flush anything we're holding
+              flushChunk();
+              continue;
+            }
             if(currentOutput == null) {
               try {
                 openNextChunk();
@@ -187,28 +321,78 @@ public class StreamingFileOutputHelper<TItem, TWriter extends AutoCloseable> {
                 logger.error("Failed to open output file " + currentFile, e);
               }
             }
+            // measure the item first, the write operation may recycle it
+            int size = itemSize.applyAsInt(item);
             try {
               writeItem.writeItem(currentOutput, item);
             } catch(Exception e) {
               logger.warn("Error writing to file " + currentFile, e);
             }
-            bytesSinceLastCheck += itemSize.applyAsInt(item);
-            if(bytesSinceLastCheck > 1024 * 1024) {
-              if(currentFile.length() > chunkSize) {
+            if(bytesSinceLastFlush == 0) {
+              lastFlushTime = System.currentTimeMillis();
+            }
+            bytesSinceLastFlush += size;
+            if(flushBytes > 0 && bytesSinceLastFlush >= flushBytes) {
+              flushChunk();
+            }
+            if(currentCounter != null) {
+              if(currentCounter.getByteCount() > chunkSize) {
                 closeChunk();
               }
-              bytesSinceLastCheck = 0;
+            } else {
+              // external compressor, the best we can do is check the file
+              bytesSinceLastCheck += size;
+              if(bytesSinceLastCheck > 1024 * 1024) {
+                if(currentFile.length() > chunkSize) {
+                  closeChunk();
+                }
+                bytesSinceLastCheck = 0;
+              }
             }
           }
         } finally {
           closeChunk();
-          processWaiter.shutdown();
+          if(activeWriters.decrementAndGet() == 0) {
+            processWaiter.shutdown();
+          }
         }
       } catch(InterruptedException e) {
         Thread.currentThread().interrupt();
       }
     }
 
+    /**
+     * Take the next item from the queue.  If a flush interval is configured
+     * and there is unflushed data this waits no longer than the time left
+     * until the next flush is due, returning <code>null</code> on timeout.
+     */
+    private TItem nextItem() throws InterruptedException {
+      if(flushInterval > 0 && bytesSinceLastFlush > 0) {
+        long wait =
+            lastFlushTime + flushInterval - System.currentTimeMillis();
+        if(wait <= 0) {
+          return null;
+        }
+        return results.poll(wait, TimeUnit.MILLISECONDS);
+      } else {
+        return results.take();
+      }
+    }
+
+    private void flushChunk() {
+      if(currentOutput != null) {
+        try {
+          if(currentOutput instanceof Flushable) {
+            ((Flushable)currentOutput).flush();
+          }
+          currentBuffer.flush();
+        } catch(IOException e) {
+          logger.warn("Error flushing file " + currentFile, e);
+        }
+      }
+      bytesSinceLastFlush = 0;
+    }
+
     private void closeChunk() {
       if(currentOutput != null) {
         try {
@@ -231,22 +415,30 @@ public class StreamingFileOutputHelper<TItem, TWriter extends AutoCloseable> {
           currentProcess = null;
         }
         currentOutput = null;
+        currentBuffer = null;
+        currentCounter = null;
         currentFile = null;
+        bytesSinceLastFlush = 0;
       }
     }
 
     private void openNextChunk() throws Exception {
       // if we're restarting we might have to skip some batches
       do {
-        String newFileName = String.format(pattern, ++currentChunk);
+        currentChunk += writerThreads;
+        String newFileName = String.format(pattern, currentChunk);
         currentFile = namingStrategy.toFile(new DocumentID(newFileName));
       } while(currentFile.exists());
       OutputStream newStream = null;
       if(VALUE_COMPRESSION_GZIP.equals(compression)) {
-        newStream = new GZIPOutputStream(new FileOutputStream(currentFile));
+        currentCounter =
+            new CountingOutputStream(new FileOutputStream(currentFile));
+        newStream = new GZIPOutputStream(currentCounter);
       } else if(compression == null
           || VALUE_COMPRESSION_NONE.equals(compression)) {
-        newStream = new FileOutputStream(currentFile);
+        currentCounter =
+            new CountingOutputStream(new FileOutputStream(currentFile));
+        newStream = currentCounter;
       } else {
         // treat compression value as a command line
         ProcessBuilder pb =
@@ -258,7 +450,8 @@ public class StreamingFileOutputHelper<TItem, TWriter extends AutoCloseable> {
         currentProcess = pb.start();
         newStream = currentProcess.getOutputStream();
       }
-      currentOutput = openWriter.create(newStream);
+      currentBuffer = new BufferedOutputStream(newStream, 64 * 1024);
+      currentOutput = openWriter.create(currentBuffer);
     }
   }
 }
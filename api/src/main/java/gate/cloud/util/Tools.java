@@ -46,6 +46,11 @@ public class Tools {
           XMLStreamWriter writer) throws XMLStreamException {
     writer.writeStartElement(Tools.REPORT_NAMESPACE, "processResult");
     writer.writeAttribute("id", result.getDocumentId().getIdText());
+    String key = result.getDocumentId().getKey();
+    if(!key.equals(result.getDocumentId().getIdText())) {
+      // the ID has attributes, so record the full ID for restarting
+      writer.writeAttribute("key", key);
+    }
     writer.writeAttribute("returnCode", String.valueOf(result.getReturnCode()));
     //write the size of the file
     if(result.getOriginalFileSize() >= 0) {
@@ -77,7 +82,8 @@ public class Tools {
       writer.writeEndElement(); // statistics
     }
     else {
-      // returnCode == FAIL - write an errorDescription if we have one
+      // returnCode == FAIL or FILTERED - write an errorDescription (the
+      // reason for filtering) if we have one
       if(result.getErrorDescription() != null) {
         writer.writeStartElement(Tools.REPORT_NAMESPACE, "errorDescription");
         writer.writeCharacters(result.getErrorDescription());
@@ -108,8 +114,8 @@ public class Tools {
     int totalDocs = jobData.getTotalDocumentCount();
     if(totalDocs < 0) {
       // streaming mode, so we don't know totaldocs up front, calculate it
-      // from success and error
-      totalDocs = jobData.getSuccessDocumentCount() + jobData.getErrorDocumentCount();
+      // from success, error and filtered
+      totalDocs = jobData.getProcessedDocumentCount();
     }
     writer.writeCharacters(Integer.toString(totalDocs));
     writer.writeEndElement(); writer.writeCharacters("\n  ");
@@ -122,6 +128,10 @@ public class Tools {
     writer.writeCharacters(Integer.toString(jobData.getErrorDocumentCount()));
     writer.writeEndElement(); writer.writeCharacters("\n  ");
     
+    writer.writeStartElement(Tools.REPORT_NAMESPACE, "filtered");
+    writer.writeCharacters(Integer.toString(jobData.getFilteredDocumentCount()));
+    writer.writeEndElement(); writer.writeCharacters("\n  ");
+    
     writer.writeStartElement(Tools.REPORT_NAMESPACE, "totalBytes");
     writer.writeCharacters(Long.toString(jobData.getTotalFileSize()));
     writer.writeEndElement(); writer.writeCharacters("\n  ");
@@ -46,7 +46,9 @@ import org.slf4j.LoggerFactory;
  * 000/001_example.org_file.html (with any additional configured file
  * extension appended).  If the numeric part has more digits than the
  * pattern allows then additional digits are used in the first place, so
- * the ID 1234567 maps to 1234/567 rather than 123/4567.</p>
+ * the ID 1234567 maps to 1234/567 rather than 123/4567.  IDs from a
+ * {@link MultiArchiveInputHandler} are placed under a directory named
+ * after their archive, without its extension.</p>
  * @author ian
  *
  */
@@ -76,6 +78,12 @@ public class ARCDocumentNamingStrategy extends SimpleNamingStrategy {
   protected static final Pattern STRIP_PROTOCOL_QUERY_FRAGMENT =
           Pattern.compile("^(?:.*?://)?(.*?)(?:\\?.*)?(?:#.*)?$");
 
+  /**
+   * Pattern matching the extension of an archive file name.
+   */
+  protected static final Pattern ARCHIVE_EXTENSION_PATTERN =
+          Pattern.compile("\\.w?arc(?:\\.gz)?$", Pattern.CASE_INSENSITIVE);
+
   public void config(boolean isOutput, Map<String, String> configData)
           throws IOException, GateException {
     super.config(isOutput, configData);
@@ -146,6 +154,16 @@ public class ARCDocumentNamingStrategy extends SimpleNamingStrategy {
       idNum = idNum / divisors[i];
     }
     
+    // records from a MultiArchiveInputHandler are numbered within their
+    // archive, so put each archive's records in a separate directory
+    String archive = id.getAttributes().get(
+            MultiArchiveInputHandler.ARCHIVE_ATTR);
+    if(archive != null && archive.length() > 0) {
+      pathBuilder.append(ARCHIVE_EXTENSION_PATTERN.matcher(archive)
+              .replaceFirst(""));
+      pathBuilder.append('/');
+    }
+
     // write the numeric bit of the relative path
     Formatter formatter =  new Formatter(pathBuilder);
     formatter.format(pattern, formatArgs);
@@ -18,6 +18,7 @@ import gate.util.GateException;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Map;
 
 import org.apache.commons.httpclient.Header;
@@ -60,7 +61,16 @@ public class ARCInputHandler extends ArchiveInputHandler {
     return new ARCRecord(new ByteArrayInputStream(data), url, 0, false, false, true);
   }
   
+  protected ArchiveRecord archiveRecordFromStream(InputStream in, String url)
+          throws IOException {
+    return new ARCRecord(in, url, 0, false, false, true);
+  }
+
   protected Header[] httpHeaders(ArchiveRecord record) {
     return ((ARCRecord)record).getHttpHeaders();
   }
+  
+  protected ArchiveDocumentEnumerator createEnumerator() {
+    return new ARCDocumentEnumerator();
+  }
 }
@@ -15,7 +15,9 @@ import static gate.cloud.io.IOConstants.PARAM_BATCH_FILE_LOCATION;
 import static gate.cloud.io.IOConstants.PARAM_SOURCE_FILE_LOCATION;
 import static gate.cloud.io.IOConstants.PARAM_EXCLUDE_STATUS_CODES;
 import static gate.cloud.io.IOConstants.PARAM_INCLUDE_STATUS_CODES;
+import static gate.cloud.io.IOConstants.PARAM_INDEX_FILE;
 import static gate.cloud.io.IOConstants.PARAM_MIME_TYPES;
+import static gate.cloud.io.IOConstants.PARAM_WRITE_INDEX;
 
 import java.io.File;
 import java.io.IOException;
@@ -38,6 +40,10 @@ import org.slf4j.LoggerFactory;
  * entries to be considered may be constrained by MIME type or HTTP
  * status code. The IDs returned match the format expected by the
  * corresponding input handler and naming strategy.
+ * <p>
+ * If an up-to-date {@link ArchiveIndex} exists for the archive the IDs
+ * are taken from the index rather than by scanning the archive, and
+ * unless disabled an index is written whenever the archive is scanned.
  */
 public abstract class ArchiveDocumentEnumerator implements DocumentEnumerator {
 
@@ -94,11 +100,37 @@ public abstract class ArchiveDocumentEnumerator implements DocumentEnumerator {
    */
   protected int inputSequence;
 
+  /**
+   * Position in the archive of the record most recently returned by
+   * {@link #nextMatchingRecord()}.
+   */
+  protected int recordPosition;
+
   /**
    * DecimalFormat used to pad sequence numbers to at least 6 digits.
    */
   protected DecimalFormat numberPaddingFormat;
 
+  /**
+   * Index of the archive, read if present and written otherwise.
+   */
+  protected File indexFile;
+
+  /**
+   * Should we write the {@link #indexFile} when scanning the archive?
+   */
+  protected boolean writeIndex = true;
+
+  /**
+   * Reader for the index, if the IDs are being read from the index.
+   */
+  protected ArchiveIndex.Reader indexReader;
+
+  /**
+   * Writer for the index, if one is being written during the scan.
+   */
+  protected ArchiveIndex.Writer indexWriter;
+
   public void config(Map<String, String> configData) {
     String batchFileStr = configData.get(PARAM_BATCH_FILE_LOCATION);
     if(batchFileStr != null) {
@@ -148,9 +180,38 @@ public abstract class ArchiveDocumentEnumerator implements DocumentEnumerator {
       excludeStatusCodes = Pattern.compile(excludeStatusCodesStr);
     }
 
+    // index
+    String indexFileStr = configData.get(PARAM_INDEX_FILE);
+    if(indexFileStr == null || indexFileStr.trim().length() == 0) {
+      indexFile = new File(srcFile.getPath() + ArchiveIndex.DEFAULT_SUFFIX);
+    } else {
+      indexFile = new File(indexFileStr);
+      if(!indexFile.isAbsolute()) {
+        indexFile = new File(batchDir, indexFileStr);
+      }
+    }
+    String writeIndexStr = configData.get(PARAM_WRITE_INDEX);
+    if(writeIndexStr != null) {
+      writeIndex = Boolean.parseBoolean(writeIndexStr);
+    }
   }
 
   public void init() throws IOException, GateException {
+    if(indexFile.isFile()
+            && indexFile.lastModified() >= srcFile.lastModified()) {
+      logger.debug("Reading record index {}", indexFile);
+      indexReader = new ArchiveIndex.Reader(indexFile, srcFile.getName());
+    } else {
+      openArchive();
+    }
+    moveToNext();
+  }
+
+  /**
+   * Open the archive and move past the archive header, ready to read
+   * records with {@link #nextMatchingRecord()}.
+   */
+  protected void openArchive() throws IOException {
     numberPaddingFormat = new DecimalFormat("000000");
     logger.debug("Enumerating file {}", srcFile.getAbsolutePath());
     reader = createReader();
@@ -160,11 +221,33 @@ public abstract class ArchiveDocumentEnumerator implements DocumentEnumerator {
     if(archiveIterator.hasNext()) {
       archiveIterator.next();
       inputSequence++;
-      moveToNext();
+      if(writeIndex) {
+        try {
+          indexWriter = new ArchiveIndex.Writer(indexFile);
+        } catch(IOException e) {
+          logger.warn("Could not create record index " + indexFile, e);
+        }
+      }
     }
     else {
       logger.warn("No entries in archive");
       reader.close();
+      archiveIterator = null;
+    }
+  }
+
+  /**
+   * Close the archive before the end has been reached, abandoning any
+   * partly written index.
+   */
+  protected void closeArchive() throws IOException {
+    if(indexWriter != null) {
+      indexWriter.abort();
+      indexWriter = null;
+    }
+    if(archiveIterator != null) {
+      reader.close();
+      archiveIterator = null;
     }
   }
 
@@ -186,13 +269,123 @@ public abstract class ArchiveDocumentEnumerator implements DocumentEnumerator {
   }
 
   protected void moveToNext() {
-    logger.debug("moveToNext: archiveIterator = {}", archiveIterator);
+    if(indexReader != null) {
+      next = nextMatchingIndexEntry();
+      return;
+    }
+    ArchiveRecord record = nextMatchingRecord();
+    if(record == null) {
+      next = null;
+    } else {
+      next = documentId(record, recordPosition);
+      logger.debug("Found valid ID {}", next);
+    }
+  }
+
+  /**
+   * Build the document ID for a record, in the form expected by the
+   * {@link ArchiveInputHandler}.
+   */
+  protected DocumentID documentId(ArchiveRecord record, int position) {
+    Map<String, String> attrs = new SimpleArrayMap<>(
+            new String[] {ArchiveInputHandler.RECORD_OFFSET_ATTR,
+                    ArchiveInputHandler.RECORD_LENGTH_ATTR,
+                    ArchiveInputHandler.RECORD_POSITION_ATTR},
+            new String[] {Long.toString(record.getHeader().getOffset()),
+                    Long.toString(record.getHeader().getLength()),
+                    Long.toString(position)}
+    );
+    return new DocumentID(record.getHeader().getUrl(), attrs);
+  }
+
+  /**
+   * Read entries from the index until one passes the status code and
+   * MIME type filters, and return its document ID.
+   *
+   * @return the ID, or <code>null</code> if there are no more matching
+   *         entries (in which case the index is closed).
+   */
+  protected DocumentID nextMatchingIndexEntry() {
+    try {
+      ArchiveIndex.Entry entry;
+      while((entry = indexReader.next()) != null) {
+        if(acceptRecord(entry.statusCode, entry.mimeType)) {
+          Map<String, String> attrs = new SimpleArrayMap<>(
+                  new String[] {ArchiveInputHandler.RECORD_OFFSET_ATTR,
+                          ArchiveInputHandler.RECORD_LENGTH_ATTR,
+                          ArchiveInputHandler.RECORD_POSITION_ATTR},
+                  new String[] {Long.toString(entry.offset),
+                          Long.toString(entry.length),
+                          Long.toString(entry.position)}
+          );
+          DocumentID id = new DocumentID(entry.url, attrs);
+          logger.debug("Found valid ID {} in index", id);
+          return id;
+        }
+      }
+    } catch(IOException e) {
+      logger.warn("Error reading record index " + indexFile
+              + " - no more IDs will be returned", e);
+    }
+    try {
+      indexReader.close();
+    } catch(IOException e) {
+      logger.warn("Could not close record index " + indexFile, e);
+    }
+    indexReader = null;
+    return null;
+  }
+
+  /**
+   * Check a record's status code and MIME type against the include and
+   * exclude patterns and the list of MIME types of interest.
+   *
+   * @param statusCode the status code, or <code>null</code> if there is
+   *          none
+   * @param mimeType the MIME type, or <code>null</code> if there is none
+   */
+  protected boolean acceptRecord(String statusCode, String mimeType) {
+    if(statusCode == null) {
+      statusCode = "_not_found_";
+    }
+    // check the status code against the include and exclude
+    // patterns, if provided
+    if(includeStatusCodes != null && !includeStatusCodes.matcher(
+            statusCode).matches()) {
+      logger.debug("Status code {} not matched by includes", statusCode);
+      return false;
+    }
+    if(excludeStatusCodes != null && excludeStatusCodes.matcher(
+            statusCode).matches()) {
+      logger.debug("Status code {} matched by excludes", statusCode);
+      return false;
+    }
+    // check the mime type, if required
+    if(mimeTypes != null && !interestingMimeType(mimeType)) {
+      logger.debug("Not an interesting mime type");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Move on to the next record that passes the status code and MIME type
+   * filters, and return it.  The record's content has not been read, so
+   * can be read from the returned record until this method is called
+   * again.
+   *
+   * @return the record, or <code>null</code> if there are no more
+   *         matching records (in which case the archive is closed).
+   */
+  protected ArchiveRecord nextMatchingRecord() {
+    logger.debug("nextMatchingRecord: archiveIterator = {}", archiveIterator);
     while(archiveIterator != null && archiveIterator.hasNext()) {
       try {
         ArchiveRecord record = nextRecord(archiveIterator);
         if(record == null) {
           logger.debug("Got a null record from iterator");
           // skip this record
+          indexSkipped();
           continue;
         }
         long recordContentBegin = findContentBegin(record);
@@ -202,38 +395,15 @@ public abstract class ArchiveDocumentEnumerator implements DocumentEnumerator {
         logger.debug("Found archive record total length: {}, content begin: {}, body length: {}", recordLength, recordContentBegin, recordBodyLength);
         if(recordBodyLength > 0) {
           String statusCode = statusCode(record);
-          if(statusCode == null) {
-            statusCode = "_not_found_";
-          }
-          // check the status code against the include and exclude
-          // patterns, if provided
-          if(includeStatusCodes == null || includeStatusCodes.matcher(
-                  statusCode).matches()) {
-            if(excludeStatusCodes == null || !excludeStatusCodes.matcher(
-                    statusCode).matches()) {
-              // check the mime type, if required
-              if(mimeTypes == null || interestingMimeType(record)) {
-                // found a good document
-                Map<String, String> attrs = new SimpleArrayMap<>(
-                        new String[] {ArchiveInputHandler.RECORD_OFFSET_ATTR,
-                                ArchiveInputHandler.RECORD_LENGTH_ATTR,
-                                ArchiveInputHandler.RECORD_POSITION_ATTR},
-                        new String[] {Long.toString(record.getHeader().getOffset()),
-                                Long.toString(recordLength),
-                                Long.toString(inputSequence)}
-                );
-                next = new DocumentID(record.getHeader().getUrl(), attrs);
-                logger.debug("Found valid ID {}", next);
-                return;
-              } else {
-                logger.debug("Not an interesting mime type");
-              }
-            } else {
-              logger.debug("Status code {} matched by excludes", statusCode);
-            }
-          } else {
-            logger.debug("Status code {} not matched by includes", statusCode);
+          String mimeType = mimeType(record);
+          indexRecord(record, statusCode, mimeType);
+          if(acceptRecord(statusCode, mimeType)) {
+            // found a good document
+            recordPosition = inputSequence;
+            return record;
           }
+        } else {
+          indexSkipped();
         }
       } finally {
         // increment the current sequence pointer for next time
@@ -241,7 +411,16 @@ public abstract class ArchiveDocumentEnumerator implements DocumentEnumerator {
       }
     }
     // if we fell off the end, there are no more records
-    next = null;
+    if(indexWriter != null) {
+      try {
+        indexWriter.commit();
+        logger.info("Wrote record index {}", indexFile);
+      } catch(IOException e) {
+        logger.warn("Could not write record index " + indexFile, e);
+        indexWriter.abort();
+      }
+      indexWriter = null;
+    }
     if(archiveIterator != null) {
       try {
         reader.close();
@@ -249,7 +428,46 @@ public abstract class ArchiveDocumentEnumerator implements DocumentEnumerator {
       catch(IOException e) {
         logger.warn("Could not close reader for " + srcFile, e);
       }
+      archiveIterator = null;
     }
+    return null;
+  }
+
+  /**
+   * Add a record that could be a document to the index being written, if
+   * any.
+   */
+  protected void indexRecord(ArchiveRecord record, String statusCode,
+          String mimeType) {
+    if(indexWriter != null) {
+      try {
+        indexWriter.write(record.getHeader().getOffset(),
+                record.getHeader().getLength(), record.getHeader().getUrl(),
+                statusCode, mimeType);
+      } catch(IOException e) {
+        abandonIndex(e);
+      }
+    }
+  }
+
+  /**
+   * Add a placeholder for a record that cannot be a document to the index
+   * being written, if any.
+   */
+  protected void indexSkipped() {
+    if(indexWriter != null) {
+      try {
+        indexWriter.writeSkipped();
+      } catch(IOException e) {
+        abandonIndex(e);
+      }
+    }
+  }
+
+  private void abandonIndex(IOException e) {
+    logger.warn("Could not write record index " + indexFile, e);
+    indexWriter.abort();
+    indexWriter = null;
   }
 
   /**
@@ -259,7 +477,17 @@ public abstract class ArchiveDocumentEnumerator implements DocumentEnumerator {
    * @return
    */
   protected boolean interestingMimeType(ArchiveRecord record) {
-    String mimeType = mimeType(record);
+    return interestingMimeType(mimeType(record));
+  }
+
+  /**
+   * Check whether the given mime type is "interesting", i.e. if any of the
+   * {@link #mimeTypes} is a prefix of it.
+   */
+  protected boolean interestingMimeType(String mimeType) {
+    if(mimeType == null) {
+      return false;
+    }
     for(String targetType : mimeTypes) {
       if(mimeType.startsWith(targetType)) {
         return true;
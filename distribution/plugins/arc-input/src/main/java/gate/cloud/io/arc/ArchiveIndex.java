@@ -0,0 +1,380 @@
+/*
+ *  ArchiveIndex.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io.arc;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads and writes CDX-style indexes of the records in a web archive,
+ * so that the archive enumerators do not need to decompress and scan the
+ * whole archive to find the records of interest.  An index is a text
+ * file whose first line is a CDX legend (" CDX" followed by one letter
+ * per column), followed by one line per record with the columns
+ * separated by spaces.  The columns used are:
+ * <ul>
+ * <li><code>a</code>: the original URL of the record</li>
+ * <li><code>s</code>: the HTTP status code</li>
+ * <li><code>m</code>: the MIME type</li>
+ * <li><code>V</code> or <code>v</code>: the offset of the record in the
+ * archive</li>
+ * <li><code>n</code> or <code>S</code>: the length of the record</li>
+ * <li><code>g</code> (optional): the name of the archive file, for
+ * indexes that cover several archives</li>
+ * </ul>
+ * Other columns are ignored, so standard CDX files produced by other
+ * tools can be used, as well as the indexes written by {@link Writer}.
+ * Indexes written by {@link Writer} have a line for every record in the
+ * archive, with "-" in every column for records that cannot be
+ * documents, so the line number of each entry is its position in the
+ * archive.  As the columns are separated by spaces, {@link Writer}
+ * escapes any spaces and control characters in the values, along with
+ * "%" and a value of "-", as a "%" followed by two hex digits, and
+ * {@link Reader} decodes them again in indexes with the legend that
+ * {@link Writer} writes.  For other indexes the position is the line number among the
+ * lines for the same archive file, which will not in general match the
+ * position in the archive.
+ */
+public class ArchiveIndex {
+
+  /**
+   * Suffix added to the archive file name to find its index if no index
+   * file is specified.
+   */
+  public static final String DEFAULT_SUFFIX = ".cdx";
+
+  /**
+   * CDX legend written by {@link Writer}.
+   */
+  protected static final String LEGEND = " CDX V n a s m";
+
+  /**
+   * Value used for empty or unknown columns.
+   */
+  protected static final String NONE = "-";
+
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+  /**
+   * A single record from an index.
+   */
+  public static class Entry {
+    public int position;
+
+    public long offset;
+
+    public long length;
+
+    public String url;
+
+    /**
+     * The status code, or <code>null</code> if not known.
+     */
+    public String statusCode;
+
+    /**
+     * The MIME type, or <code>null</code> if not known.
+     */
+    public String mimeType;
+  }
+
+  /**
+   * Reads the entries for one archive from an index.
+   */
+  public static class Reader {
+    protected BufferedReader in;
+
+    /**
+     * Name of the archive whose entries are wanted, for indexes with a
+     * file name column.
+     */
+    protected String archiveName;
+
+    protected int urlCol = -1;
+
+    protected int statusCol = -1;
+
+    protected int mimeCol = -1;
+
+    protected int offsetCol = -1;
+
+    protected int lengthCol = -1;
+
+    protected int fileCol = -1;
+
+    protected int columns;
+
+    protected int position = 0;
+
+    /**
+     * Was the index written by {@link Writer}, so the values are escaped?
+     */
+    protected boolean escaped;
+
+    /**
+     * Open an index, which may be gzip compressed, and check its legend.
+     *
+     * @param indexFile the index
+     * @param archiveName name of the archive file, used to select the
+     *          relevant lines from indexes that cover several archives
+     */
+    public Reader(File indexFile, String archiveName) throws IOException {
+      this.archiveName = archiveName;
+      InputStream stream = new FileInputStream(indexFile);
+      try {
+        if(indexFile.getName().endsWith(".gz")) {
+          stream = new GZIPInputStream(stream);
+        }
+        in = new BufferedReader(new InputStreamReader(stream,
+                StandardCharsets.UTF_8));
+        parseLegend(in.readLine(), indexFile);
+      } catch(IOException | RuntimeException e) {
+        stream.close();
+        throw e;
+      }
+    }
+
+    protected void parseLegend(String legend, File indexFile)
+            throws IOException {
+      if(legend == null || !legend.trim().startsWith("CDX")) {
+        throw new IOException("Index " + indexFile
+                + " does not start with a CDX legend line");
+      }
+      escaped = LEGEND.equals(legend);
+      String[] letters = legend.trim().split("\\s+");
+      columns = letters.length - 1;
+      for(int i = 1; i < letters.length; i++) {
+        int col = i - 1;
+        switch(letters[i]) {
+          case "a":
+            urlCol = col;
+            break;
+          case "s":
+            statusCol = col;
+            break;
+          case "m":
+            mimeCol = col;
+            break;
+          case "V":
+            offsetCol = col;
+            break;
+          case "v":
+            if(offsetCol < 0) offsetCol = col;
+            break;
+          case "n":
+            lengthCol = col;
+            break;
+          case "S":
+            if(lengthCol < 0) lengthCol = col;
+            break;
+          case "g":
+            fileCol = col;
+            break;
+          default:
+            // not a column we use
+        }
+      }
+      if(urlCol < 0 || offsetCol < 0 || lengthCol < 0) {
+        throw new IOException("Index " + indexFile
+                + " must have URL, offset and length columns");
+      }
+    }
+
+    /**
+     * Read the next entry that could be a document.
+     *
+     * @return the entry, or <code>null</code> at the end of the index.
+     */
+    public Entry next() throws IOException {
+      String line;
+      while((line = in.readLine()) != null) {
+        if(line.length() == 0) {
+          continue;
+        }
+        String[] fields = line.split(" ");
+        if(fields.length < columns) {
+          throw new IOException("Index line has " + fields.length
+                  + " columns, expected " + columns + ": " + line);
+        }
+        if(fileCol >= 0 && archiveName != null
+                && !archiveName.equals(fields[fileCol])) {
+          continue;
+        }
+        position++;
+        if(NONE.equals(fields[urlCol])) {
+          // placeholder for a record that cannot be a document
+          continue;
+        }
+        Entry entry = new Entry();
+        entry.position = position;
+        entry.url = value(fields[urlCol]);
+        try {
+          entry.offset = Long.parseLong(fields[offsetCol]);
+          entry.length = Long.parseLong(fields[lengthCol]);
+        } catch(NumberFormatException e) {
+          throw new IOException("Invalid offset or length in index line: "
+                  + line, e);
+        }
+        entry.statusCode = column(fields, statusCol);
+        entry.mimeType = column(fields, mimeCol);
+        return entry;
+      }
+      return null;
+    }
+
+    private String column(String[] fields, int col) throws IOException {
+      if(col < 0 || NONE.equals(fields[col])) {
+        return null;
+      }
+      return value(fields[col]);
+    }
+
+    /**
+     * Decode a value escaped by {@link Writer}, if this index was written
+     * by one.
+     */
+    protected String value(String field) throws IOException {
+      if(!escaped || field.indexOf('%') < 0) {
+        return field;
+      }
+      StringBuilder value = new StringBuilder(field.length());
+      for(int i = 0; i < field.length(); i++) {
+        char c = field.charAt(i);
+        if(c == '%') {
+          if(i + 2 >= field.length()) {
+            throw new IOException("Invalid escape in index value " + field);
+          }
+          try {
+            c = (char)Integer.parseInt(field.substring(i + 1, i + 3), 16);
+          } catch(NumberFormatException e) {
+            throw new IOException("Invalid escape in index value " + field, e);
+          }
+          i += 2;
+        }
+        value.append(c);
+      }
+      return value.toString();
+    }
+
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes an index for an archive as it is scanned.  The index is
+   * written to a temporary file which only replaces the target file when
+   * {@link #commit()} is called, so an incomplete scan never leaves a
+   * truncated index behind.
+   */
+  public static class Writer {
+    protected File target;
+
+    protected File tempFile;
+
+    protected BufferedWriter out;
+
+    public Writer(File target) throws IOException {
+      this.target = target;
+      this.tempFile = new File(target.getPath() + ".tmp");
+      out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+              tempFile), StandardCharsets.UTF_8));
+      out.write(LEGEND);
+      out.newLine();
+    }
+
+    /**
+     * Write the entry for a record that could be a document.
+     */
+    public void write(long offset, long length, String url,
+            String statusCode, String mimeType) throws IOException {
+      out.write(Long.toString(offset));
+      out.write(' ');
+      out.write(Long.toString(length));
+      out.write(' ');
+      out.write(field(url));
+      out.write(' ');
+      out.write(field(statusCode));
+      out.write(' ');
+      out.write(field(mimeType));
+      out.newLine();
+    }
+
+    /**
+     * Write a placeholder line for a record that cannot be a document.
+     */
+    public void writeSkipped() throws IOException {
+      out.write("- - - - -");
+      out.newLine();
+    }
+
+    /**
+     * Escape a value for a column.  The columns are separated by spaces
+     * and the lines by line breaks, so spaces and control characters are
+     * written as "%" and two hex digits, as is "%" itself, so that the
+     * {@link Reader} gets back exactly the original value.  A value of
+     * "-" is escaped too, as that stands for a missing value.
+     */
+    private static String field(String value) {
+      if(value == null || value.length() == 0) {
+        return NONE;
+      }
+      if(NONE.equals(value)) {
+        return "%2D";
+      }
+      StringBuilder field = null;
+      for(int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        if(c <= ' ' || c == '%' || c == '\u007f') {
+          if(field == null) {
+            field = new StringBuilder(value.length() + 8);
+            field.append(value, 0, i);
+          }
+          field.append('%').append(HEX_DIGITS[c >> 4])
+                  .append(HEX_DIGITS[c & 0xf]);
+        } else if(field != null) {
+          field.append(c);
+        }
+      }
+      return field == null ? value : field.toString();
+    }
+
+    /**
+     * Finish the index and move it into place.
+     */
+    public void commit() throws IOException {
+      out.close();
+      Files.move(tempFile.toPath(), target.toPath(),
+              StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Abandon the index.
+     */
+    public void abort() {
+      try {
+        out.close();
+      } catch(IOException e) {
+        // ignore
+      }
+      tempFile.delete();
+    }
+  }
+}
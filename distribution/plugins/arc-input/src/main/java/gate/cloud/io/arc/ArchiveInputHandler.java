@@ -15,40 +15,50 @@ import static gate.cloud.io.IOConstants.PARAM_BATCH_FILE_LOCATION;
 import static gate.cloud.io.IOConstants.PARAM_SOURCE_FILE_LOCATION;
 import static gate.cloud.io.IOConstants.PARAM_DEFAULT_ENCODING;
 import static gate.cloud.io.IOConstants.PARAM_MIME_TYPE;
+import static gate.cloud.io.IOConstants.PARAM_PREFETCH;
+import static gate.cloud.io.IOConstants.PARAM_READ_AHEAD;
 import static gate.cloud.io.IOConstants.PARAM_REPOSITIONING_INFO;
 
 import gate.Document;
 import gate.Factory;
 import gate.FeatureMap;
+import gate.cloud.batch.Batch;
 import gate.cloud.batch.DocumentID;
 import gate.cloud.io.DocumentData;
-import gate.cloud.io.InputHandler;
+import gate.cloud.io.DocumentPreFilter;
+import gate.cloud.io.PreFilteringInputHandler;
+import gate.cloud.io.RawDocument;
+import gate.cloud.io.StreamingInputHandler;
 import gate.cloud.util.ByteArrayURLStreamHandler;
+import gate.cloud.util.SimpleArrayMap;
 import gate.util.GateException;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
-import java.net.URLConnection;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.util.DateParseException;
 import org.apache.commons.httpclient.util.DateUtil;
-import org.apache.commons.httpclient.ChunkedInputStream;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.archive.io.ArchiveReader;
 import org.archive.io.ArchiveRecord;
 import org.archive.io.ArchiveRecordHeader;
+import org.archive.util.zip.GZIPMembersInputStream;
 import org.archive.util.ArchiveUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -73,8 +83,20 @@ import org.slf4j.LoggerFactory;
  * files as input, the file cannot be configured on the input handler, 
  * so each document ID must include one instead.  
  * </ul>
+ * <p>
+ * Readers for the configured source file are kept open and reused
+ * between documents rather than re-opening the archive for every
+ * record.  If the batch has no explicit list of documents the handler
+ * operates in streaming mode instead, reading the source file in a
+ * single sequential pass and creating a document from each record that
+ * passes the same MIME type and status code filters as the
+ * corresponding {@link ArchiveDocumentEnumerator}.  When a batch is
+ * restarted, records that completed in the earlier run are skipped,
+ * matching on the whole document ID (URL and record attributes) so that
+ * other captures of the same URL are still processed.
  */
-public abstract class ArchiveInputHandler implements InputHandler {
+public abstract class ArchiveInputHandler implements StreamingInputHandler,
+                                                     PreFilteringInputHandler {
   
   private static final Logger logger = LoggerFactory.getLogger(ArchiveInputHandler.class);
   
@@ -147,6 +169,12 @@ public abstract class ArchiveInputHandler implements InputHandler {
    * metadata for each entry.
    */
   protected String mimeType;
+
+  /**
+   * Filter applied to each record before the document is created, or
+   * <code>null</code> to accept every record.
+   */
+  protected DocumentPreFilter preFilter;
   
   /**
    * Should we collect repositioning info when parsing?
@@ -159,8 +187,76 @@ public abstract class ArchiveInputHandler implements InputHandler {
    */
   protected static final Pattern CHARSET_PATTERN = Pattern.compile("charset=(\\S*)");
 
+  /**
+   * Pattern used to extract the charset from a record's Content-Type
+   * header, allowing for quotes around the value.
+   */
+  private static final Pattern CONTENT_TYPE_CHARSET_PATTERN =
+          Pattern.compile("charset=(['\"]?)([a-zA-Z0-9_-]+)\\1");
+
+  /**
+   * Initial size of the per-thread buffer used to read record content.
+   */
+  private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Largest per-thread content buffer that will be kept for reuse.  Larger
+   * records are read into a buffer of their own.
+   */
+  private static final int MAX_BUFFER_SIZE = 4 * 1024 * 1024;
+
+  /**
+   * Buffer used to read record content, reused between records processed
+   * on the same thread.
+   */
+  private static final ThreadLocal<byte[]> contentBuffer =
+          new ThreadLocal<byte[]>();
+
+  /**
+   * Maximum number of idle readers kept open in the {@link #readerPool}.
+   */
+  protected static final int MAX_POOLED_READERS = 16;
+
+  /**
+   * Open readers for the source file that are not currently in use.
+   */
+  protected Queue<PooledReader> readerPool =
+          new ConcurrentLinkedQueue<PooledReader>();
+
+  /**
+   * Copy of the configuration data, used to configure the enumerator in
+   * streaming mode.
+   */
+  protected Map<String, String> configData;
+
+  /**
+   * Enumerator used to read the archive in streaming mode, created on
+   * the first call to {@link #nextDocument()}.
+   */
+  protected ArchiveDocumentEnumerator enumerator;
+
+  /**
+   * Document IDs that are already complete after a previous run of this
+   * batch, as {@link DocumentID#getKey() keys}.
+   */
+  protected Set<String> completedDocuments;
+
+  /**
+   * Attributes added to the ID of every document read in streaming mode,
+   * or <code>null</code>.  The {@link MultiArchiveInputHandler} uses this
+   * to record which archive each document came from.
+   */
+  protected Map<String, String> extraIdAttributes;
+
+  /**
+   * Reader used to fetch records for document IDs that give the URL of
+   * a remote archive.
+   */
+  protected RemoteArchiveReader remoteReader;
+
   public void config(Map<String, String> configData) throws IOException,
           GateException {
+    this.configData = new HashMap<String, String>(configData);
     // ARC file
     String arcFileStr = configData.get(PARAM_SOURCE_FILE_LOCATION);
     if(arcFileStr != null) {
@@ -196,6 +292,25 @@ public abstract class ArchiveInputHandler implements InputHandler {
     if("true".equals(configData.get(PARAM_REPOSITIONING_INFO))) {
       repositioningInfo = true;
     }
+
+    int readAhead = RemoteArchiveReader.DEFAULT_READ_AHEAD;
+    String readAheadStr = configData.get(PARAM_READ_AHEAD);
+    if(readAheadStr != null && readAheadStr.trim().length() > 0) {
+      try {
+        readAhead = Integer.parseInt(readAheadStr.trim());
+      } catch(NumberFormatException e) {
+        throw new IllegalArgumentException("Value \"" + readAheadStr
+                + "\" for parameter \"" + PARAM_READ_AHEAD
+                + "\" is not a valid integer");
+      }
+    }
+    String prefetchStr = configData.get(PARAM_PREFETCH);
+    remoteReader = new RemoteArchiveReader(readAhead,
+            prefetchStr == null || Boolean.parseBoolean(prefetchStr));
+  }
+
+  public void setPreFilter(DocumentPreFilter filter) {
+    this.preFilter = filter;
   }
 
   public void init() throws IOException, GateException { }
@@ -241,45 +356,136 @@ public abstract class ArchiveInputHandler implements InputHandler {
     }
     // read the arc record
     ArchiveRecord record = null;
-    ArchiveReader reader = null;
+    PooledReader reader = null;
     URL arcUrl = null;
     try{
       if(arcUrlStr != null) {
         arcUrl = new URL(arcUrlStr);
-        URLConnection conn = arcUrl.openConnection();
-        conn.setRequestProperty("Range", "bytes=" + Long.toString(offset) + 
-            "-" + Long.toString(offset + length - 1));
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        InputStream is = conn.getInputStream();
+        InputStream is = remoteReader.read(arcUrl, offset, length);
         if(arcUrlStr.endsWith(".gz")) {
-          // compressed input
-          is = new GZIPInputStream(is);
+          // compressed input - the stream may continue past this record,
+          // so stop at the end of its gzip member
+          GZIPMembersInputStream gzIn = new GZIPMembersInputStream(is);
+          gzIn.setEofEachMember(true);
+          is = gzIn;
         }
-        IOUtils.copy(is, baos);
-        is.close();
-        record = archiveRecordFromByteArray(baos.toByteArray(), arcUrlStr);
+        record = archiveRecordFromStream(is, arcUrlStr);
       } else {
         // no custom URL, so we can use the default arc file
-        reader = createReader();
-        record = getRecord(reader, offset);         
+        reader = borrowReader(offset);
+        try {
+          record = getRecord(reader.reader, offset);
+          reader.lastOffset = offset;
+        } catch(IOException | RuntimeException e) {
+          // don't trust this reader's state for the next document
+          discardReader(reader.reader);
+          reader = null;
+          throw e;
+        }
       }
-      ArchiveRecordHeader header = record.getHeader();
-
-      // extract the content
-      long recordContentBegin = header.getContentBegin();
-      record.skip(recordContentBegin);
-      long recordBodySize = record.available();
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      record.dump(baos);
-      byte[] content = baos.toByteArray();
-      
-      String encoding = null;
-      Header[] httpHeaders = httpHeaders(record);
-      boolean isChunked = false;
-      Pattern charsetPattern = Pattern.compile("charset=(['\"]?)([a-zA-Z0-9_-]+)\\1");
+      return createDocumentData(record, id, arcUrl != null
+              ? arcUrl.getFile() : srcFile.getName());
+    } finally {
+      if(record != null) record.close();
+      if(reader != null) releaseReader(reader);
+    }
+  }
+
+  /**
+   * An open reader for the source file, with the offset of the last
+   * record read from it.
+   */
+  protected static class PooledReader {
+    ArchiveReader reader;
+
+    long lastOffset = -1;
+
+    PooledReader(ArchiveReader reader) {
+      this.reader = reader;
+    }
+
+    /**
+     * Can this reader be used to read the record at the given offset?
+     * Uncompressed archive readers can only skip forward.
+     */
+    boolean canReach(long offset) {
+      return offset > lastOffset;
+    }
+  }
+
+  /**
+   * Take an open reader that can reach the given offset from the pool, or
+   * open a new one if there are none.
+   */
+  protected PooledReader borrowReader(long offset) throws IOException {
+    for(PooledReader reader : readerPool) {
+      // another thread may take the same reader before we do
+      if(reader.canReach(offset) && readerPool.remove(reader)) {
+        return reader;
+      }
+    }
+    return new PooledReader(createReader());
+  }
+
+  /**
+   * Return a reader to the pool once the current record is closed,
+   * closing the least recently used reader if the pool is full.  Readers
+   * for compressed archives are closed rather than pooled, as they seek
+   * directly to the requested record when opened but cannot seek again
+   * once a record has been read.
+   */
+  protected void releaseReader(PooledReader reader) {
+    if(reader.reader.isCompressed()) {
+      discardReader(reader.reader);
+      return;
+    }
+    readerPool.offer(reader);
+    while(readerPool.size() > MAX_POOLED_READERS) {
+      PooledReader oldest = readerPool.poll();
+      if(oldest != null) {
+        discardReader(oldest.reader);
+      }
+    }
+  }
+
+  protected void discardReader(ArchiveReader reader) {
+    try {
+      reader.close();
+    } catch(IOException e) {
+      logger.error("Error while closing ARC reader.", e);
+    }
+  }
+
+  /**
+   * Create the GATE document for an archive record.  The record must be
+   * positioned at its start, and is not closed by this method.
+   *
+   * @param record the record
+   * @param id the ID of the document
+   * @param archiveName value for the <code>archive_name</code> feature
+   */
+  protected DocumentData createDocumentData(ArchiveRecord record,
+          DocumentID id, String archiveName) throws IOException,
+          GateException {
+    ArchiveRecordHeader header = record.getHeader();
+
+    // extract the content
+    long recordContentBegin = header.getContentBegin();
+    record.skip(recordContentBegin);
+    long recordBodySize = record.available();
+    ByteBuffer body = readContent(record, recordBodySize);
+    byte[] buffer = body.array();
+    int contentLength = body.limit();
+    
+    String encoding = null;
+    String contentType = null;
+    Header[] httpHeaders = httpHeaders(record);
+    boolean isChunked = false;
+    if(httpHeaders != null) {
       for(Header aHeader : httpHeaders) {
         if(aHeader.getName().equalsIgnoreCase(HTTP_CONTENT_TYPE_HEADER_NAME)){
-          Matcher m = charsetPattern.matcher(aHeader.getValue());
+          contentType = aHeader.getValue();
+          Matcher m = CONTENT_TYPE_CHARSET_PATTERN.matcher(aHeader.getValue());
           if(m.find()) {
             encoding = m.group(2);
           }
@@ -289,122 +495,326 @@ public abstract class ArchiveInputHandler implements InputHandler {
           }
         }
       }
-      if(encoding == null) encoding = defaultEncoding;
-
-      if(isChunked) {
-        // de-chunk the stream
-        ChunkedInputStream chunkIn = new ChunkedInputStream(new ByteArrayInputStream(content));
-        baos = new ByteArrayOutputStream();
-        IOUtils.copy(chunkIn, baos);
-        chunkIn.close();
-        content = baos.toByteArray();
+    }
+    if(encoding == null) encoding = defaultEncoding;
+
+    if(isChunked) {
+      // de-chunk the content in place
+      contentLength = dechunk(buffer, contentLength);
+    }
+    // the document needs its own copy, as the buffer will be reused
+    byte[] content = Arrays.copyOf(buffer, contentLength);
+    if(preFilter != null) {
+      String reason = preFilter.check(new RawDocument(id, content,
+              mimeType != null ? mimeType : contentType, encoding));
+      if(reason != null) {
+        return DocumentData.filtered(id, reason, content.length);
+      }
+    }
+    ByteArrayURLStreamHandler.Header[] handlerHeaders = null;
+    if(httpHeaders != null) {
+      handlerHeaders = new ByteArrayURLStreamHandler.Header[httpHeaders.length];
+      for(int i = 0; i < httpHeaders.length; i++) {
+        handlerHeaders[i] = new ByteArrayURLStreamHandler.Header(httpHeaders[i].getName(), httpHeaders[i].getValue());
       }
-      ByteArrayURLStreamHandler.Header[] handlerHeaders = null;
-      if(httpHeaders != null) {
-        handlerHeaders = new ByteArrayURLStreamHandler.Header[httpHeaders.length];
-        for(int i = 0; i < httpHeaders.length; i++) {
-          handlerHeaders[i] = new ByteArrayURLStreamHandler.Header(httpHeaders[i].getName(), httpHeaders[i].getValue());
-        }
+    }
+    URL docUrl = new URL(null, header.getUrl(), new ByteArrayURLStreamHandler(content, handlerHeaders));
+    
+    FeatureMap docParams = Factory.newFeatureMap();
+    docParams.put(Document.DOCUMENT_URL_PARAMETER_NAME, docUrl);
+    if(encoding != null && encoding.length() > 0) {
+      docParams.put(Document.DOCUMENT_ENCODING_PARAMETER_NAME, encoding);
+    }
+    docParams.put(Document.DOCUMENT_MARKUP_AWARE_PARAMETER_NAME, Boolean.TRUE);
+    if(mimeType != null) {
+      docParams.put(Document.DOCUMENT_MIME_TYPE_PARAMETER_NAME, mimeType);
+    }
+    
+    if(repositioningInfo) {
+      docParams.put(Document.DOCUMENT_REPOSITIONING_PARAMETER_NAME, Boolean.TRUE);
+    }
+    
+    FeatureMap docFeatures = Factory.newFeatureMap();
+    Object redirect = header.getHeaderValue("location");
+    if(redirect != null) {
+      docFeatures.put("redirect_to", redirect.toString());
+    }
+    if(archiveName != null) {
+      docFeatures.put("archive_name", archiveName);
+    }
+    
+//      docFeatures.put("archive_position", idMatcher.group(1));
+    String posStr = id.getAttributes().get(RECORD_POSITION_ATTR);
+    if(posStr != null) {
+      try {
+        Long.parseLong(posStr);
+        docFeatures.put("archive_position", posStr);    
+      } catch(NumberFormatException e) {
+        // log and ignore
+        logger.warn("Invalid record position value (not an integer number): {}",
+        posStr);
       }
-      URL docUrl = new URL(null, header.getUrl(), new ByteArrayURLStreamHandler(content, handlerHeaders));
-      
-      FeatureMap docParams = Factory.newFeatureMap();
-      docParams.put(Document.DOCUMENT_URL_PARAMETER_NAME, docUrl);
-      if(encoding != null && encoding.length() > 0) {
-        docParams.put(Document.DOCUMENT_ENCODING_PARAMETER_NAME, encoding);
+    }
+    
+    Date documentDate = getDate(header, httpHeaders);
+    if(documentDate != null) {
+      docFeatures.put("retrievedAt", documentDate);
+    }
+    docFeatures.put("original_size", Long.toString(recordBodySize));
+    
+    // store file size
+    long fileSize = content.length;
+    
+    /*
+     * Store all ARC headers as document features in case they turn out to be
+     * useful later.
+     */
+    Iterator<?> headerKeyIter = header.getHeaderFieldKeys().iterator();
+    String headerKey, headerValueString;
+    Object headerValue;
+    while(headerKeyIter.hasNext()) {
+      headerKey = headerKeyIter.next().toString();
+      headerValue = header.getHeaderValue(headerKey);
+      // Shouldn't happen ... but just in case
+      if(headerValue != null) {
+        headerValueString = headerValue.toString();
+      } else {
+        headerValueString = "_null_";
       }
-      docParams.put(Document.DOCUMENT_MARKUP_AWARE_PARAMETER_NAME, Boolean.TRUE);
-      if(mimeType != null) {
-        docParams.put(Document.DOCUMENT_MIME_TYPE_PARAMETER_NAME, mimeType);
+      docFeatures.put(ARC_HEADER_PREFIX + headerKey, headerValueString);
+    }
+    // Do the same for the HTTP headers
+    if(httpHeaders != null) {
+      for(Header h : httpHeaders) {
+        headerKey = h.getName();
+        headerValueString = h.getValue();
+        docFeatures.put(HTTP_HEADER_PREFIX + headerKey, headerValueString);
       }
-      
-      if(repositioningInfo) {
-        docParams.put(Document.DOCUMENT_REPOSITIONING_PARAMETER_NAME, Boolean.TRUE);
+    }
+    
+    DocumentData docData = new DocumentData(
+            (Document)Factory.createResource("gate.corpora.DocumentImpl",
+              docParams, docFeatures, id.toString()), id);
+    docData.fileSize = fileSize;
+    return docData;
+  }
+
+  /**
+   * Read the rest of a record into the current thread's content buffer,
+   * growing it as necessary.  Buffers larger than
+   * {@link #MAX_BUFFER_SIZE} are not kept for the next record.
+   *
+   * @param record the record, positioned at the start of its content
+   * @param sizeHint expected size of the content
+   * @return a buffer whose limit is the length of the content
+   */
+  protected static ByteBuffer readContent(ArchiveRecord record, long sizeHint)
+          throws IOException {
+    byte[] buf = contentBuffer.get();
+    if(buf == null) {
+      buf = new byte[INITIAL_BUFFER_SIZE];
+    }
+    if(sizeHint > buf.length && sizeHint < Integer.MAX_VALUE) {
+      buf = new byte[(int)sizeHint];
+    }
+    // use dump rather than read, as it skips the HTTP headers of a
+    // HeaderedArchiveRecord
+    ContentOutputStream out = new ContentOutputStream(buf);
+    record.dump(out);
+    if(out.buf.length <= MAX_BUFFER_SIZE) {
+      contentBuffer.set(out.buf);
+    }
+    return ByteBuffer.wrap(out.buf, 0, out.count);
+  }
+
+  /**
+   * Output stream that writes into a given buffer, replacing it with a
+   * larger one if it fills up.
+   */
+  private static class ContentOutputStream extends OutputStream {
+    byte[] buf;
+
+    int count = 0;
+
+    ContentOutputStream(byte[] buf) {
+      this.buf = buf;
+    }
+
+    private void ensureCapacity(int required) {
+      if(required > buf.length) {
+        buf = Arrays.copyOf(buf, Math.max(required, buf.length * 2));
       }
-      
-      FeatureMap docFeatures = Factory.newFeatureMap();
-      Object redirect = header.getHeaderValue("location");
-      if(redirect != null) {
-        docFeatures.put("redirect_to", redirect.toString());
+    }
+
+    @Override
+    public void write(int b) {
+      ensureCapacity(count + 1);
+      buf[count++] = (byte)b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      ensureCapacity(count + len);
+      System.arraycopy(b, off, buf, count, len);
+      count += len;
+    }
+  }
+
+  /**
+   * Decode HTTP chunked transfer encoding in place.  The decoded data is
+   * never longer than the encoded form, so it can be written over the
+   * start of the same buffer.  Chunk extensions and trailers are ignored,
+   * and data truncated part way through a chunk is kept.
+   *
+   * @param buf buffer holding the chunked data
+   * @param length length of the chunked data
+   * @return the length of the decoded data
+   * @throws IOException if a chunk size line is missing or malformed
+   */
+  protected static int dechunk(byte[] buf, int length) throws IOException {
+    int in = 0;
+    int out = 0;
+    while(true) {
+      // parse the chunk size line
+      int lineEnd = in;
+      while(lineEnd < length && buf[lineEnd] != '\n') {
+        lineEnd++;
       }
-      if(arcUrl != null) {
-        docFeatures.put("archive_name", arcUrl.getFile());
-      } else if(srcFile != null){
-        docFeatures.put("archive_name", srcFile.getName());  
+      if(lineEnd == length) {
+        throw new IOException("Chunked content ended unexpectedly");
       }
-      
-  //      docFeatures.put("archive_position", idMatcher.group(1));
-      String posStr = id.getAttributes().get(RECORD_POSITION_ATTR);
-      if(posStr != null) {
-        try {
-          Long.parseLong(posStr);
-          docFeatures.put("archive_position", posStr);    
-        } catch(NumberFormatException e) {
-          // log and ignore
-          logger.warn("Invalid record position value (not an integer number): {}",
-          posStr);
+      long chunkSize = 0;
+      int digits = 0;
+      for(int i = in; i < lineEnd; i++) {
+        int digit = Character.digit(buf[i], 16);
+        if(digit < 0) {
+          if(buf[i] == ';' || buf[i] == '\r' || buf[i] == ' '
+                  || buf[i] == '\t') {
+            // end of the size, possibly followed by an extension
+            break;
+          }
+          throw new IOException("Bad chunk size in chunked content");
+        }
+        chunkSize = chunkSize * 16 + digit;
+        if(++digits > 8) {
+          throw new IOException("Bad chunk size in chunked content");
         }
       }
-      
-      Date documentDate = getDate(header, record);
-      if(documentDate != null) {
-        docFeatures.put("retrievedAt", documentDate);
+      if(digits == 0) {
+        throw new IOException("Bad chunk size in chunked content");
       }
-      docFeatures.put("original_size", Long.toString(recordBodySize));
-      
-      // store file size
-      long fileSize = content.length;
-      
-      /*
-       * Store all ARC headers as document features in case they turn out to be
-       * useful later.
-       */
-      Iterator<?> headerKeyIter = header.getHeaderFieldKeys().iterator();
-      String headerKey, headerValueString;
-      Object headerValue;
-      while(headerKeyIter.hasNext()) {
-        headerKey = headerKeyIter.next().toString();
-        headerValue = header.getHeaderValue(headerKey);
-        // Shouldn't happen ... but just in case
-        if(headerValue != null) {
-          headerValueString = headerValue.toString();
-        } else {
-          headerValueString = "_null_";
-        }
-        docFeatures.put(ARC_HEADER_PREFIX + headerKey, headerValueString);
+      in = lineEnd + 1;
+      if(chunkSize == 0) {
+        // last chunk, ignore any trailers
+        return out;
       }
-      // Do the same for the HTTP headers
-      Header[] httpHeader = httpHeaders(record);
-  
-      if(httpHeader != null) {
-        for(Header h : httpHeader) {
-          headerKey = h.getName();
-          headerValueString = h.getValue();
-          docFeatures.put(HTTP_HEADER_PREFIX + headerKey, headerValueString);
-        }
+      int count = (int)Math.min(chunkSize, length - in);
+      System.arraycopy(buf, in, buf, out, count);
+      out += count;
+      in += count;
+      if(count < chunkSize) {
+        // truncated part way through a chunk
+        return out;
       }
-      
-      DocumentData docData = new DocumentData(
-              (Document)Factory.createResource("gate.corpora.DocumentImpl",
-                docParams, docFeatures, id.toString()), id);
-      docData.fileSize = fileSize;
-      return docData;
-    } finally {
+      // skip the CRLF after the chunk data
+      if(in < length && buf[in] == '\r') {
+        in++;
+      }
+      if(in < length && buf[in] == '\n') {
+        in++;
+      }
+    }
+  }
+
+  /**
+   * Add the given attributes to an ID from the enumerator.
+   */
+  protected DocumentID addIdAttributes(DocumentID id,
+          Map<String, String> extra) {
+    Map<String, String> attrs = id.getAttributes();
+    int size = attrs == null ? 0 : attrs.size();
+    String[] keys = new String[size + extra.size()];
+    String[] values = new String[keys.length];
+    int i = 0;
+    if(attrs != null) {
+      for(Map.Entry<String, String> attr : attrs.entrySet()) {
+        keys[i] = attr.getKey();
+        values[i++] = attr.getValue();
+      }
+    }
+    for(Map.Entry<String, String> attr : extra.entrySet()) {
+      keys[i] = attr.getKey();
+      values[i++] = attr.getValue();
+    }
+    return new DocumentID(id.getIdText(),
+            new SimpleArrayMap<String, String>(keys, values));
+  }
+
+  public void startBatch(Batch b) {
+    completedDocuments = b.getCompletedDocuments();
+    if(completedDocuments != null && completedDocuments.size() > 0) {
+      logger.info("Restarting failed batch - {} documents already processed",
+              completedDocuments.size());
+    }
+  }
+
+  public DocumentData nextDocument() throws IOException, GateException {
+    if(enumerator == null) {
+      if(srcFile == null) {
+        throw new IllegalArgumentException(
+                "No value was provided for the parameter \""
+                        + PARAM_SOURCE_FILE_LOCATION
+                        + "\", which is required in streaming mode");
+      }
+      enumerator = createEnumerator();
+      enumerator.config(configData);
+      enumerator.openArchive();
+    }
+    ArchiveRecord record;
+    while((record = enumerator.nextMatchingRecord()) != null) {
+      DocumentID id = enumerator.documentId(record, enumerator.recordPosition);
+      if(extraIdAttributes != null) {
+        id = addIdAttributes(id, extraIdAttributes);
+      }
+      // match on the whole ID, as the same URL may have been captured
+      // more than once
+      if(completedDocuments != null
+              && completedDocuments.contains(id.getKey())) {
+        // already processed, ignore
+        continue;
+      }
+      // the record is closed by the archive iterator when it moves on
       try {
-        if(reader != null) reader.close();
-      } catch(IOException e) {
-        // ignore
-        logger.error("Error while closing ARC reader.", e);
+        return createDocumentData(record, id, srcFile.getName());
+      } catch(Exception e) {
+        logger.warn("Error encountered while parsing document with ID "
+                + id + " - skipped", e);
       }
-      if(record != null) record.close();
     }
+    return null;
   }
-  
+
   protected abstract ArchiveReader createReader() throws IOException;
+
+  /**
+   * Create an (unconfigured) enumerator for the same archive format, used
+   * to read the archive in streaming mode.
+   */
+  protected abstract ArchiveDocumentEnumerator createEnumerator();
   
   protected abstract ArchiveRecord getRecord(ArchiveReader reader, long offset) throws IOException;
   
   protected abstract ArchiveRecord archiveRecordFromByteArray(byte[] data, String url) throws IOException;
+
+  /**
+   * Parse a record from a stream that starts at the beginning of the
+   * record, but may continue beyond its end.  By default this reads the
+   * whole stream and calls {@link #archiveRecordFromByteArray}.
+   */
+  protected ArchiveRecord archiveRecordFromStream(InputStream in, String url)
+          throws IOException {
+    return archiveRecordFromByteArray(IOUtils.toByteArray(in), url);
+  }
   
   protected abstract Header[] httpHeaders(ArchiveRecord record);
   
@@ -413,13 +823,12 @@ public abstract class ArchiveInputHandler implements InputHandler {
    * 
    * @return null if no date is found.
    */
-  private Date getDate(ArchiveRecordHeader header, ArchiveRecord record) {
+  private Date getDate(ArchiveRecordHeader header, Header[] httpHeader) {
     /*
      * http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html Date header must
      * be in RFC 1123 format
      */
     String dateString = null;
-    Header[] httpHeader = httpHeaders(record);
     if(httpHeader != null) {
       for(Header h : httpHeader) {
         if(h.getName().equalsIgnoreCase("Date")) {
@@ -446,8 +855,19 @@ public abstract class ArchiveInputHandler implements InputHandler {
   }
   
   /**
-   * No operation.
+   * Close any open readers.
    */
-  public void close() throws IOException, GateException { }
+  public void close() throws IOException, GateException {
+    if(remoteReader != null) {
+      remoteReader.close();
+    }
+    PooledReader reader;
+    while((reader = readerPool.poll()) != null) {
+      discardReader(reader.reader);
+    }
+    if(enumerator != null) {
+      enumerator.closeArchive();
+    }
+  }
 
 }
@@ -0,0 +1,569 @@
+/*
+ *  MultiArchiveInputHandler.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io.arc;
+
+import static gate.cloud.io.IOConstants.PARAM_ARCHIVE_THREADS;
+import static gate.cloud.io.IOConstants.PARAM_ARC_FILE_LOCATION;
+import static gate.cloud.io.IOConstants.PARAM_BATCH_FILE_LOCATION;
+import static gate.cloud.io.IOConstants.PARAM_DEFAULT_EXCLUDES;
+import static gate.cloud.io.IOConstants.PARAM_DOCUMENT_ROOT;
+import static gate.cloud.io.IOConstants.PARAM_EXCLUDES;
+import static gate.cloud.io.IOConstants.PARAM_INCLUDES;
+import static gate.cloud.io.IOConstants.PARAM_INDEX_FILE;
+import static gate.cloud.io.IOConstants.PARAM_MANIFEST;
+import static gate.cloud.io.IOConstants.PARAM_SOURCE_FILE_LOCATION;
+import gate.Factory;
+import gate.cloud.batch.Batch;
+import gate.cloud.batch.DocumentID;
+import gate.cloud.batch.DocumentManifest;
+import gate.cloud.io.DocumentData;
+import gate.cloud.io.DocumentPreFilter;
+import gate.cloud.io.PreFilteringInputHandler;
+import gate.cloud.io.StreamingInputHandler;
+import gate.cloud.io.file.ParallelDirectoryWalker;
+import gate.util.GateException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tools.ant.Project;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streaming-mode input handler that reads all the ARC and WARC files
+ * under a directory, several at a time.  Each archive is read in a
+ * single pass by its own {@link WARCInputHandler} or
+ * {@link ARCInputHandler} (chosen by the file name) on one of
+ * <code>archiveThreads</code> threads, and the documents from the
+ * archives being read are interleaved as they become available.  All
+ * other parameters are passed on to the handler for each archive, so the
+ * record selection and document creation are exactly as for a batch over
+ * a single archive.
+ * <p>
+ * The document IDs are those of the single-archive handlers, with an
+ * extra {@link #ARCHIVE_ATTR} attribute giving the path of the archive
+ * relative to the directory.  Completion is tracked per archive in a
+ * manifest: once every document from an archive has been processed
+ * successfully the archive is recorded, with its size and modification
+ * time, and later runs of the batch skip it without opening it.  An
+ * archive with documents that failed is read again, skipping the
+ * documents that the report records as complete.  Completed documents
+ * are matched on their full IDs, including the archive path and record
+ * position, so a record is only skipped on a restart if that record
+ * itself completed, not just another capture of the same URL.
+ */
+public class MultiArchiveInputHandler implements StreamingInputHandler,
+                                                 PreFilteringInputHandler {
+
+  private static final Logger logger =
+          LoggerFactory.getLogger(MultiArchiveInputHandler.class);
+
+  /**
+   * Name of the document ID attribute that holds the path of the archive
+   * containing the record, relative to the directory.
+   *
+   * Value: {@value}
+   */
+  static final String ARCHIVE_ATTR = "archive";
+
+  /**
+   * Include patterns used if none are specified.
+   */
+  public static final String DEFAULT_INCLUDES =
+          "**/*.warc, **/*.warc.gz, **/*.arc, **/*.arc.gz";
+
+  public static final int DEFAULT_ARCHIVE_THREADS = 4;
+
+  /**
+   * Marker placed on the queue when all the archives have been read.
+   */
+  private static final DocumentData END = new DocumentData(null, null);
+
+  /**
+   * Number of documents per thread that may be waiting on the queue
+   * before the reading threads pause.
+   */
+  private static final int QUEUE_DOCUMENTS_PER_THREAD = 4;
+
+  /**
+   * Records which archives have been processed completely.  The
+   * {@link DocumentManifest} entries are the archive paths, and the batch
+   * reports the completion of the individual documents, which are
+   * counted off against their archives.  An archive is recorded once it
+   * has been read to the end and all its documents have completed.
+   */
+  protected static class ArchiveManifest extends DocumentManifest {
+
+    protected static class Archive {
+      final String path;
+
+      /**
+       * Number of documents queued but not yet completed.
+       */
+      int outstanding;
+
+      /**
+       * Has the archive been read to the end?
+       */
+      boolean read;
+
+      /**
+       * Has a document completed that may have come from this archive or
+       * from another one?
+       */
+      boolean uncertain;
+
+      Archive(String path) {
+        this.path = path;
+      }
+    }
+
+    /**
+     * The archives of the documents that are being processed, by
+     * document ID text.  The same URL may be found in more than one
+     * archive, and as the batch only reports the ID text of a completed
+     * document it is not known which archive such a document came from.
+     * In that case none of the archives involved are recorded in this
+     * run, so they will be read again next time.
+     */
+    protected Map<String, List<Archive>> pendingDocuments =
+            new HashMap<String, List<Archive>>();
+
+    public ArchiveManifest(File file) throws IOException {
+      super(file);
+    }
+
+    /**
+     * Register an archive that is about to be read.
+     */
+    public synchronized Archive startArchive(String path, String state) {
+      pending(path, state);
+      return new Archive(path);
+    }
+
+    /**
+     * Register a document from the given archive that is about to be
+     * processed.
+     */
+    public synchronized void documentPending(Archive archive, String id) {
+      archive.outstanding++;
+      List<Archive> archives = pendingDocuments.get(id);
+      if(archives == null) {
+        archives = new ArrayList<Archive>(1);
+        pendingDocuments.put(id, archives);
+      }
+      archives.add(archive);
+    }
+
+    /**
+     * Record that the given archive has been read to the end.
+     */
+    public synchronized void archiveRead(Archive archive) throws IOException {
+      archive.read = true;
+      if(archive.outstanding == 0 && !archive.uncertain) {
+        super.completed(archive.path);
+      }
+    }
+
+    /**
+     * Record that a document has been processed successfully, and record
+     * its archive if that was the last document outstanding.
+     */
+    @Override
+    public synchronized void completed(String id) throws IOException {
+      List<Archive> archives = pendingDocuments.get(id);
+      if(archives == null) {
+        return;
+      }
+      Archive archive = archives.remove(0);
+      if(archives.isEmpty()) {
+        pendingDocuments.remove(id);
+      } else {
+        for(Archive other : archives) {
+          if(other != archive) {
+            archive.uncertain = true;
+            other.uncertain = true;
+          }
+        }
+      }
+      if(--archive.outstanding == 0 && archive.read && !archive.uncertain) {
+        super.completed(archive.path);
+      }
+    }
+  }
+
+  /**
+   * Configuration, passed on to the handler for each archive.
+   */
+  protected Map<String, String> configData;
+
+  /**
+   * The directory containing the archives.
+   */
+  protected File dir;
+
+  protected String includes;
+
+  protected String excludes;
+
+  protected boolean defaultExcludes;
+
+  protected int archiveThreads;
+
+  /**
+   * Filter passed on to the handler for each archive, or
+   * <code>null</code>.
+   */
+  protected DocumentPreFilter preFilter;
+
+  /**
+   * The manifest of completed archives, or <code>null</code> if
+   * completion is not being tracked.
+   */
+  protected ArchiveManifest manifest;
+
+  /**
+   * Document IDs that are already complete after a previous run of this
+   * batch.
+   */
+  protected Set<String> completedDocuments;
+
+  /**
+   * Finds the archives, started on the first call to
+   * {@link #nextDocument()}.
+   */
+  protected ParallelDirectoryWalker walker;
+
+  protected ExecutorService executor;
+
+  protected BlockingQueue<DocumentData> queue;
+
+  /**
+   * Number of reading threads that have not yet finished.
+   */
+  protected AtomicInteger runningThreads = new AtomicInteger();
+
+  protected AtomicInteger archivesRead = new AtomicInteger();
+
+  protected int archivesSkipped;
+
+  protected boolean finished;
+
+  public DocumentData getInputDocument(DocumentID id) throws IOException,
+          GateException {
+    throw new UnsupportedOperationException(
+            "MultiArchiveInputHandler can only operate in streaming mode");
+  }
+
+  @SuppressWarnings("deprecation")
+  public void config(Map<String, String> configData) throws IOException,
+          GateException {
+    this.configData = new HashMap<String, String>(configData);
+    File batchDir = null;
+    String batchFileStr = configData.get(PARAM_BATCH_FILE_LOCATION);
+    if(batchFileStr != null) {
+      batchDir = new File(batchFileStr).getParentFile();
+    }
+    String dirStr = configData.get(PARAM_DOCUMENT_ROOT);
+    if(dirStr == null || dirStr.trim().length() == 0) {
+      throw new IllegalArgumentException(
+              "No value was provided for the required parameter \""
+                      + PARAM_DOCUMENT_ROOT + "\"!");
+    }
+    dir = new File(dirStr);
+    if(!dir.isAbsolute()) {
+      dir = new File(batchDir, dirStr);
+    }
+    if(!dir.isDirectory()) {
+      throw new IllegalArgumentException("Directory \"" + dir
+              + "\", provided as value for required parameter \""
+              + PARAM_DOCUMENT_ROOT + "\", does not exist!");
+    }
+
+    includes = configData.get(PARAM_INCLUDES);
+    if(includes == null || includes.trim().length() == 0) {
+      includes = DEFAULT_INCLUDES;
+    }
+    excludes = configData.get(PARAM_EXCLUDES);
+    String defaultExcludesStr = configData.get(PARAM_DEFAULT_EXCLUDES);
+    defaultExcludes = defaultExcludesStr == null
+            || Project.toBoolean(defaultExcludesStr);
+
+    archiveThreads = DEFAULT_ARCHIVE_THREADS;
+    String threadsStr = configData.get(PARAM_ARCHIVE_THREADS);
+    if(threadsStr != null && threadsStr.trim().length() > 0) {
+      try {
+        archiveThreads = Integer.parseInt(threadsStr.trim());
+      } catch(NumberFormatException e) {
+        throw new IllegalArgumentException("Value \"" + threadsStr
+                + "\" for parameter \"" + PARAM_ARCHIVE_THREADS
+                + "\" is not a valid integer");
+      }
+      if(archiveThreads < 1) {
+        throw new IllegalArgumentException("Parameter \""
+                + PARAM_ARCHIVE_THREADS + "\" must be at least 1");
+      }
+    }
+
+    // the manifest defaults to a file alongside the batch
+    String manifestStr = configData.get(PARAM_MANIFEST);
+    File manifestFile = null;
+    if(manifestStr != null && manifestStr.trim().length() > 0) {
+      manifestFile = new File(manifestStr);
+      if(!manifestFile.isAbsolute()) {
+        manifestFile = new File(batchDir, manifestStr);
+      }
+    } else if(batchFileStr != null) {
+      manifestFile = new File(batchFileStr + ".archives");
+    }
+    if(manifestFile != null) {
+      manifest = new ArchiveManifest(manifestFile);
+    }
+
+    // these apply to a single archive, so are set separately for each one
+    this.configData.remove(PARAM_SOURCE_FILE_LOCATION);
+    this.configData.remove(PARAM_ARC_FILE_LOCATION);
+    this.configData.remove(PARAM_INDEX_FILE);
+  }
+
+  public void setPreFilter(DocumentPreFilter filter) {
+    this.preFilter = filter;
+  }
+
+  public void init() throws IOException, GateException {
+  }
+
+  public void startBatch(Batch b) {
+    completedDocuments = b.getCompletedDocuments();
+    if(completedDocuments != null && completedDocuments.size() > 0) {
+      logger.info("Restarting failed batch - {} documents already processed",
+              completedDocuments.size());
+    }
+    if(manifest != null) {
+      // so the batch reports completed documents to the manifest
+      b.addManifest(manifest);
+    }
+  }
+
+  /**
+   * Start finding the archives and the threads that read them.
+   */
+  protected void startReading() {
+    walker = new ParallelDirectoryWalker(dir, includes, excludes,
+            defaultExcludes, true, 1);
+    walker.start();
+    queue = new LinkedBlockingQueue<DocumentData>(archiveThreads
+            * QUEUE_DOCUMENTS_PER_THREAD);
+    final AtomicInteger threadNumber = new AtomicInteger();
+    executor = Executors.newFixedThreadPool(archiveThreads,
+            new ThreadFactory() {
+              public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "MultiArchiveInputHandler-"
+                        + threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+              }
+            });
+    runningThreads.set(archiveThreads);
+    for(int i = 0; i < archiveThreads; i++) {
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            readArchives();
+          } finally {
+            if(runningThreads.decrementAndGet() == 0) {
+              // that was the last thread
+              try {
+                queue.put(END);
+              } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            }
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Read archives until there are none left.
+   */
+  protected void readArchives() {
+    String path;
+    while(!Thread.currentThread().isInterrupted()
+            && (path = nextArchive()) != null) {
+      try {
+        readArchive(path);
+        archivesRead.incrementAndGet();
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch(Exception e) {
+        logger.warn("Error reading archive " + path
+                + " - remaining records skipped", e);
+      }
+    }
+  }
+
+  /**
+   * Get the path of the next archive to read, skipping those that the
+   * manifest records as complete.
+   *
+   * @return the path relative to the directory, or <code>null</code> if
+   *         there are no more archives.
+   */
+  protected synchronized String nextArchive() {
+    while(walker.hasNext()) {
+      String path = walker.next();
+      if(manifest != null
+              && manifest.isUnchanged(path, archiveState(new File(dir, path)))) {
+        logger.debug("Archive {} already processed - skipped", path);
+        archivesSkipped++;
+        continue;
+      }
+      return path;
+    }
+    return null;
+  }
+
+  /**
+   * The state of an archive for the manifest.
+   */
+  protected String archiveState(File archive) {
+    return archive.length() + ":" + archive.lastModified();
+  }
+
+  /**
+   * Read all the documents from one archive onto the queue.
+   */
+  protected void readArchive(String path) throws IOException, GateException,
+          InterruptedException {
+    File archiveFile = new File(dir, path);
+    logger.debug("Reading archive {}", archiveFile);
+    ArchiveInputHandler handler = createArchiveHandler(path);
+    Map<String, String> archiveConfig = new HashMap<String, String>(configData);
+    archiveConfig.put(PARAM_SOURCE_FILE_LOCATION, archiveFile.getAbsolutePath());
+    handler.config(archiveConfig);
+    handler.setPreFilter(preFilter);
+    handler.init();
+    // set directly rather than by startBatch, to avoid logging the
+    // restart once per archive.  The archive attribute is added by the
+    // handler, so that completed documents are matched on their full IDs
+    handler.completedDocuments = completedDocuments;
+    handler.extraIdAttributes = Collections.singletonMap(ARCHIVE_ATTR,
+            path.replace(File.separatorChar, '/'));
+    ArchiveManifest.Archive archive = null;
+    if(manifest != null) {
+      archive = manifest.startArchive(path, archiveState(archiveFile));
+    }
+    try {
+      DocumentData docData;
+      while((docData = handler.nextDocument()) != null) {
+        if(archive != null) {
+          manifest.documentPending(archive, docData.id.getIdText());
+        }
+        try {
+          queue.put(docData);
+        } catch(InterruptedException e) {
+          // closing, so nothing will take the document
+          if(docData.document != null) {
+            Factory.deleteResource(docData.document);
+          }
+          throw e;
+        }
+      }
+      if(archive != null) {
+        manifest.archiveRead(archive);
+      }
+    } finally {
+      handler.close();
+    }
+  }
+
+  /**
+   * Create the input handler for a single archive, a
+   * {@link WARCInputHandler} if the file name contains ".warc" and an
+   * {@link ARCInputHandler} otherwise.
+   */
+  protected ArchiveInputHandler createArchiveHandler(String path) {
+    if(path.toLowerCase().contains(".warc")) {
+      return new WARCInputHandler();
+    } else {
+      return new ARCInputHandler();
+    }
+  }
+
+  public DocumentData nextDocument() throws IOException, GateException {
+    if(finished) {
+      return null;
+    }
+    if(executor == null) {
+      logger.info("Reading archives under {} with {} threads", dir,
+              archiveThreads);
+      startReading();
+    }
+    DocumentData docData;
+    try {
+      docData = queue.take();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for documents", e);
+    }
+    if(docData == END) {
+      finished = true;
+      logger.info("Finished reading {} archives ({} already processed)",
+              archivesRead.get(), archivesSkipped);
+      return null;
+    }
+    return docData;
+  }
+
+  public void close() throws IOException, GateException {
+    if(executor != null) {
+      executor.shutdownNow();
+      // wait for the reading threads to stop, so that none of them can
+      // put a document on the queue after it has been drained
+      try {
+        while(!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+          logger.info("Waiting for the archive reading threads to stop");
+        }
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        logger.warn("Interrupted while waiting for the archive reading "
+                + "threads to stop");
+      }
+      executor = null;
+    }
+    if(queue != null) {
+      // release any documents that were read but not processed
+      DocumentData docData;
+      while((docData = queue.poll()) != null) {
+        if(docData.document != null) {
+          Factory.deleteResource(docData.document);
+        }
+      }
+    }
+    if(manifest != null) {
+      manifest.close();
+    }
+  }
+}
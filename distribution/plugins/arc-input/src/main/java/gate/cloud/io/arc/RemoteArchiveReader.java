@@ -0,0 +1,451 @@
+/*
+ *  RemoteArchiveReader.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io.arc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads records from web archives over HTTP using range requests.
+ * Rather than one request per record, each request fetches a block of at
+ * least <code>readAhead</code> bytes starting at the requested record,
+ * and later requests for records that lie entirely within a block that
+ * has already been fetched (or is being fetched) are served from that
+ * block.  When records are requested in increasing offset order, as they
+ * are when the IDs come from an enumerator or index, the next block of
+ * the same archive can also be fetched in the background once a request
+ * falls in the second half of the current block.  A small number of
+ * recent blocks are cached.  A record that runs past the end of its
+ * block is completed by fetching the following blocks on demand.
+ * <p>
+ * Connections are left to the JDK's HTTP keep-alive pool, so each
+ * response is read to the end and closed to allow the connection to be
+ * reused by the next request to the same server.
+ * <p>
+ * If the server ignores the range and sends the whole archive, every
+ * request has to read the archive from the start, so fetching more than
+ * the requested record only makes things worse.  Once that has happened
+ * for an archive, later requests for it fetch just the requested range,
+ * with no read-ahead or prefetching.
+ */
+public class RemoteArchiveReader {
+
+  private static final Logger logger =
+          LoggerFactory.getLogger(RemoteArchiveReader.class);
+
+  /**
+   * Default value for the read-ahead size.
+   */
+  public static final int DEFAULT_READ_AHEAD = 1024 * 1024;
+
+  /**
+   * Maximum number of blocks kept in the cache.
+   */
+  protected static final int MAX_CACHED_BLOCKS = 16;
+
+  /**
+   * Minimum size of the blocks fetched when a record continues beyond
+   * the end of the block it started in.
+   */
+  protected static final int MIN_CONTINUATION_SIZE = 64 * 1024;
+
+  /**
+   * A range of bytes fetched from an archive.
+   */
+  protected static class Block {
+    final String url;
+
+    final long start;
+
+    /**
+     * End of the range that was requested, exclusive.
+     */
+    final long requestedEnd;
+
+    /**
+     * The data, once fetched.
+     */
+    byte[] data;
+
+    Block(String url, long start, long requestedEnd) {
+      this.url = url;
+      this.start = start;
+      this.requestedEnd = requestedEnd;
+    }
+
+    /**
+     * End of the data actually fetched, exclusive.  This may be short of
+     * {@link #requestedEnd} at the end of the archive.
+     */
+    long end() {
+      return start + data.length;
+    }
+
+    boolean atEndOfArchive() {
+      return end() < requestedEnd;
+    }
+  }
+
+  protected int readAhead;
+
+  protected boolean prefetch;
+
+  /**
+   * Blocks fetched or being fetched, in least recently used order.
+   */
+  protected LinkedHashMap<Block, Future<Block>> blocks =
+          new LinkedHashMap<Block, Future<Block>>(16, 0.75f, true);
+
+  /**
+   * Offset of the last record requested from each archive, used to
+   * detect sequential access.
+   */
+  protected Map<String, Long> lastOffsets = new HashMap<String, Long>();
+
+  protected ExecutorService prefetchExecutor;
+
+  /**
+   * URLs of the archives whose servers have ignored a range request.
+   */
+  protected Set<String> rangesIgnored = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Create a reader.
+   *
+   * @param readAhead minimum number of bytes to fetch in each request; 0
+   *          fetches each record individually.
+   * @param prefetch should the next block be fetched in the background
+   *          when records are being read in order?
+   */
+  public RemoteArchiveReader(int readAhead, boolean prefetch) {
+    this.readAhead = readAhead;
+    this.prefetch = prefetch && readAhead > 0;
+    if(this.prefetch) {
+      final AtomicInteger threadNumber = new AtomicInteger();
+      prefetchExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "RemoteArchiveReader-prefetch-"
+                  + threadNumber.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+  }
+
+  /**
+   * Get a stream of the bytes of an archive starting at the given offset.
+   * The length is only used to decide how much to fetch in the first
+   * request: the stream continues beyond the end of the record, fetching
+   * further blocks as they are needed, so a record is still read in full
+   * if its length is not known exactly (as is the case for compressed
+   * records when the ID gives the uncompressed length).
+   *
+   * @param url the URL of the archive
+   * @param offset offset of the record in the archive
+   * @param length length of the record
+   */
+  public InputStream read(URL url, long offset, long length)
+          throws IOException {
+    Block block = block(url, offset, offset + length, true);
+    return new BlockInputStream(url, block, (int)(offset - block.start));
+  }
+
+  /**
+   * Get a block that holds the given range, or as much of it as the
+   * archive contains, fetching it on this thread if it is not cached.
+   */
+  protected Block block(URL url, long start, long end, boolean isRecord)
+          throws IOException {
+    String urlStr = url.toExternalForm();
+    FutureTask<Block> toRun = null;
+    Future<Block> future;
+    synchronized(this) {
+      future = findBlock(urlStr, start, end);
+      if(future == null) {
+        Block block = new Block(urlStr, start, start + Math.max(end - start,
+                readAhead(urlStr)));
+        toRun = new FutureTask<Block>(fetchTask(url, block));
+        addBlock(block, toRun);
+        future = toRun;
+      }
+    }
+    if(toRun != null) {
+      // fetch on this thread
+      toRun.run();
+    }
+    Block block = getBlock(future);
+    if(prefetch && isRecord) {
+      maybePrefetch(url, block, start, end);
+    }
+    return block;
+  }
+
+  /**
+   * Stream over a sequence of blocks, starting at a given position in the
+   * first block and fetching the following blocks when it reaches the end
+   * of each one.
+   */
+  protected class BlockInputStream extends InputStream {
+    protected URL url;
+
+    protected Block block;
+
+    protected int pos;
+
+    protected BlockInputStream(URL url, Block block, int pos) {
+      this.url = url;
+      this.block = block;
+      this.pos = pos;
+    }
+
+    /**
+     * Move to the next block if the current one is used up.
+     *
+     * @return false if there is no more data in the archive.
+     */
+    protected boolean ensureData() throws IOException {
+      while(pos >= block.data.length) {
+        if(block.atEndOfArchive()) {
+          return false;
+        }
+        long next = block.end();
+        block = block(url, next, next + Math.max(readAhead(block.url),
+                MIN_CONTINUATION_SIZE), false);
+        pos = (int)(next - block.start);
+      }
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if(!ensureData()) {
+        return -1;
+      }
+      return block.data[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if(len == 0) {
+        return 0;
+      }
+      if(!ensureData()) {
+        return -1;
+      }
+      int count = Math.min(len, block.data.length - pos);
+      System.arraycopy(block.data, pos, b, off, count);
+      pos += count;
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return block.data.length - pos;
+    }
+  }
+
+  /**
+   * The read-ahead size to use for the given archive: 0 if its server
+   * ignores range requests.
+   */
+  protected int readAhead(String url) {
+    return rangesIgnored.contains(url) ? 0 : readAhead;
+  }
+
+  /**
+   * Find a cached block that holds the given range.  Blocks that are
+   * still being fetched are assumed to hold everything they were asked
+   * for.
+   */
+  protected Future<Block> findBlock(String url, long start, long end) {
+    for(Map.Entry<Block, Future<Block>> entry : blocks.entrySet()) {
+      Block block = entry.getKey();
+      if(block.url.equals(url) && block.start <= start) {
+        long blockEnd = block.requestedEnd;
+        if(entry.getValue().isDone()) {
+          if(block.data == null) {
+            // failed fetch
+            continue;
+          }
+          blockEnd = block.atEndOfArchive() ? Long.MAX_VALUE : block.end();
+        }
+        if(end <= blockEnd) {
+          // touch the entry to mark it as recently used
+          return blocks.get(block);
+        }
+      }
+    }
+    return null;
+  }
+
+  protected void addBlock(Block block, Future<Block> future) {
+    blocks.put(block, future);
+    Iterator<Block> it = blocks.keySet().iterator();
+    while(blocks.size() > MAX_CACHED_BLOCKS && it.hasNext()) {
+      it.next();
+      it.remove();
+    }
+  }
+
+  protected Block getBlock(Future<Block> future) throws IOException {
+    try {
+      return future.get();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading remote archive", e);
+    } catch(ExecutionException e) {
+      synchronized(this) {
+        // don't keep failures in the cache
+        blocks.values().remove(future);
+      }
+      if(e.getCause() instanceof IOException) {
+        throw (IOException)e.getCause();
+      }
+      throw new IOException("Error reading remote archive", e.getCause());
+    }
+  }
+
+  /**
+   * Start fetching the block after the given one if the records are
+   * being read in order and the current record is in the second half of
+   * its block.
+   */
+  protected void maybePrefetch(URL url, Block block, long offset,
+          long recordEnd) {
+    synchronized(this) {
+      Long lastOffset = lastOffsets.put(block.url, offset);
+      if(lastOffset == null || offset < lastOffset
+              || rangesIgnored.contains(block.url)
+              || block.atEndOfArchive()
+              || recordEnd - block.start < block.data.length / 2) {
+        return;
+      }
+      long nextStart = block.end();
+      if(findBlock(block.url, nextStart, nextStart + 1) != null) {
+        return;
+      }
+      Block next = new Block(block.url, nextStart, nextStart + readAhead);
+      FutureTask<Block> task = new FutureTask<Block>(fetchTask(url, next));
+      addBlock(next, task);
+      logger.debug("Prefetching {} from offset {}", url, nextStart);
+      prefetchExecutor.execute(task);
+    }
+  }
+
+  protected Callable<Block> fetchTask(final URL url, final Block block) {
+    return new Callable<Block>() {
+      public Block call() throws IOException {
+        block.data = fetch(url, block.start, block.requestedEnd);
+        return block;
+      }
+    };
+  }
+
+  /**
+   * Fetch a range of bytes with an HTTP range request.
+   *
+   * @param start first byte to fetch
+   * @param end end of the range, exclusive
+   */
+  protected byte[] fetch(URL url, long start, long end) throws IOException {
+    logger.debug("Fetching {} bytes {}-{}", url, start, end - 1);
+    URLConnection conn = url.openConnection();
+    conn.setRequestProperty("Range", "bytes=" + Long.toString(start) + "-"
+            + Long.toString(end - 1));
+    InputStream is;
+    try {
+      is = conn.getInputStream();
+    } catch(IOException e) {
+      if(conn instanceof HttpURLConnection) {
+        HttpURLConnection httpConn = (HttpURLConnection)conn;
+        // read and close the error body so the connection can be reused
+        InputStream err = httpConn.getErrorStream();
+        if(err != null) {
+          try {
+            IOUtils.skip(err, Long.MAX_VALUE);
+          } catch(IOException e2) {
+            // the connection will not be reused, but the original
+            // exception is the one to report
+            e.addSuppressed(e2);
+          } finally {
+            try {
+              err.close();
+            } catch(IOException e2) {
+              e.addSuppressed(e2);
+            }
+          }
+        }
+        if(httpConn.getResponseCode() == 416) {
+          // range not satisfiable - we asked for data past the end
+          return new byte[0];
+        }
+      }
+      throw e;
+    }
+    try {
+      boolean partial = true;
+      if(conn instanceof HttpURLConnection
+              && ((HttpURLConnection)conn).getResponseCode()
+                      == HttpURLConnection.HTTP_OK) {
+        // the server ignored the range, so skip to the part we want
+        partial = false;
+        if(rangesIgnored.add(url.toExternalForm())) {
+          logger.warn("Server for {} does not support range requests, "
+                  + "disabling read-ahead", url);
+        }
+        if(start > 0) {
+          IOUtils.skipFully(is, start);
+        }
+      }
+      byte[] buf = new byte[(int)(end - start)];
+      int count = IOUtils.read(is, buf);
+      if(partial) {
+        // read any remainder so the connection can be reused
+        IOUtils.skip(is, Long.MAX_VALUE);
+      }
+      return count < buf.length ? Arrays.copyOf(buf, count) : buf;
+    } finally {
+      is.close();
+    }
+  }
+
+  /**
+   * Stop any background fetches and discard the cache.
+   */
+  public synchronized void close() {
+    if(prefetchExecutor != null) {
+      prefetchExecutor.shutdownNow();
+    }
+    blocks.clear();
+    lastOffsets.clear();
+  }
+}
@@ -72,6 +72,9 @@ public class WARCDocumentEnumerator extends ArchiveDocumentEnumerator {
   @Override
   protected String mimeType(ArchiveRecord record) {
     Header[] headers = ((HeaderedArchiveRecord)record).getContentHeaders();
+    if(headers == null) {
+      return null;
+    }
     for(Header h : headers) {
       if("Content-Type".equals(h.getName())) {
         return h.getValue();
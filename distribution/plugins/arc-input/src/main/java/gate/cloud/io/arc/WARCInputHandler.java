@@ -2,6 +2,7 @@ package gate.cloud.io.arc;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 import org.apache.commons.httpclient.Header;
 import org.archive.io.ArchiveReader;
@@ -31,9 +32,20 @@ public class WARCInputHandler extends ArchiveInputHandler {
             true);
   }
 
+  @Override
+  protected ArchiveRecord archiveRecordFromStream(InputStream in, String url)
+          throws IOException {
+    return new HeaderedArchiveRecord(new WARCRecord(in, url, 0, false, false),
+            true);
+  }
+
   @Override
   protected Header[] httpHeaders(ArchiveRecord record) {
     return ((HeaderedArchiveRecord)record).getContentHeaders();
   }
 
+  @Override
+  protected ArchiveDocumentEnumerator createEnumerator() {
+    return new WARCDocumentEnumerator();
+  }
 }
@@ -0,0 +1,245 @@
+/*
+ *  RangeStubServer.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io.arc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A minimal HTTP server that serves a single archive (the same bytes for
+ * any path), for trying out and checking the {@link RemoteArchiveReader}
+ * without a real web server.  It answers range requests with 206 and the
+ * requested bytes, or with 416 for a range starting past the end, unless
+ * it is created to ignore ranges, in which case it always sends the whole
+ * archive with 200 like a server without range support.
+ * <p>
+ * Run from the command line, with the plugin and GCP libraries on the
+ * classpath, as
+ * <code>java gate.cloud.io.arc.RangeStubServer file [port [noRanges]]</code>
+ * it serves the given file until it is stopped.  With no arguments it
+ * runs a self-check instead, reading records through a
+ * {@link RemoteArchiveReader} from servers with and without range
+ * support and comparing them with the original bytes, and exits with a
+ * non-zero status if any of them differ.
+ */
+public class RangeStubServer {
+
+  private static final Logger logger =
+          LoggerFactory.getLogger(RangeStubServer.class);
+
+  private static final Pattern RANGE =
+          Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+  protected HttpServer server;
+
+  protected ExecutorService executor;
+
+  protected byte[] content;
+
+  protected boolean supportRanges;
+
+  protected AtomicLong requests = new AtomicLong();
+
+  protected AtomicLong bytesSent = new AtomicLong();
+
+  /**
+   * Create and start a server.
+   *
+   * @param port the port to listen on, or 0 to choose a free port
+   * @param content the bytes of the archive
+   * @param supportRanges should range requests be honoured?
+   */
+  public RangeStubServer(int port, byte[] content, boolean supportRanges)
+          throws IOException {
+    this.content = content;
+    this.supportRanges = supportRanges;
+    server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        handleRequest(exchange);
+      }
+    });
+    executor = Executors.newCachedThreadPool();
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  protected void handleRequest(HttpExchange exchange) throws IOException {
+    try {
+      requests.incrementAndGet();
+      String range = exchange.getRequestHeaders().getFirst("Range");
+      Matcher m = range == null ? null : RANGE.matcher(range);
+      if(!supportRanges || m == null || !m.matches()) {
+        respond(exchange, 200, content, 0, content.length);
+        return;
+      }
+      long start = Long.parseLong(m.group(1));
+      long end = m.group(2).isEmpty() ? content.length - 1
+              : Long.parseLong(m.group(2));
+      if(start >= content.length) {
+        exchange.getResponseHeaders().set("Content-Range",
+                "bytes */" + content.length);
+        byte[] body = "Range not satisfiable".getBytes(StandardCharsets.UTF_8);
+        respond(exchange, 416, body, 0, body.length);
+        return;
+      }
+      end = Math.min(end, content.length - 1);
+      exchange.getResponseHeaders().set("Content-Range",
+              "bytes " + start + "-" + end + "/" + content.length);
+      respond(exchange, 206, content, (int)start, (int)(end - start + 1));
+    } finally {
+      exchange.close();
+    }
+  }
+
+  protected void respond(HttpExchange exchange, int code, byte[] body,
+          int offset, int length) throws IOException {
+    exchange.sendResponseHeaders(code, length);
+    OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(body, offset, length);
+      bytesSent.addAndGet(length);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * The URL of the archive on this server.
+   */
+  public URL getUrl() throws IOException {
+    return new URL("http://localhost:" + server.getAddress().getPort()
+            + "/archive.warc.gz");
+  }
+
+  public long getRequestCount() {
+    return requests.get();
+  }
+
+  public long getBytesSent() {
+    return bytesSent.get();
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /**
+   * Read records of random lengths, in order and then out of order,
+   * through a reader with read-ahead and prefetching, and check them
+   * against the content.
+   *
+   * @return the number of records that did not match.
+   */
+  protected static int check(byte[] content, boolean supportRanges)
+          throws IOException {
+    RangeStubServer stub = new RangeStubServer(0, content, supportRanges);
+    RemoteArchiveReader reader = new RemoteArchiveReader(64 * 1024, true);
+    int mismatches = 0;
+    try {
+      URL url = stub.getUrl();
+      Random random = new Random(42);
+      long offset = 0;
+      int records = 0;
+      while(offset < content.length) {
+        int length = (int)Math.min(1 + random.nextInt(20000),
+                content.length - offset);
+        mismatches += checkRecord(reader, url, content, offset, length);
+        offset += length;
+        records++;
+      }
+      for(int i = 0; i < 20; i++) {
+        offset = random.nextInt(content.length);
+        int length = (int)Math.min(1 + random.nextInt(200000),
+                content.length - offset);
+        mismatches += checkRecord(reader, url, content, offset, length);
+        records++;
+      }
+      // a stated length beyond the end of the archive is cut short
+      InputStream in = reader.read(url, content.length - 10, 100);
+      if(IOUtils.toByteArray(in).length != 10) {
+        logger.error("Record at the end of the archive was not cut short");
+        mismatches++;
+      }
+      logger.info("{} ranges: {} records read with {} requests, {} bytes sent",
+              supportRanges ? "With" : "Without", records,
+              stub.getRequestCount(), stub.getBytesSent());
+    } finally {
+      reader.close();
+      stub.stop();
+    }
+    return mismatches;
+  }
+
+  private static int checkRecord(RemoteArchiveReader reader, URL url,
+          byte[] content, long offset, int length) throws IOException {
+    InputStream in = reader.read(url, offset, length);
+    byte[] expected = Arrays.copyOfRange(content, (int)offset,
+            (int)offset + length);
+    byte[] actual = new byte[length];
+    int count = IOUtils.read(in, actual);
+    if(count != length || !Arrays.equals(expected, actual)) {
+      logger.error("Record at offset {} (length {}) does not match", offset,
+              length);
+      return 1;
+    }
+    return 0;
+  }
+
+  public static void main(String... args) throws Exception {
+    if(args.length > 0) {
+      int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+      boolean supportRanges =
+              args.length < 3 || !"noRanges".equalsIgnoreCase(args[2]);
+      final RangeStubServer stub = new RangeStubServer(port,
+              Files.readAllBytes(new File(args[0]).toPath()), supportRanges);
+      logger.info("Serving {} at {}", args[0], stub.getUrl());
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        @Override
+        public void run() {
+          logger.info("{} requests, {} bytes sent", stub.getRequestCount(),
+                  stub.getBytesSent());
+          stub.stop();
+        }
+      });
+      return;
+    }
+    byte[] content = new byte[3 * 1024 * 1024 + 123];
+    new Random(1).nextBytes(content);
+    int mismatches = check(content, true) + check(content, false);
+    if(mismatches > 0) {
+      logger.error("{} records did not match", mismatches);
+      System.exit(1);
+    }
+    logger.info("All records matched");
+    System.exit(0);
+  }
+}
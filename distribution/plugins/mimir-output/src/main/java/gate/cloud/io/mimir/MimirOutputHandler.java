@@ -50,10 +50,17 @@ public class MimirOutputHandler extends AbstractOutputHandler {
   private String uriFeature;
 
   /**
-   * The {@link MimirConnector} used to send documents to M&iacute;mir.
+   * The {@link MimirConnector} used to send documents to M&iacute;mir,
+   * if documents are sent from the processing threads.
    */
   private MimirConnector mimirConnector;
 
+  /**
+   * The submitter used to send documents to M&iacute;mir in the
+   * background, if pipelined submission is enabled.
+   */
+  private MimirSubmitter submitter;
+
   /**
    * Parameter name for the index URL parameter (for which the value should be
    * the URL of the M&iacute;mir index). 
@@ -99,6 +106,40 @@ public class MimirOutputHandler extends AbstractOutputHandler {
    */
   public static final String PARAM_PASSWORD = "password";
 
+  /**
+   * Parameter name for the maximum number of requests to M&iacute;mir in
+   * flight at once.  If this is positive, documents are sent to
+   * M&iacute;mir in batches by this number of background threads rather
+   * than by the processing threads (see {@link MimirSubmitter}), and the
+   * {@link #PARAM_CONNECTION_INTERVAL} parameter is ignored.  The default
+   * is 0, which sends documents using a {@link MimirConnector} on the
+   * processing threads.
+   */
+  public static final String PARAM_MAX_IN_FLIGHT = "maxInFlight";
+
+  /**
+   * Parameter name for the maximum number of documents in one request,
+   * when pipelined submission is enabled.
+   */
+  public static final String PARAM_BATCH_SIZE = "batchSize";
+
+  /**
+   * Parameter name for the maximum size of one request in bytes, when
+   * pipelined submission is enabled.
+   */
+  public static final String PARAM_BATCH_BYTES = "batchBytes";
+
+  /**
+   * Parameter name for the maximum number of documents waiting to be
+   * sent, when pipelined submission is enabled.  Processing threads wait
+   * when this many documents are waiting.
+   */
+  public static final String PARAM_MAX_PENDING = "maxPending";
+
+  public static final int DEFAULT_BATCH_SIZE = 100;
+
+  public static final long DEFAULT_BATCH_BYTES = 8 * 1024 * 1024;
+
   @Override
   protected void configImpl(Map<String, String> configData) throws IOException,
           GateException {
@@ -118,6 +159,20 @@ public class MimirOutputHandler extends AbstractOutputHandler {
     if(namespace == null) namespace = "";
     uriFeature = configData.get(PARAM_URI_FEATURE);
 
+    int maxInFlight = intValueOf(configData, PARAM_MAX_IN_FLIGHT, 0);
+    if(maxInFlight > 0) {
+      int batchSize = intValueOf(configData, PARAM_BATCH_SIZE,
+              DEFAULT_BATCH_SIZE);
+      long batchBytes = longValueOf(configData, PARAM_BATCH_BYTES,
+              DEFAULT_BATCH_BYTES);
+      int maxPending = intValueOf(configData, PARAM_MAX_PENDING,
+              maxInFlight * batchSize);
+      submitter = new MimirSubmitter(indexUrl, configData.get(PARAM_USERNAME),
+              configData.get(PARAM_PASSWORD), maxInFlight, batchSize,
+              batchBytes, maxPending);
+      return;
+    }
+
     WebUtils webUtils = null;
     if(configData.get(PARAM_USERNAME) == null) {
       // no authentication
@@ -154,7 +209,11 @@ public class MimirOutputHandler extends AbstractOutputHandler {
       uri = namespace + document.getName();
     }
     try {
-      mimirConnector.sendToMimir(document, uri);
+      if(submitter != null) {
+        submitter.submit(document, uri, documentId.toString());
+      } else {
+        mimirConnector.sendToMimir(document, uri);
+      }
     } catch(InterruptedException e) {
       throw new GateException("Interrupted while witing to submit document", e);
     }
@@ -164,7 +223,11 @@ public class MimirOutputHandler extends AbstractOutputHandler {
   public void close() throws IOException, GateException {
     super.close();
     try {
-      mimirConnector.close();
+      if(submitter != null) {
+        submitter.close();
+      } else {
+        mimirConnector.close();
+      }
     } catch(InterruptedException e) {
       throw new GateException(
           "Interrupted while waiting for the Mímir conenctor to close.", e);
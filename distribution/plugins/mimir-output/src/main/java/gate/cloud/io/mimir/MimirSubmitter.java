@@ -0,0 +1,359 @@
+/*
+ *  MimirSubmitter.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io.mimir;
+
+import gate.Document;
+import gate.mimir.index.MimirConnector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends documents to a M&iacute;mir index without holding up the
+ * processing threads while the index server responds.  Each document is
+ * serialized on the calling thread (as it will be deleted once the output
+ * handlers have finished with it) and added to a bounded queue, and a
+ * fixed number of sender threads take documents off the queue and post
+ * them to the index in batches.  The number of sender threads is the
+ * number of requests in flight at any one time, and each request takes
+ * as many of the waiting documents as it can, up to a maximum count and
+ * size, so batches are small when the index keeps up and grow when it
+ * falls behind.  If the queue is full, {@link #submit} blocks, which
+ * slows the processing threads down to the rate at which the index can
+ * accept documents rather than letting memory use grow without limit.
+ * <p>
+ * The request body is the same as that sent by {@link MimirConnector}: a
+ * single Java serialization stream holding the documents, with the URI
+ * of each document in the {@link MimirConnector#MIMIR_URI_FEATURE}
+ * feature.  Documents are serialized individually, and the separate
+ * streams are joined by removing the stream header from all but the
+ * first and separating them with reset markers, which is equivalent to
+ * writing them to one stream and calling <code>reset()</code> between
+ * documents.
+ * <p>
+ * The documents have already been reported as successfully processed
+ * by the time they are sent, so a batch that cannot be sent is retried
+ * until it succeeds, with increasing delays (up to a maximum) between
+ * attempts.  While the index is unavailable the queue fills up and
+ * {@link #submit} blocks, so processing waits for the index to come back
+ * rather than losing documents.  The only documents that are not sent are
+ * those held by a sender thread that is interrupted: their IDs are logged,
+ * and {@link #close()} throws an exception to make the failure visible at
+ * the end of the batch.
+ */
+class MimirSubmitter {
+
+  private static final Logger logger =
+          LoggerFactory.getLogger(MimirSubmitter.class);
+
+  /**
+   * Delay before the first retry, doubled for each later one up to
+   * {@link #MAX_RETRY_DELAY}.
+   */
+  protected static final long RETRY_DELAY = 1000;
+
+  /**
+   * Maximum delay between retries.
+   */
+  protected static final long MAX_RETRY_DELAY = 60000;
+
+  /**
+   * Length of the header at the start of each serialization stream.
+   */
+  private static final int STREAM_HEADER_LENGTH = 4;
+
+  /**
+   * A serialized document waiting to be sent.
+   */
+  protected static class Submission {
+    final String id;
+
+    /**
+     * The serialized document, without the stream header.
+     */
+    final byte[] data;
+
+    Submission(String id, byte[] data) {
+      this.id = id;
+      this.data = data;
+    }
+  }
+
+  /**
+   * Marker telling the sender threads to stop.
+   */
+  private static final Submission END = new Submission(null, null);
+
+  protected URL addDocumentsUrl;
+
+  /**
+   * Value of the Authorization header, or <code>null</code>.
+   */
+  protected String authorization;
+
+  protected int batchSize;
+
+  protected long batchBytes;
+
+  protected BlockingQueue<Submission> queue;
+
+  protected Thread[] senders;
+
+  protected AtomicLong documentsSent = new AtomicLong();
+
+  protected AtomicLong batchesSent = new AtomicLong();
+
+  protected AtomicLong documentsFailed = new AtomicLong();
+
+  /**
+   * Create a submitter and start its sender threads.
+   *
+   * @param indexUrl the index URL, as for {@link MimirConnector}
+   * @param username user name for HTTP basic authentication, or
+   *          <code>null</code>
+   * @param password password for HTTP basic authentication
+   * @param maxInFlight number of sender threads
+   * @param batchSize maximum number of documents in one request
+   * @param batchBytes maximum size of one request in bytes (a single
+   *          document larger than this is still sent, on its own)
+   * @param maxPending maximum number of documents waiting to be sent
+   */
+  MimirSubmitter(URL indexUrl, String username, String password,
+          int maxInFlight, int batchSize, long batchBytes, int maxPending)
+          throws IOException {
+    String urlStr = indexUrl.toExternalForm();
+    addDocumentsUrl = new URL(urlStr + (urlStr.endsWith("/") ? "" : "/")
+            + "manage/addDocuments");
+    if(username != null) {
+      authorization = "Basic " + Base64.getEncoder().encodeToString(
+              (username + ":" + (password == null ? "" : password))
+                      .getBytes(StandardCharsets.UTF_8));
+    }
+    this.batchSize = batchSize;
+    this.batchBytes = batchBytes;
+    queue = new LinkedBlockingQueue<Submission>(maxPending);
+    senders = new Thread[maxInFlight];
+    for(int i = 0; i < maxInFlight; i++) {
+      senders[i] = new Thread(new Runnable() {
+        public void run() {
+          sendLoop();
+        }
+      }, "MimirSubmitter-" + (i + 1));
+      senders[i].setDaemon(true);
+      senders[i].start();
+    }
+  }
+
+  /**
+   * Serialize a document and queue it to be sent, waiting if the queue is
+   * full.
+   *
+   * @param document the document
+   * @param uri the URI for the document in the index
+   * @param id the document ID, used in log messages
+   */
+  public void submit(Document document, String uri, String id)
+          throws IOException, InterruptedException {
+    queue.put(new Submission(id, serialize(document, uri)));
+  }
+
+  /**
+   * Serialize a document with its URI, in a stream of its own, and
+   * return the stream without its header.
+   */
+  protected static byte[] serialize(Document document, String uri)
+          throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+    Object oldUri = null;
+    if(uri != null) {
+      oldUri = document.getFeatures().put(MimirConnector.MIMIR_URI_FEATURE,
+              uri);
+    }
+    try {
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeUnshared(document);
+      out.close();
+    } finally {
+      if(uri != null) {
+        if(oldUri == null) {
+          document.getFeatures().remove(MimirConnector.MIMIR_URI_FEATURE);
+        } else {
+          document.getFeatures().put(MimirConnector.MIMIR_URI_FEATURE, oldUri);
+        }
+      }
+    }
+    byte[] data = bytes.toByteArray();
+    byte[] body = new byte[data.length - STREAM_HEADER_LENGTH];
+    System.arraycopy(data, STREAM_HEADER_LENGTH, body, 0, body.length);
+    return body;
+  }
+
+  /**
+   * Main loop of a sender thread: take the next document, add any others
+   * that are already waiting (up to the batch limits), and send them.
+   */
+  protected void sendLoop() {
+    List<Submission> batch = new ArrayList<Submission>();
+    try {
+      while(true) {
+        Submission first = queue.take();
+        if(first == END) {
+          // leave the marker for the other senders
+          queue.put(END);
+          return;
+        }
+        batch.add(first);
+        long bytes = first.data.length;
+        boolean end = false;
+        while(batch.size() < batchSize && bytes < batchBytes) {
+          Submission next = queue.poll();
+          if(next == null) {
+            break;
+          }
+          if(next == END) {
+            end = true;
+            break;
+          }
+          batch.add(next);
+          bytes += next.data.length;
+        }
+        sendWithRetries(batch);
+        batch.clear();
+        if(end) {
+          queue.put(END);
+          return;
+        }
+      }
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      if(!batch.isEmpty()) {
+        failed(batch, e);
+      }
+    }
+  }
+
+  protected void sendWithRetries(List<Submission> batch)
+          throws InterruptedException {
+    long delay = RETRY_DELAY;
+    for(int attempt = 1;; attempt++) {
+      try {
+        send(batch);
+        documentsSent.addAndGet(batch.size());
+        batchesSent.incrementAndGet();
+        return;
+      } catch(IOException e) {
+        logger.warn("Error sending " + batch.size() + " documents to "
+                + addDocumentsUrl + " (attempt " + attempt + "), retrying in "
+                + delay + "ms", e);
+        Thread.sleep(delay);
+        delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+      }
+    }
+  }
+
+  protected void failed(List<Submission> batch, Exception e) {
+    documentsFailed.addAndGet(batch.size());
+    StringBuilder ids = new StringBuilder();
+    for(Submission s : batch) {
+      ids.append(ids.length() == 0 ? "" : ", ").append(s.id);
+    }
+    logger.error("Failed to send " + batch.size() + " documents to "
+            + addDocumentsUrl + ": " + ids, e);
+  }
+
+  /**
+   * Post a batch of documents to the index.
+   */
+  protected void send(List<Submission> batch) throws IOException {
+    long length = STREAM_HEADER_LENGTH + batch.size() - 1;
+    for(Submission s : batch) {
+      length += s.data.length;
+    }
+    HttpURLConnection conn =
+            (HttpURLConnection)addDocumentsUrl.openConnection();
+    conn.setRequestMethod("POST");
+    conn.setDoOutput(true);
+    conn.setFixedLengthStreamingMode(length);
+    conn.setRequestProperty("Content-Type", "application/octet-stream");
+    if(authorization != null) {
+      conn.setRequestProperty("Authorization", authorization);
+    }
+    OutputStream out = conn.getOutputStream();
+    try {
+      writeShort(out, ObjectStreamConstants.STREAM_MAGIC);
+      writeShort(out, ObjectStreamConstants.STREAM_VERSION);
+      for(int i = 0; i < batch.size(); i++) {
+        if(i > 0) {
+          // each document was written by a fresh stream, so its object
+          // handles start again from the beginning
+          out.write(ObjectStreamConstants.TC_RESET);
+        }
+        out.write(batch.get(i).data);
+      }
+    } finally {
+      out.close();
+    }
+    int code = conn.getResponseCode();
+    // read the response to the end so the connection can be reused
+    InputStream in = code < 400 ? conn.getInputStream() : conn.getErrorStream();
+    if(in != null) {
+      try {
+        IOUtils.skip(in, Long.MAX_VALUE);
+      } finally {
+        in.close();
+      }
+    }
+    if(code < 200 || code >= 300) {
+      throw new IOException("Mimir server returned HTTP " + code
+              + " " + conn.getResponseMessage());
+    }
+  }
+
+  private static void writeShort(OutputStream out, int value)
+          throws IOException {
+    out.write((value >>> 8) & 0xff);
+    out.write(value & 0xff);
+  }
+
+  /**
+   * Send any documents still waiting and stop the sender threads.  This
+   * waits for as long as it takes the index to accept them.
+   *
+   * @throws IOException if any documents could not be sent.
+   */
+  public void close() throws IOException, InterruptedException {
+    queue.put(END);
+    for(Thread sender : senders) {
+      sender.join();
+    }
+    logger.info("Sent {} documents to {} in {} requests", documentsSent.get(),
+            addDocumentsUrl, batchesSent.get());
+    if(documentsFailed.get() > 0) {
+      throw new IOException(documentsFailed.get() + " documents could not "
+              + "be sent to " + addDocumentsUrl + " - see the log for their IDs");
+    }
+  }
+}
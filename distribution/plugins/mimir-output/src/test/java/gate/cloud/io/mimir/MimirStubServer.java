@@ -0,0 +1,259 @@
+/*
+ *  MimirStubServer.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io.mimir;
+
+import gate.Document;
+import gate.mimir.index.MimirConnector;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A minimal stand-in for a M&iacute;mir index server, for trying out and
+ * testing the {@link MimirOutputHandler} (in either of its modes)
+ * without a real index.  It accepts POSTs to any URL ending in
+ * <code>/manage/addDocuments</code>, reads the documents from the request
+ * body and records their URIs, but does not index anything.  An
+ * artificial delay can be added to each request to see how GCP behaves
+ * when the index is slow, and a number of requests can be made to fail to
+ * exercise the retry logic.
+ * <p>
+ * It can be run from the command line, with the GATE and GCP libraries and
+ * the plugin's compiled test classes on the classpath, as
+ * <code>java gate.cloud.io.mimir.MimirStubServer [port [delayMillis]]</code>,
+ * after which the handler's <code>indexUrl</code> should be
+ * <code>http://localhost:port/index</code>.
+ */
+public class MimirStubServer {
+
+  private static final Logger logger =
+          LoggerFactory.getLogger(MimirStubServer.class);
+
+  protected HttpServer server;
+
+  protected ExecutorService executor;
+
+  protected long delay;
+
+  protected AtomicInteger failuresToSimulate = new AtomicInteger();
+
+  protected AtomicLong requests = new AtomicLong();
+
+  protected AtomicLong bytesReceived = new AtomicLong();
+
+  protected AtomicInteger concurrentRequests = new AtomicInteger();
+
+  protected AtomicInteger maxConcurrentRequests = new AtomicInteger();
+
+  protected List<String> uris = new CopyOnWriteArrayList<String>();
+
+  /**
+   * Create and start a server.
+   *
+   * @param port the port to listen on, or 0 to choose a free port
+   * @param delay milliseconds to wait before answering each request
+   */
+  public MimirStubServer(int port, long delay) throws IOException {
+    this.delay = delay;
+    server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        handleRequest(exchange);
+      }
+    });
+    executor = Executors.newCachedThreadPool();
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  protected void handleRequest(HttpExchange exchange) throws IOException {
+    int concurrent = concurrentRequests.incrementAndGet();
+    try {
+      int max;
+      while((max = maxConcurrentRequests.get()) < concurrent
+              && !maxConcurrentRequests.compareAndSet(max, concurrent)) {
+        // retry
+      }
+      if(!"POST".equals(exchange.getRequestMethod())
+              || !exchange.getRequestURI().getPath().endsWith(
+                      "/manage/addDocuments")) {
+        respond(exchange, 404, "Not found");
+        return;
+      }
+      requests.incrementAndGet();
+      List<String> received;
+      try {
+        received = readDocuments(exchange.getRequestBody());
+      } catch(IOException | ClassNotFoundException | RuntimeException e) {
+        respond(exchange, 400, "Could not read documents: " + e);
+        return;
+      }
+      if(delay > 0) {
+        try {
+          Thread.sleep(delay);
+        } catch(InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      if(failuresToSimulate.getAndDecrement() > 0) {
+        respond(exchange, 503, "Simulated failure");
+        return;
+      }
+      uris.addAll(received);
+      respond(exchange, 200, "OK");
+    } finally {
+      concurrentRequests.decrementAndGet();
+      exchange.close();
+    }
+  }
+
+  /**
+   * Read the documents from a request body, returning their URIs.
+   */
+  protected List<String> readDocuments(InputStream body) throws IOException,
+          ClassNotFoundException {
+    CountingInputStream counting = new CountingInputStream(body);
+    List<String> received = new ArrayList<String>();
+    ObjectInputStream in = new ObjectInputStream(counting);
+    try {
+      while(true) {
+        Object obj;
+        try {
+          obj = in.readObject();
+        } catch(EOFException e) {
+          break;
+        }
+        if(obj == null) {
+          break;
+        }
+        Document doc = (Document)obj;
+        Object uri = doc.getFeatures().get(MimirConnector.MIMIR_URI_FEATURE);
+        received.add(uri == null ? null : uri.toString());
+      }
+    } finally {
+      bytesReceived.addAndGet(counting.count);
+    }
+    return received;
+  }
+
+  protected static void respond(HttpExchange exchange, int code,
+          String message) throws IOException {
+    byte[] body = message.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(code, body.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(body);
+    out.close();
+  }
+
+  private static class CountingInputStream extends FilterInputStream {
+    long count;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if(b >= 0) {
+        count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if(n > 0) {
+        count += n;
+      }
+      return n;
+    }
+  }
+
+  /**
+   * The port the server is listening on.
+   */
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * Make the next <code>count</code> requests fail with HTTP 503.
+   */
+  public void failNextRequests(int count) {
+    failuresToSimulate.set(count);
+  }
+
+  /**
+   * The URIs of the documents received so far, in the order they were
+   * accepted.
+   */
+  public List<String> getUris() {
+    return uris;
+  }
+
+  public long getRequestCount() {
+    return requests.get();
+  }
+
+  public long getBytesReceived() {
+    return bytesReceived.get();
+  }
+
+  /**
+   * The largest number of requests that were being handled at the same
+   * time.
+   */
+  public int getMaxConcurrentRequests() {
+    return maxConcurrentRequests.get();
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  public static void main(String... args) throws Exception {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+    long delay = args.length > 1 ? Long.parseLong(args[1]) : 0;
+    final MimirStubServer stub = new MimirStubServer(port, delay);
+    logger.info("Stub Mimir server listening on http://localhost:{}/index",
+            stub.getPort());
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        logger.info("{} documents received in {} requests ({} bytes, at most "
+                + "{} at once)", stub.getUris().size(), stub.getRequestCount(),
+                stub.getBytesReceived(), stub.getMaxConcurrentRequests());
+        stub.stop();
+      }
+    });
+  }
+}
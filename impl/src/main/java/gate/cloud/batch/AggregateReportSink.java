@@ -0,0 +1,113 @@
+/*
+ *  AggregateReportSink.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.batch;
+
+import gate.cloud.batch.ProcessResult.ReturnCode;
+import gate.util.GateException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Report sink for very large batches that does not keep a record for
+ * every document.  Like {@link JSONLinesReportSink} it writes JSON lines,
+ * but only for documents that <em>failed</em>.  For successful documents
+ * it just accumulates, for each annotation type, the total number of
+ * annotations, the number of documents containing at least one, and a
+ * histogram of the number of annotations per document (in power-of-two
+ * buckets), which are written out as part of the final
+ * <code>batchReport</code> line.
+ * <p>
+ * Since the successful documents are not recorded individually, a batch
+ * using this sink cannot be restarted part way through: if the batch is
+ * run again all its documents are processed again.
+ */
+public class AggregateReportSink extends JSONLinesReportSink {
+
+  /**
+   * Statistics for a single annotation type.
+   */
+  protected static class TypeStatistics {
+    long total;
+
+    long documents;
+
+    /**
+     * Number of documents with between 2<sup>i</sup> and
+     * 2<sup>i+1</sup>-1 annotations of this type, for each i.
+     */
+    long[] histogram = new long[32];
+  }
+
+  protected Map<String, TypeStatistics> statistics =
+          new TreeMap<String, TypeStatistics>();
+
+  @Override
+  public Set<String> open(File reportFile) throws IOException, GateException {
+    super.open(reportFile);
+    // the previous report has no records of successful documents, so
+    // nothing can be skipped
+    return new HashSet<String>();
+  }
+
+  @Override
+  public void writeResult(ProcessResult result) throws IOException {
+    if(result.getReturnCode() == ReturnCode.SUCCESS) {
+      if(result.getAnnotationCounts() != null) {
+        for(Map.Entry<String, Integer> entry : result.getAnnotationCounts()
+                .entrySet()) {
+          int count = entry.getValue();
+          if(count > 0) {
+            TypeStatistics stats = statistics.get(entry.getKey());
+            if(stats == null) {
+              stats = new TypeStatistics();
+              statistics.put(entry.getKey(), stats);
+            }
+            stats.total += count;
+            stats.documents++;
+            stats.histogram[31 - Integer.numberOfLeadingZeros(count)]++;
+          }
+        }
+      }
+    } else if(result.getReturnCode() != ReturnCode.FILTERED) {
+      // filtered documents are only counted in the summary
+      super.writeResult(result);
+    }
+  }
+
+  @Override
+  protected void writeSummaryFields(JsonGenerator generator)
+          throws IOException {
+    generator.writeObjectFieldStart("annotationTypes");
+    for(Map.Entry<String, TypeStatistics> entry : statistics.entrySet()) {
+      TypeStatistics stats = entry.getValue();
+      generator.writeObjectFieldStart(entry.getKey());
+      generator.writeNumberField("total", stats.total);
+      generator.writeNumberField("documents", stats.documents);
+      generator.writeObjectFieldStart("histogram");
+      for(int i = 0; i < stats.histogram.length; i++) {
+        if(stats.histogram[i] > 0) {
+          long from = 1L << i;
+          long to = (1L << (i + 1)) - 1;
+          generator.writeNumberField(from == to ? String.valueOf(from) : from
+                  + "-" + to, stats.histogram[i]);
+        }
+      }
+      generator.writeEndObject();
+      generator.writeEndObject();
+    }
+    generator.writeEndObject();
+  }
+}
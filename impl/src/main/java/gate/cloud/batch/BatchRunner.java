@@ -21,7 +21,6 @@ import gate.cloud.io.InputHandler;
 import gate.cloud.io.OutputHandler;
 import gate.cloud.io.StreamingInputHandler;
 import gate.cloud.util.CLibrary;
-import gate.cloud.util.Tools;
 import gate.cloud.util.XMLBatchParser;
 import gate.creole.Plugin;
 import gate.creole.ResourceInstantiationException;
@@ -39,6 +38,7 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -54,7 +54,6 @@ import javax.management.JMException;
 import javax.management.ObjectName;
 import javax.management.StandardMBean;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamWriter;
 
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
@@ -87,8 +86,25 @@ import static gate.cloud.io.file.JSONOutputHandler.PARAM_GROUP_ENTITIES_BY;
  */
 public class BatchRunner {
   private static final Logger log = LoggerFactory.getLogger(BatchRunner.class);
-  //private static final long LOOP_WAIT = 5 * 60 * 1000;
-  private static final long LOOP_WAIT = 10 * 1000;
+
+  /**
+   * Maximum time (in milliseconds) for which results may sit in the
+   * report and manifest buffers before they are flushed to disk.
+   */
+  private static final long FLUSH_INTERVAL = 1000;
+
+  /**
+   * Maximum number of results taken from the result queue in one go.
+   */
+  private static final int MAX_RESULTS_PER_WRITE = 1000;
+
+  /**
+   * System property giving the capacity of the result queue (default
+   * 10000).  When the queue is full the processing threads wait for the
+   * report to catch up rather than buffering ever more results.
+   */
+  public static final String RESULT_QUEUE_CAPACITY_PROPERTY =
+          "gcp.result.queue.capacity";
 
   /**
    * This class manages the execution of a batch job. It also exposes a
@@ -109,6 +125,7 @@ public class BatchRunner {
     private int totalDocs;
     private int successDocs;
     private int errorDocs;
+    private int filteredDocs;
     private JobState state;
     private String id;
 
@@ -138,9 +155,9 @@ public class BatchRunner {
      */
     private File reportFile;
     /**
-     * Writer to write the report file.
+     * Sink to which the report is written.
      */
-    private XMLStreamWriter reportWriter;
+    private ReportSink reportSink;
     /**
      * Thread that pushes jobs into the DocumentProcessor for this batch.
      */
@@ -149,6 +166,7 @@ public class BatchRunner {
     private BatchHandler(final Batch batch) throws GateException, IOException {
       successDocs = 0;
       errorDocs = 0;
+      filteredDocs = 0;
       totalBytes = 0;
       totalChars = 0;
       this.batch = batch;
@@ -157,16 +175,34 @@ public class BatchRunner {
 
     public void start() throws IOException, XMLStreamException,
             ResourceInstantiationException {
-      reportWriter = batch.getReportWriter();
+      reportSink = batch.getReportSink();
       // any existing report file has now been processed, so we know
       // the correct number of unprocessed document IDs
       totalDocs = batch.getUnprocessedDocumentIDs() == null ? -1 : batch.getUnprocessedDocumentIDs().length;
       startTime = System.currentTimeMillis();
       setState(JobState.RUNNING);
-      resultQueue = new LinkedBlockingQueue<ProcessResult>();
+      resultQueue = new LinkedBlockingQueue<ProcessResult>(
+              Integer.getInteger(RESULT_QUEUE_CAPACITY_PROPERTY, 10000));
       if(totalDocs != 0) {
         final InputHandler inputHandler = batch.getInputHandler();
-        processor = new PooledDocumentProcessor(executor.getCorePoolSize());
+        PooledDocumentProcessor pooledProcessor =
+                new PooledDocumentProcessor(executor.getCorePoolSize());
+        if(batch.getResultCacheDirectory() != null) {
+          pooledProcessor.setResultCache(new ResultCache(
+                  batch.getResultCacheDirectory(),
+                  batch.getResultCacheMaxSize(),
+                  batch.getApplicationFingerprint(),
+                  batch.getResultCacheIgnoredFeatures()));
+        }
+        if(batch.getNearDuplicateConfig() != null) {
+          pooledProcessor.setNearDuplicateFilter(new NearDuplicateFilter(
+                  batch.getNearDuplicateConfig()));
+        }
+        if(batch.getExportThreads() >= 0) {
+          pooledProcessor.setExportThreads(batch.getExportThreads());
+        }
+        pooledProcessor.setPreFilters(batch.getPreFilters());
+        processor = pooledProcessor;
         processor.setController(batch.getGateApplication());
         processor.setExecutor(executor);
         processor.setInputHandler(inputHandler);
@@ -181,7 +217,18 @@ public class BatchRunner {
         log.info("Duplication time (seconds): {}", (duplicationFinishedTime - loadingFinishedTime) / 1000.0);
         jobPusher = new Thread(new Runnable() {
           public void run() {
-            if(batch.getDocumentIDs() == null && inputHandler instanceof StreamingInputHandler) {
+            if(batch.getUnprocessedDocumentIterator() != null) {
+              Iterator<DocumentID> ids = batch.getUnprocessedDocumentIterator();
+              while(ids.hasNext()) {
+                if(processor.isInterrupted()) {
+                  break;
+                }
+                processor.processDocument(ids.next());
+                if(Thread.interrupted()) {
+                  return;
+                }
+              }
+            } else if(batch.getDocumentIDs() == null && inputHandler instanceof StreamingInputHandler) {
               ((StreamingInputHandler) inputHandler).startBatch(batch);
               processor.processStreaming();
               if(Thread.interrupted()) {
@@ -210,7 +257,11 @@ public class BatchRunner {
             }
 
             // now we know the batch is finished
-            resultQueue.add(new EndOfBatchResult());
+            try {
+              resultQueue.put(new EndOfBatchResult());
+            } catch(InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
           }
         }, "Batch \"" + getBatchId() + "\"-job-pusher");
         jobPusher.start();
@@ -227,7 +278,8 @@ public class BatchRunner {
             Thread.currentThread().interrupt();
           }
         }
-        resultQueue.add(new EndOfBatchResult());
+        // the queue is empty, so this cannot block
+        resultQueue.offer(new EndOfBatchResult());
       }
     }
 
@@ -246,7 +298,7 @@ public class BatchRunner {
      * @see gate.sam.batch.BatchJobData#getProcessedDocumentCount()
      */
     public int getProcessedDocumentCount() {
-      return errorDocs + successDocs;
+      return errorDocs + successDocs + filteredDocs;
     }
 
     /*
@@ -255,7 +307,7 @@ public class BatchRunner {
      * @see gate.sam.batch.BatchJobData#getRemainingDocumentCount()
      */
     public int getRemainingDocumentCount() {
-      return (totalDocs < 0) ? -1 : totalDocs - errorDocs - successDocs;
+      return (totalDocs < 0) ? -1 : totalDocs - getProcessedDocumentCount();
     }
 
     /*
@@ -267,6 +319,10 @@ public class BatchRunner {
       return successDocs;
     }
 
+    public int getFilteredDocumentCount() {
+      return filteredDocs;
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -356,19 +412,32 @@ public class BatchRunner {
    * is to monitor the running jobs, collect process results, save the report
    * files for each running batch, and shutdown the batch runner and/or Java
    * process when all the batches have completed (if requested via the
-   * {@link BatchRunner#exitWhenFinished(boolean)} method).
+   * {@link BatchRunner#exitWhenFinished(boolean)} method).  Results are
+   * written to the report as soon as they arrive, in groups of up to
+   * {@link #MAX_RESULTS_PER_WRITE}, and the report is flushed at most
+   * {@link #FLUSH_INTERVAL} milliseconds after a result is written.
    */
   private class JobMonitor implements Runnable {
     public void run() {
       boolean finished = false;
+      List<ProcessResult> results =
+              new ArrayList<ProcessResult>(MAX_RESULTS_PER_WRITE);
+      boolean unflushed = false;
+      long lastFlush = System.currentTimeMillis();
       while(!finished) {
-        long startTime = System.currentTimeMillis();
         try {
           boolean jobsStillRunning = false;
           BatchHandler job = runningJob;
           if(job.getState() == JobState.RUNNING) {
-            List<ProcessResult> results = new ArrayList<ProcessResult>();
-            int resultsCount = job.resultQueue.drainTo(results);
+            // wait for the next result, then take any others that are
+            // already waiting
+            results.clear();
+            ProcessResult first =
+                    job.resultQueue.poll(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+            if(first != null) {
+              results.add(first);
+              job.resultQueue.drainTo(results, MAX_RESULTS_PER_WRITE - 1);
+            }
             boolean finishedBatch = false;
             try {
               for(ProcessResult result : results) {
@@ -380,35 +449,60 @@ public class BatchRunner {
                   if(fileSize > 0) job.totalBytes += fileSize;
                   if(docLength > 0) job.totalChars += docLength;
 
-                  job.reportWriter.writeCharacters("\n");
-                  Tools.writeResultToXml(result, job.reportWriter);
+                  job.reportSink.writeResult(result);
                   switch(result.getReturnCode()) {
                     case SUCCESS:
                       job.successDocs++;
+                      for(DocumentManifest manifest : job.batch.getManifests()) {
+                        manifest.completed(result.getDocumentId().getIdText());
+                      }
                       break;
                     case FAIL:
                       job.errorDocs++;
                       break;
+                    case FILTERED:
+                      job.filteredDocs++;
+                      // nothing more to do for this document, so it is
+                      // as good as complete
+                      for(DocumentManifest manifest : job.batch.getManifests()) {
+                        manifest.completed(result.getDocumentId().getIdText());
+                      }
+                      break;
                   }
                 }
               }
-              job.reportWriter.flush();
+              if(!results.isEmpty()) {
+                unflushed = true;
+              }
+              long now = System.currentTimeMillis();
+              if(unflushed && (finishedBatch || first == null
+                      || now - lastFlush >= FLUSH_INTERVAL)) {
+                job.reportSink.flush();
+                for(DocumentManifest manifest : job.batch.getManifests()) {
+                  manifest.flush();
+                }
+                unflushed = false;
+                lastFlush = now;
+              }
               if(finishedBatch) {
                 job.setState(JobState.FINISHED);
-                //close the <documents> element
-                job.reportWriter.writeCharacters("\n");
-                job.reportWriter.writeEndElement();
-                //write the whole batch report element
-                Tools.writeBatchResultToXml(job, job.reportWriter);
-                job.reportWriter.close();
+                // write the batch summary and close the report
+                job.reportSink.close(job);
+                for(DocumentManifest manifest : job.batch.getManifests()) {
+                  manifest.close();
+                }
                 // this will be null if no documents needed to be processed
                 if(job.processor != null) job.processor.dispose();
               } else {
                 jobsStillRunning = true;
               }
-            } catch(XMLStreamException e) {
-              log.error("Can't write to report file for batch " + job.getBatchId()
+            } catch(IOException e) {
+              log.error("Can't write to report or manifest file for batch "
+                      + job.getBatchId()
                       + ", shutting down batch", e);
+              // stop the processing threads waiting for space in the
+              // result queue
+              job.interruptBatch();
               job.jobPusher.interrupt();
               job.setState(JobState.ERROR);
             }
@@ -421,10 +515,6 @@ public class BatchRunner {
               System.exit(0);
             }
           }
-          long remainingSleepTime = LOOP_WAIT
-                  - (System.currentTimeMillis() - startTime);
-          if(!finished && remainingSleepTime > 0)
-            Thread.sleep(remainingSleepTime);
         } catch(InterruptedException e) {
           // re-interrupt
           Thread.currentThread().interrupt();
@@ -0,0 +1,275 @@
+/*
+ *  BinaryReportSink.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.batch;
+
+import gate.cloud.batch.ProcessResult.ReturnCode;
+import gate.cloud.io.file.BinaryDocumentFormat;
+import gate.util.GateException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Report sink that writes a compact binary report.  The file starts with
+ * the ASCII bytes <code>GCPREP</code> and a version byte, followed by one
+ * record per document and a final summary record.  Integers are written
+ * as variable-length quantities (7 bits per byte, low-order group first),
+ * and annotation type names are written using a string table built on
+ * the fly (a zero followed by the name for the first occurrence of each
+ * type, and the index of the name plus one thereafter), so a typical
+ * record takes a few tens of bytes.  The return code of each record is
+ * a byte: 0 for success, 1 for failure and 2 for a document that was
+ * filtered out, and the document ID is written as its text followed by
+ * its attributes (if any), so that archive records with the same URL can
+ * be told apart when the batch is restarted.  The integers and strings
+ * are encoded in the same way as in the {@link BinaryDocumentFormat}.
+ * {@link Reader} reads the records back.
+ */
+public class BinaryReportSink extends AbstractReportSink {
+
+  private static final Logger log =
+          LoggerFactory.getLogger(BinaryReportSink.class);
+
+  private static final byte[] MAGIC =
+          "GCPREP".getBytes(StandardCharsets.US_ASCII);
+
+  public static final byte VERSION = 1;
+
+  protected static final int RECORD_RESULT = 1;
+
+  protected static final int RECORD_SUMMARY = 2;
+
+  protected DataOutputStream out;
+
+  protected BinaryDocumentFormat.Encoder encoder;
+
+  public Set<String> open(File reportFile) throws IOException, GateException {
+    Set<String> completedDocuments = new HashSet<String>();
+    File backupFile = backupExistingReport(reportFile);
+    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+            reportFile)));
+    encoder = new BinaryDocumentFormat.Encoder(out);
+    out.write(MAGIC);
+    out.writeByte(VERSION);
+    if(backupFile != null) {
+      log.debug("Processing existing report file");
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+              new FileInputStream(backupFile)));
+      try {
+        Reader reader = new Reader(in);
+        ProcessResult result;
+        while((result = reader.readResult()) != null) {
+          if(result.getReturnCode() == ReturnCode.SUCCESS
+                  || result.getReturnCode() == ReturnCode.FILTERED) {
+            completedDocuments.add(result.getDocumentId().getKey());
+            writeResult(result);
+          }
+        }
+      } catch(IOException e) {
+        // it probably just means end of file, as the last record may well
+        // be truncated
+        log.debug("Exception while reading old report file - probably "
+                + "reached the end of old report", e);
+      } finally {
+        in.close();
+        backupFile.delete();
+      }
+    }
+    return completedDocuments;
+  }
+
+  public void writeResult(ProcessResult result) throws IOException {
+    out.writeByte(RECORD_RESULT);
+    boolean success = result.getReturnCode() == ReturnCode.SUCCESS;
+    out.writeByte(success ? 0
+            : result.getReturnCode() == ReturnCode.FILTERED ? 2 : 1);
+    DocumentID id = result.getDocumentId();
+    encoder.writeLongString(id.getIdText());
+    Map<String, String> attributes = id.getAttributes();
+    if(attributes == null) {
+      encoder.writeVarlong(0);
+    } else {
+      encoder.writeVarlong(attributes.size());
+      for(Map.Entry<String, String> attr : attributes.entrySet()) {
+        encoder.writeTableString(attr.getKey());
+        encoder.writeLongString(attr.getValue());
+      }
+    }
+    // -1 means unknown, so store everything shifted up by one
+    encoder.writeVarlong(result.getOriginalFileSize() + 1);
+    encoder.writeVarlong(result.getDocumentLength() + 1);
+    encoder.writeVarlong(result.getExecutionTime() + 1);
+    if(success) {
+      Map<String, Integer> counts = result.getAnnotationCounts();
+      if(counts == null) {
+        encoder.writeVarlong(0);
+      } else {
+        encoder.writeVarlong(counts.size());
+        for(Map.Entry<String, Integer> entry : counts.entrySet()) {
+          encoder.writeTableString(entry.getKey());
+          encoder.writeVarlong(entry.getValue());
+        }
+      }
+    } else {
+      String error = result.getErrorDescription();
+      encoder.writeLongString(error == null ? "" : error);
+    }
+  }
+
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  public void close(BatchJobData jobData) throws IOException {
+    try {
+      out.writeByte(RECORD_SUMMARY);
+      encoder.writeLongString(jobData.getState().toString());
+      int totalDocs = jobData.getTotalDocumentCount();
+      if(totalDocs < 0) {
+        totalDocs = jobData.getProcessedDocumentCount();
+      }
+      encoder.writeVarlong(totalDocs);
+      encoder.writeVarlong(jobData.getSuccessDocumentCount());
+      encoder.writeVarlong(jobData.getErrorDocumentCount());
+      encoder.writeVarlong(jobData.getTotalFileSize());
+      encoder.writeVarlong(jobData.getTotalDocumentLength());
+      encoder.writeVarlong(System.currentTimeMillis() - jobData.getStartTime());
+      encoder.writeVarlong(jobData.getFilteredDocumentCount());
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Reads the document records from a binary report.
+   */
+  public static class Reader extends BinaryDocumentFormat.Decoder {
+
+    /**
+     * Create a reader, checking the file header.
+     */
+    public Reader(DataInputStream in) throws IOException {
+      super(in);
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      if(!Arrays.equals(magic, MAGIC)) {
+        throw new IOException("Not a GCP binary report");
+      }
+      byte version = in.readByte();
+      if(version != VERSION) {
+        throw new IOException("Unsupported GCP binary report version "
+                + version);
+      }
+    }
+
+    /**
+     * Read the next document record.
+     *
+     * @return the result, or <code>null</code> if the summary record or
+     *         the end of the file has been reached.
+     */
+    public ProcessResult readResult() throws IOException {
+      int type = in.read();
+      if(type != RECORD_RESULT) {
+        return null;
+      }
+      RecordedResult result = new RecordedResult();
+      byte code = in.readByte();
+      result.returnCode = code == 0 ? ReturnCode.SUCCESS
+              : code == 2 ? ReturnCode.FILTERED : ReturnCode.FAIL;
+      String idText = readLongString();
+      Map<String, String> attributes = null;
+      int numAttributes = (int)readVarlong();
+      if(numAttributes > 0) {
+        attributes = new LinkedHashMap<String, String>();
+        for(int i = 0; i < numAttributes; i++) {
+          String name = readTableString();
+          attributes.put(name, readLongString());
+        }
+      }
+      result.documentId = new DocumentID(idText, attributes);
+      result.fileSize = readVarlong() - 1;
+      result.documentLength = readVarlong() - 1;
+      result.executionTime = readVarlong() - 1;
+      if(result.returnCode == ReturnCode.SUCCESS) {
+        int size = (int)readVarlong();
+        result.annotationCounts = new LinkedHashMap<String, Integer>();
+        for(int i = 0; i < size; i++) {
+          String annType = readTableString();
+          result.annotationCounts.put(annType, (int)readVarlong());
+        }
+      } else {
+        result.errorDescription = readLongString();
+      }
+      return result;
+    }
+  }
+
+  /**
+   * A result read back from a binary report.
+   */
+  protected static class RecordedResult implements ProcessResult {
+    ReturnCode returnCode;
+
+    DocumentID documentId;
+
+    long fileSize;
+
+    long documentLength;
+
+    long executionTime;
+
+    Map<String, Integer> annotationCounts;
+
+    String errorDescription;
+
+    public ReturnCode getReturnCode() {
+      return returnCode;
+    }
+
+    public long getExecutionTime() {
+      return executionTime;
+    }
+
+    public long getOriginalFileSize() {
+      return fileSize;
+    }
+
+    public long getDocumentLength() {
+      return documentLength;
+    }
+
+    public Map<String, Integer> getAnnotationCounts() {
+      return annotationCounts;
+    }
+
+    public DocumentID getDocumentId() {
+      return documentId;
+    }
+
+    public String getErrorDescription() {
+      return errorDescription;
+    }
+  }
+}
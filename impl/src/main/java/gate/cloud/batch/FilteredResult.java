@@ -0,0 +1,63 @@
+/*
+ *  FilteredResult.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.batch;
+
+import gate.cloud.io.DocumentData;
+
+import java.util.Map;
+
+/**
+ * Result for a document that was deliberately not processed.
+ */
+class FilteredResult implements ProcessResult {
+
+  private DocumentID documentId;
+
+  private String reason;
+
+  private long fileSize = -1;
+
+  private long docLength = -1;
+
+  FilteredResult(DocumentData docData, String reason) {
+    documentId = docData.id;
+    fileSize = docData.fileSize;
+    docLength = docData.documentLength;
+    this.reason = reason;
+  }
+
+  public Map<String, Integer> getAnnotationCounts() {
+    return null;
+  }
+
+  public DocumentID getDocumentId() {
+    return documentId;
+  }
+
+  public long getExecutionTime() {
+    return 0;
+  }
+
+  public long getOriginalFileSize() {
+    return fileSize;
+  }
+
+  public long getDocumentLength() {
+    return docLength;
+  }
+
+  public ReturnCode getReturnCode() {
+    return ReturnCode.FILTERED;
+  }
+
+  public String getErrorDescription() {
+    return reason;
+  }
+
+}
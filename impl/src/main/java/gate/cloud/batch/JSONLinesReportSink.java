@@ -0,0 +1,267 @@
+/*
+ *  JSONLinesReportSink.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.batch;
+
+import static gate.cloud.io.IOConstants.PARAM_COMPRESSION;
+import static gate.cloud.io.IOConstants.VALUE_COMPRESSION_GZIP;
+import static gate.cloud.io.IOConstants.VALUE_COMPRESSION_NONE;
+import gate.cloud.batch.ProcessResult.ReturnCode;
+import gate.util.GateException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Report sink that writes the report as JSON lines: one JSON object per
+ * document, in the form
+ *
+ * <pre>
+ * {"id":"doc1.html","returnCode":"SUCCESS","fileSize":1234,
+ *  "documentLength":1000,"executionTime":56,
+ *  "annotationCounts":{"Person":3,"Location":5}}
+ * </pre>
+ *
+ * (with an extra <code>key</code> field giving the full ID, see
+ * {@link DocumentID#getKey()}, for IDs that have attributes, and
+ * with <code>errorDescription</code> in place of
+ * <code>annotationCounts</code> for failures, and for documents that
+ * were filtered out, where it gives the reason), followed by a final
+ * <code>{"batchReport":{...}}</code> line with the same summary fields as
+ * the XML report.  By default the file is gzip compressed; set the
+ * <code>compression</code> option to "none" to write plain text.  The
+ * compressed stream is flushed periodically as the batch runs, so a
+ * partial report can be read (e.g. with <code>zcat</code>) at any time.
+ */
+public class JSONLinesReportSink extends AbstractReportSink {
+
+  private static final Logger log =
+          LoggerFactory.getLogger(JSONLinesReportSink.class);
+
+  protected static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  protected boolean gzip = true;
+
+  protected Writer writer;
+
+  protected JsonGenerator generator;
+
+  @Override
+  public void config(Map<String, String> configData) throws IOException,
+          GateException {
+    String compression = configData.get(PARAM_COMPRESSION);
+    if(compression == null || VALUE_COMPRESSION_GZIP.equals(compression)) {
+      gzip = true;
+    } else if(VALUE_COMPRESSION_NONE.equals(compression)) {
+      gzip = false;
+    } else {
+      throw new IllegalArgumentException("Unsupported report compression \""
+              + compression + "\", must be \"" + VALUE_COMPRESSION_GZIP
+              + "\" or \"" + VALUE_COMPRESSION_NONE + "\"");
+    }
+  }
+
+  public Set<String> open(File reportFile) throws IOException, GateException {
+    Set<String> completedDocuments = new HashSet<String>();
+    File backupFile = backupExistingReport(reportFile);
+    OutputStream out =
+            new BufferedOutputStream(new FileOutputStream(reportFile));
+    if(gzip) {
+      // sync flush, so the report can be read while the batch is running
+      out = new GZIPOutputStream(out, 8192, true);
+    }
+    writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+    generator = JSON_FACTORY.createGenerator(writer);
+    // each record is terminated by a newline instead
+    generator.setRootValueSeparator(null);
+    if(backupFile != null) {
+      log.debug("Processing existing report file");
+      InputStream in = new BufferedInputStream(new FileInputStream(backupFile));
+      try {
+        if(gzip) {
+          in = new GZIPInputStream(in);
+        }
+        // split the lines ourselves rather than using a BufferedReader, as
+        // the report of a batch that did not finish is a truncated gzip
+        // stream, and a reader would lose the lines it had buffered when
+        // the decompressor hits the end
+        byte[] buf = new byte[8192];
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int read;
+        while((read = in.read(buf)) >= 0) {
+          int start = 0;
+          for(int i = 0; i < read; i++) {
+            if(buf[i] == '\n') {
+              line.write(buf, start, i - start);
+              String record = new String(line.toByteArray(),
+                      StandardCharsets.UTF_8);
+              line.reset();
+              start = i + 1;
+              String id = successfulDocumentId(record);
+              if(id != null) {
+                completedDocuments.add(id);
+                generator.writeRaw(record);
+                generator.writeRaw('\n');
+              }
+            }
+          }
+          line.write(buf, start, read - start);
+        }
+      } catch(IOException e) {
+        // it probably just means end of file, as the last record may well
+        // be truncated
+        log.debug("Exception while reading old report file - probably "
+                + "reached the end of old report", e);
+      } finally {
+        in.close();
+        backupFile.delete();
+      }
+    }
+    return completedDocuments;
+  }
+
+  /**
+   * Parse a line from a previous report, and return the document ID key
+   * (see {@link DocumentID#getKey()}) if it is the record
+   * of a successfully processed document.
+   */
+  protected String successfulDocumentId(String line) throws IOException {
+    JsonParser parser = JSON_FACTORY.createParser(line);
+    try {
+      if(parser.nextToken() != JsonToken.START_OBJECT) {
+        return null;
+      }
+      String id = null;
+      String key = null;
+      String returnCode = null;
+      while(parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        parser.nextToken();
+        if("id".equals(field)) {
+          id = parser.getText();
+        } else if("key".equals(field)) {
+          key = parser.getText();
+        } else if("returnCode".equals(field)) {
+          returnCode = parser.getText();
+        } else {
+          parser.skipChildren();
+        }
+      }
+      if(key != null) {
+        id = key;
+      }
+      return ReturnCode.SUCCESS.name().equals(returnCode)
+              || ReturnCode.FILTERED.name().equals(returnCode) ? id : null;
+    } finally {
+      parser.close();
+    }
+  }
+
+  public void writeResult(ProcessResult result) throws IOException {
+    generator.writeStartObject();
+    DocumentID id = result.getDocumentId();
+    generator.writeStringField("id", id.getIdText());
+    if(!id.getKey().equals(id.getIdText())) {
+      // the ID has attributes, so record the full ID for restarting
+      generator.writeStringField("key", id.getKey());
+    }
+    generator.writeStringField("returnCode",
+            String.valueOf(result.getReturnCode()));
+    if(result.getOriginalFileSize() >= 0) {
+      generator.writeNumberField("fileSize", result.getOriginalFileSize());
+    }
+    if(result.getDocumentLength() >= 0) {
+      generator.writeNumberField("documentLength", result.getDocumentLength());
+    }
+    if(result.getExecutionTime() >= 0) {
+      generator.writeNumberField("executionTime", result.getExecutionTime());
+    }
+    if(result.getReturnCode() == ReturnCode.SUCCESS) {
+      generator.writeObjectFieldStart("annotationCounts");
+      if(result.getAnnotationCounts() != null) {
+        for(Map.Entry<String, Integer> entry : result.getAnnotationCounts()
+                .entrySet()) {
+          generator.writeNumberField(entry.getKey(), entry.getValue());
+        }
+      }
+      generator.writeEndObject();
+    } else if(result.getErrorDescription() != null) {
+      generator.writeStringField("errorDescription",
+              result.getErrorDescription());
+    }
+    generator.writeEndObject();
+    generator.writeRaw('\n');
+  }
+
+  public void flush() throws IOException {
+    generator.flush();
+  }
+
+  public void close(BatchJobData jobData) throws IOException {
+    try {
+      generator.writeStartObject();
+      generator.writeObjectFieldStart("batchReport");
+      generator.writeStringField("finalBatchState",
+              jobData.getState().toString());
+      int totalDocs = jobData.getTotalDocumentCount();
+      if(totalDocs < 0) {
+        // streaming mode, so we don't know totaldocs up front, calculate it
+        // from success, error and filtered
+        totalDocs = jobData.getProcessedDocumentCount();
+      }
+      generator.writeNumberField("totalDocuments", totalDocs);
+      generator.writeNumberField("successfullyProcessed",
+              jobData.getSuccessDocumentCount());
+      generator.writeNumberField("withError", jobData.getErrorDocumentCount());
+      generator.writeNumberField("filtered",
+              jobData.getFilteredDocumentCount());
+      generator.writeNumberField("totalBytes", jobData.getTotalFileSize());
+      generator.writeNumberField("totalCharacters",
+              jobData.getTotalDocumentLength());
+      generator.writeNumberField("executionTime", System.currentTimeMillis()
+              - jobData.getStartTime());
+      writeSummaryFields(generator);
+      generator.writeEndObject();
+      generator.writeEndObject();
+      generator.writeRaw('\n');
+    } finally {
+      generator.close();
+      writer.close();
+    }
+  }
+
+  /**
+   * Hook for subclasses to add extra fields to the batch summary.
+   */
+  protected void writeSummaryFields(JsonGenerator generator)
+          throws IOException {
+  }
+}
@@ -0,0 +1,382 @@
+/*
+ *  NearDuplicateFilter.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.batch;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Detects documents whose text is nearly the same as that of a document
+ * seen earlier in the batch, such as repeated captures of the same page
+ * in a web crawl, so that they need not be processed again.
+ * <p>
+ * The text of each document is split into words (runs of letters and
+ * digits, ignoring case), and each overlapping sequence of
+ * <code>shingleSize</code> words is hashed.  The MinHash signature of a
+ * document is the minimum of each of {@link #BANDS} x {@link #ROWS}
+ * independent hash functions over its shingles, and the fraction of
+ * positions at which two signatures agree estimates the Jaccard
+ * similarity of the two documents' sets of shingles.  Rather than
+ * comparing each document with every earlier one, the signatures are
+ * indexed by locality-sensitive hashing: each band of {@link #ROWS}
+ * values is hashed to a bucket, and a document is only compared with the
+ * documents that share one of its buckets.  With the fixed 20 bands of 5
+ * rows, a pair of documents with similarity 0.8 share a bucket with
+ * probability over 0.999, and a pair with similarity 0.6 with
+ * probability about 0.8, so thresholds below about 0.7 will miss some
+ * duplicates.
+ * <p>
+ * The index holds the signatures of at most <code>maxDocuments</code>
+ * documents, forgetting the oldest first, so memory use is bounded
+ * (roughly 1KB per document) but a document is only recognised as a
+ * duplicate of one of the recent ones.  A document is checked with
+ * {@link #check} before it is processed, but is only added to the index
+ * (with {@link #add}) once it has been processed successfully, so a
+ * near-duplicate is never skipped in favour of a document that then
+ * fails.  Near-duplicates of a document that is still being processed
+ * are therefore not recognised, and are processed as usual.  Only
+ * documents that are not duplicates are added to the index.  This class
+ * is thread safe.
+ */
+public class NearDuplicateFilter {
+
+  /**
+   * Document feature set on near-duplicates when the filter only tags
+   * them, holding the ID of the earlier document.
+   */
+  public static final String DUPLICATE_OF_FEATURE =
+          NearDuplicateFilter.class.getName() + ".duplicateOf";
+
+  public static final double DEFAULT_THRESHOLD = 0.9;
+
+  public static final int DEFAULT_SHINGLE_SIZE = 5;
+
+  public static final int DEFAULT_MAX_DOCUMENTS = 100000;
+
+  /**
+   * Number of LSH bands.
+   */
+  protected static final int BANDS = 20;
+
+  /**
+   * Number of signature values in each band.
+   */
+  protected static final int ROWS = 5;
+
+  protected static final int SIGNATURE_SIZE = BANDS * ROWS;
+
+  /**
+   * Multipliers and increments for the hash functions, from a fixed seed
+   * so that signatures are the same from one run to the next.
+   */
+  private static final long[] HASH_MULTIPLIERS = new long[SIGNATURE_SIZE];
+
+  private static final long[] HASH_INCREMENTS = new long[SIGNATURE_SIZE];
+
+  static {
+    Random random = new Random(0x4743504E44L);
+    for(int i = 0; i < SIGNATURE_SIZE; i++) {
+      // odd multipliers, for a multiply-shift hash
+      HASH_MULTIPLIERS[i] = random.nextLong() | 1L;
+      HASH_INCREMENTS[i] = random.nextLong();
+    }
+  }
+
+  /**
+   * A document in the index.
+   */
+  protected static class Entry {
+    final String id;
+
+    final int[] signature;
+
+    final long[] bucketKeys;
+
+    Entry(String id, int[] signature, long[] bucketKeys) {
+      this.id = id;
+      this.signature = signature;
+      this.bucketKeys = bucketKeys;
+    }
+  }
+
+  /**
+   * The result of checking a document: either the ID of the earlier
+   * document that it duplicates, or the entry to add to the index once
+   * the document has been processed.
+   */
+  public static class Check {
+    final String duplicateOf;
+
+    final Entry entry;
+
+    Check(String duplicateOf, Entry entry) {
+      this.duplicateOf = duplicateOf;
+      this.entry = entry;
+    }
+
+    /**
+     * The ID of the earlier document, or <code>null</code> if the document
+     * is not a near-duplicate.
+     */
+    public String getDuplicateOf() {
+      return duplicateOf;
+    }
+  }
+
+  protected double threshold;
+
+  protected int shingleSize;
+
+  protected int maxDocuments;
+
+  /**
+   * Should near-duplicates be tagged and processed as usual, rather than
+   * skipped?
+   */
+  protected boolean tagOnly;
+
+  /**
+   * The most recent document in each bucket, keyed by band and band
+   * hash.
+   */
+  protected Map<Long, Entry> buckets = new HashMap<Long, Entry>();
+
+  /**
+   * Documents in the index, oldest first.
+   */
+  protected ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+
+  protected AtomicLong checked = new AtomicLong();
+
+  protected AtomicLong duplicates = new AtomicLong();
+
+  /**
+   * Create a filter from the attributes of the <code>nearDuplicates</code>
+   * element of a batch definition: <code>threshold</code> (the minimum
+   * estimated similarity, default 0.9), <code>shingleSize</code> (in
+   * words, default 5), <code>maxDocuments</code> (default 100000) and
+   * <code>action</code> ("skip", the default, or "tag").
+   */
+  public NearDuplicateFilter(Map<String, String> config) {
+    threshold = DEFAULT_THRESHOLD;
+    String thresholdStr = config.get("threshold");
+    if(thresholdStr != null && thresholdStr.trim().length() > 0) {
+      try {
+        threshold = Double.parseDouble(thresholdStr.trim());
+      } catch(NumberFormatException e) {
+        threshold = -1;
+      }
+      if(!(threshold > 0 && threshold <= 1)) {
+        throw new IllegalArgumentException("Near-duplicate threshold \""
+                + thresholdStr + "\" must be a number greater than 0 and at "
+                + "most 1");
+      }
+    }
+    shingleSize = intValue(config, "shingleSize", DEFAULT_SHINGLE_SIZE);
+    maxDocuments = intValue(config, "maxDocuments", DEFAULT_MAX_DOCUMENTS);
+    String action = config.get("action");
+    if(action == null || action.length() == 0 || "skip".equals(action)) {
+      tagOnly = false;
+    } else if("tag".equals(action)) {
+      tagOnly = true;
+    } else {
+      throw new IllegalArgumentException("Near-duplicate action \"" + action
+              + "\" is not valid, must be \"skip\" or \"tag\"");
+    }
+  }
+
+  private static int intValue(Map<String, String> config, String name,
+          int defaultValue) {
+    String str = config.get(name);
+    if(str == null || str.trim().length() == 0) {
+      return defaultValue;
+    }
+    int value;
+    try {
+      value = Integer.parseInt(str.trim());
+    } catch(NumberFormatException e) {
+      value = 0;
+    }
+    if(value < 1) {
+      throw new IllegalArgumentException("Near-duplicate " + name + " \""
+              + str + "\" must be a positive integer");
+    }
+    return value;
+  }
+
+  /**
+   * Should near-duplicates be tagged with {@link #DUPLICATE_OF_FEATURE}
+   * and processed as usual, rather than skipped?
+   */
+  public boolean isTagOnly() {
+    return tagOnly;
+  }
+
+  /**
+   * Check whether a document is a near-duplicate of one already in the
+   * index.  The document is not added to the index: if it is not a
+   * near-duplicate, pass the result to {@link #add} once it has been
+   * processed successfully.
+   *
+   * @param id the document ID
+   * @param text the document text
+   * @return the result of the check, or <code>null</code> if the
+   *         document has no words.
+   */
+  public Check check(String id, CharSequence text) {
+    int[] signature = signature(text);
+    if(signature == null) {
+      return null;
+    }
+    checked.incrementAndGet();
+    long[] bucketKeys = bucketKeys(signature);
+    synchronized(this) {
+      for(long key : bucketKeys) {
+        Entry entry = buckets.get(key);
+        if(entry != null && similarity(signature, entry.signature) >= threshold) {
+          duplicates.incrementAndGet();
+          return new Check(entry.id, null);
+        }
+      }
+    }
+    return new Check(null, new Entry(id, signature, bucketKeys));
+  }
+
+  /**
+   * Add a document that has been processed successfully to the index.
+   * Does nothing if the check found the document to be a near-duplicate.
+   *
+   * @param check the result of {@link #check} for the document
+   */
+  public synchronized void add(Check check) {
+    Entry entry = check.entry;
+    if(entry == null) {
+      return;
+    }
+    for(long key : entry.bucketKeys) {
+      buckets.put(key, entry);
+    }
+    entries.add(entry);
+    if(entries.size() > maxDocuments) {
+      Entry oldest = entries.poll();
+      for(long key : oldest.bucketKeys) {
+        // the bucket may now hold a newer document
+        buckets.remove(key, oldest);
+      }
+    }
+  }
+
+  /**
+   * Compute the MinHash signature of a text.
+   *
+   * @return the signature, or <code>null</code> if the text has no
+   *         words.
+   */
+  protected int[] signature(CharSequence text) {
+    int[] signature = new int[SIGNATURE_SIZE];
+    Arrays.fill(signature, Integer.MAX_VALUE);
+    // hashes of the last shingleSize words, as a ring buffer
+    long[] words = new long[shingleSize];
+    int wordCount = 0;
+    long wordHash = 0;
+    boolean inWord = false;
+    int length = text.length();
+    for(int i = 0; i <= length; i++) {
+      char c = i < length ? text.charAt(i) : ' ';
+      if(Character.isLetterOrDigit(c)) {
+        if(!inWord) {
+          // FNV-1a offset basis
+          wordHash = 0xcbf29ce484222325L;
+          inWord = true;
+        }
+        wordHash = (wordHash ^ Character.toLowerCase(c)) * 0x100000001b3L;
+      } else if(inWord) {
+        inWord = false;
+        words[wordCount % shingleSize] = wordHash;
+        wordCount++;
+        if(wordCount >= shingleSize) {
+          addShingle(signature, words, wordCount);
+        }
+      }
+    }
+    if(wordCount == 0) {
+      return null;
+    }
+    if(wordCount < shingleSize) {
+      // a short text is a single shingle
+      addShingle(signature, words, wordCount);
+    }
+    return signature;
+  }
+
+  /**
+   * Update the signature with the shingle made of the last
+   * <code>min(wordCount, shingleSize)</code> words.
+   */
+  private void addShingle(int[] signature, long[] words, int wordCount) {
+    int n = Math.min(wordCount, shingleSize);
+    long shingle = 0;
+    for(int j = wordCount - n; j < wordCount; j++) {
+      shingle = shingle * 0x9E3779B97F4A7C15L + words[j % shingleSize];
+    }
+    for(int i = 0; i < SIGNATURE_SIZE; i++) {
+      // the high bits of a multiply-shift hash
+      int h = (int)((shingle * HASH_MULTIPLIERS[i] + HASH_INCREMENTS[i]) >>> 32);
+      if(h < signature[i]) {
+        signature[i] = h;
+      }
+    }
+  }
+
+  /**
+   * The LSH bucket keys for a signature, one per band.
+   */
+  protected static long[] bucketKeys(int[] signature) {
+    long[] keys = new long[BANDS];
+    for(int band = 0; band < BANDS; band++) {
+      long key = band;
+      for(int row = band * ROWS; row < (band + 1) * ROWS; row++) {
+        key = key * 0x9E3779B97F4A7C15L + signature[row];
+      }
+      keys[band] = key;
+    }
+    return keys;
+  }
+
+  /**
+   * The estimated similarity of the documents with the given signatures.
+   */
+  protected static double similarity(int[] a, int[] b) {
+    int same = 0;
+    for(int i = 0; i < a.length; i++) {
+      if(a[i] == b[i]) {
+        same++;
+      }
+    }
+    return (double)same / a.length;
+  }
+
+  /**
+   * Number of documents checked so far.
+   */
+  public long getChecked() {
+    return checked.get();
+  }
+
+  /**
+   * Number of near-duplicates found so far.
+   */
+  public long getDuplicates() {
+    return duplicates.get();
+  }
+}
@@ -14,10 +14,14 @@ package gate.cloud.batch;
 import gate.Corpus;
 import gate.CorpusController;
 import gate.Factory;
+import gate.cloud.io.AnnotationSnapshot;
 import gate.cloud.io.DocumentData;
+import gate.cloud.io.DocumentPreFilter;
 import gate.cloud.io.InputHandler;
 import gate.cloud.io.OutputHandler;
+import gate.cloud.io.PreFilteringInputHandler;
 import gate.cloud.io.StreamingInputHandler;
+import gate.cloud.io.filter.PreFilterChain;
 import gate.cloud.util.GateResourcePool;
 import gate.creole.AbstractController;
 import gate.creole.ExecutionException;
@@ -32,10 +36,18 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.stream.XMLOutputFactory;
 
@@ -48,6 +60,12 @@ public class PooledDocumentProcessor implements DocumentProcessor {
 
   public static final String FILE_SIZE_FEATURE =
           PooledDocumentProcessor.class.getName() + ".fileSize";
+
+  /**
+   * System property giving the default number of threads in the export
+   * pool (see {@link #setExportThreads}).
+   */
+  public static final String EXPORT_THREADS_PROPERTY = "gcp.export.threads";
   
   private static final XMLOutputFactory staxFactory =
           XMLOutputFactory.newInstance();
@@ -102,6 +120,48 @@ public class PooledDocumentProcessor implements DocumentProcessor {
 
   private AtomicBoolean interrupted = new AtomicBoolean(false);
 
+  /**
+   * Number of threads used to run the output handlers for a document in
+   * parallel, or 0 to run them one after the other on the processing
+   * thread.
+   */
+  private int exportThreads = Integer.getInteger(EXPORT_THREADS_PROPERTY, 0);
+
+  /**
+   * Executor used to run output handlers in parallel, <code>null</code> if
+   * they are run sequentially.
+   */
+  private ExecutorService exportExecutor;
+
+  /**
+   * The output handlers that may run at the same time as each other (see
+   * {@link OutputHandler#supportsConcurrentExport}), in order.
+   */
+  private List<OutputHandler> concurrentOutputs;
+
+  /**
+   * The output handlers that must run on their own, in order.
+   */
+  private List<OutputHandler> sequentialOutputs;
+
+  /**
+   * Cache of processing results, <code>null</code> if every document is to
+   * be processed.
+   */
+  private ResultCache resultCache;
+
+  /**
+   * Filter for near-duplicate documents, <code>null</code> if every
+   * document is to be processed.
+   */
+  private NearDuplicateFilter nearDuplicateFilter;
+
+  /**
+   * Filters applied by the input handler before each document is
+   * created, <code>null</code> if there are none.
+   */
+  private PreFilterChain preFilter;
+
   /**
    * Pool holding corpora.
    */
@@ -140,6 +200,52 @@ public class PooledDocumentProcessor implements DocumentProcessor {
     this.executor = executor;
   }
 
+  /**
+   * Set the number of threads in the pool used to run the output handlers
+   * for each document in parallel.  When this is 0 (the default, unless
+   * overridden by the <code>gcp.export.threads</code> system property) or
+   * fewer than two output handlers support concurrent export, the handlers
+   * are run one after the other on the processing thread.  Otherwise the
+   * handlers that do not support concurrent export are run first, one
+   * after the other, and then the rest are run in parallel.  In either case
+   * the processing thread waits until every handler has finished with the
+   * document before the document is released.  Must be called before
+   * {@link #init}.
+   */
+  public void setExportThreads(int exportThreads) {
+    this.exportThreads = exportThreads;
+  }
+
+  /**
+   * Set the cache used to avoid processing documents that are identical to
+   * ones that have already been processed.  If this is <code>null</code>
+   * (the default) every document is processed.
+   */
+  public void setResultCache(ResultCache resultCache) {
+    this.resultCache = resultCache;
+  }
+
+  /**
+   * Set the filter used to skip (or tag) documents that are
+   * near-duplicates of ones processed earlier in the batch.  If this is
+   * <code>null</code> (the default) every document is processed.
+   */
+  public void setNearDuplicateFilter(NearDuplicateFilter nearDuplicateFilter) {
+    this.nearDuplicateFilter = nearDuplicateFilter;
+  }
+
+  /**
+   * Set the filters that the input handler applies to the raw content of
+   * each document before the GATE document is created, so that rejected
+   * documents are never parsed or processed.  These only take effect if
+   * the input handler implements {@link PreFilteringInputHandler}.  Must
+   * be called before {@link #init}.
+   */
+  public void setPreFilters(List<DocumentPreFilter> preFilters) {
+    this.preFilter = preFilters == null || preFilters.isEmpty() ? null
+            : new PreFilterChain(preFilters);
+  }
+
   @Override
   public void setResultQueue(BlockingQueue<ProcessResult> resultQueue) {
     this.resultQueue = resultQueue;
@@ -173,6 +279,41 @@ public class PooledDocumentProcessor implements DocumentProcessor {
           log.error(id+": Exception when executing the controllerExecutionStarted method for controller "+ct.getName(), ex);
         }
     }
+
+    if(preFilter != null) {
+      if(inputHandler instanceof PreFilteringInputHandler) {
+        ((PreFilteringInputHandler)inputHandler).setPreFilter(preFilter);
+      } else {
+        log.warn("Input handler {} does not support pre-filters - they "
+                + "will be ignored", inputHandler.getClass().getName());
+        preFilter = null;
+      }
+    }
+
+    concurrentOutputs = new ArrayList<OutputHandler>();
+    sequentialOutputs = new ArrayList<OutputHandler>();
+    for(OutputHandler output : outputHandlers) {
+      if(output.supportsConcurrentExport()) {
+        concurrentOutputs.add(output);
+      } else {
+        sequentialOutputs.add(output);
+      }
+    }
+    if(exportThreads > 0 && concurrentOutputs.size() > 1) {
+      log.info("Running {} of {} output handlers in parallel on {} export "
+              + "threads", concurrentOutputs.size(), outputHandlers.size(),
+              exportThreads);
+      final AtomicInteger threadNumber = new AtomicInteger(1);
+      exportExecutor = Executors.newFixedThreadPool(exportThreads,
+              new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                  Thread t = new Thread(r, id + "-export-"
+                          + threadNumber.getAndIncrement());
+                  t.setDaemon(true);
+                  return t;
+                }
+              });
+    }
   }
 
   /**
@@ -191,15 +332,11 @@ public class PooledDocumentProcessor implements DocumentProcessor {
               try {
                 log.debug("Loading document {}", documentId);
                 docData =  inputHandler.getInputDocument(documentId);
-                log.debug("processing document {}", documentId);
-                processDocumentWithGATE(docData, controller);
-                log.debug("exporting results for document {}", documentId);
-                exportResults(docData);
-                reportSuccess(docData);
-                log.debug("document {} processed successfully", documentId);
+                processLoadedDocument(docData, controller);
               }
               finally {
                 if(docData != null && docData.document != null) {
+                  docData.snapshot = null;
                   Factory.deleteResource(docData.document);
                   docData.document = null;
                 }
@@ -242,6 +379,11 @@ public class PooledDocumentProcessor implements DocumentProcessor {
     DocumentData dd = null;
     try {
       while((dd = stream.nextDocument()) != null && !isInterrupted()) {
+        if(dd.filterReason != null) {
+          // nothing to process, so don't wait for a controller
+          reportFiltered(dd);
+          continue;
+        }
         final DocumentData docData = dd;
         log.debug("Loaded document {}", dd.id);
         final CorpusController controller = appPool.take();
@@ -250,15 +392,11 @@ public class PooledDocumentProcessor implements DocumentProcessor {
             public void run() {
               try {
                 try {
-                  log.debug("processing document {}", docData.id);
-                  processDocumentWithGATE(docData, controller);
-                  log.debug("exporting results for document {}", docData.id);
-                  exportResults(docData);
-                  reportSuccess(docData);
-                  log.debug("document {} processed successfully", docData.id);
+                  processLoadedDocument(docData, controller);
                 }
                 finally {
                   if(docData != null && docData.document != null) {
+                    docData.snapshot = null;
                     Factory.deleteResource(docData.document);
                     docData.document = null;
                   }
@@ -294,6 +432,82 @@ public class PooledDocumentProcessor implements DocumentProcessor {
     }
   }
 
+  /**
+   * Process a document that has been loaded by the input handler, export
+   * the results and report success, or report the document as filtered
+   * if it is a near-duplicate that should be skipped.
+   */
+  private void processLoadedDocument(DocumentData docData,
+          CorpusController controller) throws GateException,
+          InterruptedException, IOException {
+    if(docData.filterReason != null) {
+      reportFiltered(docData);
+      return;
+    }
+    NearDuplicateFilter.Check duplicateCheck = null;
+    if(nearDuplicateFilter != null) {
+      duplicateCheck = nearDuplicateFilter.check(docData.id.getIdText(),
+              docData.document.getContent().toString());
+      String duplicateOf =
+              duplicateCheck == null ? null : duplicateCheck.getDuplicateOf();
+      if(duplicateOf != null) {
+        if(!nearDuplicateFilter.isTagOnly()) {
+          log.debug("document {} is a near-duplicate of {} - skipped",
+                  docData.id, duplicateOf);
+          sendResult(new FilteredResult(docData, "Near-duplicate of "
+                  + duplicateOf));
+          return;
+        }
+        docData.document.getFeatures().put(
+                NearDuplicateFilter.DUPLICATE_OF_FEATURE, duplicateOf);
+      }
+    }
+    log.debug("processing document {}", docData.id);
+    processDocumentWithCache(docData, controller);
+    log.debug("exporting results for document {}", docData.id);
+    docData.snapshot = new AnnotationSnapshot(docData.document);
+    exportResults(docData);
+    reportSuccess(docData);
+    if(duplicateCheck != null) {
+      // only now can later near-duplicates be skipped in favour of this
+      // document, as its success has been reported before theirs
+      nearDuplicateFilter.add(duplicateCheck);
+    }
+    log.debug("document {} processed successfully", docData.id);
+  }
+
+  /**
+   * Process the given document, or if a result cache is configured and it
+   * contains the results for an identical document, apply those results
+   * instead.
+   * 
+   * @param docData the document to process
+   * @throws GateException if an error occurs during processing.
+   */
+  private void processDocumentWithCache(DocumentData docData,
+          CorpusController controller) throws GateException,
+          InterruptedException, IOException {
+    if(resultCache == null) {
+      processDocumentWithGATE(docData, controller);
+      return;
+    }
+    long startTime = System.currentTimeMillis();
+    String key = resultCache.key(docData.document);
+    Map<Object, byte[]> featuresBefore = null;
+    if(key != null) {
+      if(resultCache.restore(docData.document, key)) {
+        log.debug("results for document {} found in cache", docData.id);
+        docData.processingTime = System.currentTimeMillis() - startTime;
+        return;
+      }
+      featuresBefore = resultCache.featureValues(docData.document);
+    }
+    processDocumentWithGATE(docData, controller);
+    if(featuresBefore != null) {
+      resultCache.store(key, docData.document, featuresBefore);
+    }
+  }
+
   /**
    * Process the given document with a GATE application from the pool.
    * 
@@ -327,15 +541,101 @@ public class PooledDocumentProcessor implements DocumentProcessor {
 
   /**
    * Export the results of processing for the given document as
-   * specified by the configured output definitions.
+   * specified by the configured output definitions.  If an export pool
+   * has been configured the handlers that support concurrent export run
+   * in parallel (after the others have run one at a time), but this
+   * method does not return until all of them have finished.
    * 
-   * @param docData the processed document
+   * @param docData the processed document, with the snapshot of the
+   *          annotations selected for output
    * @throws GateException if an error occurs during export.
    */
-  private void exportResults(DocumentData docData) throws IOException, GateException,
-          InterruptedException {
-    for(OutputHandler output : outputHandlers) {
-      output.outputDocument(docData.document, docData.id);
+  private void exportResults(DocumentData docData)
+          throws IOException, GateException, InterruptedException {
+    if(exportExecutor == null) {
+      for(OutputHandler output : outputHandlers) {
+        output.outputDocument(docData.document, docData.id, docData.snapshot);
+      }
+      return;
+    }
+    // handlers that may modify the document, or read more of it than
+    // their own selections, must not share it with any other handler
+    for(OutputHandler output : sequentialOutputs) {
+      output.outputDocument(docData.document, docData.id, docData.snapshot);
+    }
+    // Make the selections for the other handlers up front on this thread.
+    // GATE builds annotation set indexes lazily, which is not safe to do
+    // from several threads at once, whereas reading the finished
+    // selections is.
+    for(OutputHandler output : concurrentOutputs) {
+      docData.snapshot.select(output.getAnnSetDefinitions());
+    }
+    // hand all but the first handler to the export pool, and run the
+    // first one here
+    final DocumentData dd = docData;
+    List<Future<Void>> futures =
+            new ArrayList<Future<Void>>(concurrentOutputs.size());
+    futures.add(null);
+    for(final OutputHandler output : concurrentOutputs.subList(1,
+            concurrentOutputs.size())) {
+      futures.add(exportExecutor.submit(new Callable<Void>() {
+        public Void call() throws Exception {
+          output.outputDocument(dd.document, dd.id, dd.snapshot);
+          return null;
+        }
+      }));
+    }
+    Throwable firstFailure = null;
+    try {
+      concurrentOutputs.get(0).outputDocument(docData.document, docData.id,
+              docData.snapshot);
+    } catch(Exception | Error e) {
+      firstFailure = e;
+    }
+    // wait for all the handlers, even if one has failed or we are
+    // interrupted, as the document must not be deleted while any of them
+    // are still using it
+    boolean wasInterrupted = false;
+    for(int i = 1; i < futures.size(); i++) {
+      while(true) {
+        try {
+          futures.get(i).get();
+          break;
+        } catch(InterruptedException e) {
+          wasInterrupted = true;
+        } catch(java.util.concurrent.ExecutionException e) {
+          if(firstFailure == null) {
+            firstFailure = e.getCause();
+          } else {
+            log.warn("Output handler " + concurrentOutputs.get(i)
+                    + " also failed for document " + docData.id, e.getCause());
+            firstFailure.addSuppressed(e.getCause());
+          }
+          break;
+        }
+      }
+    }
+    if(wasInterrupted) {
+      Thread.currentThread().interrupt();
+    }
+    // report the failure of the first handler in the list, as if the
+    // handlers had run sequentially
+    if(firstFailure instanceof IOException) {
+      throw (IOException)firstFailure;
+    } else if(firstFailure instanceof GateException) {
+      throw (GateException)firstFailure;
+    } else if(firstFailure instanceof InterruptedException) {
+      throw (InterruptedException)firstFailure;
+    } else if(firstFailure instanceof RuntimeException) {
+      throw (RuntimeException)firstFailure;
+    } else if(firstFailure instanceof Error) {
+      throw (Error)firstFailure;
+    } else if(firstFailure != null) {
+      throw new GateException("Error exporting document " + docData.id,
+              firstFailure);
+    }
+    if(wasInterrupted) {
+      throw new InterruptedException();
     }
   }
 
@@ -347,7 +647,16 @@ public class PooledDocumentProcessor implements DocumentProcessor {
    * @throws GateException if an error occurs generating statistics.
    */
   private void reportSuccess(DocumentData docData) throws GateException {
-    resultQueue.offer(new SuccessResult(docData, outputHandlers));
+    sendResult(new SuccessResult(docData, outputHandlers));
+  }
+
+  /**
+   * Report a document that was rejected by the pre-filters.
+   */
+  private void reportFiltered(DocumentData docData) {
+    log.debug("document {} rejected by pre-filter: {}", docData.id,
+            docData.filterReason);
+    sendResult(new FilteredResult(docData, docData.filterReason));
   }
 
   /**
@@ -357,7 +666,26 @@ public class PooledDocumentProcessor implements DocumentProcessor {
    * @param e the exception (if any) that caused processing to fail.
    */
   private void reportFailure(DocumentID docId, DocumentData docData, Throwable e) {
-    resultQueue.offer(new FailureResult(docData, docId, e));
+    sendResult(new FailureResult(docData, docId, e));
+  }
+
+  /**
+   * Add a result to the result queue, waiting for space if the queue is
+   * full.  The result is dropped if the batch is interrupted while
+   * waiting, as nothing will be reading the queue any more.
+   */
+  private void sendResult(ProcessResult result) {
+    try {
+      while(!resultQueue.offer(result, 1, TimeUnit.SECONDS)) {
+        if(isInterrupted()) {
+          log.warn("Batch interrupted, discarding result for document "
+                  + result.getDocumentId());
+          return;
+        }
+      }
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
   }
 
   public void dispose() {
@@ -402,6 +730,21 @@ public class PooledDocumentProcessor implements DocumentProcessor {
         log.warn("Exception while closing output handler " + oh, e);
       }
     }    
+    if(exportExecutor != null) {
+      exportExecutor.shutdown();
+    }
+    if(resultCache != null) {
+      log.info("Result cache hits: {}, misses: {}", resultCache.getHits(),
+              resultCache.getMisses());
+    }
+    if(preFilter != null) {
+      log.info("Pre-filters: {}", preFilter.getSummary());
+    }
+    if(nearDuplicateFilter != null) {
+      log.info("Near-duplicates: {} of {} documents checked",
+              nearDuplicateFilter.getDuplicates(),
+              nearDuplicateFilter.getChecked());
+    }
     appPool.dispose();
   }
 
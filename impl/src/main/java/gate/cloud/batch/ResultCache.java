@@ -0,0 +1,484 @@
+/*
+ *  ResultCache.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.batch;
+
+import gate.Annotation;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.cloud.io.file.BinaryDocumentFormat;
+import gate.cloud.util.HashUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * On-disk cache of processing results, used to avoid running the GATE
+ * application again over documents that are identical to ones it has
+ * already processed.
+ * <p>
+ * Entries are keyed by a SHA-256 digest of the application fingerprint,
+ * the document text, and the features and annotations the document had
+ * when it was loaded (i.e. the MIME type and the markup found by the
+ * document format parser, plus anything added by the input handler), so
+ * two documents only share an entry if the application starts from the
+ * same state for both.  The exception is the features that only record
+ * where each document came from, such as <code>gate.SourceURL</code> and
+ * the archive record headers (see {@link #DEFAULT_IGNORED_FEATURES}),
+ * which are left out of the key so that copies of a document from
+ * different files or archive records share an entry.  Each entry holds
+ * the complete set of annotations on the document after processing, plus
+ * any document features the application added, changed or removed (other
+ * than the ignored ones), stored using the {@link BinaryDocumentFormat}.
+ * On a hit the loaded document's annotations are replaced by the cached
+ * ones and the feature changes are replayed, leaving the document as if it
+ * had been processed, with its own source features untouched.
+ * <p>
+ * Each entry is a separate file under the cache directory.  The total
+ * size of the entries is kept below a configured limit by deleting the
+ * least recently used entries, where "use" is tracked by the files'
+ * modification times so the order survives from one run to the next.
+ * A cache directory may be shared between batches, but not between
+ * processes running at the same time.
+ */
+public class ResultCache {
+
+  private static final Logger log = LoggerFactory.getLogger(ResultCache.class);
+
+  private static final byte[] MAGIC = "GCPR".getBytes(StandardCharsets.US_ASCII);
+
+  private static final byte VERSION = 1;
+
+  private static final String EXTENSION = ".gcpr";
+
+  /**
+   * Features left out of the cache key by default, because they record
+   * where a document came from rather than what it contains: the source
+   * URL set for documents loaded from files, ZIP and other archives (and
+   * the original URL GATE records alongside it), and the record metadata and headers set by the web archive input handlers.
+   * A name ending in <code>*</code> matches any feature name starting with
+   * the rest of it.
+   */
+  public static final List<String> DEFAULT_IGNORED_FEATURES =
+          Collections.unmodifiableList(Arrays.asList("gate.SourceURL",
+                  "gate.OriginalURL", "archive_name", "archive_position", "retrievedAt",
+                  "original_size", "redirect_to", "arc_header_*",
+                  "http_header_*"));
+
+  protected File directory;
+
+  protected long maxSize;
+
+  protected String applicationFingerprint;
+
+  /**
+   * Names of the features left out of the key.
+   */
+  protected Set<String> ignoredFeatures = new HashSet<String>();
+
+  /**
+   * Prefixes of the names of the features left out of the key.
+   */
+  protected List<String> ignoredFeaturePrefixes = new ArrayList<String>();
+
+  /**
+   * Size of each entry in the cache, keyed by entry key, in least
+   * recently used order.
+   */
+  protected LinkedHashMap<String, Long> entries =
+          new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+  /**
+   * Total size of all the entries.
+   */
+  protected long totalSize = 0;
+
+  protected AtomicLong hits = new AtomicLong();
+
+  protected AtomicLong misses = new AtomicLong();
+
+  /**
+   * Open a cache, creating the directory if it does not already exist.
+   *
+   * @param directory the directory holding the cache entries.
+   * @param maxSize maximum total size of the cache entries, in bytes.
+   * @param applicationFingerprint fingerprint of the application whose
+   *          results are to be cached, so that results from one
+   *          application are never returned for another.
+   * @param ignoredFeatures names of further features to leave out of the
+   *          key, in addition to the {@link #DEFAULT_IGNORED_FEATURES}
+   *          (may be <code>null</code>).
+   */
+  public ResultCache(File directory, long maxSize,
+          String applicationFingerprint, Collection<String> ignoredFeatures)
+          throws IOException {
+    if(!directory.exists() && !directory.mkdirs()) {
+      throw new IOException("Could not create result cache directory "
+              + directory.getAbsolutePath());
+    }
+    this.directory = directory;
+    this.maxSize = maxSize;
+    this.applicationFingerprint =
+            (applicationFingerprint == null ? "" : applicationFingerprint);
+    List<String> ignored = new ArrayList<String>(DEFAULT_IGNORED_FEATURES);
+    if(ignoredFeatures != null) {
+      ignored.addAll(ignoredFeatures);
+    }
+    for(String name : ignored) {
+      if(name.endsWith("*")) {
+        ignoredFeaturePrefixes.add(name.substring(0, name.length() - 1));
+      } else {
+        this.ignoredFeatures.add(name);
+      }
+    }
+    loadIndex();
+  }
+
+  /**
+   * Build the index from the entries already in the cache directory,
+   * oldest first.
+   */
+  protected void loadIndex() {
+    List<File> existing = new ArrayList<File>();
+    File[] subdirs = directory.listFiles(File::isDirectory);
+    if(subdirs != null) {
+      for(File subdir : subdirs) {
+        File[] files = subdir.listFiles((d, name) -> name.endsWith(EXTENSION));
+        if(files != null) {
+          existing.addAll(Arrays.asList(files));
+        }
+      }
+    }
+    final Map<File, Long> modified = new HashMap<File, Long>();
+    for(File f : existing) {
+      modified.put(f, f.lastModified());
+    }
+    existing.sort(Comparator.comparing(modified::get));
+    synchronized(this) {
+      for(File f : existing) {
+        String name = f.getName();
+        long size = f.length();
+        entries.put(name.substring(0, name.length() - EXTENSION.length()),
+                size);
+        totalSize += size;
+      }
+      evict();
+    }
+    log.info("Result cache at {} holds {} entries ({} bytes)", directory,
+            entries.size(), totalSize);
+  }
+
+  /**
+   * Calculate the cache key for a document that has been loaded but not
+   * yet processed.
+   *
+   * @return the key, or <code>null</code> if the document's features or
+   *         annotations cannot be encoded, in which case its results
+   *         should not be cached.
+   */
+  public String key(Document document) {
+    MessageDigest digest = HashUtils.newSha256();
+    update(digest, applicationFingerprint);
+    update(digest, document.getContent().toString());
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      FeatureMap keyFeatures = Factory.newFeatureMap();
+      for(Map.Entry<Object, Object> f : document.getFeatures().entrySet()) {
+        if(!isIgnored(f.getKey())) {
+          keyFeatures.put(f.getKey(), f.getValue());
+        }
+      }
+      new BinaryDocumentFormat.Writer(new DataOutputStream(bytes))
+              .writeAnnotations(keyFeatures, allAnnotations(document));
+      digest.update(bytes.toByteArray());
+    } catch(IOException | RuntimeException e) {
+      log.debug("Cannot calculate a result cache key for document "
+              + document.getName(), e);
+      return null;
+    }
+    return HashUtils.toHex(digest.digest());
+  }
+
+  /**
+   * Is the given feature left out of the key (and never changed when
+   * results are restored)?
+   */
+  protected boolean isIgnored(Object featureName) {
+    if(!(featureName instanceof String)) {
+      return false;
+    }
+    String name = (String)featureName;
+    if(ignoredFeatures.contains(name)) {
+      return true;
+    }
+    for(String prefix : ignoredFeaturePrefixes) {
+      if(name.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * All the annotations of a document, keyed by set name, with the
+   * default set first and the named sets in order of name.
+   */
+  private static Map<String, Collection<Annotation>> allAnnotations(
+          Document document) {
+    Map<String, Collection<Annotation>> annotationSetsMap =
+            new LinkedHashMap<String, Collection<Annotation>>();
+    annotationSetsMap.put(null, document.getAnnotations());
+    if(document.getNamedAnnotationSets() != null) {
+      for(String name : new TreeSet<String>(
+              document.getNamedAnnotationSets().keySet())) {
+        annotationSetsMap.put(name, document.getAnnotations(name));
+      }
+    }
+    return annotationSetsMap;
+  }
+
+  /**
+   * Record the values of a document's features before it is processed,
+   * for passing to {@link #store}.  The values are recorded in encoded
+   * form, so that changes the application makes to mutable values in
+   * place are detected too.
+   *
+   * @return the encoded value of each feature, or <code>null</code> if
+   *         the features cannot be encoded.
+   */
+  public Map<Object, byte[]> featureValues(Document document) {
+    Map<Object, byte[]> values = new HashMap<Object, byte[]>();
+    try {
+      for(Map.Entry<Object, Object> f : document.getFeatures().entrySet()) {
+        values.put(f.getKey(), BinaryDocumentFormat.encodeValue(f.getValue()));
+      }
+    } catch(IOException | RuntimeException e) {
+      log.debug("Cannot encode the features of document "
+              + document.getName(), e);
+      return null;
+    }
+    return values;
+  }
+
+  private static void update(MessageDigest digest, String s) {
+    digest.update(s.getBytes(StandardCharsets.UTF_8));
+    // separator, so that adjacent strings cannot run together
+    digest.update((byte)0);
+  }
+
+  protected File entryFile(String key) {
+    return new File(new File(directory, key.substring(0, 2)), key + EXTENSION);
+  }
+
+  /**
+   * Look up the given key and, if it is found, apply the cached results
+   * to the given document.  The document's existing annotations are
+   * replaced by the cached annotations, and the cached feature changes are
+   * applied to its features, which leaves its ignored features (such as
+   * its source URL) as they were.
+   *
+   * @param document a document that has been loaded but not processed.
+   * @param key the document's key, as returned by {@link #key}.
+   * @return true if the results were found in the cache and applied to
+   *         the document, false on a cache miss.
+   * @throws IOException if the cache entry is found but cannot be
+   *           applied to the document, in which case the document's
+   *           annotations may have been lost.
+   */
+  public boolean restore(Document document, String key) throws IOException {
+    synchronized(this) {
+      if(entries.get(key) == null) {
+        misses.incrementAndGet();
+        return false;
+      }
+    }
+    File f = entryFile(key);
+    byte[] data;
+    try {
+      data = Files.readAllBytes(f.toPath());
+    } catch(IOException e) {
+      // probably evicted since we looked it up
+      log.debug("Could not read result cache entry " + f, e);
+      misses.incrementAndGet();
+      return false;
+    }
+    DataInputStream in =
+            new DataInputStream(new ByteArrayInputStream(data));
+    List<String> removedFeatures;
+    try {
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      if(!Arrays.equals(magic, MAGIC) || in.readByte() != VERSION) {
+        throw new IOException("Not a GCP result cache entry");
+      }
+      int numRemoved = in.readInt();
+      removedFeatures = new ArrayList<String>(numRemoved);
+      for(int i = 0; i < numRemoved; i++) {
+        removedFeatures.add(in.readUTF());
+      }
+    } catch(IOException e) {
+      log.warn("Ignoring invalid result cache entry " + f, e);
+      remove(key);
+      misses.incrementAndGet();
+      return false;
+    }
+    // clear out the annotations, which the cache entry replaces
+    document.getAnnotations().clear();
+    for(String name : new ArrayList<String>(document.getAnnotationSetNames())) {
+      document.removeAnnotationSet(name);
+    }
+    FeatureMap changedFeatures;
+    try {
+      changedFeatures =
+              new BinaryDocumentFormat.Reader(in).readAnnotations(document);
+    } catch(IOException | RuntimeException e) {
+      remove(key);
+      throw e;
+    }
+    document.getFeatures().keySet().removeAll(removedFeatures);
+    document.getFeatures().putAll(changedFeatures);
+    f.setLastModified(System.currentTimeMillis());
+    hits.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Store the results of processing a document.  Errors writing to the
+   * cache are logged rather than thrown, as they do not affect the
+   * processing of the document itself.
+   *
+   * @param key the key calculated for the document before processing.
+   * @param document the processed document.
+   * @param featuresBefore the document features recorded by
+   *          {@link #featureValues} before processing, used to determine
+   *          which features the application changed.
+   */
+  public void store(String key, Document document,
+          Map<Object, byte[]> featuresBefore) {
+    File f = entryFile(key);
+    File tmp = null;
+    try {
+      FeatureMap changedFeatures = Factory.newFeatureMap();
+      for(Map.Entry<Object, Object> feature : document.getFeatures()
+              .entrySet()) {
+        if(isIgnored(feature.getKey())) {
+          continue;
+        }
+        byte[] before = featuresBefore.get(feature.getKey());
+        if(before == null || !Arrays.equals(before,
+                BinaryDocumentFormat.encodeValue(feature.getValue()))) {
+          changedFeatures.put(feature.getKey(), feature.getValue());
+        }
+      }
+      Set<String> removedFeatures = new HashSet<String>();
+      for(Object k : featuresBefore.keySet()) {
+        if(k instanceof String && !isIgnored(k)
+                && !document.getFeatures().containsKey(k)) {
+          removedFeatures.add((String)k);
+        }
+      }
+      Map<String, Collection<Annotation>> annotationSetsMap =
+              allAnnotations(document);
+
+
+      File parent = f.getParentFile();
+      if(!parent.exists() && !parent.mkdirs() && !parent.exists()) {
+        throw new IOException("Could not create " + parent);
+      }
+      tmp = File.createTempFile(key, ".tmp", parent);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+              new FileOutputStream(tmp)));
+      try {
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(removedFeatures.size());
+        for(String k : removedFeatures) {
+          out.writeUTF(k);
+        }
+        new BinaryDocumentFormat.Writer(out).writeAnnotations(changedFeatures,
+                annotationSetsMap);
+      } finally {
+        out.close();
+      }
+      long size = tmp.length();
+      synchronized(this) {
+        Files.move(tmp.toPath(), f.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        tmp = null;
+        Long oldSize = entries.put(key, size);
+        totalSize += size - (oldSize == null ? 0 : oldSize);
+        evict();
+      }
+    } catch(IOException | RuntimeException e) {
+      log.warn("Could not store results for document " + document.getName()
+              + " in result cache", e);
+    } finally {
+      if(tmp != null) {
+        tmp.delete();
+      }
+    }
+  }
+
+  /**
+   * Remove least recently used entries until the cache is within its size
+   * limit.
+   */
+  protected synchronized void evict() {
+    Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+    while(totalSize > maxSize && it.hasNext()) {
+      Map.Entry<String, Long> eldest = it.next();
+      it.remove();
+      totalSize -= eldest.getValue();
+      entryFile(eldest.getKey()).delete();
+    }
+  }
+
+  protected synchronized void remove(String key) {
+    Long size = entries.remove(key);
+    if(size != null) {
+      totalSize -= size;
+      entryFile(key).delete();
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+}
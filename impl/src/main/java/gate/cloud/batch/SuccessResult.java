@@ -15,8 +15,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import gate.AnnotationSet;
-import gate.Document;
+import gate.cloud.io.AnnotationSnapshot;
 import gate.cloud.io.DocumentData;
 import gate.cloud.io.OutputHandler;
 
@@ -32,12 +31,21 @@ class SuccessResult implements ProcessResult {
   
   private Map<String, Integer> annotationCounts;
 
+  /**
+   * Create a success result, taking the statistics from the document's
+   * annotation snapshot if it has one (so the annotations already
+   * selected for output are not selected again).
+   */
   SuccessResult(DocumentData docData, List<OutputHandler> outputDefs) {
     this.documentId = docData.id;
     this.executionTime = docData.processingTime;
     this.fileSize = docData.fileSize;
     this.docLength = docData.documentLength;
-    generateStatistics(docData.document, outputDefs);
+    AnnotationSnapshot snapshot = docData.snapshot;
+    if(snapshot == null) {
+      snapshot = new AnnotationSnapshot(docData.document);
+    }
+    generateStatistics(snapshot, outputDefs);
   }
 
   /**
@@ -49,27 +57,26 @@ class SuccessResult implements ProcessResult {
    * type, of the form "annotationSetName:type", with the number of
    * annotations of that type as its value.
    */
-  private void generateStatistics(Document doc,
+  private void generateStatistics(AnnotationSnapshot snapshot,
           List<OutputHandler> outputHandlers) {
     annotationCounts = new HashMap<String, Integer>();
     for(OutputHandler output : outputHandlers) {
       if(output != null && output.getAnnSetDefinitions() != null) {
         for(AnnotationSetDefinition asDef : output.getAnnSetDefinitions()) {
-          AnnotationSet annots =
-                  getAnnotationSet(doc, asDef.getAnnotationSetName());
           String asName = asDef.getAnnotationSetName();
           // use empty string rather than null for the default set
           if(asName == null) {
             asName = "";
           }
-          if(asDef.getAnnotationTypes() == null
-                  || asDef.getAnnotationTypes().isEmpty()) {
-            annotationCounts.put(asName, annots.size());
+          if(asDef.getAnnotationTypeSet() == null) {
+            annotationCounts.put(asName, snapshot.select(asDef).size());
           }
           else {
+            Map<String, Integer> counts = snapshot.countByType(asDef);
             for(String annotationType : asDef.getAnnotationTypes()) {
+              Integer count = counts.get(annotationType);
               annotationCounts.put(asName + ":" + annotationType,
-                      annots.get(annotationType).size());
+                      count == null ? 0 : count);
             }
           }
         }
@@ -77,19 +84,6 @@ class SuccessResult implements ProcessResult {
     }
   }
 
-  /**
-   * Get an annotation set from a document, treating a <code>null</code>
-   * or empty name as a request for the default annotation set.
-   */
-  private AnnotationSet getAnnotationSet(Document doc, String annotationSetName) {
-    if(annotationSetName == null || "".equals(annotationSetName)) {
-      return doc.getAnnotations();
-    }
-    else {
-      return doc.getAnnotations(annotationSetName);
-    }
-  }
-
   public Map<String, Integer> getAnnotationCounts() {
     return annotationCounts;
   }
@@ -12,23 +12,45 @@
 package gate.cloud.io;
 
 import gate.cloud.batch.DocumentID;
+import gate.cloud.batch.DocumentManifest;
+import gate.cloud.util.HashUtils;
 import gate.util.GateException;
 import static gate.cloud.io.IOConstants.*;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.apache.tools.ant.DirectoryScanner;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.types.FileSet;
 import org.apache.tools.ant.types.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Document enumerator that uses and Ant FileSet to do its work.
+ * <p>
+ * If a <code>manifest</code> file is specified the enumerator runs
+ * incrementally: it only returns the documents that are new or have
+ * changed since they were last processed successfully by the same
+ * application, according to the {@link DocumentManifest}.
  */
 public abstract class AntBasedDocumentEnumerator implements DocumentEnumerator {
 
+  private static final Logger logger =
+          LoggerFactory.getLogger(AntBasedDocumentEnumerator.class);
+
   /**
    * File name patterns to include (by default, include everything).
    */
@@ -50,6 +72,23 @@ public abstract class AntBasedDocumentEnumerator implements DocumentEnumerator {
    */
   protected boolean defaultExcludes;
 
+  /**
+   * Manifest used for incremental enumeration, or <code>null</code> to
+   * enumerate every matching document.
+   */
+  protected DocumentManifest manifest;
+
+  /**
+   * Should changes be detected by hashing the content of each document
+   * (true) or from the size and modification time (false)?
+   */
+  protected boolean hashContent;
+
+  /**
+   * Fingerprint of the application that will process the documents.
+   */
+  protected String applicationFingerprint;
+
   /**
    * The underlying iterator from the FileSet.
    */
@@ -70,6 +109,33 @@ public abstract class AntBasedDocumentEnumerator implements DocumentEnumerator {
     else {
       defaultExcludes = Project.toBoolean(defaultExcludesStr);
     }
+
+    String manifestStr = configData.get(PARAM_MANIFEST);
+    if(manifestStr != null && manifestStr.trim().length() > 0) {
+      File manifestFile = new File(manifestStr);
+      String batchFileStr = configData.get(PARAM_BATCH_FILE_LOCATION);
+      if(!manifestFile.isAbsolute() && batchFileStr != null) {
+        manifestFile =
+                new File(new File(batchFileStr).getParentFile(), manifestStr);
+      }
+      manifest = new DocumentManifest(manifestFile);
+    }
+    String changeDetection = configData.get(PARAM_CHANGE_DETECTION);
+    if(changeDetection == null
+            || VALUE_CHANGE_DETECTION_MTIME.equals(changeDetection)) {
+      hashContent = false;
+    } else if(VALUE_CHANGE_DETECTION_HASH.equals(changeDetection)) {
+      hashContent = true;
+    } else {
+      throw new IllegalArgumentException("Value \"" + changeDetection
+              + "\" for parameter \"" + PARAM_CHANGE_DETECTION
+              + "\" is not valid, must be \"" + VALUE_CHANGE_DETECTION_MTIME
+              + "\" or \"" + VALUE_CHANGE_DETECTION_HASH + "\"");
+    }
+    applicationFingerprint = configData.get(PARAM_APPLICATION_FINGERPRINT);
+    if(applicationFingerprint == null) {
+      applicationFingerprint = "";
+    }
   }
 
   public void init() throws IOException, GateException {
@@ -81,11 +147,97 @@ public abstract class AntBasedDocumentEnumerator implements DocumentEnumerator {
       fs.setExcludes(excludes);
     }
     fs.setDefaultexcludes(defaultExcludes);
-    String[] matchedPaths =
-            fs.getDirectoryScanner(new Project()).getIncludedFiles();
+    DirectoryScanner scanner = fs.getDirectoryScanner(new Project());
+    String[] matchedPaths = scanner.getIncludedFiles();
     // sort the results, to ensure predictability
     Arrays.sort(matchedPaths);
-    antIterator = Arrays.asList(matchedPaths).iterator();
+    if(manifest != null) {
+      String[] states = documentStates(scanner, matchedPaths);
+      List<String> changedPaths = new ArrayList<String>();
+      for(int i = 0; i < matchedPaths.length; i++) {
+        String path = matchedPaths[i];
+        if(!manifest.isUnchanged(prefix + path, states[i])) {
+          manifest.pending(prefix + path, states[i]);
+          changedPaths.add(path);
+        }
+      }
+      logger.info("{} of {} documents are new or changed since the last run",
+              changedPaths.size(), matchedPaths.length);
+      antIterator = changedPaths.iterator();
+    } else {
+      antIterator = Arrays.asList(matchedPaths).iterator();
+    }
+  }
+
+  /**
+   * Find the current state of each of the given documents.  When the
+   * state includes a content hash the documents are hashed in parallel,
+   * on one thread per available processor.
+   */
+  protected String[] documentStates(DirectoryScanner scanner, String[] paths)
+          throws IOException {
+    String[] states = new String[paths.length];
+    if(!hashContent || paths.length < 2) {
+      for(int i = 0; i < paths.length; i++) {
+        states[i] = documentState(scanner.getResource(paths[i]));
+      }
+      return states;
+    }
+    int threads = Math.min(Runtime.getRuntime().availableProcessors(),
+            paths.length);
+    ExecutorService hashExecutor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<String>> futures = new ArrayList<Future<String>>(paths.length);
+      for(String path : paths) {
+        final Resource resource = scanner.getResource(path);
+        futures.add(hashExecutor.submit(new Callable<String>() {
+          public String call() throws IOException {
+            return documentState(resource);
+          }
+        }));
+      }
+      for(int i = 0; i < paths.length; i++) {
+        try {
+          states[i] = futures.get(i).get();
+        } catch(ExecutionException e) {
+          if(e.getCause() instanceof IOException) {
+            throw (IOException)e.getCause();
+          }
+          throw new IOException("Error hashing " + paths[i], e.getCause());
+        }
+      }
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while hashing documents");
+    } finally {
+      hashExecutor.shutdownNow();
+    }
+    return states;
+  }
+
+  /**
+   * Summarise the current state of the given document for the manifest,
+   * as its size, its modification time or content hash, and the
+   * application fingerprint.
+   */
+  protected String documentState(Resource resource) throws IOException {
+    StringBuilder state = new StringBuilder();
+    state.append(resource.getSize()).append(':');
+    if(hashContent) {
+      state.append(HashUtils.sha256Hex(resource.getInputStream()));
+    } else {
+      state.append(resource.getLastModified());
+    }
+    state.append(':').append(applicationFingerprint);
+    return state.toString();
+  }
+
+  /**
+   * Get the manifest used by this enumerator, or <code>null</code> if it
+   * is not running incrementally.
+   */
+  public DocumentManifest getManifest() {
+    return manifest;
   }
 
   /**
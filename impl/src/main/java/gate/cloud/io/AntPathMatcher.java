@@ -0,0 +1,140 @@
+/*
+ *  AntPathMatcher.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+/**
+ * Matches relative paths against Ant-style include and exclude patterns,
+ * with the same semantics as an Ant fileset, for components that find
+ * their files without using a {@link DirectoryScanner}.  Paths may use
+ * either "/" or the platform separator.
+ */
+public class AntPathMatcher {
+
+  protected String[] includes;
+
+  protected String[] excludes;
+
+  /**
+   * Exclude patterns of the form "foo/**", with the trailing "/**"
+   * removed, used to skip whole directories.
+   */
+  protected String[] directoryExcludes;
+
+  /**
+   * Create a matcher.
+   *
+   * @param includes comma- or space-separated include patterns, or
+   *          <code>null</code> to include everything
+   * @param excludes comma- or space-separated exclude patterns, or
+   *          <code>null</code> for none
+   * @param defaultExcludes should Ant's default excludes be added to the
+   *          exclude patterns?
+   */
+  public AntPathMatcher(String includes, String excludes,
+          boolean defaultExcludes) {
+    this.includes = tokenizePatterns(includes);
+    if(this.includes.length == 0) {
+      this.includes = new String[] {"**"};
+    }
+    List<String> excludeList =
+            new ArrayList<String>(Arrays.asList(tokenizePatterns(excludes)));
+    if(defaultExcludes) {
+      for(String pattern : DirectoryScanner.getDefaultExcludes()) {
+        excludeList.add(normalize(pattern));
+      }
+    }
+    this.excludes = excludeList.toArray(new String[excludeList.size()]);
+    String starStar = File.separator + "**";
+    List<String> dirExcludes = new ArrayList<String>();
+    for(String pattern : this.excludes) {
+      if(pattern.endsWith(starStar)) {
+        dirExcludes.add(pattern.substring(0, pattern.length()
+                - starStar.length()));
+      }
+    }
+    this.directoryExcludes =
+            dirExcludes.toArray(new String[dirExcludes.size()]);
+  }
+
+  /**
+   * Split a pattern string in the same way as an Ant fileset.
+   */
+  protected static String[] tokenizePatterns(String patterns) {
+    List<String> result = new ArrayList<String>();
+    if(patterns != null) {
+      StringTokenizer tok = new StringTokenizer(patterns, ", ", false);
+      while(tok.hasMoreTokens()) {
+        String pattern = normalize(tok.nextToken());
+        // as in DirectoryScanner, a trailing separator means "**"
+        if(pattern.endsWith(File.separator)) {
+          pattern += "**";
+        }
+        result.add(pattern);
+      }
+    }
+    return result.toArray(new String[result.size()]);
+  }
+
+  /**
+   * Convert all separators in a path or pattern to the platform
+   * separator.
+   */
+  protected static String normalize(String path) {
+    return path.replace('/', File.separatorChar).replace('\\',
+            File.separatorChar);
+  }
+
+  /**
+   * Does the given file path match at least one include pattern and no
+   * exclude pattern?
+   */
+  public boolean matches(String path) {
+    path = normalize(path);
+    return matchesAny(includes, path) && !matchesAny(excludes, path);
+  }
+
+  /**
+   * Could the given directory contain any files that match the include
+   * patterns?
+   */
+  public boolean couldHoldIncluded(String dirPath) {
+    dirPath = normalize(dirPath);
+    for(String pattern : includes) {
+      if(SelectorUtils.matchPatternStart(pattern, dirPath)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Is everything under the given directory excluded?
+   */
+  public boolean contentsExcluded(String dirPath) {
+    return matchesAny(directoryExcludes, normalize(dirPath));
+  }
+
+  private static boolean matchesAny(String[] patterns, String path) {
+    for(String pattern : patterns) {
+      if(SelectorUtils.matchPath(pattern, path)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
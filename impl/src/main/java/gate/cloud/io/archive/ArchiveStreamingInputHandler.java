@@ -0,0 +1,400 @@
+/*
+ *  ArchiveStreamingInputHandler.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io.archive;
+
+import static gate.cloud.io.IOConstants.PARAM_ARCHIVE_FORMAT;
+import static gate.cloud.io.IOConstants.PARAM_BATCH_FILE_LOCATION;
+import static gate.cloud.io.IOConstants.PARAM_DEFAULT_EXCLUDES;
+import static gate.cloud.io.IOConstants.PARAM_ENCODING;
+import static gate.cloud.io.IOConstants.PARAM_EXCLUDES;
+import static gate.cloud.io.IOConstants.PARAM_FILE_NAME_ENCODING;
+import static gate.cloud.io.IOConstants.PARAM_INCLUDES;
+import static gate.cloud.io.IOConstants.PARAM_MAX_ENTRY_SIZE;
+import static gate.cloud.io.IOConstants.PARAM_MIME_TYPE;
+import static gate.cloud.io.IOConstants.PARAM_REPOSITIONING_INFO;
+import static gate.cloud.io.IOConstants.PARAM_SOURCE_FILE_LOCATION;
+import static gate.cloud.io.IOConstants.VALUE_ARCHIVE_TAR;
+import static gate.cloud.io.IOConstants.VALUE_ARCHIVE_TAR_GZ;
+import static gate.cloud.io.IOConstants.VALUE_ARCHIVE_TAR_ZST;
+import static gate.cloud.io.IOConstants.VALUE_ARCHIVE_ZIP;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.cloud.batch.Batch;
+import gate.cloud.batch.DocumentID;
+import gate.cloud.io.AntPathMatcher;
+import gate.cloud.io.DocumentData;
+import gate.cloud.io.DocumentPreFilter;
+import gate.cloud.io.PreFilteringInputHandler;
+import gate.cloud.io.RawDocument;
+import gate.cloud.io.StreamingInputHandler;
+import gate.cloud.util.ByteArrayURLStreamHandler;
+import gate.util.GateException;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+import org.apache.tools.ant.Project;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streaming-mode input handler that reads the entries of a zip, tar,
+ * tar.gz or tar.zst archive in a single sequential pass, creating a
+ * document from each entry that matches the include and exclude patterns
+ * as it goes.  Unlike the {@link gate.cloud.io.zip.ZipInputHandler} it
+ * never seeks within the archive, so it can read archives at sequential
+ * read speed from slow or non-seekable storage, including from standard
+ * input if the <code>srcFile</code> is "-".  The document IDs are the
+ * entry paths, as for the zip input handler.
+ */
+public class ArchiveStreamingInputHandler implements StreamingInputHandler,
+                                                     PreFilteringInputHandler {
+
+  private static final Logger logger =
+          LoggerFactory.getLogger(ArchiveStreamingInputHandler.class);
+
+  /**
+   * The largest entry that can be held in memory (the largest byte
+   * array), which is the default maximum entry size.
+   */
+  private static final long MAX_ENTRY_SIZE = Integer.MAX_VALUE - 8;
+
+  /**
+   * The archive file, or <code>null</code> to read from standard input.
+   */
+  protected File srcFile;
+
+  /**
+   * The archive format, one of the <code>VALUE_ARCHIVE_*</code>
+   * constants.
+   */
+  protected String archiveFormat;
+
+  /**
+   * URI of the archive, used to build the document URLs.
+   */
+  protected String archiveUri;
+
+  protected String mimeType;
+
+  protected String encoding;
+
+  /**
+   * Filter applied to each document before it is created, or
+   * <code>null</code> to accept every document.
+   */
+  protected DocumentPreFilter preFilter;
+
+  /**
+   * Encoding for entry names that are not flagged as UTF-8.
+   */
+  protected String fileNameEncoding;
+
+  protected boolean repositioningInfo = false;
+
+  /**
+   * Largest entry that will be read, in bytes.
+   */
+  protected long maxEntrySize = MAX_ENTRY_SIZE;
+
+  /**
+   * Matcher for the include and exclude patterns.
+   */
+  protected AntPathMatcher matcher;
+
+  /**
+   * Document IDs that are already complete after a previous run of this
+   * batch.
+   */
+  protected Set<String> completedDocuments;
+
+  /**
+   * The archive being read, opened on the first call to
+   * {@link #nextDocument()}.
+   */
+  protected ArchiveInputStream archiveStream;
+
+  public DocumentData getInputDocument(DocumentID id) throws IOException,
+          GateException {
+    throw new UnsupportedOperationException(
+            "ArchiveStreamingInputHandler can only operate in streaming mode");
+  }
+
+  public void config(Map<String, String> configData) throws IOException,
+          GateException {
+    String srcFileStr = configData.get(PARAM_SOURCE_FILE_LOCATION);
+    if(srcFileStr == null || srcFileStr.trim().length() == 0) {
+      throw new IllegalArgumentException(
+              "No value was provided for the required parameter \""
+                      + PARAM_SOURCE_FILE_LOCATION + "\"!");
+    }
+    if("-".equals(srcFileStr)) {
+      srcFile = null;
+      archiveUri = "stdin:";
+    } else {
+      File batchDir = null;
+      String batchFileStr = configData.get(PARAM_BATCH_FILE_LOCATION);
+      if(batchFileStr != null) {
+        batchDir = new File(batchFileStr).getParentFile();
+      }
+      srcFile = new File(srcFileStr);
+      if(!srcFile.isAbsolute()) {
+        srcFile = new File(batchDir, srcFileStr);
+      }
+      if(!srcFile.exists()) {
+        throw new IllegalArgumentException("File \"" + srcFile
+                + "\", provided as value for required parameter \""
+                + PARAM_SOURCE_FILE_LOCATION + "\", does not exist!");
+      }
+      archiveUri = srcFile.toURI().toString();
+    }
+
+    // archive format, guessed from the file name if not specified
+    archiveFormat = configData.get(PARAM_ARCHIVE_FORMAT);
+    if(archiveFormat == null && srcFile != null) {
+      String name = srcFile.getName().toLowerCase();
+      if(name.endsWith(".zip")) {
+        archiveFormat = VALUE_ARCHIVE_ZIP;
+      } else if(name.endsWith(".tar")) {
+        archiveFormat = VALUE_ARCHIVE_TAR;
+      } else if(name.endsWith(".tar.gz") || name.endsWith(".tgz")) {
+        archiveFormat = VALUE_ARCHIVE_TAR_GZ;
+      } else if(name.endsWith(".tar.zst") || name.endsWith(".tzst")) {
+        archiveFormat = VALUE_ARCHIVE_TAR_ZST;
+      }
+    }
+    if(!VALUE_ARCHIVE_ZIP.equals(archiveFormat)
+            && !VALUE_ARCHIVE_TAR.equals(archiveFormat)
+            && !VALUE_ARCHIVE_TAR_GZ.equals(archiveFormat)
+            && !VALUE_ARCHIVE_TAR_ZST.equals(archiveFormat)) {
+      throw new IllegalArgumentException("Parameter \"" + PARAM_ARCHIVE_FORMAT
+              + "\" must be one of \"" + VALUE_ARCHIVE_ZIP + "\", \""
+              + VALUE_ARCHIVE_TAR + "\", \"" + VALUE_ARCHIVE_TAR_GZ
+              + "\" or \"" + VALUE_ARCHIVE_TAR_ZST + "\""
+              + (archiveFormat == null
+                      ? " (it can only be omitted if the format is clear "
+                              + "from the file name)"
+                      : ""));
+    }
+
+    String defaultExcludesStr = configData.get(PARAM_DEFAULT_EXCLUDES);
+    matcher = new AntPathMatcher(configData.get(PARAM_INCLUDES),
+            configData.get(PARAM_EXCLUDES), defaultExcludesStr == null
+                    || Project.toBoolean(defaultExcludesStr));
+
+    encoding = configData.get(PARAM_ENCODING);
+    mimeType = configData.get(PARAM_MIME_TYPE);
+    fileNameEncoding = configData.get(PARAM_FILE_NAME_ENCODING);
+    if("true".equals(configData.get(PARAM_REPOSITIONING_INFO))) {
+      repositioningInfo = true;
+    }
+    String maxEntrySizeStr = configData.get(PARAM_MAX_ENTRY_SIZE);
+    if(maxEntrySizeStr != null && maxEntrySizeStr.trim().length() > 0) {
+      try {
+        maxEntrySize = Long.parseLong(maxEntrySizeStr.trim());
+      } catch(NumberFormatException e) {
+        maxEntrySize = -1;
+      }
+      if(maxEntrySize < 0 || maxEntrySize > MAX_ENTRY_SIZE) {
+        throw new IllegalArgumentException("Value \"" + maxEntrySizeStr
+                + "\" for parameter \"" + PARAM_MAX_ENTRY_SIZE
+                + "\" is not valid, must be an integer between 0 and "
+                + MAX_ENTRY_SIZE);
+      }
+    }
+  }
+
+  public void setPreFilter(DocumentPreFilter filter) {
+    this.preFilter = filter;
+  }
+
+  public void init() throws IOException, GateException {
+  }
+
+  public void startBatch(Batch b) {
+    completedDocuments = b.getCompletedDocuments();
+    if(completedDocuments != null && completedDocuments.size() > 0) {
+      logger.info("Restarting failed batch - {} documents already processed",
+              completedDocuments.size());
+    }
+  }
+
+  /**
+   * Open the archive for reading.
+   */
+  protected ArchiveInputStream openArchive() throws IOException {
+    InputStream in = srcFile == null ? System.in : new FileInputStream(srcFile);
+    in = new BufferedInputStream(in, 1 << 16);
+    try {
+      if(VALUE_ARCHIVE_TAR_GZ.equals(archiveFormat)) {
+        in = new BufferedInputStream(new GZIPInputStream(in, 1 << 16));
+      } else if(VALUE_ARCHIVE_TAR_ZST.equals(archiveFormat)) {
+        in = new BufferedInputStream(new ZstdCompressorInputStream(in));
+      }
+    } catch(IOException | RuntimeException | LinkageError e) {
+      try {
+        in.close();
+      } catch(IOException e2) {
+        e.addSuppressed(e2);
+      }
+      throw e;
+    }
+    if(VALUE_ARCHIVE_ZIP.equals(archiveFormat)) {
+      // entries stored with a data descriptor can only be read if we are
+      // allowed to search for the descriptor
+      return new ZipArchiveInputStream(in, fileNameEncoding, true, true);
+    } else {
+      return new TarArchiveInputStream(in, fileNameEncoding);
+    }
+  }
+
+  public DocumentData nextDocument() throws IOException, GateException {
+    if(archiveStream == null) {
+      logger.debug("Opening archive {}", archiveUri);
+      archiveStream = openArchive();
+    }
+    ArchiveEntry entry;
+    while((entry = archiveStream.getNextEntry()) != null) {
+      if(entry.isDirectory()) {
+        continue;
+      }
+      String name = entry.getName();
+      if(!matcher.matches(name)) {
+        continue;
+      }
+      if(completedDocuments != null && completedDocuments.contains(name)) {
+        // already processed, ignore
+        continue;
+      }
+      if(!archiveStream.canReadEntryData(entry)) {
+        logger.warn("Cannot read data for archive entry {} - skipped", name);
+        continue;
+      }
+      long size = entry.getSize();
+      if(size > maxEntrySize) {
+        logger.warn("Archive entry {} is {} bytes, larger than the maximum "
+                + "of {} - skipped", name, size, maxEntrySize);
+        continue;
+      }
+      DocumentID id = new DocumentID(name);
+      try {
+        RawDocument raw;
+        if(size >= 0) {
+          // the entry is only read if the pre-filters need more than its
+          // size, otherwise it is skipped by the next getNextEntry()
+          raw = new RawDocument(id, size, mimeType, encoding) {
+            protected byte[] loadContent() throws IOException {
+              return readEntry(name, size);
+            }
+          };
+        } else {
+          raw = new RawDocument(id, readEntry(name, -1), mimeType, encoding);
+        }
+        if(preFilter != null) {
+          String reason = preFilter.check(raw);
+          if(reason != null) {
+            return DocumentData.filtered(id, reason, raw.getSize());
+          }
+        }
+        byte[] content = raw.getContent();
+        DocumentData docData = new DocumentData(createDocument(name, content),
+                id);
+        docData.fileSize = content.length;
+        return docData;
+      } catch(EntryTooLargeException e) {
+        logger.warn(e.getMessage() + " - skipped");
+      } catch(Exception e) {
+        logger.warn("Error encountered while parsing document with ID "
+                + name + " - skipped", e);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Read the content of the current entry, reading no more than the
+   * maximum entry size.
+   *
+   * @param name the entry name, for error messages
+   * @param size the size of the entry, or -1 if it is not known
+   * @throws EntryTooLargeException if the entry is larger than the
+   *           maximum entry size.
+   */
+  protected byte[] readEntry(String name, long size) throws IOException {
+    ByteArrayOutputStream out =
+            new ByteArrayOutputStream(size >= 0 ? (int)size : 8192);
+    byte[] buf = new byte[8192];
+    long total = 0;
+    int read;
+    while((read = archiveStream.read(buf)) >= 0) {
+      total += read;
+      if(total > maxEntrySize) {
+        throw new EntryTooLargeException("Archive entry " + name
+                + " is larger than the maximum of " + maxEntrySize + " bytes");
+      }
+      out.write(buf, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Thrown by {@link #readEntry} when an entry is too large to read.
+   */
+  protected static class EntryTooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public EntryTooLargeException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Create a GATE document from the content of an archive entry.
+   */
+  protected Document createDocument(String name, byte[] content)
+          throws IOException, GateException {
+    URL docUrl = new URL(null, "jar:" + archiveUri + "!/" + name,
+            new ByteArrayURLStreamHandler(content));
+    FeatureMap params = Factory.newFeatureMap();
+    params.put(Document.DOCUMENT_URL_PARAMETER_NAME, docUrl);
+    if(mimeType != null && mimeType.length() > 0) {
+      params.put(Document.DOCUMENT_MIME_TYPE_PARAMETER_NAME, mimeType);
+    }
+    if(encoding != null && encoding.length() > 0) {
+      params.put(Document.DOCUMENT_ENCODING_PARAMETER_NAME, encoding);
+    }
+    params.put(Document.DOCUMENT_MARKUP_AWARE_PARAMETER_NAME, Boolean.TRUE);
+    if(repositioningInfo) {
+      params.put(Document.DOCUMENT_REPOSITIONING_PARAMETER_NAME, Boolean.TRUE);
+    }
+    return (Document)Factory.createResource("gate.corpora.DocumentImpl",
+            params, Factory.newFeatureMap(), name);
+  }
+
+  public void close() throws IOException, GateException {
+    if(archiveStream != null) {
+      archiveStream.close();
+      archiveStream = null;
+    }
+  }
+}
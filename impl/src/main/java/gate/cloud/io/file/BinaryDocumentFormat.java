@@ -0,0 +1,594 @@
+/*
+ *  BinaryDocumentFormat.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io.file;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.util.InvalidOffsetException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reader and writer for GCP's compact binary document format, written by
+ * {@link BinaryDocumentOutputHandler} and read by
+ * {@link BinaryDocumentInputHandler}.
+ * <p>
+ * A file consists of the four ASCII bytes <code>GCPB</code> and a version
+ * byte, followed by the document features, the document text, and the
+ * annotation sets.  All integers are written as variable-length
+ * quantities (7 bits per byte, low-order group first, with signed values
+ * zig-zag encoded so that small negative numbers are also short).
+ * <p>
+ * Annotation set names, annotation types, feature names and short string
+ * feature values are written using a string table that is built on the
+ * fly: the first occurrence of a string is written as a zero followed by
+ * the string itself, and is assigned the next index in the table; every
+ * later occurrence is written as just its table index plus one.
+ * <p>
+ * Within each annotation set, annotations are written in order of start
+ * offset, each start offset as the difference from the previous
+ * annotation's start offset and each end offset as the length of the
+ * annotation, so the offsets of a typical set take one or two bytes each.
+ * Feature values are tagged with their type so that strings, booleans,
+ * integers, longs, floats, doubles, lists and maps round-trip exactly;
+ * other {@link Serializable} values are stored using Java serialization,
+ * and values that are not serializable are stored as their
+ * <code>toString()</code>.
+ * <p>
+ * Relation sets are not currently stored.
+ */
+public class BinaryDocumentFormat {
+
+  private static final byte[] MAGIC = "GCPB".getBytes(StandardCharsets.US_ASCII);
+
+  /**
+   * The current format version.
+   */
+  public static final byte VERSION = 1;
+
+  /**
+   * String feature values up to this length are stored in the string
+   * table, longer values are written inline.
+   */
+  protected static final int MAX_TABLE_VALUE_LENGTH = 64;
+
+  // type tags for feature values
+  protected static final int TYPE_NULL = 0;
+
+  protected static final int TYPE_STRING = 1;
+
+  protected static final int TYPE_LONG_STRING = 2;
+
+  protected static final int TYPE_TRUE = 3;
+
+  protected static final int TYPE_FALSE = 4;
+
+  protected static final int TYPE_INTEGER = 5;
+
+  protected static final int TYPE_LONG = 6;
+
+  protected static final int TYPE_DOUBLE = 7;
+
+  protected static final int TYPE_FLOAT = 8;
+
+  protected static final int TYPE_LIST = 9;
+
+  protected static final int TYPE_MAP = 10;
+
+  protected static final int TYPE_SET = 11;
+
+  protected static final int TYPE_SERIALIZED = 12;
+
+  protected static final int TYPE_SHORT = 13;
+
+  protected static final int TYPE_BYTE = 14;
+
+  protected static final int TYPE_CHARACTER = 15;
+
+  private static final Comparator<Annotation> OFFSET_ORDER =
+          new Comparator<Annotation>() {
+            public int compare(Annotation a1, Annotation a2) {
+              int c = a1.getStartNode().getOffset()
+                      .compareTo(a2.getStartNode().getOffset());
+              return c != 0 ? c : a1.getId().compareTo(a2.getId());
+            }
+          };
+
+  /**
+   * Encode a single feature value on its own, as it would be written in a
+   * document.  A value that has not changed (even if it is a mutable
+   * object such as a list) encodes to the same bytes, so the encodings
+   * can be compared to detect changes.
+   */
+  public static byte[] encodeValue(Object value) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    new Writer(out).writeValue(value);
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Writes the primitive values of the format: variable-length integers,
+   * length-prefixed UTF-8 strings, and strings from the string table.
+   * These are also used by other GCP binary formats, such as
+   * {@link gate.cloud.batch.BinaryReportSink}.  An encoder maintains a
+   * single string table, which must be read back by a single
+   * {@link Decoder}.
+   */
+  public static class Encoder {
+    protected DataOutputStream out;
+
+    protected Map<String, Integer> stringTable = new HashMap<String, Integer>();
+
+    public Encoder(DataOutputStream out) {
+      this.out = out;
+    }
+
+    /**
+     * Write a string using the string table.
+     */
+    public void writeTableString(String s) throws IOException {
+      Integer index = stringTable.get(s);
+      if(index == null) {
+        stringTable.put(s, stringTable.size());
+        writeVarint(0);
+        writeLongString(s);
+      } else {
+        writeVarint(index + 1);
+      }
+    }
+
+    /**
+     * Write a string as its length in bytes followed by its UTF-8
+     * encoding, without using the string table.
+     */
+    public void writeLongString(String s) throws IOException {
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      writeVarint(bytes.length);
+      out.write(bytes);
+    }
+
+    /**
+     * Write an int as an unsigned variable-length quantity.
+     */
+    public void writeVarint(int value) throws IOException {
+      writeVarlong(value & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Write a long as a zig-zag encoded variable-length quantity.
+     */
+    public void writeSignedVarlong(long value) throws IOException {
+      writeVarlong((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Write a long as an unsigned variable-length quantity.
+     */
+    public void writeVarlong(long value) throws IOException {
+      while((value & ~0x7FL) != 0) {
+        out.writeByte((int)((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      out.writeByte((int)value);
+    }
+  }
+
+  /**
+   * Reads the primitive values written by an {@link Encoder}.
+   */
+  public static class Decoder {
+    protected DataInputStream in;
+
+    protected List<String> stringTable = new ArrayList<String>();
+
+    public Decoder(DataInputStream in) {
+      this.in = in;
+    }
+
+    public String readTableString() throws IOException {
+      int index = readVarint();
+      if(index == 0) {
+        String s = readLongString();
+        stringTable.add(s);
+        return s;
+      } else if(index < 0 || index > stringTable.size()) {
+        throw new IOException("Invalid string table reference " + index);
+      }
+      return stringTable.get(index - 1);
+    }
+
+    public String readLongString() throws IOException {
+      int length = readVarint();
+      if(length < 0) {
+        throw new IOException("Invalid string length " + (length & 0xFFFFFFFFL));
+      }
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public int readVarint() throws IOException {
+      return (int)readVarlong();
+    }
+
+    public long readSignedVarlong() throws IOException {
+      long raw = readVarlong();
+      return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    public long readVarlong() throws IOException {
+      long value = 0;
+      int shift = 0;
+      while(shift < 64) {
+        int b = in.read();
+        if(b < 0) {
+          throw new EOFException();
+        }
+        value |= (long)(b & 0x7F) << shift;
+        if((b & 0x80) == 0) {
+          return value;
+        }
+        shift += 7;
+      }
+      throw new IOException("Malformed variable-length integer");
+    }
+  }
+
+  /**
+   * Writes documents to a stream.  A writer maintains the string table for
+   * a single document, so a new writer must be used for each document.
+   */
+  public static class Writer extends Encoder {
+
+    public Writer(DataOutputStream out) {
+      super(out);
+    }
+
+    /**
+     * Write the given document, with the given annotations.
+     *
+     * @param document the document
+     * @param annotationSetsMap the annotations to write, keyed by set name
+     *          (<code>null</code> for the default set).
+     */
+    public void writeDocument(Document document,
+            Map<String, Collection<Annotation>> annotationSetsMap)
+            throws IOException {
+      out.write(MAGIC);
+      out.writeByte(VERSION);
+      writeFeatures(document.getFeatures());
+      writeLongString(document.getContent().toString());
+      writeAnnotationSets(annotationSetsMap);
+      out.flush();
+    }
+
+    /**
+     * Write just the given features and annotations, without the magic
+     * number or the document text.  This is for use where the text is
+     * known by other means, and the data is read back with
+     * {@link Reader#readAnnotations}.
+     *
+     * @param features the document features to write
+     * @param annotationSetsMap the annotations to write, keyed by set name
+     *          (<code>null</code> for the default set).
+     */
+    public void writeAnnotations(FeatureMap features,
+            Map<String, Collection<Annotation>> annotationSetsMap)
+            throws IOException {
+      writeFeatures(features);
+      writeAnnotationSets(annotationSetsMap);
+      out.flush();
+    }
+
+    protected void writeAnnotationSets(
+            Map<String, Collection<Annotation>> annotationSetsMap)
+            throws IOException {
+      writeVarint(annotationSetsMap.size());
+      for(Map.Entry<String, Collection<Annotation>> set : annotationSetsMap
+              .entrySet()) {
+        if(set.getKey() == null) {
+          out.writeByte(0);
+        } else {
+          out.writeByte(1);
+          writeTableString(set.getKey());
+        }
+        Collection<Annotation> annots = set.getValue();
+        Annotation[] sorted = annots.toArray(new Annotation[annots.size()]);
+        Arrays.sort(sorted, OFFSET_ORDER);
+        writeVarint(sorted.length);
+        long prevStart = 0;
+        int prevId = 0;
+        for(Annotation a : sorted) {
+          long start = a.getStartNode().getOffset();
+          long end = a.getEndNode().getOffset();
+          writeVarlong(start - prevStart);
+          writeVarlong(end - start);
+          writeSignedVarlong(a.getId() - prevId);
+          writeTableString(a.getType());
+          writeFeatures(a.getFeatures());
+          prevStart = start;
+          prevId = a.getId();
+        }
+      }
+    }
+
+    protected void writeFeatures(FeatureMap features) throws IOException {
+      if(features == null) {
+        writeVarint(0);
+        return;
+      }
+      writeVarint(features.size());
+      for(Map.Entry<Object, Object> f : features.entrySet()) {
+        writeValue(f.getKey());
+        writeValue(f.getValue());
+      }
+    }
+
+    protected void writeValue(Object value) throws IOException {
+      if(value == null) {
+        writeVarint(TYPE_NULL);
+      } else if(value instanceof String) {
+        String s = (String)value;
+        if(s.length() <= MAX_TABLE_VALUE_LENGTH) {
+          writeVarint(TYPE_STRING);
+          writeTableString(s);
+        } else {
+          writeVarint(TYPE_LONG_STRING);
+          writeLongString(s);
+        }
+      } else if(value instanceof Boolean) {
+        writeVarint(((Boolean)value) ? TYPE_TRUE : TYPE_FALSE);
+      } else if(value instanceof Integer) {
+        writeVarint(TYPE_INTEGER);
+        writeSignedVarlong((Integer)value);
+      } else if(value instanceof Long) {
+        writeVarint(TYPE_LONG);
+        writeSignedVarlong((Long)value);
+      } else if(value instanceof Short) {
+        writeVarint(TYPE_SHORT);
+        writeSignedVarlong((Short)value);
+      } else if(value instanceof Byte) {
+        writeVarint(TYPE_BYTE);
+        out.writeByte((Byte)value);
+      } else if(value instanceof Character) {
+        writeVarint(TYPE_CHARACTER);
+        writeVarint((Character)value);
+      } else if(value instanceof Double) {
+        writeVarint(TYPE_DOUBLE);
+        out.writeDouble((Double)value);
+      } else if(value instanceof Float) {
+        writeVarint(TYPE_FLOAT);
+        out.writeFloat((Float)value);
+      } else if(value instanceof List) {
+        writeVarint(TYPE_LIST);
+        List<?> list = (List<?>)value;
+        writeVarint(list.size());
+        for(Object o : list) {
+          writeValue(o);
+        }
+      } else if(value instanceof Set) {
+        writeVarint(TYPE_SET);
+        Set<?> set = (Set<?>)value;
+        writeVarint(set.size());
+        for(Object o : set) {
+          writeValue(o);
+        }
+      } else if(value instanceof Map && !(value instanceof FeatureMap)) {
+        writeVarint(TYPE_MAP);
+        Map<?, ?> map = (Map<?, ?>)value;
+        writeVarint(map.size());
+        for(Map.Entry<?, ?> e : map.entrySet()) {
+          writeValue(e.getKey());
+          writeValue(e.getValue());
+        }
+      } else if(value instanceof Serializable) {
+        writeVarint(TYPE_SERIALIZED);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(value);
+        oos.close();
+        writeVarint(baos.size());
+        baos.writeTo(out);
+      } else {
+        writeValue(String.valueOf(value));
+      }
+    }
+  }
+
+  /**
+   * Reads documents from a stream.  A reader maintains the string table for
+   * a single document, so a new reader must be used for each document.
+   */
+  public static class Reader extends Decoder {
+
+    public Reader(DataInputStream in) {
+      super(in);
+    }
+
+    /**
+     * Read a document, creating a new GATE document to hold it.
+     *
+     * @param documentName the name to give the new document.
+     */
+    public Document readDocument(String documentName) throws IOException,
+            gate.util.GateException {
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      if(!Arrays.equals(magic, MAGIC)) {
+        throw new IOException("Not a GCP binary document");
+      }
+      byte version = in.readByte();
+      if(version != VERSION) {
+        throw new IOException("Unsupported GCP binary document version "
+                + version);
+      }
+      FeatureMap docFeatures = readFeatures();
+      String content = readLongString();
+      FeatureMap params = Factory.newFeatureMap();
+      params.put(Document.DOCUMENT_STRING_CONTENT_PARAMETER_NAME, content);
+      Document doc =
+              (Document)Factory.createResource("gate.corpora.DocumentImpl",
+                      params, docFeatures, documentName);
+      try {
+        readAnnotationSets(doc);
+      } catch(IOException | RuntimeException e) {
+        Factory.deleteResource(doc);
+        throw e;
+      }
+      return doc;
+    }
+
+    /**
+     * Read features and annotations written by
+     * {@link Writer#writeAnnotations}, adding the annotations to the given
+     * document, which must have the same text as the document from which
+     * they were written.
+     *
+     * @param document the document to which the annotations will be added.
+     * @return the features that were read.
+     */
+    public FeatureMap readAnnotations(Document document) throws IOException {
+      FeatureMap features = readFeatures();
+      readAnnotationSets(document);
+      return features;
+    }
+
+    protected void readAnnotationSets(Document doc) throws IOException {
+      int numSets = readVarint();
+      for(int i = 0; i < numSets; i++) {
+        AnnotationSet set;
+        if(in.readByte() == 0) {
+          set = doc.getAnnotations();
+        } else {
+          set = doc.getAnnotations(readTableString());
+        }
+        int numAnnots = readVarint();
+        long start = 0;
+        int id = 0;
+        for(int j = 0; j < numAnnots; j++) {
+          start += readVarlong();
+          long end = start + readVarlong();
+          id += (int)readSignedVarlong();
+          String type = readTableString();
+          FeatureMap features = readFeatures();
+          try {
+            set.add(id, start, end, type, features);
+          } catch(InvalidOffsetException e) {
+            throw (IOException)new IOException("Invalid annotation offsets")
+                    .initCause(e);
+          }
+        }
+      }
+    }
+
+    protected FeatureMap readFeatures() throws IOException {
+      FeatureMap fm = Factory.newFeatureMap();
+      int size = readVarint();
+      for(int i = 0; i < size; i++) {
+        Object key = readValue();
+        fm.put(key, readValue());
+      }
+      return fm;
+    }
+
+    protected Object readValue() throws IOException {
+      int type = readVarint();
+      switch(type) {
+        case TYPE_NULL:
+          return null;
+        case TYPE_STRING:
+          return readTableString();
+        case TYPE_LONG_STRING:
+          return readLongString();
+        case TYPE_TRUE:
+          return Boolean.TRUE;
+        case TYPE_FALSE:
+          return Boolean.FALSE;
+        case TYPE_INTEGER:
+          return Integer.valueOf((int)readSignedVarlong());
+        case TYPE_LONG:
+          return Long.valueOf(readSignedVarlong());
+        case TYPE_SHORT:
+          return Short.valueOf((short)readSignedVarlong());
+        case TYPE_BYTE:
+          return Byte.valueOf(in.readByte());
+        case TYPE_CHARACTER:
+          return Character.valueOf((char)readVarint());
+        case TYPE_DOUBLE:
+          return Double.valueOf(in.readDouble());
+        case TYPE_FLOAT:
+          return Float.valueOf(in.readFloat());
+        case TYPE_LIST: {
+          int size = readVarint();
+          List<Object> list = new ArrayList<Object>(size);
+          for(int i = 0; i < size; i++) {
+            list.add(readValue());
+          }
+          return list;
+        }
+        case TYPE_SET: {
+          int size = readVarint();
+          Set<Object> set = new HashSet<Object>();
+          for(int i = 0; i < size; i++) {
+            set.add(readValue());
+          }
+          return set;
+        }
+        case TYPE_MAP: {
+          int size = readVarint();
+          Map<Object, Object> map = new HashMap<Object, Object>();
+          for(int i = 0; i < size; i++) {
+            Object key = readValue();
+            map.put(key, readValue());
+          }
+          return map;
+        }
+        case TYPE_SERIALIZED: {
+          byte[] data = new byte[readVarint()];
+          in.readFully(data);
+          ObjectInputStream ois =
+                  new ObjectInputStream(new ByteArrayInputStream(data));
+          try {
+            return ois.readObject();
+          } catch(ClassNotFoundException e) {
+            throw (IOException)new IOException(
+                    "Could not deserialize feature value").initCause(e);
+          } finally {
+            ois.close();
+          }
+        }
+        default:
+          throw new IOException("Unknown feature value type " + type);
+      }
+    }
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ *  BinaryDocumentInputHandler.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io.file;
+
+import static gate.cloud.io.IOConstants.VALUE_COMPRESSION_GZIP;
+import static gate.cloud.io.IOConstants.VALUE_COMPRESSION_SNAPPY;
+import gate.Document;
+import gate.cloud.batch.DocumentID;
+import gate.cloud.io.DocumentData;
+import gate.cloud.io.DocumentPreFilter;
+import gate.util.GateException;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xerial.snappy.SnappyInputStream;
+
+/**
+ * Input handler that loads documents previously saved by a
+ * {@link BinaryDocumentOutputHandler}.  Files are located using the
+ * configured naming strategy, exactly as for the {@link FileInputHandler},
+ * and may be compressed in the same ways.  The document text, features and
+ * annotations are restored directly from the file, no document format
+ * parsing takes place, so the <code>mimeType</code> and
+ * <code>encoding</code> parameters are ignored.
+ */
+public class BinaryDocumentInputHandler extends FileInputHandler {
+
+  private static Logger logger =
+          LoggerFactory.getLogger(BinaryDocumentInputHandler.class);
+
+  /**
+   * The files hold serialized documents rather than their original
+   * content, so pre-filters cannot be applied.
+   */
+  @Override
+  public void setPreFilter(DocumentPreFilter filter) {
+    if(filter != null) {
+      logger.warn("Pre-filters are not supported for binary documents - "
+              + "they will be ignored");
+    }
+  }
+
+  @Override
+  public DocumentData getInputDocument(DocumentID id) throws IOException,
+          GateException {
+    File docFile = namingStrategy.toFile(id);
+    logger.debug("Loading binary document from file {}", docFile);
+    InputStream stream = new FileInputStream(docFile);
+    try {
+      if(compression.equals(VALUE_COMPRESSION_GZIP)) {
+        stream = new GZIPInputStream(stream);
+      } else if(compression.equals(VALUE_COMPRESSION_SNAPPY)) {
+        stream = new SnappyInputStream(stream);
+      }
+      Document doc =
+              new BinaryDocumentFormat.Reader(new DataInputStream(
+                      new BufferedInputStream(stream))).readDocument(id
+                      .toString());
+      DocumentData docData = new DocumentData(doc, id);
+      docData.fileSize = docFile.length();
+      return docData;
+    } finally {
+      stream.close();
+    }
+  }
+
+}
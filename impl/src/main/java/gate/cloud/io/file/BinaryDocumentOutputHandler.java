@@ -0,0 +1,96 @@
+/*
+ *  BinaryDocumentOutputHandler.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io.file;
+
+import static gate.cloud.io.IOConstants.PARAM_ENCODING;
+import static gate.cloud.io.IOConstants.PARAM_FILE_EXTENSION;
+import gate.Annotation;
+import gate.Document;
+import gate.cloud.batch.DocumentID;
+import gate.cloud.io.AnnotationSnapshot;
+import gate.util.Benchmark;
+import gate.util.GateException;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Output handler that writes documents in GCP's compact binary document
+ * format (see {@link BinaryDocumentFormat}), which can be read back by a
+ * {@link BinaryDocumentInputHandler}.  This is intended for multi-stage
+ * processing, where the output of one GCP batch is the input to another,
+ * as it is much faster to write and to load than either standoff XML or
+ * Java serialization.  The annotation set definitions of the output
+ * handler are respected, as for the XML output handlers.
+ */
+public class BinaryDocumentOutputHandler extends AbstractFileOutputHandler {
+
+  private static final Logger logger =
+          LoggerFactory.getLogger(BinaryDocumentOutputHandler.class);
+
+  @Override
+  protected void configImpl(Map<String, String> configData) throws IOException,
+          GateException {
+    // make sure we default to .gcpb as the extension
+    if(!configData.containsKey(PARAM_FILE_EXTENSION)) {
+      configData.put(PARAM_FILE_EXTENSION, ".gcpb");
+    }
+    if(configData.containsKey(PARAM_ENCODING)) {
+      logger.warn("{} does not support the {} parameter - ignored",
+              this.getClass().getName(), PARAM_ENCODING);
+    }
+    super.configImpl(configData);
+  }
+
+  /**
+   * This handler only reads the document, so it may run at the same time
+   * as other handlers.
+   */
+  @Override
+  public boolean supportsConcurrentExport() {
+    return true;
+  }
+
+  @Override
+  protected void outputDocumentImpl(Document document, DocumentID documentId)
+          throws IOException, GateException {
+    outputDocumentImpl(document, documentId, null);
+  }
+
+  @Override
+  protected void outputDocumentImpl(Document document, DocumentID documentId,
+          AnnotationSnapshot snapshot) throws IOException, GateException {
+    Map<String, Collection<Annotation>> annotationSetsMap =
+            collectAnnotations(document, snapshot);
+    OutputStream fileStream = getFileOutputStream(documentId);
+    DataOutputStream outputStream = new DataOutputStream(fileStream);
+    boolean written = false;
+    try {
+      String saveBID =
+              Benchmark.createBenchmarkId("saveBinary", document.getName());
+      long startTime = Benchmark.startPoint();
+      new BinaryDocumentFormat.Writer(outputStream).writeDocument(document,
+              annotationSetsMap);
+      Benchmark.checkPoint(startTime, saveBID, this, null);
+      written = true;
+    } finally {
+      if(!written) {
+        discardFileOutputStream(fileStream);
+      }
+      outputStream.close();
+    }
+  }
+
+}
@@ -0,0 +1,104 @@
+/*
+ *  FastInfosetOutputHandler.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io.file;
+
+import static gate.cloud.io.IOConstants.PARAM_FILE_EXTENSION;
+import gate.Annotation;
+import gate.Document;
+import gate.corpora.DocumentStaxUtils;
+import gate.util.Benchmark;
+import gate.util.GateException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamException;
+
+import com.sun.xml.fastinfoset.stax.StAXDocumentSerializer;
+
+/**
+ * Output handler that saves documents in the GATE XML format, encoded as
+ * FastInfoset binary XML.  The output can be loaded by GATE when the
+ * <code>Format: FastInfoset</code> plugin is loaded.
+ * <p>
+ * Each processing thread keeps its own serializer, which is reset and
+ * pointed at the next output stream for every document rather than being
+ * created afresh, so the serializer's internal buffers and vocabulary
+ * tables are allocated once per thread and re-used.  The vocabulary is
+ * cleared between documents, so every output file is self-contained and
+ * can be read by any standard FastInfoset parser.  The default file
+ * extension is <code>.finf</code>.
+ */
+public class FastInfosetOutputHandler extends GATEStandOffFileOutputHandler {
+
+  /**
+   * Per-thread serializers.
+   */
+  private static final ThreadLocal<StAXDocumentSerializer> serializers =
+          new ThreadLocal<StAXDocumentSerializer>() {
+            @Override
+            protected StAXDocumentSerializer initialValue() {
+              return new StAXDocumentSerializer();
+            }
+          };
+
+  @Override
+  protected void configImpl(Map<String, String> configData) throws IOException,
+          GateException {
+    // default to .finf rather than the .xml of the superclass
+    if(!configData.containsKey(PARAM_FILE_EXTENSION)) {
+      configData.put(PARAM_FILE_EXTENSION, ".finf");
+    }
+    super.configImpl(configData);
+  }
+
+  @Override
+  protected void writeDocument(Document document,
+          Map<String, Collection<Annotation>> annotationSetsMap,
+          OutputStream outputStream) throws IOException {
+    writeFastInfoset(document, annotationSetsMap, outputStream, this);
+  }
+
+  /**
+   * Write the given document as FastInfoset to the given stream, using the
+   * current thread's serializer.  The stream is not closed.
+   *
+   * @param document the document to write
+   * @param annotationSetsMap the annotations to include
+   * @param outputStream the stream to write to
+   * @param caller the object to report to the GATE benchmark log.
+   * @throws IOException if an error occurs writing the document
+   */
+  public static void writeFastInfoset(Document document,
+          Map<String, Collection<Annotation>> annotationSetsMap,
+          OutputStream outputStream, Object caller) throws IOException {
+    StAXDocumentSerializer xsw = serializers.get();
+    xsw.setOutputStream(outputStream);
+    try {
+      xsw.writeStartDocument();
+      String saveFinfBID =
+              Benchmark.createBenchmarkId("saveFastInfoset", document.getName());
+      long startTime = Benchmark.startPoint();
+      DocumentStaxUtils.writeDocument(document, annotationSetsMap, xsw, "");
+      Benchmark.checkPoint(startTime, saveFinfBID, caller, null);
+      // this flushes the serializer's buffer to the stream
+      xsw.writeEndDocument();
+    } catch(XMLStreamException e) {
+      throw (IOException)new IOException("Error writing FastInfoset")
+              .initCause(e);
+    } finally {
+      // clear the vocabulary and drop the reference to the stream, ready
+      // for the next document
+      xsw.reset();
+      xsw.setOutputStream(null);
+    }
+  }
+}
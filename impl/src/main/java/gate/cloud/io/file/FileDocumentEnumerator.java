@@ -13,6 +13,10 @@ package gate.cloud.io.file;
 
 import static gate.cloud.io.IOConstants.PARAM_BATCH_FILE_LOCATION;
 import static gate.cloud.io.IOConstants.PARAM_DOCUMENT_ROOT;
+import static gate.cloud.io.IOConstants.PARAM_SCAN_ORDER;
+import static gate.cloud.io.IOConstants.PARAM_SCAN_THREADS;
+import static gate.cloud.io.IOConstants.VALUE_SCAN_ORDER_DIRECTORY;
+import static gate.cloud.io.IOConstants.VALUE_SCAN_ORDER_NONE;
 import gate.cloud.io.AntBasedDocumentEnumerator;
 import gate.util.GateException;
 
@@ -21,9 +25,25 @@ import java.io.IOException;
 import java.util.Map;
 
 import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.resources.FileResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Enumerator for the files under a directory.  By default the directory
+ * is scanned with an Ant fileset and the complete sorted list of files
+ * built before the first ID is returned.  If <code>scanThreads</code> is
+ * set, the tree is instead walked in parallel by a
+ * {@link ParallelDirectoryWalker} and IDs are returned as soon as they
+ * are found, and the enumerator is {@link #isStreaming() streaming}, so
+ * the batch starts processing documents while the walk is still going
+ * on.
+ */
 public class FileDocumentEnumerator extends AntBasedDocumentEnumerator {
 
+  private static final Logger logger =
+          LoggerFactory.getLogger(FileDocumentEnumerator.class);
+
   /**
    * The top-level directory containing the document files.
    */
@@ -36,6 +56,23 @@ public class FileDocumentEnumerator extends AntBasedDocumentEnumerator {
    */
   protected File batchDir;
 
+  /**
+   * Number of threads for a parallel walk, or 0 to use an Ant
+   * DirectoryScanner.
+   */
+  protected int scanThreads;
+
+  /**
+   * Should a parallel walk return the files in each directory in name
+   * order?
+   */
+  protected boolean scanSorted;
+
+  /**
+   * The walker, if this enumerator is using a parallel walk.
+   */
+  protected ParallelDirectoryWalker walker;
+
   public void config(Map<String, String> configData) throws GateException,
           IOException {
     super.config(configData);
@@ -65,6 +102,73 @@ public class FileDocumentEnumerator extends AntBasedDocumentEnumerator {
               + "\", provided as value for required parameter \""
               + PARAM_DOCUMENT_ROOT + "\", is not a directory!");
     }
+
+    String scanThreadsStr = configData.get(PARAM_SCAN_THREADS);
+    if(scanThreadsStr != null && scanThreadsStr.trim().length() > 0) {
+      try {
+        scanThreads = Integer.parseInt(scanThreadsStr.trim());
+      } catch(NumberFormatException e) {
+        throw new IllegalArgumentException("Value \"" + scanThreadsStr
+                + "\" for parameter \"" + PARAM_SCAN_THREADS
+                + "\" is not a valid integer", e);
+      }
+    }
+    String scanOrder = configData.get(PARAM_SCAN_ORDER);
+    if(scanOrder == null || VALUE_SCAN_ORDER_DIRECTORY.equals(scanOrder)) {
+      scanSorted = true;
+    } else if(VALUE_SCAN_ORDER_NONE.equals(scanOrder)) {
+      scanSorted = false;
+    } else {
+      throw new IllegalArgumentException("Value \"" + scanOrder
+              + "\" for parameter \"" + PARAM_SCAN_ORDER
+              + "\" is not valid, must be \"" + VALUE_SCAN_ORDER_DIRECTORY
+              + "\" or \"" + VALUE_SCAN_ORDER_NONE + "\"");
+    }
+  }
+
+  @Override
+  public void init() throws IOException, GateException {
+    if(scanThreads <= 0) {
+      super.init();
+      return;
+    }
+    walker = new ParallelDirectoryWalker(documentRoot, includes, excludes,
+            defaultExcludes, scanSorted, scanThreads) {
+      @Override
+      protected boolean accept(String path, File file) throws IOException {
+        if(manifest == null) {
+          return true;
+        }
+        String state = documentState(new FileResource(file));
+        if(manifest.isUnchanged(prefix + path, state)) {
+          return false;
+        }
+        manifest.pending(prefix + path, state);
+        return true;
+      }
+    };
+    walker.start();
+    antIterator = walker;
+  }
+
+  /**
+   * A parallel walk streams its IDs to the batch.
+   */
+  @Override
+  public boolean isStreaming() {
+    return scanThreads > 0;
+  }
+
+  @Override
+  public boolean hasNext() {
+    boolean hasNext = super.hasNext();
+    if(!hasNext && walker != null && manifest != null) {
+      logger.info("{} of {} documents are new or changed since the last run",
+              walker.getAcceptedFileCount(), walker.getMatchedFileCount());
+      // only log once
+      walker = null;
+    }
+    return hasNext;
   }
 
   protected FileSet createFileSet() {
@@ -18,8 +18,10 @@ import gate.FeatureMap;
 import gate.Gate;
 import gate.cloud.batch.DocumentID;
 import gate.cloud.io.DocumentData;
+import gate.cloud.io.DocumentPreFilter;
 import gate.cloud.io.IOConstants;
-import gate.cloud.io.InputHandler;
+import gate.cloud.io.PreFilteringInputHandler;
+import gate.cloud.io.RawDocument;
 import gate.cloud.util.GZIPURLStreamHandler;
 import gate.cloud.util.SnappyURLStreamHandler;
 import gate.util.GateException;
@@ -37,7 +39,7 @@ import java.util.Map;
  * document IDs are interpreted as /-separated paths, starting from the document
  * root.   
  */
-public class FileInputHandler implements InputHandler {
+public class FileInputHandler implements PreFilteringInputHandler {
   
   private static Logger logger = LoggerFactory.getLogger(FileInputHandler.class);
   
@@ -56,6 +58,12 @@ public class FileInputHandler implements InputHandler {
    */
   protected String encoding;
 
+  /**
+   * Filter applied to each document before it is created, or
+   * <code>null</code> to accept every document.
+   */
+  protected DocumentPreFilter preFilter;
+
   /**
    * The type of compression used (one of {@link IOConstants#VALUE_COMPRESSION_NONE}, or
    * {@link IOConstants#VALUE_COMPRESSION_GZIP}).
@@ -128,6 +136,15 @@ public class FileInputHandler implements InputHandler {
       params.put(Document.DOCUMENT_REPOSITIONING_PARAMETER_NAME, Boolean.TRUE);
     }
     
+    if(preFilter != null) {
+      // the size is the compressed size for compressed files
+      String reason = preFilter.check(new RawDocument(id, docUrl,
+              docFile.length(), mimeType, encoding));
+      if(reason != null) {
+        return DocumentData.filtered(id, reason, docFile.length());
+      }
+    }
+
     logger.debug("Loading document from file {}", docFile);
 
     DocumentData docData = new DocumentData(
@@ -137,6 +154,10 @@ public class FileInputHandler implements InputHandler {
     return docData;
   }
 
+  public void setPreFilter(DocumentPreFilter filter) {
+    this.preFilter = filter;
+  }
+
   public void init() {
   }
   
@@ -14,6 +14,7 @@ package gate.cloud.io.file;
 import gate.Annotation;
 import gate.Document;
 import gate.cloud.batch.DocumentID;
+import gate.cloud.io.AnnotationSnapshot;
 import gate.util.Benchmark;
 import gate.util.GateException;
 
@@ -31,16 +32,23 @@ public class GATEInlineOutputHandler extends AbstractFileOutputHandler {
   
   protected boolean includeFeatures;
   
-  protected void outputDocumentImpl(Document document, DocumentID documentId) throws IOException,
-          GateException {
+  protected void outputDocumentImpl(Document document, DocumentID documentId)
+          throws IOException, GateException {
+    outputDocumentImpl(document, documentId, null);
+  }
+
+  protected void outputDocumentImpl(Document document, DocumentID documentId,
+          AnnotationSnapshot snapshot) throws IOException, GateException {
     //get a Benchmark ID
     String baseBenchmarkID = Benchmark.createBenchmarkId("saveInline", 
             document.getName());
-    Map<String, Collection<Annotation>> anns = collectAnnotations(document);
+    Map<String, Collection<Annotation>> anns =
+            collectAnnotations(document, snapshot);
     
     long startTime = Benchmark.startPoint();
     //use the default extension
     OutputStream outputStream = getFileOutputStream(documentId);
+    boolean written = false;
     try {
       OutputStreamWriter writer = new OutputStreamWriter(outputStream,
               (encoding == null || encoding.length() == 0 ? "UTF-8" : encoding));
@@ -50,12 +58,20 @@ public class GATEInlineOutputHandler extends AbstractFileOutputHandler {
           annotationsToSave.addAll(someAnnots);
         }
         writer.write(document.toXml(annotationsToSave, includeFeatures));
+        writer.flush();
+        written = true;
       }
       finally {
+        if(!written) {
+          discardFileOutputStream(outputStream);
+        }
         writer.close();
       }
     }
     finally {
+      if(!written) {
+        discardFileOutputStream(outputStream);
+      }
       // saveContent does not close the stream
       outputStream.close();
     }
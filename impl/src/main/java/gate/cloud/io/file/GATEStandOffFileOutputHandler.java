@@ -15,6 +15,7 @@ import static gate.cloud.io.IOConstants.PARAM_FILE_EXTENSION;
 import gate.Annotation;
 import gate.Document;
 import gate.cloud.batch.DocumentID;
+import gate.cloud.io.AnnotationSnapshot;
 import gate.cloud.io.OutputHandler;
 import gate.corpora.DocumentStaxUtils;
 import gate.util.Benchmark;
@@ -47,12 +48,53 @@ public class GATEStandOffFileOutputHandler extends AbstractFileOutputHandler {
     super.configImpl(configData);
   }
 
+  /**
+   * This handler only reads the document, so it may run at the same time
+   * as other handlers.
+   */
+  @Override
+  public boolean supportsConcurrentExport() {
+    return true;
+  }
+
   protected void outputDocumentImpl(Document document, DocumentID documentId)
           throws IOException, GateException {
+    outputDocumentImpl(document, documentId, null);
+  }
+
+  protected void outputDocumentImpl(Document document, DocumentID documentId,
+          AnnotationSnapshot snapshot) throws IOException, GateException {
     Map<String, Collection<Annotation>> annotationSetsMap =
-            collectAnnotations(document);
+            collectAnnotations(document, snapshot);
     // use the default extension
     OutputStream outputStream = getFileOutputStream(documentId); 
+    boolean written = false;
+    try {
+      writeDocument(document, annotationSetsMap, outputStream);
+      written = true;
+    }
+    finally {
+      if(!written) {
+        discardFileOutputStream(outputStream);
+      }
+      // closing the XSW doesn't close the stream (by design)
+      outputStream.close();
+    }
+  }
+
+  /**
+   * Write the given document with the selected annotations to the given
+   * stream.  The stream is not closed.
+   *
+   * @param document the document to write
+   * @param annotationSetsMap the annotations to include, as returned by
+   *          {@link #collectAnnotations(Document)}
+   * @param outputStream the stream to write to
+   * @throws IOException if an error occurs writing the document
+   */
+  protected void writeDocument(Document document,
+          Map<String, Collection<Annotation>> annotationSetsMap,
+          OutputStream outputStream) throws IOException {
     try {
       // determine the correct encoding to use
       String encodingValue = encoding;
@@ -76,9 +118,5 @@ public class GATEStandOffFileOutputHandler extends AbstractFileOutputHandler {
       throw (IOException)new IOException("Error writing GATE standoff XML")
               .initCause(e);
     }
-    finally {
-      // closing the XSW doesn't close the stream (by design)
-      outputStream.close();
-    }
   }
 }
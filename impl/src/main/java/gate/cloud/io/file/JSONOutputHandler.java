@@ -6,21 +6,21 @@ import gate.AnnotationSet;
 import gate.Document;
 import gate.Utils;
 import gate.cloud.batch.DocumentID;
+import gate.cloud.io.AnnotationSnapshot;
 import gate.corpora.DocumentJsonUtils;
 import gate.util.GateException;
-import gate.util.OffsetComparator;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonGenerator.Feature;
@@ -104,30 +104,108 @@ public class JSONOutputHandler extends AbstractFileOutputHandler {
     super.configImpl(configData);
   }
 
+  /**
+   * Orders annotations by type, then in the same order as an
+   * {@link gate.util.OffsetComparator}, then by ID.
+   */
+  private static final Comparator<Annotation> TYPE_OFFSET_ORDER =
+          new Comparator<Annotation>() {
+            public int compare(Annotation a1, Annotation a2) {
+              int c = a1.getType().compareTo(a2.getType());
+              if(c == 0) {
+                c = a1.getStartNode().getOffset()
+                        .compareTo(a2.getStartNode().getOffset());
+              }
+              if(c == 0) {
+                c = a1.getEndNode().getOffset()
+                        .compareTo(a2.getEndNode().getOffset());
+              }
+              if(c == 0) {
+                c = a1.getId().compareTo(a2.getId());
+              }
+              return c;
+            }
+          };
+
+  /**
+   * Scratch arrays used by {@link #groupByType}, re-used for each document
+   * processed by the same thread.
+   */
+  private static final ThreadLocal<Annotation[]> scratchArrays =
+          new ThreadLocal<Annotation[]>();
+
+  /**
+   * Scratch arrays larger than this are not kept for re-use.
+   */
+  private static final int MAX_RETAINED_SCRATCH_SIZE = 65536;
+
+  /**
+   * Regroup the given annotations by type, with the annotations of each
+   * type in offset order.  Rather than building and sorting a separate
+   * list for each type, all the annotations are copied into one (re-used)
+   * array which is sorted once by type and offset, so that the annotations
+   * of each type form a contiguous run of the array.  The returned map
+   * holds a lightweight list view of each run.  The map is only valid
+   * until the next call to this method on the same thread.
+   */
+  protected static Map<String, Collection<Annotation>> groupByType(
+          Map<String, Collection<Annotation>> annotationSetsMap) {
+    int total = 0;
+    for(Collection<Annotation> annSet : annotationSetsMap.values()) {
+      total += annSet.size();
+    }
+    Annotation[] all = scratchArrays.get();
+    if(all == null || all.length < total) {
+      all = new Annotation[Math.max(total, 256)];
+      if(all.length <= MAX_RETAINED_SCRATCH_SIZE) {
+        scratchArrays.set(all);
+      }
+    }
+    int count = 0;
+    for(Collection<Annotation> annSet : annotationSetsMap.values()) {
+      for(Annotation a : annSet) {
+        all[count++] = a;
+      }
+    }
+    Arrays.sort(all, 0, count, TYPE_OFFSET_ORDER);
+    Map<String, Collection<Annotation>> byType =
+            new LinkedHashMap<String, Collection<Annotation>>();
+    List<Annotation> allList = Arrays.asList(all);
+    int runStart = 0;
+    for(int i = 1; i <= count; i++) {
+      if(i == count || !all[i].getType().equals(all[runStart].getType())) {
+        byType.put(all[runStart].getType(), allList.subList(runStart, i));
+        runStart = i;
+      }
+    }
+    return byType;
+  }
+
+  /**
+   * This handler only reads the document, so it may run at the same time
+   * as other handlers, unless it has to look up a document annotation
+   * (which may build an index of the annotation set).
+   */
+  @Override
+  public boolean supportsConcurrentExport() {
+    return documentAnnotationType == null
+            || documentAnnotationType.length() == 0;
+  }
+
   @Override
   protected void outputDocumentImpl(Document document, DocumentID documentId)
           throws IOException, GateException {
+    outputDocumentImpl(document, documentId, null);
+  }
+
+  @Override
+  protected void outputDocumentImpl(Document document, DocumentID documentId,
+          AnnotationSnapshot snapshot) throws IOException, GateException {
     Map<String, Collection<Annotation>> annotationSetsMap =
-            collectAnnotations(document);
+            collectAnnotations(document, snapshot);
     // if groupEntitiesBy == "type" then we need to "invert" the map
     if("type".equals(groupEntitiesBy)) {
-      Map<String, Collection<Annotation>> originalMap = annotationSetsMap;
-      annotationSetsMap = new HashMap<String, Collection<Annotation>>();
-      for(Collection<Annotation> annSet : originalMap.values()) {
-        for(Annotation a : annSet) {
-          Collection<Annotation> annsByType =
-                  annotationSetsMap.get(a.getType());
-          if(annsByType == null) {
-            annsByType = new ArrayList<Annotation>();
-            annotationSetsMap.put(a.getType(), annsByType);
-          }
-          annsByType.add(a);
-        }
-      }
-      Comparator<Annotation> comparator = new OffsetComparator();
-      for(Collection<Annotation> annList : annotationSetsMap.values()) {
-        Collections.sort((List<Annotation>)annList, comparator);
-      }
+      annotationSetsMap = groupByType(annotationSetsMap);
     } else {
       // otherwise, if groupEntitiesBy == "set" then we only need to
       // replace the null mapping for the default set with a "default"
@@ -139,10 +217,17 @@ public class JSONOutputHandler extends AbstractFileOutputHandler {
 
     // open the output file
     OutputStream outputStream = getFileOutputStream(documentId);
-    OutputStreamWriter writer =
-            new OutputStreamWriter(outputStream, (encoding == null
-                    || encoding.length() == 0 ? "UTF-8" : encoding));
-    JsonGenerator generator = JSON_FACTORY.createGenerator(writer);
+    JsonGenerator generator;
+    if(encoding == null || encoding.length() == 0
+            || "UTF-8".equalsIgnoreCase(encoding)) {
+      // fast path - let Jackson encode the UTF-8 itself, straight into
+      // the byte stream
+      generator = JSON_FACTORY.createGenerator(outputStream, JsonEncoding.UTF8);
+    } else {
+      generator = JSON_FACTORY.createGenerator(new OutputStreamWriter(
+              outputStream, encoding));
+    }
+    boolean written = false;
     try {
       if(documentAnnotationType != null && documentAnnotationType.length() > 0) {
         AnnotationSet documentAnnotationSet =
@@ -161,6 +246,8 @@ public class JSONOutputHandler extends AbstractFileOutputHandler {
                   Utils.end(documentAnnotation), annotationSetsMap,
                   documentAnnotation.getFeatures(), annotationTypeProperty,
                   generator);
+          generator.flush();
+          written = true;
           return;
         }
       }
@@ -171,8 +258,27 @@ public class JSONOutputHandler extends AbstractFileOutputHandler {
       // features.
       DocumentJsonUtils.writeDocument(document, 0L, Utils.end(document),
               annotationSetsMap, null, annotationTypeProperty, generator);
+      generator.flush();
+      written = true;
     } finally {
+      if(!written) {
+        discardFileOutputStream(outputStream);
+      }
       generator.close();
+      releaseScratch();
+    }
+  }
+
+  /**
+   * Clear this thread's scratch array after use by {@link #groupByType},
+   * so it does not hold on to the annotations of the last document.
+   */
+  protected static void releaseScratch() {
+    Annotation[] all = scratchArrays.get();
+    if(all != null) {
+      for(int i = 0; i < all.length && all[i] != null; i++) {
+        all[i] = null;
+      }
     }
   }
 }
@@ -0,0 +1,286 @@
+/*
+ *  ParallelDirectoryWalker.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io.file;
+
+import gate.cloud.io.AntPathMatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tools.ant.DirectoryScanner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Walks a directory tree on several threads at once, returning the paths
+ * (relative to the root directory) of the files that match a set of Ant
+ * include and exclude patterns as they are found, rather than scanning
+ * the whole tree before returning anything as Ant's
+ * {@link DirectoryScanner} does.  Each directory is listed by a single
+ * task, which emits the matching files in that directory (optionally
+ * sorted by name) and then queues tasks for its subdirectories.  The files
+ * of one directory are emitted in order, but when there is more than one
+ * thread they may be interleaved with the files of other directories, and
+ * there is no overall order.  Directories that cannot hold any included
+ * files, or whose entire contents are excluded, are not descended into.
+ * <p>
+ * Symbolic links to directories are followed, but each directory is
+ * walked at most once (under the first path by which it is reached), so
+ * links that point back up the tree do not cause an endless walk.  A file
+ * that cannot be checked by {@link #accept(String, File)} is logged and
+ * skipped without affecting the rest of its directory.
+ */
+public class ParallelDirectoryWalker implements Iterator<String> {
+
+  private static final Logger log =
+          LoggerFactory.getLogger(ParallelDirectoryWalker.class);
+
+  /**
+   * Marker placed on the queue when the walk is complete.
+   */
+  private static final String END = new String("END");
+
+  /**
+   * Maximum number of paths waiting to be returned before the walking
+   * threads pause.
+   */
+  private static final int QUEUE_CAPACITY = 10000;
+
+  protected File root;
+
+  protected AntPathMatcher matcher;
+
+  protected boolean sorted;
+
+  protected int threads;
+
+  protected ExecutorService executor;
+
+  protected BlockingQueue<String> queue =
+          new LinkedBlockingQueue<String>(QUEUE_CAPACITY);
+
+  /**
+   * Number of directories queued or being listed.
+   */
+  protected AtomicInteger pendingDirectories = new AtomicInteger();
+
+  protected AtomicInteger matchedFiles = new AtomicInteger();
+
+  protected AtomicInteger acceptedFiles = new AtomicInteger();
+
+  /**
+   * Real paths of the directories that have been submitted for walking.
+   */
+  protected Set<Path> visitedDirectories = ConcurrentHashMap.newKeySet();
+
+  protected String next;
+
+  protected boolean finished;
+
+  /**
+   * Create a walker.  The walk does not start until {@link #start()} is
+   * called.
+   *
+   * @param root the directory to walk
+   * @param includes comma- or space-separated include patterns, or
+   *          <code>null</code> to include all files
+   * @param excludes comma- or space-separated exclude patterns, or
+   *          <code>null</code> for none
+   * @param defaultExcludes should Ant's default excludes be added to the
+   *          exclude patterns?
+   * @param sorted should the files in each directory be returned in name
+   *          order?
+   * @param threads number of threads to use
+   */
+  public ParallelDirectoryWalker(File root, String includes, String excludes,
+          boolean defaultExcludes, boolean sorted, int threads) {
+    this.root = root;
+    this.matcher = new AntPathMatcher(includes, excludes, defaultExcludes);
+    this.sorted = sorted;
+    this.threads = threads;
+  }
+
+  /**
+   * Start walking the tree.
+   */
+  public void start() {
+    final AtomicInteger threadNumber = new AtomicInteger();
+    executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "ParallelDirectoryWalker-"
+                + threadNumber.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    if(!submitDirectory(root, "")) {
+      executor.shutdown();
+      queue.add(END);
+    }
+  }
+
+  /**
+   * Queue a task to walk the given directory, unless it has already been
+   * walked.
+   *
+   * @return true if the directory was queued.
+   */
+  protected boolean submitDirectory(final File dir, final String relativePath) {
+    try {
+      if(!visitedDirectories.add(dir.toPath().toRealPath())) {
+        log.debug("Not walking {} again (symbolic link loop?)", dir);
+        return false;
+      }
+    } catch(IOException e) {
+      log.warn("Could not resolve directory " + dir, e);
+      return false;
+    }
+    pendingDirectories.incrementAndGet();
+    executor.execute(new Runnable() {
+      public void run() {
+        try {
+          walkDirectory(dir, relativePath);
+        } catch(InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        } catch(Exception e) {
+          log.warn("Error listing directory " + dir, e);
+        }
+        if(pendingDirectories.decrementAndGet() == 0) {
+          // that was the last directory
+          executor.shutdown();
+          try {
+            queue.put(END);
+          } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+    });
+    return true;
+  }
+
+  /**
+   * List a single directory, emitting its matching files and submitting
+   * its subdirectories.
+   */
+  protected void walkDirectory(File dir, String relativePath)
+          throws IOException, InterruptedException {
+    List<Path> entries = new ArrayList<Path>();
+    DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath());
+    try {
+      for(Path entry : stream) {
+        entries.add(entry);
+      }
+    } finally {
+      stream.close();
+    }
+    if(sorted) {
+      Collections.sort(entries);
+    }
+    for(Path entry : entries) {
+      String path = relativePath + entry.getFileName().toString();
+      File file = entry.toFile();
+      if(file.isDirectory()) {
+        if(matcher.couldHoldIncluded(path)
+                && !matcher.contentsExcluded(path)) {
+          submitDirectory(file, path + File.separator);
+        }
+      } else if(matcher.matches(path)) {
+        matchedFiles.incrementAndGet();
+        boolean accepted;
+        try {
+          accepted = accept(path, file);
+        } catch(IOException e) {
+          log.warn("Error checking file " + file + ", skipping it", e);
+          accepted = false;
+        }
+        if(accepted) {
+          acceptedFiles.incrementAndGet();
+          queue.put(path);
+        }
+      }
+    }
+  }
+
+  /**
+   * Final check on a file that matches the patterns, which subclasses can
+   * override to filter the results further.  This is called on the
+   * walking threads, so must be thread safe.
+   *
+   * @param path the path of the file relative to the root directory
+   * @param file the file
+   * @return true if the path should be returned.
+   */
+  protected boolean accept(String path, File file) throws IOException {
+    return true;
+  }
+
+  /**
+   * Number of files found so far that match the patterns.
+   */
+  public int getMatchedFileCount() {
+    return matchedFiles.get();
+  }
+
+  /**
+   * Number of files found so far that were accepted by
+   * {@link #accept(String, File)}.
+   */
+  public int getAcceptedFileCount() {
+    return acceptedFiles.get();
+  }
+
+  public boolean hasNext() {
+    if(next == null && !finished) {
+      try {
+        String path = queue.take();
+        if(path == END) {
+          finished = true;
+        } else {
+          next = path;
+        }
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        executor.shutdownNow();
+        finished = true;
+      }
+    }
+    return next != null;
+  }
+
+  public String next() {
+    if(!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    String path = next;
+    next = null;
+    return path;
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException("remove not supported");
+  }
+}
@@ -34,6 +34,15 @@ public class PlainTextOutputHandler extends AbstractFileOutputHandler {
     super.configImpl(configData);
   }
 
+  /**
+   * This handler only reads the document, so it may run at the same time
+   * as other handlers.
+   */
+  @Override
+  public boolean supportsConcurrentExport() {
+    return true;
+  }
+
   protected void outputDocumentImpl(Document document, DocumentID documentId) 
       throws IOException, GateException {
     //get a Benchmark ID
@@ -41,11 +50,16 @@ public class PlainTextOutputHandler extends AbstractFileOutputHandler {
             document.getName());
     long startTime = Benchmark.startPoint();
     OutputStream outputStream = getFileOutputStream(documentId);
+    boolean written = false;
     try {
       DocumentStaxUtils.writeXcesContent(document, outputStream, 
              (encoding == null || encoding.length() == 0 ? "UTF-8" : encoding));
+      written = true;
     }
     finally {
+      if(!written) {
+        discardFileOutputStream(outputStream);
+      }
       // saveContent does not close the stream
       outputStream.close();
     }
@@ -22,6 +22,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.ObjectOutputStream;
 import java.util.Map;
 
@@ -52,15 +53,21 @@ public class SerializedObjectOutputHandler extends AbstractFileOutputHandler {
   @Override
   protected void outputDocumentImpl(Document document, DocumentID documentId)
           throws IOException, GateException {
-    ObjectOutputStream outputStream =
-            new ObjectOutputStream(getFileOutputStream(documentId));
+    OutputStream fileStream = getFileOutputStream(documentId);
+    ObjectOutputStream outputStream = new ObjectOutputStream(fileStream);
+    boolean written = false;
     try {
       String saveBID =
               Benchmark.createBenchmarkId("saveSerialized", document.getName());
       long startTime = Benchmark.startPoint();
       outputStream.writeObject(document);
+      outputStream.flush();
       Benchmark.checkPoint(startTime, saveBID, this, null);
+      written = true;
     } finally {
+      if(!written) {
+        discardFileOutputStream(fileStream);
+      }
       outputStream.close();
     }
   }
@@ -0,0 +1,115 @@
+/*
+ *  CharacterClassPreFilter.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io.filter;
+
+import static gate.cloud.io.AbstractOutputHandler.intValueOf;
+import static gate.cloud.io.IOConstants.PARAM_MAX_CONTROL_RATIO;
+import static gate.cloud.io.IOConstants.PARAM_MIN_LETTER_RATIO;
+import static gate.cloud.io.IOConstants.PARAM_SAMPLE_SIZE;
+import gate.cloud.io.DocumentPreFilter;
+import gate.cloud.io.RawDocument;
+import gate.util.GateException;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Rejects documents whose text does not look like text, by counting the
+ * classes of the characters at the start of the document.  Binary data
+ * decodes to many control characters and (for UTF-8) replacement
+ * characters, and content such as base64 blobs or tables of numbers has
+ * few letters.  Parameters:
+ * <ul>
+ * <li><code>maxControlRatio</code>: the maximum proportion of control
+ * characters (other than tab, newline and carriage return) and
+ * replacement characters, default 0.01</li>
+ * <li><code>minLetterRatio</code>: the minimum proportion of letters
+ * among the characters that are not white space, default 0.25</li>
+ * <li><code>sampleSize</code>: the number of characters examined,
+ * default 10000</li>
+ * </ul>
+ */
+public class CharacterClassPreFilter implements DocumentPreFilter {
+
+  public static final double DEFAULT_MAX_CONTROL_RATIO = 0.01;
+
+  public static final double DEFAULT_MIN_LETTER_RATIO = 0.25;
+
+  public static final int DEFAULT_SAMPLE_SIZE = 10000;
+
+  protected double maxControlRatio = DEFAULT_MAX_CONTROL_RATIO;
+
+  protected double minLetterRatio = DEFAULT_MIN_LETTER_RATIO;
+
+  protected int sampleSize = DEFAULT_SAMPLE_SIZE;
+
+  public void config(Map<String, String> configData) throws GateException {
+    maxControlRatio = ratioParam(configData, PARAM_MAX_CONTROL_RATIO,
+            DEFAULT_MAX_CONTROL_RATIO);
+    minLetterRatio = ratioParam(configData, PARAM_MIN_LETTER_RATIO,
+            DEFAULT_MIN_LETTER_RATIO);
+    sampleSize = intValueOf(configData, PARAM_SAMPLE_SIZE,
+            DEFAULT_SAMPLE_SIZE);
+    if(sampleSize <= 0) {
+      throw new GateException("Invalid " + PARAM_SAMPLE_SIZE
+              + " value (not a positive integer)");
+    }
+  }
+
+  static double ratioParam(Map<String, String> configData, String name,
+          double defaultValue) throws GateException {
+    String str = configData.get(name);
+    if(str == null || str.trim().length() == 0) {
+      return defaultValue;
+    }
+    try {
+      double value = Double.parseDouble(str.trim());
+      if(value >= 0 && value <= 1) {
+        return value;
+      }
+    } catch(NumberFormatException e) {
+      // fall through
+    }
+    throw new GateException("Invalid " + name + " value \"" + str
+            + "\" (must be a number between 0 and 1)");
+  }
+
+  public String check(RawDocument document) throws IOException {
+    String sample = document.getTextSample(sampleSize);
+    int length = sample.length();
+    if(length == 0) {
+      return null;
+    }
+    int control = 0;
+    int letters = 0;
+    int nonSpace = 0;
+    for(int i = 0; i < length; i++) {
+      char c = sample.charAt(i);
+      if(Character.isWhitespace(c)) {
+        continue;
+      }
+      nonSpace++;
+      if(Character.isLetter(c)) {
+        letters++;
+      } else if(c == '\uFFFD' || Character.isISOControl(c)) {
+        // white space controls (tab, newline, etc.) were skipped above
+        control++;
+      }
+    }
+    if(control > maxControlRatio * length) {
+      return String.format("Binary content (%.1f%% control characters)",
+              100.0 * control / length);
+    }
+    if(nonSpace > 0 && letters < minLetterRatio * nonSpace) {
+      return String.format("Too few letters (%.1f%%)",
+              100.0 * letters / nonSpace);
+    }
+    return null;
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ *  LanguagePreFilter.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io.filter;
+
+import static gate.cloud.io.AbstractOutputHandler.intValueOf;
+import static gate.cloud.io.IOConstants.PARAM_ACCEPT_UNKNOWN;
+import static gate.cloud.io.IOConstants.PARAM_LANGUAGES;
+import static gate.cloud.io.IOConstants.PARAM_SAMPLE_SIZE;
+import gate.cloud.io.DocumentPreFilter;
+import gate.cloud.io.RawDocument;
+import gate.util.GateException;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rejects documents that are not in one of a set of languages.  This is
+ * a deliberately crude but fast detector, intended only to throw away
+ * documents that are clearly in the wrong language before they are
+ * parsed: it counts the occurrences of the most common function words of
+ * each supported language in a sample from the start of the document,
+ * ignoring anything that looks like an HTML or XML tag, and picks the
+ * language with the most.  The supported languages are English (en),
+ * German (de), French (fr), Spanish (es), Italian (it), Dutch (nl),
+ * Portuguese (pt) and Swedish (sv).  Parameters:
+ * <ul>
+ * <li><code>languages</code> (required): the codes of the languages to
+ * accept, separated by commas or spaces</li>
+ * <li><code>acceptUnknown</code>: should documents whose language cannot
+ * be identified (too few words, or not enough function words of any
+ * supported language) be accepted?  Default true.</li>
+ * <li><code>sampleSize</code>: the number of characters examined,
+ * default 10000</li>
+ * </ul>
+ */
+public class LanguagePreFilter implements DocumentPreFilter {
+
+  public static final int DEFAULT_SAMPLE_SIZE = 10000;
+
+  /**
+   * Minimum number of words needed to identify the language.
+   */
+  protected static final int MIN_WORDS = 20;
+
+  /**
+   * Minimum proportion of the words that must be function words of the
+   * best language for it to be identified.
+   */
+  protected static final double MIN_SCORE = 0.05;
+
+  /**
+   * Language codes, each followed by some of the most frequent words of
+   * the language.
+   */
+  private static final String[][] LANGUAGE_WORDS = {
+    {"en", "the", "and", "of", "to", "is", "in", "that", "it", "was", "for",
+      "with", "are", "this", "have", "from", "which", "you", "not", "be",
+      "they", "on", "by"},
+    {"de", "der", "die", "und", "das", "ist", "nicht", "mit", "den", "von",
+      "zu", "sich", "auf", "ein", "eine", "dem", "des", "auch", "es", "wird",
+      "sind", "f\u00fcr", "ich"},
+    {"fr", "le", "la", "les", "et", "des", "est", "une", "pour", "dans", "qui",
+      "que", "du", "pas", "sur", "au", "avec", "il", "sont", "ce", "par",
+      "nous"},
+    {"es", "el", "la", "los", "las", "y", "de", "que", "en", "es", "por", "con",
+      "una", "para", "del", "se", "no", "su", "al", "lo", "como",
+      "m\u00e1s"},
+    {"it", "il", "la", "di", "che", "e", "\u00e8", "per", "non", "una", "sono",
+      "del", "della", "con", "gli", "le", "nel", "anche", "da", "si",
+      "come"},
+    {"nl", "de", "het", "een", "en", "van", "is", "dat", "niet", "op", "te",
+      "met", "zijn", "voor", "die", "ook", "aan", "er", "maar", "wordt"},
+    {"pt", "o", "a", "os", "as", "de", "que", "e", "do", "da", "em", "um",
+      "uma", "para", "com", "n\u00e3o", "dos", "das", "se", "por", "mais",
+      "\u00e9"},
+    {"sv", "och", "att", "det", "\u00e4r", "som", "en", "p\u00e5", "med",
+      "f\u00f6r", "inte", "av", "till", "den", "har", "de", "om", "ett",
+      "jag", "var"}
+  };
+
+  /**
+   * For each function word, a bit mask of the languages it belongs to.
+   */
+  private static final Map<String, Integer> WORD_LANGUAGES =
+          new HashMap<String, Integer>();
+
+  static {
+    for(int lang = 0; lang < LANGUAGE_WORDS.length; lang++) {
+      for(int i = 1; i < LANGUAGE_WORDS[lang].length; i++) {
+        Integer mask = WORD_LANGUAGES.get(LANGUAGE_WORDS[lang][i]);
+        WORD_LANGUAGES.put(LANGUAGE_WORDS[lang][i],
+                (mask == null ? 0 : mask) | (1 << lang));
+      }
+    }
+  }
+
+  /**
+   * Which of the languages in {@link #LANGUAGE_WORDS} are accepted.
+   */
+  protected boolean[] accepted = new boolean[LANGUAGE_WORDS.length];
+
+  protected boolean acceptUnknown = true;
+
+  protected int sampleSize = DEFAULT_SAMPLE_SIZE;
+
+  public void config(Map<String, String> configData) throws GateException {
+    String languages = configData.get(PARAM_LANGUAGES);
+    if(languages == null || languages.trim().length() == 0) {
+      throw new GateException("Language pre-filter requires "
+              + PARAM_LANGUAGES);
+    }
+    for(String code : languages.trim().split("[\\s,]+")) {
+      int lang = languageIndex(code);
+      if(lang < 0) {
+        throw new GateException("Language \"" + code + "\" is not supported "
+                + "by the language pre-filter");
+      }
+      accepted[lang] = true;
+    }
+    String acceptUnknownStr = configData.get(PARAM_ACCEPT_UNKNOWN);
+    if(acceptUnknownStr != null && acceptUnknownStr.trim().length() > 0) {
+      acceptUnknown = Boolean.parseBoolean(acceptUnknownStr.trim());
+    }
+    sampleSize = intValueOf(configData, PARAM_SAMPLE_SIZE,
+            DEFAULT_SAMPLE_SIZE);
+    if(sampleSize <= 0) {
+      throw new GateException("Invalid " + PARAM_SAMPLE_SIZE
+              + " value (not a positive integer)");
+    }
+  }
+
+  private static int languageIndex(String code) {
+    for(int lang = 0; lang < LANGUAGE_WORDS.length; lang++) {
+      if(LANGUAGE_WORDS[lang][0].equalsIgnoreCase(code)) {
+        return lang;
+      }
+    }
+    return -1;
+  }
+
+  public String check(RawDocument document) throws IOException {
+    int lang = detect(document.getTextSample(sampleSize));
+    if(lang < 0) {
+      return acceptUnknown ? null : "Language not identified";
+    }
+    return accepted[lang] ? null : "Language " + LANGUAGE_WORDS[lang][0]
+            + " not accepted";
+  }
+
+  /**
+   * Identify the language of a text.
+   *
+   * @return the index of the language in {@link #LANGUAGE_WORDS}, or -1
+   *         if it cannot be identified.
+   */
+  protected static int detect(String text) {
+    int[] hits = new int[LANGUAGE_WORDS.length];
+    int words = 0;
+    StringBuilder word = new StringBuilder();
+    int length = text.length();
+    for(int i = 0; i <= length; i++) {
+      char c = i < length ? text.charAt(i) : ' ';
+      if(Character.isLetter(c)) {
+        word.append(Character.toLowerCase(c));
+        continue;
+      }
+      if(word.length() > 0) {
+        words++;
+        Integer mask = WORD_LANGUAGES.get(word.toString());
+        if(mask != null) {
+          for(int lang = 0; lang < hits.length; lang++) {
+            if((mask & (1 << lang)) != 0) {
+              hits[lang]++;
+            }
+          }
+        }
+        word.setLength(0);
+      }
+      if(c == '<') {
+        // skip the tag
+        int end = text.indexOf('>', i);
+        i = end < 0 ? length : end;
+      }
+    }
+    int best = 0;
+    for(int lang = 1; lang < hits.length; lang++) {
+      if(hits[lang] > hits[best]) {
+        best = lang;
+      }
+    }
+    if(words < MIN_WORDS || hits[best] < MIN_SCORE * words) {
+      return -1;
+    }
+    return best;
+  }
+}
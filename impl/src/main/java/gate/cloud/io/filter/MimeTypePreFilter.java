@@ -0,0 +1,85 @@
+/*
+ *  MimeTypePreFilter.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io.filter;
+
+import static gate.cloud.io.IOConstants.PARAM_EXCLUDE_MIME_TYPES;
+import static gate.cloud.io.IOConstants.PARAM_MIME_TYPES;
+import gate.cloud.io.DocumentPreFilter;
+import gate.cloud.io.RawDocument;
+import gate.util.GateException;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Rejects documents by MIME type, for input handlers that know the type
+ * of each document before it is parsed (e.g. from the HTTP headers in a
+ * web archive).  Parameters, both space-separated lists, where an entry
+ * ending in "/" (such as <code>image/</code>) matches every type with
+ * that prefix:
+ * <ul>
+ * <li><code>mimeTypes</code>: if given, only documents of these types
+ * are accepted.  Documents of unknown type are always accepted.</li>
+ * <li><code>excludeMimeTypes</code>: documents of these types are
+ * rejected.</li>
+ * </ul>
+ * Any parameters after a ";" in the type (such as the charset) are
+ * ignored.
+ */
+public class MimeTypePreFilter implements DocumentPreFilter {
+
+  protected String[] includes;
+
+  protected String[] excludes;
+
+  public void config(Map<String, String> configData) throws GateException {
+    includes = typeList(configData.get(PARAM_MIME_TYPES));
+    excludes = typeList(configData.get(PARAM_EXCLUDE_MIME_TYPES));
+    if(includes == null && excludes == null) {
+      throw new GateException("Mime type pre-filter requires "
+              + PARAM_MIME_TYPES + " or " + PARAM_EXCLUDE_MIME_TYPES);
+    }
+  }
+
+  private static String[] typeList(String str) {
+    if(str == null || str.trim().length() == 0) {
+      return null;
+    }
+    return str.trim().toLowerCase(Locale.ENGLISH).split("\\s+");
+  }
+
+  public String check(RawDocument document) {
+    String mimeType = document.getMimeType();
+    if(mimeType == null) {
+      return null;
+    }
+    int semi = mimeType.indexOf(';');
+    if(semi >= 0) {
+      mimeType = mimeType.substring(0, semi);
+    }
+    mimeType = mimeType.trim().toLowerCase(Locale.ENGLISH);
+    if(includes != null && !matches(mimeType, includes)) {
+      return "Mime type " + mimeType + " is not included";
+    }
+    if(excludes != null && matches(mimeType, excludes)) {
+      return "Mime type " + mimeType + " is excluded";
+    }
+    return null;
+  }
+
+  private static boolean matches(String mimeType, String[] types) {
+    for(String type : types) {
+      if(type.endsWith("/") ? mimeType.startsWith(type)
+              : mimeType.equals(type)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ *  PreFilterChain.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io.filter;
+
+import gate.cloud.io.DocumentPreFilter;
+import gate.cloud.io.RawDocument;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies a list of filters in order, rejecting a document as soon as
+ * one of them rejects it, and counts the documents each filter rejects.
+ * The cheapest filters should therefore come first.
+ */
+public class PreFilterChain implements DocumentPreFilter {
+
+  protected DocumentPreFilter[] filters;
+
+  protected AtomicLong checked = new AtomicLong();
+
+  protected AtomicLong[] rejected;
+
+  public PreFilterChain(List<DocumentPreFilter> filters) {
+    this.filters = filters.toArray(new DocumentPreFilter[filters.size()]);
+    rejected = new AtomicLong[this.filters.length];
+    for(int i = 0; i < rejected.length; i++) {
+      rejected[i] = new AtomicLong();
+    }
+  }
+
+  /**
+   * The filters in the chain are configured individually, so this does
+   * nothing.
+   */
+  public void config(Map<String, String> configData) {
+  }
+
+  public String check(RawDocument document) throws IOException {
+    checked.incrementAndGet();
+    for(int i = 0; i < filters.length; i++) {
+      String reason = filters[i].check(document);
+      if(reason != null) {
+        rejected[i].incrementAndGet();
+        return reason;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Number of documents checked so far.
+   */
+  public long getChecked() {
+    return checked.get();
+  }
+
+  /**
+   * A summary of the number of documents rejected by each filter, for
+   * logging.
+   */
+  public String getSummary() {
+    StringBuilder str = new StringBuilder();
+    long total = 0;
+    for(int i = 0; i < filters.length; i++) {
+      total += rejected[i].get();
+      str.append(i == 0 ? " (" : ", ");
+      str.append(filters[i].getClass().getSimpleName()).append(": ")
+              .append(rejected[i].get());
+    }
+    str.append(filters.length > 0 ? ")" : "");
+    return total + " of " + checked.get() + " documents rejected" + str;
+  }
+}
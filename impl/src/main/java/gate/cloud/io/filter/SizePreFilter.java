@@ -0,0 +1,68 @@
+/*
+ *  SizePreFilter.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io.filter;
+
+import static gate.cloud.io.IOConstants.PARAM_MAX_SIZE;
+import static gate.cloud.io.IOConstants.PARAM_MIN_SIZE;
+import gate.cloud.io.DocumentPreFilter;
+import gate.cloud.io.RawDocument;
+import gate.util.GateException;
+
+import java.util.Map;
+
+/**
+ * Rejects documents that are too small or too large.  Sizes are in bytes,
+ * or in characters for handlers that read documents as text (such as
+ * the streaming JSON handler), and this filter never reads the content.
+ * Parameters:
+ * <ul>
+ * <li><code>minSize</code> (default 0)</li>
+ * <li><code>maxSize</code> (default unlimited)</li>
+ * </ul>
+ */
+public class SizePreFilter implements DocumentPreFilter {
+
+  protected long minSize = 0;
+
+  protected long maxSize = Long.MAX_VALUE;
+
+  public void config(Map<String, String> configData) throws GateException {
+    minSize = sizeParam(configData, PARAM_MIN_SIZE, 0);
+    maxSize = sizeParam(configData, PARAM_MAX_SIZE, Long.MAX_VALUE);
+  }
+
+  private static long sizeParam(Map<String, String> configData, String name,
+          long defaultValue) throws GateException {
+    String str = configData.get(name);
+    if(str == null || str.trim().length() == 0) {
+      return defaultValue;
+    }
+    try {
+      long value = Long.parseLong(str.trim());
+      if(value >= 0) {
+        return value;
+      }
+    } catch(NumberFormatException e) {
+      // fall through
+    }
+    throw new GateException("Invalid " + name + " value \"" + str
+            + "\" for size pre-filter (not a non-negative integer)");
+  }
+
+  public String check(RawDocument document) {
+    long size = document.getSize();
+    if(size < minSize) {
+      return "Size " + size + " is below the minimum " + minSize;
+    }
+    if(size > maxSize) {
+      return "Size " + size + " is above the maximum " + maxSize;
+    }
+    return null;
+  }
+}
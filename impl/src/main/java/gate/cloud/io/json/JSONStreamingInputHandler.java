@@ -26,7 +26,10 @@ import gate.Utils;
 import gate.cloud.batch.Batch;
 import gate.cloud.batch.DocumentID;
 import gate.cloud.io.DocumentData;
+import gate.cloud.io.DocumentPreFilter;
 import gate.cloud.io.IOConstants;
+import gate.cloud.io.PreFilteringInputHandler;
+import gate.cloud.io.RawDocument;
 import gate.cloud.io.StreamingInputHandler;
 import gate.util.GateException;
 
@@ -111,7 +114,8 @@ import org.slf4j.LoggerFactory;
  * @author Ian Roberts
  * 
  */
-public class JSONStreamingInputHandler implements StreamingInputHandler {
+public class JSONStreamingInputHandler implements StreamingInputHandler,
+                                                  PreFilteringInputHandler {
 
   private static Logger logger = LoggerFactory
           .getLogger(JSONStreamingInputHandler.class);
@@ -148,6 +152,12 @@ public class JSONStreamingInputHandler implements StreamingInputHandler {
    */
   protected String mimeType;
 
+  /**
+   * Filter applied to each document before it is created, or
+   * <code>null</code> to accept every document.
+   */
+  protected DocumentPreFilter preFilter;
+
   /**
    * Function that extracts a document ID from a given JSON node.  The
    * function is derived from the idPointer/idTemplate specified in
@@ -289,6 +299,10 @@ public class JSONStreamingInputHandler implements StreamingInputHandler {
     return fn;
   }
 
+  public void setPreFilter(DocumentPreFilter filter) {
+    this.preFilter = filter;
+  }
+
   public void startBatch(Batch b) {
     completedDocuments = b.getCompletedDocuments();
     if(completedDocuments != null && completedDocuments.size() > 0) {
@@ -394,13 +408,22 @@ public class JSONStreamingInputHandler implements StreamingInputHandler {
         // already processed, ignore
       } else {
         DocumentID docId = new DocumentID(id);
+        String jsonString = json.toString();
         FeatureMap docParams = Factory.newFeatureMap();
         docParams.put(Document.DOCUMENT_STRING_CONTENT_PARAMETER_NAME,
-                json.toString());
+                jsonString);
         if(mimeType != null) {
           docParams.put(Document.DOCUMENT_MIME_TYPE_PARAMETER_NAME, mimeType);
         }
         try {
+          if(preFilter != null) {
+            // the filters see the whole JSON object, not just the text
+            String reason = preFilter.check(new RawDocument(docId, jsonString,
+                    mimeType));
+            if(reason != null) {
+              return DocumentData.filtered(docId, reason, jsonString.length());
+            }
+          }
           Document gateDoc =
                   (Document)Factory.createResource("gate.corpora.DocumentImpl",
                           docParams, Utils.featureMap(
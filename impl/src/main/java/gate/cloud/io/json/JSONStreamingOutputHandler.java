@@ -11,70 +11,95 @@
  */
 package gate.cloud.io.json;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Map;
 
 import gate.Document;
 import gate.cloud.batch.DocumentID;
+import gate.cloud.io.AnnotationSnapshot;
 import gate.cloud.io.file.JSONOutputHandler;
 import gate.cloud.io.file.StreamingFileOutputHelper;
+import gate.cloud.util.BufferPool;
 import gate.util.GateException;
 
 /**
  * JSON output handler that concatenates JSON objects into a single
  * large file rather than putting each one in its own individual file
- * named for the document ID.
+ * named for the document ID.  Each document is serialized into a buffer
+ * taken from a {@link BufferPool}, and the buffer is passed as-is to the
+ * writer thread, which returns it to the pool once its contents have been
+ * written.
  * 
  * @author Ian Roberts
  * 
  */
 public class JSONStreamingOutputHandler extends JSONOutputHandler {
 
-  private StreamingFileOutputHelper<byte[], OutputStream> helper;
+  private StreamingFileOutputHelper<BufferPool.Buffer, OutputStream> helper;
+
+  protected BufferPool bufferPool;
+
+  /**
+   * The buffer that the current thread is serializing into.
+   */
+  protected ThreadLocal<BufferPool.Buffer> currentBuffer =
+          new ThreadLocal<BufferPool.Buffer>();
 
   public JSONStreamingOutputHandler() {
-    helper = new StreamingFileOutputHelper<byte[], OutputStream>(
-        new byte[0],
+    helper = new StreamingFileOutputHelper<BufferPool.Buffer, OutputStream>(
+        new BufferPool.Buffer(0),
         // we use the output stream as-is
         x -> x,
-        (OutputStream os, byte[] bytes) -> {
-          os.write(bytes);
-          os.flush();
+        // flushing is left to the helper's flush policy
+        (OutputStream os, BufferPool.Buffer buffer) -> {
+          try {
+            buffer.writeTo(os);
+          } finally {
+            bufferPool.release(buffer);
+          }
         },
-        (byte[] bytes) -> bytes.length);
+        (BufferPool.Buffer buffer) -> buffer.size());
   }
   
   @Override
   protected void configImpl(Map<String, String> configData) throws IOException,
           GateException {
-    // TODO Auto-generated method stub
     super.configImpl(configData);
     helper.config(configData);
+    bufferPool = BufferPool.fromConfig(configData);
   }
 
-  protected ThreadLocal<ByteArrayOutputStream> baos =
-          new ThreadLocal<ByteArrayOutputStream>() {
-            protected ByteArrayOutputStream initialValue() {
-              return new ByteArrayOutputStream();
-            }
-          };
-
   @Override
-  protected void outputDocumentImpl(Document document, DocumentID documentId)
-          throws IOException, GateException {
-    super.outputDocumentImpl(document, documentId);
-    baos.get().write('\n');
-    byte[] result = baos.get().toByteArray();
-    baos.get().reset();
-    helper.sendItem(result);
+  protected void outputDocumentImpl(Document document, DocumentID documentId,
+          AnnotationSnapshot snapshot) throws IOException, GateException {
+    BufferPool.Buffer buffer;
+    try {
+      buffer = bufferPool.take();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GateException("Interrupted while waiting for an output buffer",
+              e);
+    }
+    boolean sent = false;
+    currentBuffer.set(buffer);
+    try {
+      super.outputDocumentImpl(document, documentId, snapshot);
+      buffer.write('\n');
+      helper.sendItem(buffer);
+      sent = true;
+    } finally {
+      currentBuffer.remove();
+      if(!sent) {
+        bufferPool.release(buffer);
+      }
+    }
   }
 
   @Override
   protected OutputStream getFileOutputStream(DocumentID docId)
           throws IOException {
-    return baos.get();
+    return currentBuffer.get();
   }
 
   @Override
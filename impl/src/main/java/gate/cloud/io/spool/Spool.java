@@ -0,0 +1,415 @@
+/*
+ *  Spool.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io.spool;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A size-bounded, append-only queue of records held in files in a
+ * directory, used by {@link SpoolingOutputHandler}.
+ * <p>
+ * Records are appended to the current <em>segment</em> file, each
+ * preceded by its length and CRC-32.  A segment is sealed (closed for
+ * writing and made available to readers) when it reaches the segment
+ * size, or as soon as a reader is waiting for one, so segments are large
+ * when the readers are falling behind and small when they are keeping up.
+ * Each sealed segment is given to one reader, which records its progress
+ * in a position file next to the segment after each record is delivered,
+ * and the segment and its position file are deleted once all of its
+ * records have been delivered.
+ * <p>
+ * Any segments found in the directory when a spool is created are left
+ * over from an earlier run that did not finish delivering them, and are
+ * queued for delivery (from their recorded positions) ahead of any new
+ * records.  A record that was only partly written when the earlier run
+ * stopped fails its length or CRC check, and is discarded along with the
+ * rest of its segment.  Delivery is therefore at-least-once: a record
+ * that was delivered just before a crash, but whose position had not yet
+ * been recorded, is delivered again.
+ * <p>
+ * When the segments on disk take up the maximum size, {@link #append}
+ * waits until a segment has been delivered.
+ */
+class Spool {
+
+  private static final Logger logger = LoggerFactory.getLogger(Spool.class);
+
+  private static final String SEGMENT_PREFIX = "segment-";
+
+  private static final String SEGMENT_SUFFIX = ".spool";
+
+  private static final String POSITION_SUFFIX = ".pos";
+
+  /**
+   * Length of the header before each record: the record length and CRC.
+   */
+  private static final int RECORD_HEADER_LENGTH = 8;
+
+  /**
+   * A segment file.
+   */
+  static class Segment {
+    final File file;
+
+    final File positionFile;
+
+    /**
+     * Length of the file, in bytes.
+     */
+    long length;
+
+    /**
+     * The stream writing the file, or <code>null</code> once the segment
+     * is sealed.
+     */
+    FileOutputStream out;
+
+    Segment(File dir, long number) {
+      String name = String.format(SEGMENT_PREFIX + "%012d", number);
+      file = new File(dir, name + SEGMENT_SUFFIX);
+      positionFile = new File(dir, name + POSITION_SUFFIX);
+    }
+  }
+
+  protected File dir;
+
+  protected long maxBytes;
+
+  protected long segmentBytes;
+
+  /**
+   * Should every record and position be forced to disk before returning?
+   */
+  protected boolean sync;
+
+  /**
+   * Sealed segments waiting for a reader, oldest first.
+   */
+  protected ArrayDeque<Segment> sealed = new ArrayDeque<Segment>();
+
+  /**
+   * The segment being written, or <code>null</code> if no records have
+   * been appended since the last one was sealed.
+   */
+  protected Segment current;
+
+  protected long nextSegmentNumber;
+
+  /**
+   * Total size of the segments that have not yet been fully delivered.
+   */
+  protected long bytesOnDisk;
+
+  protected boolean closed;
+
+  /**
+   * Open the spool in the given directory, creating the directory if
+   * necessary, and queue any segments already in it for delivery.
+   *
+   * @param dir the spool directory
+   * @param maxBytes the maximum total size of the segments
+   * @param segmentBytes the size at which a segment is sealed
+   * @param sync should every record be forced to disk before
+   *          {@link #append} returns?
+   */
+  Spool(File dir, long maxBytes, long segmentBytes, boolean sync)
+          throws IOException {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+    this.segmentBytes = segmentBytes;
+    this.sync = sync;
+    if(!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create spool directory " + dir);
+    }
+    recover();
+  }
+
+  private void recover() throws IOException {
+    File[] files = dir.listFiles();
+    if(files == null) {
+      throw new IOException("Could not list spool directory " + dir);
+    }
+    List<Long> numbers = new ArrayList<Long>();
+    for(File f : files) {
+      String name = f.getName();
+      if(name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+        try {
+          numbers.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                  name.length() - SEGMENT_SUFFIX.length())));
+        } catch(NumberFormatException e) {
+          // not one of ours
+        }
+      }
+    }
+    Collections.sort(numbers);
+    for(long number : numbers) {
+      Segment segment = new Segment(dir, number);
+      segment.length = segment.file.length();
+      sealed.add(segment);
+      bytesOnDisk += segment.length;
+      nextSegmentNumber = number + 1;
+    }
+    if(!sealed.isEmpty()) {
+      logger.info("Found {} undelivered segments ({} bytes) in spool {}, "
+              + "delivering them first", sealed.size(), bytesOnDisk, dir);
+    }
+  }
+
+  /**
+   * Append a record, waiting if the spool is full.  A record is always
+   * accepted by an empty spool, even if it is bigger than the maximum
+   * size.
+   */
+  public synchronized void append(byte[] data) throws IOException,
+          InterruptedException {
+    long recordLength = RECORD_HEADER_LENGTH + data.length;
+    while(!closed && bytesOnDisk > 0 && bytesOnDisk + recordLength > maxBytes) {
+      wait();
+    }
+    if(closed) {
+      throw new IOException("Spool " + dir + " has been closed");
+    }
+    if(current == null) {
+      current = new Segment(dir, nextSegmentNumber++);
+      current.out = new FileOutputStream(current.file);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+    header.putInt(data.length).putInt((int)crc.getValue());
+    try {
+      current.out.write(header.array());
+      current.out.write(data);
+      if(sync) {
+        current.out.getFD().sync();
+      }
+    } catch(IOException e) {
+      // the segment may now end with a partial record, so make sure
+      // nothing more is written after it
+      long actualLength = current.file.length();
+      bytesOnDisk += actualLength - current.length;
+      current.length = actualLength;
+      seal();
+      throw e;
+    }
+    current.length += recordLength;
+    bytesOnDisk += recordLength;
+    if(current.length >= segmentBytes) {
+      seal();
+    }
+    notifyAll();
+  }
+
+  private void seal() throws IOException {
+    Segment segment = current;
+    current = null;
+    sealed.add(segment);
+    segment.out.close();
+    segment.out = null;
+  }
+
+  /**
+   * Take the next segment to be delivered, waiting if there is none.  If
+   * there are no sealed segments but the current segment has records, it
+   * is sealed and returned.
+   *
+   * @return the segment, or <code>null</code> if the spool has been
+   *         closed and all its segments have been taken.
+   */
+  public synchronized Segment take() throws IOException, InterruptedException {
+    while(true) {
+      if(!sealed.isEmpty()) {
+        return sealed.poll();
+      }
+      if(current != null) {
+        seal();
+      } else if(closed) {
+        return null;
+      } else {
+        wait();
+      }
+    }
+  }
+
+  /**
+   * Open a reader for a segment returned by {@link #take}.
+   */
+  public SegmentReader open(Segment segment) throws IOException {
+    return new SegmentReader(segment);
+  }
+
+  /**
+   * Record that all the records of a segment have been delivered, and
+   * delete it.
+   */
+  public synchronized void finished(Segment segment) {
+    if(!segment.file.delete() && segment.file.exists()) {
+      logger.warn("Could not delete delivered spool segment " + segment.file);
+    }
+    segment.positionFile.delete();
+    bytesOnDisk -= segment.length;
+    notifyAll();
+  }
+
+  /**
+   * Give up on a segment that could not be read.  It is left on disk (to
+   * be tried again by a later run) but no longer counts towards the
+   * maximum size.
+   */
+  public synchronized void abandon(Segment segment) {
+    bytesOnDisk -= segment.length;
+    notifyAll();
+  }
+
+  /**
+   * Stop accepting records, and seal the current segment (if any) so its
+   * file is closed even if no reader takes it.  Readers can still take the
+   * remaining segments, after which {@link #take} returns
+   * <code>null</code>.
+   */
+  public synchronized void close() throws IOException {
+    closed = true;
+    notifyAll();
+    if(current != null) {
+      seal();
+    }
+  }
+
+  /**
+   * Total size of the segments that have not yet been fully delivered.
+   */
+  public synchronized long getBytesOnDisk() {
+    return bytesOnDisk;
+  }
+
+  public File getDirectory() {
+    return dir;
+  }
+
+  /**
+   * Reads the records of a sealed segment, starting after the last one
+   * recorded as delivered.
+   */
+  class SegmentReader implements Closeable {
+    private Segment segment;
+
+    private DataInputStream in;
+
+    private RandomAccessFile positionOut;
+
+    /**
+     * Offset of the next record in the segment.
+     */
+    private long position;
+
+    /**
+     * Offset of the record after the one last returned by {@link #next}.
+     */
+    private long nextPosition;
+
+    SegmentReader(Segment segment) throws IOException {
+      this.segment = segment;
+      if(segment.positionFile.exists()) {
+        DataInputStream posIn = new DataInputStream(
+                new FileInputStream(segment.positionFile));
+        try {
+          position = posIn.readLong();
+        } catch(EOFException e) {
+          // position was never written completely
+          position = 0;
+        } finally {
+          posIn.close();
+        }
+      }
+      in = new DataInputStream(new BufferedInputStream(
+              new FileInputStream(segment.file), 64 * 1024));
+      long toSkip = position;
+      while(toSkip > 0) {
+        long skipped = in.skip(toSkip);
+        if(skipped <= 0) {
+          throw new IOException("Recorded position " + position
+                  + " is beyond the end of spool segment " + segment.file);
+        }
+        toSkip -= skipped;
+      }
+      nextPosition = position;
+    }
+
+    /**
+     * Read the next record.
+     *
+     * @return the record, or <code>null</code> at the end of the segment
+     *         or if the rest of the segment is damaged.
+     */
+    public byte[] next() throws IOException {
+      position = nextPosition;
+      long remaining = segment.length - position;
+      if(remaining <= 0) {
+        return null;
+      }
+      if(remaining >= RECORD_HEADER_LENGTH) {
+        int length = in.readInt();
+        int crc = in.readInt();
+        if(length >= 0 && length <= remaining - RECORD_HEADER_LENGTH) {
+          byte[] data = new byte[length];
+          in.readFully(data);
+          CRC32 actual = new CRC32();
+          actual.update(data);
+          if((int)actual.getValue() == crc) {
+            nextPosition = position + RECORD_HEADER_LENGTH + length;
+            return data;
+          }
+        }
+      }
+      logger.warn("Spool segment " + segment.file + " is damaged at offset "
+              + position + ", discarding the remaining " + remaining
+              + " bytes");
+      return null;
+    }
+
+    /**
+     * Record that the record last returned by {@link #next} has been
+     * delivered.
+     */
+    public void delivered() throws IOException {
+      if(positionOut == null) {
+        positionOut = new RandomAccessFile(segment.positionFile, "rw");
+      }
+      positionOut.seek(0);
+      positionOut.writeLong(nextPosition);
+      if(sync) {
+        positionOut.getFD().sync();
+      }
+    }
+
+    public void close() throws IOException {
+      in.close();
+      if(positionOut != null) {
+        positionOut.close();
+      }
+    }
+  }
+}
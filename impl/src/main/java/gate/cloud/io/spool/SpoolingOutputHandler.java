@@ -0,0 +1,432 @@
+/*
+ *  SpoolingOutputHandler.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io.spool;
+
+import static gate.cloud.io.IOConstants.PARAM_BATCH_FILE_LOCATION;
+import gate.Document;
+import gate.Factory;
+import gate.Gate;
+import gate.cloud.batch.AnnotationSetDefinition;
+import gate.cloud.batch.DocumentID;
+import gate.cloud.io.AbstractOutputHandler;
+import gate.cloud.io.AnnotationSnapshot;
+import gate.cloud.io.OutputHandler;
+import gate.cloud.io.file.BinaryDocumentFormat;
+import gate.util.GateException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Output handler that decouples another output handler, typically one
+ * that sends documents to a remote service such as a M&iacute;mir index,
+ * from the processing threads.  Each document is written to a spool of
+ * files on local disk (see {@link Spool}) in the binary document format
+ * (see {@link BinaryDocumentFormat}), and background threads read the
+ * documents back and pass them to the wrapped handler, retrying with
+ * exponentially increasing delays when it fails.  Processing therefore
+ * carries on at full speed while the service is slow or unavailable,
+ * until the spool reaches its maximum size.  Documents still in the spool
+ * when GCP stops (normally or not) are delivered the next time a batch
+ * uses the same spool directory.
+ * <p>
+ * The wrapped handler is given the same configuration and annotation set
+ * definitions as this handler, and only the selected annotations are
+ * spooled.
+ */
+public class SpoolingOutputHandler extends AbstractOutputHandler {
+
+  private static final Logger logger =
+          LoggerFactory.getLogger(SpoolingOutputHandler.class);
+
+  /**
+   * Class name of the output handler that the documents are delivered to.
+   */
+  public static final String PARAM_DELEGATE = "delegate";
+
+  /**
+   * Directory holding the spool files, relative to the batch file if not
+   * absolute.
+   */
+  public static final String PARAM_SPOOL_DIR = "spoolDir";
+
+  /**
+   * Maximum total size of the spool files in bytes, after which processing
+   * waits for documents to be delivered.
+   */
+  public static final String PARAM_MAX_SPOOL_SIZE = "maxSpoolSize";
+
+  /**
+   * Size in bytes at which a spool file is closed and a new one started.
+   */
+  public static final String PARAM_SEGMENT_SIZE = "segmentSize";
+
+  /**
+   * Number of threads delivering documents to the wrapped handler.
+   */
+  public static final String PARAM_SENDER_THREADS = "senderThreads";
+
+  /**
+   * Delay in milliseconds before the first retry of a failed delivery.
+   */
+  public static final String PARAM_RETRY_DELAY = "retryDelay";
+
+  /**
+   * Maximum delay in milliseconds between retries.
+   */
+  public static final String PARAM_MAX_RETRY_DELAY = "maxRetryDelay";
+
+  /**
+   * Number of attempts to deliver a document before it is given up, or 0
+   * to keep trying for as long as the batch runs.
+   */
+  public static final String PARAM_MAX_ATTEMPTS = "maxAttempts";
+
+  /**
+   * Maximum time in seconds that closing the handler waits for the spool
+   * to be delivered, or 0 to wait indefinitely.
+   */
+  public static final String PARAM_DRAIN_TIMEOUT = "drainTimeout";
+
+  /**
+   * Should every document be forced to disk before processing continues?
+   */
+  public static final String PARAM_SYNC = "sync";
+
+  protected static final long DEFAULT_MAX_SPOOL_SIZE = 1024L * 1024 * 1024;
+
+  protected static final long DEFAULT_SEGMENT_SIZE = 16L * 1024 * 1024;
+
+  protected static final long DEFAULT_RETRY_DELAY = 1000;
+
+  protected static final long DEFAULT_MAX_RETRY_DELAY = 60000;
+
+  protected OutputHandler delegate;
+
+  protected File spoolDir;
+
+  protected long maxSpoolSize;
+
+  protected long segmentSize;
+
+  protected int senderThreads;
+
+  protected long retryDelay;
+
+  protected long maxRetryDelay;
+
+  protected int maxAttempts;
+
+  protected long drainTimeout;
+
+  protected boolean sync;
+
+  protected Spool spool;
+
+  protected Thread[] senders;
+
+  protected AtomicLong documentsSpooled = new AtomicLong();
+
+  protected AtomicLong documentsDelivered = new AtomicLong();
+
+  protected AtomicLong documentsFailed = new AtomicLong();
+
+  @Override
+  protected void configImpl(Map<String, String> configData)
+          throws IOException, GateException {
+    String delegateClass = configData.get(PARAM_DELEGATE);
+    if(delegateClass == null || delegateClass.trim().length() == 0) {
+      throw new IllegalArgumentException(
+              "No value was provided for the required parameter \""
+                      + PARAM_DELEGATE + "\"!");
+    }
+    try {
+      delegate = Class.forName(delegateClass.trim(), true, Gate.getClassLoader())
+              .asSubclass(OutputHandler.class).newInstance();
+    } catch(Exception e) {
+      throw new GateException("Could not instantiate output handler "
+              + delegateClass + " for spooling.", e);
+    }
+    delegate.config(configData);
+
+    String spoolDirStr = configData.get(PARAM_SPOOL_DIR);
+    if(spoolDirStr == null || spoolDirStr.trim().length() == 0) {
+      throw new IllegalArgumentException(
+              "No value was provided for the required parameter \""
+                      + PARAM_SPOOL_DIR + "\"!");
+    }
+    spoolDir = new File(spoolDirStr);
+    if(!spoolDir.isAbsolute()) {
+      String batchFileStr = configData.get(PARAM_BATCH_FILE_LOCATION);
+      File batchDir = null;
+      if(batchFileStr != null) {
+        batchDir = new File(batchFileStr).getParentFile();
+      }
+      spoolDir = new File(batchDir, spoolDirStr);
+    }
+    maxSpoolSize = longValueOf(configData, PARAM_MAX_SPOOL_SIZE,
+            DEFAULT_MAX_SPOOL_SIZE);
+    segmentSize = longValueOf(configData, PARAM_SEGMENT_SIZE,
+            DEFAULT_SEGMENT_SIZE);
+    senderThreads = intValueOf(configData, PARAM_SENDER_THREADS, 1);
+    retryDelay = longValueOf(configData, PARAM_RETRY_DELAY,
+            DEFAULT_RETRY_DELAY);
+    maxRetryDelay = longValueOf(configData, PARAM_MAX_RETRY_DELAY,
+            DEFAULT_MAX_RETRY_DELAY);
+    maxAttempts = intValueOf(configData, PARAM_MAX_ATTEMPTS, 0);
+    drainTimeout = longValueOf(configData, PARAM_DRAIN_TIMEOUT, 0);
+    sync = booleanValueOf(configData.get(PARAM_SYNC));
+    if(maxSpoolSize <= 0 || segmentSize <= 0 || senderThreads <= 0
+            || retryDelay <= 0) {
+      throw new IllegalArgumentException(PARAM_MAX_SPOOL_SIZE + ", "
+              + PARAM_SEGMENT_SIZE + ", " + PARAM_SENDER_THREADS + " and "
+              + PARAM_RETRY_DELAY + " must be positive");
+    }
+  }
+
+  @Override
+  public void setAnnSetDefinitions(
+          List<AnnotationSetDefinition> annSetDefinitions) {
+    super.setAnnSetDefinitions(annSetDefinitions);
+    delegate.setAnnSetDefinitions(annSetDefinitions);
+  }
+
+  @Override
+  public void init() throws IOException, GateException {
+    delegate.init();
+    spool = new Spool(spoolDir, maxSpoolSize, segmentSize, sync);
+    senders = new Thread[senderThreads];
+    for(int i = 0; i < senderThreads; i++) {
+      senders[i] = new Thread(new Runnable() {
+        public void run() {
+          sendLoop();
+        }
+      }, "SpoolingOutputHandler-" + (i + 1));
+      senders[i].setDaemon(true);
+      senders[i].start();
+    }
+  }
+
+  /**
+   * This handler only reads the document, so it may run at the same time
+   * as other handlers.
+   */
+  @Override
+  public boolean supportsConcurrentExport() {
+    return true;
+  }
+
+  @Override
+  protected void outputDocumentImpl(Document document, DocumentID documentId)
+          throws IOException, GateException {
+    outputDocumentImpl(document, documentId, null);
+  }
+
+  @Override
+  protected void outputDocumentImpl(Document document, DocumentID documentId,
+          AnnotationSnapshot snapshot) throws IOException, GateException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+    DataOutputStream out = new DataOutputStream(bytes);
+    writeDocumentID(out, documentId);
+    new BinaryDocumentFormat.Writer(out).writeDocument(document,
+            collectAnnotations(document, snapshot));
+    try {
+      spool.append(bytes.toByteArray());
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for space in spool "
+              + spoolDir, e);
+    }
+    documentsSpooled.incrementAndGet();
+  }
+
+  /**
+   * Main loop of a sender thread: deliver the documents in each segment
+   * of the spool in turn, until the spool is closed and empty.
+   */
+  protected void sendLoop() {
+    try {
+      Spool.Segment segment;
+      while((segment = spool.take()) != null) {
+        try {
+          Spool.SegmentReader reader = spool.open(segment);
+          try {
+            byte[] record;
+            while((record = reader.next()) != null) {
+              deliver(record);
+              reader.delivered();
+            }
+          } finally {
+            reader.close();
+          }
+          spool.finished(segment);
+        } catch(IOException e) {
+          logger.error("Error reading spool segment " + segment.file
+                  + ", leaving it for a later run", e);
+          spool.abandon(segment);
+        }
+      }
+    } catch(InterruptedException e) {
+      // the drain timeout has expired, the rest of the current segment
+      // stays on disk
+    } catch(IOException e) {
+      logger.error("Error in spool " + spoolDir + ", sender thread stopping",
+              e);
+    }
+  }
+
+  /**
+   * Deliver a spooled document to the wrapped handler, retrying until it
+   * succeeds or the maximum number of attempts is reached.
+   */
+  protected void deliver(byte[] record) throws InterruptedException {
+    DocumentID id;
+    Document document;
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+      id = readDocumentID(in);
+      document = new BinaryDocumentFormat.Reader(in).readDocument(
+              id.getIdText());
+    } catch(IOException | GateException e) {
+      documentsFailed.incrementAndGet();
+      logger.error("Could not read a document from spool " + spoolDir
+              + ", skipping it", e);
+      return;
+    }
+    try {
+      long delay = retryDelay;
+      for(int attempt = 1;; attempt++) {
+        try {
+          delegate.outputDocument(document, id);
+          documentsDelivered.incrementAndGet();
+          return;
+        } catch(IOException | GateException | RuntimeException e) {
+          if(maxAttempts > 0 && attempt >= maxAttempts) {
+            documentsFailed.incrementAndGet();
+            logger.error("Giving up on document " + id + " after " + attempt
+                    + " attempts", e);
+            return;
+          }
+          logger.warn("Could not output document " + id + " (attempt "
+                  + attempt + "), retrying in " + delay + "ms: " + e);
+          Thread.sleep(delay);
+          delay = Math.min(delay * 2, Math.max(maxRetryDelay, retryDelay));
+        }
+      }
+    } finally {
+      Factory.deleteResource(document);
+    }
+  }
+
+  /**
+   * Write a document ID, using the string encodings of
+   * {@link BinaryDocumentFormat}.  The attribute count is stored plus
+   * one, so that 0 means no attribute map at all.
+   */
+  protected static void writeDocumentID(DataOutputStream out, DocumentID id)
+          throws IOException {
+    BinaryDocumentFormat.Encoder encoder =
+            new BinaryDocumentFormat.Encoder(out);
+    encoder.writeLongString(id.getIdText());
+    Map<String, String> attributes = id.getAttributes();
+    if(attributes == null) {
+      encoder.writeVarlong(0);
+    } else {
+      encoder.writeVarlong(attributes.size() + 1);
+      for(Map.Entry<String, String> attr : attributes.entrySet()) {
+        encoder.writeLongString(attr.getKey());
+        encoder.writeLongString(attr.getValue());
+      }
+    }
+  }
+
+  protected static DocumentID readDocumentID(DataInputStream in)
+          throws IOException {
+    BinaryDocumentFormat.Decoder decoder =
+            new BinaryDocumentFormat.Decoder(in);
+    String idText = decoder.readLongString();
+    Map<String, String> attributes = null;
+    long count = decoder.readVarlong() - 1;
+    if(count >= 0) {
+      attributes = new HashMap<String, String>();
+      for(long i = 0; i < count; i++) {
+        attributes.put(decoder.readLongString(), decoder.readLongString());
+      }
+    }
+    return new DocumentID(idText, attributes);
+  }
+
+  /**
+   * Wait for the spool to be delivered (up to the drain timeout, if any),
+   * then close the wrapped handler.
+   *
+   * @throws IOException if any documents could not be delivered.
+   */
+  @Override
+  public void close() throws IOException, GateException {
+    try {
+      spool.close();
+    } catch(IOException e) {
+      // the records already written stay on disk for a later run
+      logger.error("Error closing the current segment of spool " + spoolDir,
+              e);
+    }
+    try {
+      long deadline = drainTimeout > 0
+              ? System.currentTimeMillis() + drainTimeout * 1000
+              : 0;
+      for(Thread sender : senders) {
+        if(deadline == 0) {
+          sender.join();
+        } else {
+          sender.join(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+      }
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for(Thread sender : senders) {
+      sender.interrupt();
+    }
+    for(Thread sender : senders) {
+      try {
+        sender.join();
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    logger.info("Spooled {} documents, delivered {} to {}, {} failed",
+            documentsSpooled.get(), documentsDelivered.get(), delegate,
+            documentsFailed.get());
+    long remaining = spool.getBytesOnDisk();
+    if(remaining > 0) {
+      logger.warn(remaining + " bytes of undelivered documents remain in "
+              + "spool " + spoolDir + ", they will be delivered the next time "
+              + "a batch uses this spool");
+    }
+    delegate.close();
+    if(documentsFailed.get() > 0) {
+      throw new IOException(documentsFailed.get() + " documents could not be "
+              + "delivered from spool " + spoolDir + " - see the log for "
+              + "their IDs");
+    }
+  }
+}
@@ -14,6 +14,7 @@ package gate.cloud.io.xces;
 import gate.Annotation;
 import gate.Document;
 import gate.cloud.batch.DocumentID;
+import gate.cloud.io.AnnotationSnapshot;
 import gate.cloud.io.file.AbstractFileOutputHandler;
 import gate.corpora.DocumentStaxUtils;
 import gate.util.Benchmark;
@@ -29,16 +30,23 @@ import javax.xml.stream.XMLStreamException;
 
 public class XCESOutputHandler extends AbstractFileOutputHandler {  
   
-  protected void outputDocumentImpl(Document document, DocumentID documentId) 
-      throws IOException, GateException {
+  protected void outputDocumentImpl(Document document, DocumentID documentId)
+          throws IOException, GateException {
+    outputDocumentImpl(document, documentId, null);
+  }
+
+  protected void outputDocumentImpl(Document document, DocumentID documentId,
+          AnnotationSnapshot snapshot) throws IOException, GateException {
     //get a Benchmark ID
     String baseBenchmarkID = Benchmark.createBenchmarkId("saveStandoff", 
             document.getName());
-    Map<String, Collection<Annotation>> anns = collectAnnotations(document);
+    Map<String, Collection<Annotation>> anns =
+            collectAnnotations(document, snapshot);
     
     long startTime = Benchmark.startPoint();
     //use the default extension
     OutputStream outputStream = getFileOutputStream(documentId);
+    boolean written = false;
     try {
       Collection<Annotation> annotationsToSave = new ArrayList<Annotation>();
       for(Collection<Annotation> someAnnots : anns.values()) {
@@ -46,11 +54,15 @@ public class XCESOutputHandler extends AbstractFileOutputHandler {
       }
       DocumentStaxUtils.writeXcesAnnotations(annotationsToSave, outputStream, 
               ((encoding == null || encoding.length() == 0) ? "UTF-8" : encoding));
+      written = true;
     } catch(XMLStreamException e) {
       throw (IOException)new IOException(
           "Error writing XCES annotations!").initCause(e);
     }
     finally {
+      if(!written) {
+        discardFileOutputStream(outputStream);
+      }
       // saveContent does not close the stream
       outputStream.close();
     }
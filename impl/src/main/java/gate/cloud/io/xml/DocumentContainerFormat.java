@@ -0,0 +1,181 @@
+/*
+ *  DocumentContainerFormat.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io.xml;
+
+import gate.cloud.util.BufferPool;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Constants and utility methods for the container files written by
+ * {@link GATEStandOffStreamingOutputHandler} and read by
+ * {@link GATEStandOffStreamingInputHandler}.  A container file starts with
+ * a header made up of the seven ASCII bytes <code>GCPDOCS</code>, a format
+ * version byte and a byte identifying the document serialization
+ * ({@link #SERIALIZATION_XML} or {@link #SERIALIZATION_FINF}).  The header
+ * is followed by any number of document records, each of which consists of
+ * <ul>
+ * <li>a four byte big-endian length <i>n</i>, followed by <i>n</i> bytes
+ * of UTF-8 encoded document ID text</li>
+ * <li>a four byte big-endian length <i>m</i>, followed by <i>m</i> bytes
+ * of serialized GATE document</li>
+ * </ul>
+ * The end of the file marks the end of the records.
+ */
+public final class DocumentContainerFormat {
+  private DocumentContainerFormat() {
+    // class should not be instantiated
+  }
+
+  private static final byte[] MAGIC = "GCPDOCS".getBytes(StandardCharsets.US_ASCII);
+
+  /**
+   * The current container format version.
+   */
+  public static final byte VERSION = 1;
+
+  /**
+   * Documents are serialized as GATE standoff XML.
+   */
+  public static final byte SERIALIZATION_XML = 0;
+
+  /**
+   * Documents are serialized as GATE standoff XML in FastInfoset binary
+   * encoding.
+   */
+  public static final byte SERIALIZATION_FINF = 1;
+
+  /**
+   * The largest document ID or serialized document that will be read.  A
+   * longer length in a record means the container is corrupt.
+   */
+  public static final int MAX_RECORD_LENGTH = 1024 * 1024 * 1024;
+
+  /**
+   * A single document record read from a container.
+   */
+  public static class Record {
+    public final String id;
+
+    public final byte[] data;
+
+    public Record(String id, byte[] data) {
+      this.id = id;
+      this.data = data;
+    }
+  }
+
+  /**
+   * Write the container header to the start of a new container file.
+   *
+   * @param out the stream to write to
+   * @param serialization the document serialization used in this container
+   */
+  public static void writeHeader(OutputStream out, byte serialization)
+          throws IOException {
+    out.write(MAGIC);
+    out.write(VERSION);
+    out.write(serialization);
+  }
+
+  /**
+   * Read and check the container header.
+   *
+   * @param in the stream to read from, positioned at the start of the file
+   * @return the document serialization used in this container
+   * @throws IOException if the header is not valid
+   */
+  public static byte readHeader(DataInputStream in) throws IOException {
+    byte[] magic = new byte[MAGIC.length];
+    in.readFully(magic);
+    if(!Arrays.equals(magic, MAGIC)) {
+      throw new IOException("Not a GCP document container");
+    }
+    byte version = in.readByte();
+    if(version != VERSION) {
+      throw new IOException("Unsupported GCP document container version "
+              + version);
+    }
+    byte serialization = in.readByte();
+    if(serialization != SERIALIZATION_XML
+            && serialization != SERIALIZATION_FINF) {
+      throw new IOException("Unknown document serialization " + serialization);
+    }
+    return serialization;
+  }
+
+  /**
+   * Write one document record.
+   *
+   * @param out the stream to write to
+   * @param id the document ID text
+   * @param data the serialized document
+   */
+  public static void writeRecord(DataOutputStream out, String id,
+          BufferPool.Buffer data) throws IOException {
+    byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(idBytes.length);
+    out.write(idBytes);
+    out.writeInt(data.size());
+    data.writeTo(out);
+  }
+
+  /**
+   * Read the next document record.
+   *
+   * @param in the stream to read from
+   * @param remaining the number of bytes left in the container, or -1 if
+   *          this is not known (e.g. when it is compressed)
+   * @return the record, or <code>null</code> if the end of the container
+   *         has been reached
+   * @throws IOException if an error occurs reading the stream, the
+   *           container ends in the middle of a record, or a record length
+   *           is not valid
+   */
+  public static Record readRecord(DataInputStream in, long remaining)
+          throws IOException {
+    int idLength;
+    try {
+      idLength = in.readInt();
+    } catch(EOFException e) {
+      // clean end of file
+      return null;
+    }
+    byte[] idBytes = readBytes(in, idLength, remaining < 0 ? -1 : remaining - 4);
+    long left = remaining < 0 ? -1 : remaining - 4 - idLength;
+    int dataLength = in.readInt();
+    byte[] data = readBytes(in, dataLength, left < 0 ? -1 : left - 4);
+    return new Record(new String(idBytes, StandardCharsets.UTF_8), data);
+  }
+
+  /**
+   * Read the next document record from a container of unknown length.
+   */
+  public static Record readRecord(DataInputStream in) throws IOException {
+    return readRecord(in, -1);
+  }
+
+  private static byte[] readBytes(DataInputStream in, int length,
+          long remaining) throws IOException {
+    if(length < 0 || length > MAX_RECORD_LENGTH
+            || (remaining >= 0 && length > remaining)) {
+      throw new IOException("Invalid record length " + length
+              + " - the container is corrupt");
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
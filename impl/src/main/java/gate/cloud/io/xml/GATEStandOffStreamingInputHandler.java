@@ -0,0 +1,350 @@
+/*
+ *  GATEStandOffStreamingInputHandler.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io.xml;
+
+import static gate.cloud.io.IOConstants.PARAM_BATCH_FILE_LOCATION;
+import static gate.cloud.io.IOConstants.PARAM_COMPRESSION;
+import static gate.cloud.io.IOConstants.PARAM_SOURCE_FILE_LOCATION;
+import static gate.cloud.io.IOConstants.VALUE_COMPRESSION_GZIP;
+import static gate.cloud.io.IOConstants.VALUE_COMPRESSION_NONE;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.cloud.batch.Batch;
+import gate.cloud.batch.DocumentID;
+import gate.cloud.io.DocumentData;
+import gate.cloud.io.StreamingInputHandler;
+import gate.corpora.DocumentStaxUtils;
+import gate.util.GateException;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.apache.commons.io.input.CountingInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.xml.fastinfoset.stax.StAXDocumentParser;
+
+/**
+ * Streaming-mode input handler that reads back the document containers
+ * written by a {@link GATEStandOffStreamingOutputHandler}, in either XML or
+ * FastInfoset format.  The <code>srcFile</code> may be a single container
+ * file or a directory, in which case every file in that directory is read
+ * in name order (so the chunks of a previous streaming output are read in
+ * the order in which they were written), skipping any files that are not
+ * document containers.  If the containers were compressed then the
+ * <code>compression</code> option should be set as for the output handler
+ * that wrote them: "gzip" (the default is "none"), or the command line of
+ * an external program that reads the compressed data on its standard
+ * input and writes the uncompressed data to its standard output, such as
+ * "lzop -dc".  Other commons-compress format names are also accepted, as is
+ * "any" to auto-detect the format.
+ */
+public class GATEStandOffStreamingInputHandler implements StreamingInputHandler {
+
+  private static Logger logger = LoggerFactory
+          .getLogger(GATEStandOffStreamingInputHandler.class);
+
+  public DocumentData getInputDocument(DocumentID id) throws IOException,
+          GateException {
+    throw new UnsupportedOperationException(
+            "GATEStandOffStreamingInputHandler can only operate in streaming mode");
+  }
+
+  /**
+   * The container files to read.
+   */
+  protected File[] srcFiles;
+
+  /**
+   * Compression applied to the container files, or <code>null</code> if
+   * they are not compressed.
+   */
+  protected String compression;
+
+  /**
+   * Document IDs that are already complete after a previous run of this
+   * batch.
+   */
+  protected Set<String> completedDocuments;
+
+  /**
+   * Index into {@link #srcFiles} of the next file to open.
+   */
+  protected int nextFile;
+
+  /**
+   * The container currently being read.
+   */
+  protected DataInputStream currentStream;
+
+  /**
+   * Counts the bytes read from the current container, if it is not
+   * compressed, so that corrupt record lengths can be detected.
+   */
+  protected CountingInputStream currentCounter;
+
+  /**
+   * Length of the current container file, or -1 if it is compressed.
+   */
+  protected long currentLength;
+
+  /**
+   * External decompression process for the current container, if any.
+   */
+  protected Process decompressProcess;
+
+  /**
+   * Directory for running external decompression processes.
+   */
+  protected File batchDir;
+
+  /**
+   * Was the source a directory, in which case files that are not
+   * containers are skipped?
+   */
+  protected boolean srcIsDirectory;
+
+  /**
+   * The serialization used by the current container.
+   */
+  protected byte currentSerialization;
+
+  protected XMLInputFactory xmlInputFactory;
+
+  public void config(Map<String, String> configData) throws IOException,
+          GateException {
+    // srcFile
+    String srcFileStr = configData.get(PARAM_SOURCE_FILE_LOCATION);
+    if(srcFileStr == null) {
+      throw new IllegalArgumentException("Parameter "
+              + PARAM_SOURCE_FILE_LOCATION + " is required");
+    }
+    batchDir = null;
+    String batchFileStr = configData.get(PARAM_BATCH_FILE_LOCATION);
+    if(batchFileStr != null) {
+      batchDir = new File(batchFileStr).getParentFile();
+    }
+    File srcFile = new File(srcFileStr);
+    if(!srcFile.isAbsolute()) {
+      srcFile = new File(batchDir, srcFileStr);
+    }
+    if(!srcFile.exists()) {
+      throw new IllegalArgumentException("File \"" + srcFile
+              + "\", provided as value for required parameter \""
+              + PARAM_SOURCE_FILE_LOCATION + "\", does not exist!");
+    }
+    srcIsDirectory = srcFile.isDirectory();
+    if(srcIsDirectory) {
+      srcFiles = srcFile.listFiles(f -> f.isFile() && !f.isHidden());
+      Arrays.sort(srcFiles);
+    } else {
+      srcFiles = new File[] {srcFile};
+    }
+
+    // compression
+    compression = configData.get(PARAM_COMPRESSION);
+    if(compression != null && (compression.trim().length() == 0
+            || VALUE_COMPRESSION_NONE.equals(compression))) {
+      compression = null;
+    } else if(VALUE_COMPRESSION_GZIP.equals(compression)) {
+      compression = CompressorStreamFactory.GZIP;
+    }
+  }
+
+  public void startBatch(Batch b) {
+    completedDocuments = b.getCompletedDocuments();
+    if(completedDocuments != null && completedDocuments.size() > 0) {
+      logger.info("Restarting failed batch - {} documents already processed",
+              completedDocuments.size());
+    }
+  }
+
+  public void init() throws IOException, GateException {
+    xmlInputFactory = XMLInputFactory.newInstance();
+    nextFile = 0;
+  }
+
+  /**
+   * Open the next container file, if there is one.  When reading a
+   * directory, files that are not containers are skipped.
+   *
+   * @return true if a container was opened, false if there are no more
+   *         files.
+   */
+  protected boolean openNextContainer() throws IOException, GateException {
+    while(nextFile < srcFiles.length) {
+      File f = srcFiles[nextFile++];
+      logger.debug("Opening document container {}", f);
+      currentStream = new DataInputStream(openFile(f));
+      try {
+        currentSerialization = DocumentContainerFormat.readHeader(currentStream);
+        return true;
+      } catch(IOException e) {
+        closeCurrent();
+        if(srcIsDirectory) {
+          logger.info("Skipping {}, which is not a document container ({})",
+                  f, e.getMessage());
+        } else {
+          throw new IOException("Error reading container " + f, e);
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Open a container file, decompressing it if necessary.
+   */
+  protected InputStream openFile(File f) throws IOException, GateException {
+    currentCounter = null;
+    currentLength = -1;
+    if(compression == null) {
+      currentCounter = new CountingInputStream(
+              new BufferedInputStream(new FileInputStream(f)));
+      currentLength = f.length();
+      return currentCounter;
+    }
+    InputStream inputStream = new BufferedInputStream(new FileInputStream(f));
+    try {
+      if("any".equals(compression)) {
+        inputStream = new CompressorStreamFactory()
+                .createCompressorInputStream(inputStream);
+      } else {
+        inputStream = new CompressorStreamFactory()
+                .createCompressorInputStream(compression, inputStream);
+      }
+      return new BufferedInputStream(inputStream);
+    } catch(CompressorException e) {
+      if(e.getCause() == null && "any".equals(compression)) {
+        // unrecognised signature, assume uncompressed
+        logger.info("Failed to detect compression format of {}, "
+                + "assuming no compression", f);
+        return inputStream;
+      }
+      inputStream.close();
+      if(e.getCause() instanceof IOException) {
+        throw (IOException)e.getCause();
+      } else if(e.getCause() != null) {
+        throw new GateException("Unable to decompress " + f, e);
+      }
+    }
+    // not a commons-compress format, treat compression value as a
+    // command line
+    ProcessBuilder pb = new ProcessBuilder(compression.trim().split("\\s+"));
+    pb.directory(batchDir);
+    pb.redirectError(Redirect.INHERIT);
+    pb.redirectOutput(Redirect.PIPE);
+    pb.redirectInput(f);
+    decompressProcess = pb.start();
+    return new BufferedInputStream(decompressProcess.getInputStream());
+  }
+
+  /**
+   * Close the current container, waiting for any decompression process.
+   */
+  protected void closeCurrent() throws IOException {
+    try {
+      if(currentStream != null) {
+        currentStream.close();
+      }
+    } finally {
+      currentStream = null;
+      currentCounter = null;
+      if(decompressProcess != null) {
+        try {
+          decompressProcess.waitFor();
+        } catch(InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          decompressProcess = null;
+        }
+      }
+    }
+  }
+
+  public DocumentData nextDocument() throws IOException, GateException {
+    while(true) {
+      if(currentStream == null && !openNextContainer()) {
+        return null;
+      }
+      long remaining = currentCounter == null ? -1
+              : currentLength - currentCounter.getByteCount();
+      DocumentContainerFormat.Record record =
+              DocumentContainerFormat.readRecord(currentStream, remaining);
+      if(record == null) {
+        // end of this container, move on to the next
+        closeCurrent();
+        continue;
+      }
+      if(completedDocuments.contains(record.id)) {
+        // already processed, ignore
+        continue;
+      }
+      try {
+        return new DocumentData(parseDocument(record), new DocumentID(
+                record.id));
+      } catch(Exception e) {
+        logger.warn("Error encountered while parsing document with ID "
+                + record.id + " - skipped", e);
+      }
+    }
+  }
+
+  /**
+   * Create a GATE document from a container record.
+   */
+  protected Document parseDocument(DocumentContainerFormat.Record record)
+          throws GateException, XMLStreamException {
+    FeatureMap docParams = Factory.newFeatureMap();
+    docParams.put(Document.DOCUMENT_STRING_CONTENT_PARAMETER_NAME, "");
+    Document gateDoc =
+            (Document)Factory.createResource("gate.corpora.DocumentImpl",
+                    docParams, null, record.id);
+    InputStream in = new ByteArrayInputStream(record.data);
+    XMLStreamReader xsr;
+    if(currentSerialization == DocumentContainerFormat.SERIALIZATION_FINF) {
+      xsr = new StAXDocumentParser(in);
+    } else {
+      xsr = xmlInputFactory.createXMLStreamReader(in);
+    }
+    try {
+      // readGateXmlDocument expects to start at the GateDocument element
+      xsr.nextTag();
+      DocumentStaxUtils.readGateXmlDocument(xsr, gateDoc);
+    } catch(XMLStreamException | RuntimeException e) {
+      Factory.deleteResource(gateDoc);
+      throw e;
+    } finally {
+      xsr.close();
+    }
+    return gateDoc;
+  }
+
+  public void close() throws IOException, GateException {
+    closeCurrent();
+  }
+
+}
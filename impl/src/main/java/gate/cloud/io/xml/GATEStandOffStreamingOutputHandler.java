@@ -0,0 +1,181 @@
+/*
+ *  GATEStandOffStreamingOutputHandler.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io.xml;
+
+import static gate.cloud.io.IOConstants.PARAM_FILE_EXTENSION;
+
+import gate.Annotation;
+import gate.Document;
+import gate.cloud.batch.DocumentID;
+import gate.cloud.io.AnnotationSnapshot;
+import gate.cloud.io.file.FastInfosetOutputHandler;
+import gate.cloud.io.file.GATEStandOffFileOutputHandler;
+import gate.cloud.io.file.StreamingFileOutputHelper;
+import gate.cloud.util.BufferPool;
+import gate.util.GateException;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Output handler that writes documents in GATE standoff XML format (or its
+ * FastInfoset binary encoding) but packs many documents into each output
+ * file rather than writing one file per document.  Output files are
+ * "chunked" in the same way as for
+ * {@link gate.cloud.io.json.JSONStreamingOutputHandler}, and each one is a
+ * container of length-prefixed records as described in
+ * {@link DocumentContainerFormat}.  The containers can be read back with a
+ * {@link GATEStandOffStreamingInputHandler}.
+ */
+public class GATEStandOffStreamingOutputHandler
+        extends GATEStandOffFileOutputHandler {
+
+  /**
+   * Parameter selecting the document serialization, either
+   * {@link #VALUE_FORMAT_XML} (the default) or {@link #VALUE_FORMAT_FINF}.
+   */
+  public static final String PARAM_FORMAT = "format";
+
+  public static final String VALUE_FORMAT_XML = "xml";
+
+  public static final String VALUE_FORMAT_FINF = "finf";
+
+  /**
+   * A document waiting to be written by the helper.
+   */
+  protected static class ContainerRecord {
+    protected String id;
+
+    protected BufferPool.Buffer data;
+
+    /**
+     * Size of the data, taken when the record is created as the buffer is
+     * returned to the pool once it has been written.
+     */
+    protected int size;
+
+    protected ContainerRecord(String id, BufferPool.Buffer data) {
+      this.id = id;
+      this.data = data;
+      this.size = data == null ? 0 : data.size();
+    }
+  }
+
+  private StreamingFileOutputHelper<ContainerRecord, DataOutputStream> helper;
+
+  protected BufferPool bufferPool;
+
+  /**
+   * The serialization byte written to the container headers.
+   */
+  protected byte serialization = DocumentContainerFormat.SERIALIZATION_XML;
+
+  /**
+   * The buffer that the current thread is serializing into.
+   */
+  protected ThreadLocal<BufferPool.Buffer> currentBuffer =
+          new ThreadLocal<BufferPool.Buffer>();
+
+  public GATEStandOffStreamingOutputHandler() {
+    helper = new StreamingFileOutputHelper<ContainerRecord, DataOutputStream>(
+        new ContainerRecord(null, null),
+        (OutputStream os) -> {
+          DataOutputStream out = new DataOutputStream(os);
+          DocumentContainerFormat.writeHeader(out, serialization);
+          return out;
+        },
+        (DataOutputStream out, ContainerRecord record) -> {
+          try {
+            DocumentContainerFormat.writeRecord(out, record.id, record.data);
+          } finally {
+            bufferPool.release(record.data);
+          }
+        },
+        (ContainerRecord record) -> record.size);
+  }
+
+  @Override
+  protected void configImpl(Map<String, String> configData) throws IOException,
+          GateException {
+    String format = configData.get(PARAM_FORMAT);
+    if(format == null || format.length() == 0
+            || VALUE_FORMAT_XML.equals(format)) {
+      serialization = DocumentContainerFormat.SERIALIZATION_XML;
+    } else if(VALUE_FORMAT_FINF.equals(format)) {
+      serialization = DocumentContainerFormat.SERIALIZATION_FINF;
+    } else {
+      throw new GateException("Unknown " + PARAM_FORMAT + " \"" + format
+              + "\", must be \"" + VALUE_FORMAT_XML + "\" or \""
+              + VALUE_FORMAT_FINF + "\"");
+    }
+    // default extension for containers
+    if(!configData.containsKey(PARAM_FILE_EXTENSION)) {
+      configData.put(PARAM_FILE_EXTENSION, ".gdc");
+    }
+    super.configImpl(configData);
+    helper.config(configData);
+    bufferPool = BufferPool.fromConfig(configData);
+  }
+
+  @Override
+  protected void outputDocumentImpl(Document document, DocumentID documentId,
+          AnnotationSnapshot snapshot) throws IOException, GateException {
+    BufferPool.Buffer buffer;
+    try {
+      buffer = bufferPool.take();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GateException("Interrupted while waiting for an output buffer",
+              e);
+    }
+    boolean sent = false;
+    currentBuffer.set(buffer);
+    try {
+      super.outputDocumentImpl(document, documentId, snapshot);
+      helper.sendItem(new ContainerRecord(documentId.getIdText(), buffer));
+      sent = true;
+    } finally {
+      currentBuffer.remove();
+      if(!sent) {
+        bufferPool.release(buffer);
+      }
+    }
+  }
+
+  @Override
+  protected void writeDocument(Document document,
+          Map<String, Collection<Annotation>> annotationSetsMap,
+          OutputStream outputStream) throws IOException {
+    if(serialization == DocumentContainerFormat.SERIALIZATION_FINF) {
+      FastInfosetOutputHandler.writeFastInfoset(document, annotationSetsMap,
+              outputStream, this);
+    } else {
+      super.writeDocument(document, annotationSetsMap, outputStream);
+    }
+  }
+
+  @Override
+  protected OutputStream getFileOutputStream(DocumentID docId)
+          throws IOException {
+    return currentBuffer.get();
+  }
+
+  @Override
+  public void init() throws IOException, GateException {
+    helper.init();
+  }
+
+  @Override
+  public void close() throws IOException, GateException {
+    helper.close();
+  }
+}
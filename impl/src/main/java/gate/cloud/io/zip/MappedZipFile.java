@@ -0,0 +1,425 @@
+/*
+ *  MappedZipFile.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.io.zip;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Read-only access to a zip file that can be shared between any number of
+ * threads.  The central directory is read once, when the file is opened,
+ * into a compact index (the entry names plus a few arrays of offsets and
+ * sizes), and the archive itself is memory-mapped, so reading an entry
+ * needs no system calls and no locking.  Deflated entries are inflated
+ * using a pool of {@link Inflater}s which is shared by all readers.
+ * <p>
+ * Zip64 archives are supported.  Since a single mapping cannot exceed
+ * 2GB, large archives are mapped as a series of overlapping segments,
+ * and the rare entry that does not fit entirely within one segment is
+ * read into memory instead.
+ */
+public class MappedZipFile implements Closeable {
+
+  private static final int LOCAL_HEADER_SIG = 0x04034b50;
+
+  private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+
+  private static final int END_SIG = 0x06054b50;
+
+  private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+
+  private static final int ZIP64_END_SIG = 0x06064b50;
+
+  private static final int METHOD_STORED = 0;
+
+  private static final int METHOD_DEFLATED = 8;
+
+  /**
+   * Distance between the starts of consecutive mapped segments.
+   */
+  private static final long SEGMENT_SIZE = 1L << 30;
+
+  /**
+   * Amount by which each segment extends into the next, so any entry of
+   * up to this size can be read from a single segment.
+   */
+  private static final long SEGMENT_OVERLAP = 64L << 20;
+
+  protected File file;
+
+  protected FileChannel channel;
+
+  protected long length;
+
+  protected ByteBuffer[] segments;
+
+  /**
+   * Index of each entry in the arrays below, by name.
+   */
+  protected Map<String, Integer> entryIndex;
+
+  protected long[] localHeaderOffsets;
+
+  protected long[] compressedSizes;
+
+  protected long[] sizes;
+
+  protected int[] methods;
+
+  protected Queue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+
+  /**
+   * Open a zip file.
+   *
+   * @param file the zip file
+   * @param fileNameEncoding the encoding of entry names that are not
+   *          flagged as UTF-8, or <code>null</code> for the platform
+   *          default.
+   */
+  public MappedZipFile(File file, String fileNameEncoding) throws IOException {
+    this.file = file;
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      length = channel.size();
+      int segmentCount = (int)((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+      segments = new ByteBuffer[segmentCount];
+      for(int i = 0; i < segmentCount; i++) {
+        long start = i * SEGMENT_SIZE;
+        long size = Math.min(SEGMENT_SIZE + SEGMENT_OVERLAP, length - start);
+        segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size)
+                .order(ByteOrder.LITTLE_ENDIAN);
+      }
+      readCentralDirectory(fileNameEncoding == null
+              ? Charset.defaultCharset()
+              : Charset.forName(fileNameEncoding));
+    } catch(IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Get a little-endian buffer holding the given range of the file.  The
+   * buffer is a view of the mapping where possible, otherwise a copy.
+   */
+  protected ByteBuffer read(long position, long len) throws IOException {
+    if(position < 0 || len < 0 || position + len > length) {
+      throw new ZipException("Invalid offset " + position + " in "
+              + file);
+    }
+    int seg = (int)(position / SEGMENT_SIZE);
+    ByteBuffer segment = segments[seg];
+    long segmentStart = seg * SEGMENT_SIZE;
+    if(position + len <= segmentStart + segment.capacity()) {
+      ByteBuffer view = segment.duplicate();
+      view.position((int)(position - segmentStart));
+      view.limit((int)(position - segmentStart + len));
+      return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+    if(len > Integer.MAX_VALUE) {
+      throw new ZipException("Entry too large in " + file);
+    }
+    ByteBuffer copy = ByteBuffer.allocate((int)len);
+    while(copy.hasRemaining()) {
+      if(channel.read(copy, position + copy.position()) < 0) {
+        throw new EOFException();
+      }
+    }
+    copy.flip();
+    return copy.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  protected void readCentralDirectory(Charset nameCharset) throws IOException {
+    // find the end of central directory record, which is followed by a
+    // comment of up to 64k
+    if(length < 22) {
+      throw new ZipException(file + " is not a zip file");
+    }
+    long searchLength = Math.min(length, 22 + 0xFFFF);
+    ByteBuffer tail = read(length - searchLength, searchLength);
+    int endPos = -1;
+    for(int i = (int)searchLength - 22; i >= 0; i--) {
+      if(tail.getInt(i) == END_SIG) {
+        endPos = i;
+        break;
+      }
+    }
+    if(endPos < 0) {
+      throw new ZipException(file + " is not a zip file");
+    }
+    long entryCount = tail.getShort(endPos + 10) & 0xFFFF;
+    long cdSize = tail.getInt(endPos + 12) & 0xFFFFFFFFL;
+    long cdOffset = tail.getInt(endPos + 16) & 0xFFFFFFFFL;
+    long endOffset = length - searchLength + endPos;
+    if(entryCount == 0xFFFF || cdSize == 0xFFFFFFFFL
+            || cdOffset == 0xFFFFFFFFL) {
+      // zip64 - the real values are in the zip64 end record, whose
+      // location is given by the locator immediately before the end record
+      if(endOffset >= 20) {
+        ByteBuffer locator = read(endOffset - 20, 20);
+        if(locator.getInt(0) == ZIP64_LOCATOR_SIG) {
+          ByteBuffer end64 = read(locator.getLong(8), 56);
+          if(end64.getInt(0) != ZIP64_END_SIG) {
+            throw new ZipException("Invalid zip64 end record in " + file);
+          }
+          entryCount = end64.getLong(32);
+          cdSize = end64.getLong(40);
+          cdOffset = end64.getLong(48);
+        }
+      }
+    }
+    if(entryCount > Integer.MAX_VALUE) {
+      throw new ZipException("Too many entries in " + file);
+    }
+    int count = (int)entryCount;
+    entryIndex = new HashMap<String, Integer>(count * 4 / 3 + 1);
+    localHeaderOffsets = new long[count];
+    compressedSizes = new long[count];
+    sizes = new long[count];
+    methods = new int[count];
+    long pos = cdOffset;
+    for(int i = 0; i < count; i++) {
+      ByteBuffer header = read(pos, 46);
+      if(header.getInt(0) != CENTRAL_HEADER_SIG) {
+        throw new ZipException("Invalid central directory entry in " + file);
+      }
+      int flags = header.getShort(8) & 0xFFFF;
+      int method = header.getShort(10) & 0xFFFF;
+      long compressedSize = header.getInt(20) & 0xFFFFFFFFL;
+      long size = header.getInt(24) & 0xFFFFFFFFL;
+      int nameLength = header.getShort(28) & 0xFFFF;
+      int extraLength = header.getShort(30) & 0xFFFF;
+      int commentLength = header.getShort(32) & 0xFFFF;
+      long localOffset = header.getInt(42) & 0xFFFFFFFFL;
+      ByteBuffer variable = read(pos + 46, nameLength + extraLength);
+      byte[] nameBytes = new byte[nameLength];
+      variable.get(nameBytes);
+      // bit 11 is the "language encoding" flag, meaning UTF-8 names
+      String name = new String(nameBytes,
+              (flags & 0x800) != 0 ? StandardCharsets.UTF_8 : nameCharset);
+      int extraEnd = nameLength + extraLength;
+      int extraPos = nameLength;
+      while(extraPos + 4 <= extraEnd) {
+        int id = variable.getShort(extraPos) & 0xFFFF;
+        int dataLength = variable.getShort(extraPos + 2) & 0xFFFF;
+        int p = extraPos + 4;
+        if(id == 0x0001) {
+          // the zip64 extra field holds the values that did not fit
+          if(size == 0xFFFFFFFFL) {
+            size = variable.getLong(p);
+            p += 8;
+          }
+          if(compressedSize == 0xFFFFFFFFL) {
+            compressedSize = variable.getLong(p);
+            p += 8;
+          }
+          if(localOffset == 0xFFFFFFFFL) {
+            localOffset = variable.getLong(p);
+          }
+        } else if(id == 0x7075 && dataLength > 5
+                && p + dataLength <= extraEnd) {
+          // Info-ZIP Unicode path field, only valid if the CRC matches the
+          // name in the header
+          CRC32 crc = new CRC32();
+          crc.update(nameBytes);
+          if((variable.getInt(p + 1) & 0xFFFFFFFFL) == crc.getValue()) {
+            byte[] unicodeName = new byte[dataLength - 5];
+            ByteBuffer field = variable.duplicate();
+            field.position(p + 5);
+            field.get(unicodeName);
+            name = new String(unicodeName, StandardCharsets.UTF_8);
+          }
+        }
+        extraPos += 4 + dataLength;
+      }
+      if((flags & 1) != 0) {
+        // encrypted, which we cannot read
+        method = -1;
+      }
+      entryIndex.put(name, i);
+      localHeaderOffsets[i] = localOffset;
+      compressedSizes[i] = compressedSize;
+      sizes[i] = size;
+      methods[i] = method;
+      pos += 46 + nameLength + extraLength + commentLength;
+    }
+    if(pos - cdOffset != cdSize) {
+      throw new ZipException("Inconsistent central directory size in " + file);
+    }
+  }
+
+  /**
+   * Does the archive contain the given entry?
+   */
+  public boolean hasEntry(String name) {
+    return entryIndex.containsKey(name);
+  }
+
+  /**
+   * Number of entries in the archive.
+   */
+  public int size() {
+    return localHeaderOffsets.length;
+  }
+
+  /**
+   * Uncompressed size of the given entry, or -1 if there is no such entry.
+   */
+  public long getSize(String name) {
+    Integer i = entryIndex.get(name);
+    return i == null ? -1 : sizes[i];
+  }
+
+  /**
+   * Open a stream reading the content of the given entry.  This may be
+   * called by any number of threads at once.
+   *
+   * @return the stream, or <code>null</code> if there is no such entry.
+   */
+  public InputStream getInputStream(String name) throws IOException {
+    Integer index = entryIndex.get(name);
+    if(index == null) {
+      return null;
+    }
+    int i = index;
+    // the length of the local extra field can differ from that in the
+    // central directory, so we have to read the local header
+    ByteBuffer local = read(localHeaderOffsets[i], 30);
+    if(local.getInt(0) != LOCAL_HEADER_SIG) {
+      throw new ZipException("Invalid local header for entry " + name
+              + " in " + file);
+    }
+    long dataStart = localHeaderOffsets[i] + 30
+            + (local.getShort(26) & 0xFFFF) + (local.getShort(28) & 0xFFFF);
+    ByteBuffer data = read(dataStart, compressedSizes[i]);
+    switch(methods[i]) {
+      case METHOD_STORED:
+        return new ByteBufferInputStream(data);
+      case METHOD_DEFLATED:
+        return new PooledInflaterInputStream(new ByteBufferInputStream(data));
+      default:
+        throw new ZipException("Unsupported compression method or encrypted "
+                + "entry " + name + " in " + file);
+    }
+  }
+
+  /**
+   * Close the file.  The mapping itself is released when it is garbage
+   * collected.
+   */
+  public void close() throws IOException {
+    Inflater inf;
+    while((inf = inflaters.poll()) != null) {
+      inf.end();
+    }
+    channel.close();
+  }
+
+  /**
+   * Input stream reading from a byte buffer.
+   */
+  protected static class ByteBufferInputStream extends InputStream {
+    protected ByteBuffer buffer;
+
+    public ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if(len == 0) {
+        return 0;
+      }
+      if(!buffer.hasRemaining()) {
+        return -1;
+      }
+      int n = Math.min(len, buffer.remaining());
+      buffer.get(b, off, n);
+      return n;
+    }
+
+    @Override
+    public long skip(long n) {
+      int skipped = (int)Math.max(0, Math.min(n, buffer.remaining()));
+      buffer.position(buffer.position() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+
+  /**
+   * Inflating stream that borrows its inflater from the pool, and returns
+   * it when closed.
+   */
+  protected class PooledInflaterInputStream extends InflaterInputStream {
+    private boolean eof = false;
+
+    private boolean closed = false;
+
+    public PooledInflaterInputStream(InputStream in) {
+      super(in, borrowInflater(), 8192);
+    }
+
+    @Override
+    protected void fill() throws IOException {
+      if(eof) {
+        throw new EOFException("Unexpected end of zip entry");
+      }
+      len = in.read(buf, 0, buf.length);
+      if(len == -1) {
+        // the inflater may need one more (dummy) byte in nowrap mode
+        buf[0] = 0;
+        len = 1;
+        eof = true;
+      }
+      inf.setInput(buf, 0, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if(!closed) {
+        closed = true;
+        super.close();
+        inf.reset();
+        inflaters.offer(inf);
+      }
+    }
+  }
+
+  protected Inflater borrowInflater() {
+    Inflater inf = inflaters.poll();
+    return inf == null ? new Inflater(true) : inf;
+  }
+}
@@ -14,6 +14,7 @@ package gate.cloud.io.zip;
 import static gate.cloud.io.IOConstants.PARAM_BATCH_FILE_LOCATION;
 import static gate.cloud.io.IOConstants.PARAM_ENCODING;
 import static gate.cloud.io.IOConstants.PARAM_FILE_NAME_ENCODING;
+import static gate.cloud.io.IOConstants.PARAM_MEMORY_MAPPED;
 import static gate.cloud.io.IOConstants.PARAM_MIME_TYPE;
 import static gate.cloud.io.IOConstants.PARAM_REPOSITIONING_INFO;
 import static gate.cloud.io.IOConstants.PARAM_SOURCE_FILE_LOCATION;
@@ -23,7 +24,9 @@ import gate.Factory;
 import gate.FeatureMap;
 import gate.cloud.batch.DocumentID;
 import gate.cloud.io.DocumentData;
-import gate.cloud.io.InputHandler;
+import gate.cloud.io.DocumentPreFilter;
+import gate.cloud.io.PreFilteringInputHandler;
+import gate.cloud.io.RawDocument;
 import gate.util.GateException;
 
 import java.io.File;
@@ -45,7 +48,7 @@ import org.slf4j.LoggerFactory;
  * Input handler that reads from a zip file. Document IDs are assumed to
  * be entry paths within the zip file.
  */
-public class ZipInputHandler implements InputHandler {
+public class ZipInputHandler implements PreFilteringInputHandler {
 
   private static Logger logger = LoggerFactory.getLogger(ZipInputHandler.class);
 
@@ -59,6 +62,12 @@ public class ZipInputHandler implements InputHandler {
    */
   protected String encoding;
 
+  /**
+   * Filter applied to each document before it is created, or
+   * <code>null</code> to accept every document.
+   */
+  protected DocumentPreFilter preFilter;
+
   /**
    * The directory containing the batch specification file, or
    * <code>null</code> if the batch specification did not come from a
@@ -91,11 +100,23 @@ public class ZipInputHandler implements InputHandler {
    */
   protected boolean repositioningInfo = false;
 
+  /**
+   * Should we read the zip file through a shared {@link MappedZipFile}
+   * rather than a pool of Ant ZipFiles?
+   */
+  protected boolean memoryMapped = false;
+
   /**
    * Pool of ZipFile instances used to load documents.
    */
   protected BlockingQueue<ZipFile> zipFiles;
 
+  /**
+   * The shared memory-mapped zip file, if <code>memoryMapped</code> is
+   * set.
+   */
+  protected MappedZipFile mappedZip;
+
   @SuppressWarnings("deprecation")
   public void config(Map<String, String> configData) throws IOException,
           GateException {
@@ -143,9 +164,25 @@ public class ZipInputHandler implements InputHandler {
     if("true".equals(configData.get(PARAM_REPOSITIONING_INFO))) {
       repositioningInfo = true;
     }
+
+    if("true".equals(configData.get(PARAM_MEMORY_MAPPED))) {
+      memoryMapped = true;
+    }
   }
 
   public DocumentData getInputDocument(DocumentID id) throws IOException, GateException {
+    if(mappedZip != null) {
+      long size = mappedZip.getSize(id.getIdText());
+      if(size < 0) {
+        throw new GateException("Unknown entry " + id
+                + " requested from zip file "
+                + zipFileLocation.getAbsolutePath());
+      }
+      DocumentData docData = loadDocument(id,
+              new MappedEntryStreamHandler(id.getIdText(), size), size);
+      docData.fileSize = size;
+      return docData;
+    }
     ZipFile zipFile = borrowZip();
     InputStream is = null;
     ZipEntryStreamHandler handler = null;
@@ -156,31 +193,8 @@ public class ZipInputHandler implements InputHandler {
                 + " requested from zip file "
                 + zipFileLocation.getAbsolutePath());
       }
-      // construct a jar: URL for the given file
       handler = new ZipEntryStreamHandler(zipFile, ze);
-      URL docUrl =
-              new URL(null, "jar:" + zipFileUri + "!/" + id,
-                      handler);
-      FeatureMap params = Factory.newFeatureMap();
-      params.put(Document.DOCUMENT_URL_PARAMETER_NAME, docUrl);
-      if(mimeType != null && mimeType.length() > 0) {
-        params.put(Document.DOCUMENT_MIME_TYPE_PARAMETER_NAME, mimeType);
-      }
-      if(encoding != null && encoding.length() > 0) {
-        params.put(Document.DOCUMENT_ENCODING_PARAMETER_NAME, encoding);
-      }
-
-      params.put(Document.DOCUMENT_MARKUP_AWARE_PARAMETER_NAME, Boolean.TRUE);
-      
-      if(repositioningInfo) {
-        params.put(Document.DOCUMENT_REPOSITIONING_PARAMETER_NAME, Boolean.TRUE);
-      }
-
-      logger.debug("Loading document from URL {}", docUrl);
-
-      DocumentData docData = new DocumentData(
-              (Document)Factory.createResource("gate.corpora.DocumentImpl",
-                  params, Factory.newFeatureMap(), id.getIdText()), id);
+      DocumentData docData = loadDocument(id, handler, ze.getSize());
       docData.fileSize = ze.getSize();
 
       return docData;
@@ -197,6 +211,45 @@ public class ZipInputHandler implements InputHandler {
 
   }
 
+  /**
+   * Load a document from a jar: URL for the given entry, using the given
+   * handler to read the entry content.
+   */
+  protected DocumentData loadDocument(DocumentID id, URLStreamHandler handler,
+          long size) throws IOException, GateException {
+    // construct a jar: URL for the given file
+    URL docUrl =
+            new URL(null, "jar:" + zipFileUri + "!/" + id,
+                    handler);
+    if(preFilter != null) {
+      String reason = preFilter.check(new RawDocument(id, docUrl, size,
+              mimeType, encoding));
+      if(reason != null) {
+        return DocumentData.filtered(id, reason, size);
+      }
+    }
+    FeatureMap params = Factory.newFeatureMap();
+    params.put(Document.DOCUMENT_URL_PARAMETER_NAME, docUrl);
+    if(mimeType != null && mimeType.length() > 0) {
+      params.put(Document.DOCUMENT_MIME_TYPE_PARAMETER_NAME, mimeType);
+    }
+    if(encoding != null && encoding.length() > 0) {
+      params.put(Document.DOCUMENT_ENCODING_PARAMETER_NAME, encoding);
+    }
+
+    params.put(Document.DOCUMENT_MARKUP_AWARE_PARAMETER_NAME, Boolean.TRUE);
+    
+    if(repositioningInfo) {
+      params.put(Document.DOCUMENT_REPOSITIONING_PARAMETER_NAME, Boolean.TRUE);
+    }
+
+    logger.debug("Loading document from URL {}", docUrl);
+
+    return new DocumentData(
+            (Document)Factory.createResource("gate.corpora.DocumentImpl",
+                params, Factory.newFeatureMap(), id.getIdText()), id);
+  }
+
   protected ZipFile borrowZip() throws IOException {
     ZipFile f = zipFiles.poll();
     if(f == null) {
@@ -211,14 +264,26 @@ public class ZipInputHandler implements InputHandler {
     zipFiles.add(f);
   }
 
+  public void setPreFilter(DocumentPreFilter filter) {
+    this.preFilter = filter;
+  }
+
   public void init() throws IOException, GateException {
     zipFiles = new LinkedBlockingQueue<ZipFile>();
+    if(memoryMapped) {
+      mappedZip = new MappedZipFile(zipFileLocation, fileNameEncoding);
+      logger.info("Memory-mapped zip file {} with {} entries",
+              zipFileLocation, mappedZip.size());
+    }
   }
 
   /**
    * Close all ZipFiles in the pool.
    */
   public void close() throws IOException, GateException {
+    if(mappedZip != null) {
+      mappedZip.close();
+    }
     for(ZipFile f : zipFiles) {
       try {
         f.close();
@@ -279,4 +344,42 @@ public class ZipInputHandler implements InputHandler {
 
   }
 
+  /**
+   * UrlStreamHandler that reads an entry from the shared memory-mapped
+   * zip file.
+   */
+  protected class MappedEntryStreamHandler extends URLStreamHandler {
+
+    protected String entryName;
+
+    protected long size;
+
+    public MappedEntryStreamHandler(String entryName, long size) {
+      this.entryName = entryName;
+      this.size = size;
+    }
+
+    @Override
+    protected URLConnection openConnection(URL u) throws IOException {
+      return new URLConnection(u) {
+
+        @Override
+        public void connect() throws IOException {
+          // do nothing
+        }
+
+        @Override
+        public int getContentLength() {
+          return (int)size;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+          return mappedZip.getInputStream(entryName);
+        }
+      };
+    }
+
+  }
+
 }
@@ -0,0 +1,174 @@
+/*
+ *  BufferPool.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.util;
+
+import static gate.cloud.io.IOConstants.PARAM_BUFFER_POOL_SIZE;
+import static gate.cloud.io.IOConstants.PARAM_MAX_RETAINED_BUFFER_SIZE;
+import gate.util.GateException;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of reusable in-memory byte buffers, used to hand
+ * serialized documents from the processing threads to the writer thread(s)
+ * of a streaming output handler without copying them.  A processing thread
+ * takes a buffer, fills it and queues it for writing, the writer writes the
+ * buffer's contents directly with {@link Buffer#writeTo} and then returns it
+ * to the pool.
+ * <p>
+ * The pool holds at most a fixed number of buffers.  When all of them are
+ * in use {@link #take()} blocks until one is released, so the pool also
+ * bounds the amount of memory held by output that is waiting to be written.
+ * Buffers that have grown larger than a configurable limit (to hold an
+ * unusually large document) are replaced by a fresh small buffer on release,
+ * rather than being kept in the pool.
+ */
+public class BufferPool {
+
+  /**
+   * A reusable buffer.  This is a {@link ByteArrayOutputStream} that knows
+   * how much memory it is holding.
+   */
+  public static class Buffer extends ByteArrayOutputStream {
+    public Buffer(int initialSize) {
+      super(initialSize);
+    }
+
+    /**
+     * The size of the underlying array, which may be larger than the number
+     * of bytes currently in the buffer.
+     */
+    public int capacity() {
+      return buf.length;
+    }
+  }
+
+  /**
+   * Default number of buffers in the pool.
+   */
+  public static final int DEFAULT_POOL_SIZE = 200;
+
+  /**
+   * Default initial size of a new buffer.
+   */
+  public static final int DEFAULT_INITIAL_SIZE = 16 * 1024;
+
+  /**
+   * Default maximum size of a buffer that will be kept for re-use.
+   */
+  public static final int DEFAULT_MAX_RETAINED_SIZE = 256 * 1024;
+
+  /**
+   * Create a pool configured by the {@link gate.cloud.io.IOConstants#PARAM_BUFFER_POOL_SIZE}
+   * and {@link gate.cloud.io.IOConstants#PARAM_MAX_RETAINED_BUFFER_SIZE}
+   * parameters of a streaming output handler, using the defaults for any
+   * that are not set.
+   */
+  public static BufferPool fromConfig(Map<String, String> configData)
+          throws GateException {
+    int poolSize = DEFAULT_POOL_SIZE;
+    int maxRetainedSize = DEFAULT_MAX_RETAINED_SIZE;
+    try {
+      String poolSizeStr = configData.get(PARAM_BUFFER_POOL_SIZE);
+      if(poolSizeStr != null && poolSizeStr.length() > 0) {
+        poolSize = Integer.parseInt(poolSizeStr);
+      }
+      String maxRetainedStr = configData.get(PARAM_MAX_RETAINED_BUFFER_SIZE);
+      if(maxRetainedStr != null && maxRetainedStr.length() > 0) {
+        maxRetainedSize = Integer.parseInt(maxRetainedStr);
+      }
+    } catch(NumberFormatException e) {
+      throw new GateException("Invalid " + PARAM_BUFFER_POOL_SIZE + " or "
+              + PARAM_MAX_RETAINED_BUFFER_SIZE
+              + " value (not an integer number).", e);
+    }
+    return new BufferPool(poolSize, DEFAULT_INITIAL_SIZE, maxRetainedSize);
+  }
+
+  /**
+   * Buffers that are not currently in use.
+   */
+  private BlockingQueue<Buffer> available;
+
+  /**
+   * Number of buffers created so far, never more than {@link #poolSize}.
+   */
+  private AtomicInteger created = new AtomicInteger();
+
+  private int poolSize;
+
+  private int initialSize;
+
+  private int maxRetainedSize;
+
+  public BufferPool() {
+    this(DEFAULT_POOL_SIZE, DEFAULT_INITIAL_SIZE, DEFAULT_MAX_RETAINED_SIZE);
+  }
+
+  /**
+   * Create a buffer pool.
+   *
+   * @param poolSize the maximum number of buffers.
+   * @param initialSize the initial size of each new buffer.
+   * @param maxRetainedSize buffers whose capacity has grown beyond this size
+   *          will be discarded rather than re-used.
+   */
+  public BufferPool(int poolSize, int initialSize, int maxRetainedSize) {
+    if(poolSize < 1) {
+      throw new IllegalArgumentException("Pool size must be at least 1");
+    }
+    this.poolSize = poolSize;
+    this.initialSize = initialSize;
+    this.maxRetainedSize = maxRetainedSize;
+    available = new LinkedBlockingQueue<Buffer>(poolSize);
+  }
+
+  /**
+   * Take an empty buffer from the pool, creating one if the pool has not
+   * yet reached its maximum size, or blocking until one is released if it
+   * has. The buffer returned by this method <i>must</i> be returned to the
+   * pool by calling {@link #release}.
+   */
+  public Buffer take() throws InterruptedException {
+    Buffer b = available.poll();
+    if(b != null) {
+      return b;
+    }
+    // try and create a new one, if we're allowed
+    int count = created.get();
+    while(count < poolSize) {
+      if(created.compareAndSet(count, count + 1)) {
+        return new Buffer(initialSize);
+      }
+      count = created.get();
+    }
+    return available.take();
+  }
+
+  /**
+   * Return a buffer to the pool.  The buffer is reset before it is re-used.
+   */
+  public void release(Buffer b) {
+    if(b.capacity() > maxRetainedSize) {
+      // don't hang on to large buffers
+      b = new Buffer(initialSize);
+    } else {
+      b.reset();
+    }
+    available.offer(b);
+  }
+
+  public int getPoolSize() {
+    return poolSize;
+  }
+}
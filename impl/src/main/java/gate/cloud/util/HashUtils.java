@@ -0,0 +1,78 @@
+/*
+ *  HashUtils.java
+ *  Copyright (c) 2007-2018, The University of Sheffield.
+ *
+ *  This file is part of GCP (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Affero General Public License,
+ *  Version 3, November 2007.
+ */
+package gate.cloud.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Utility methods for the SHA-256 digests used to fingerprint
+ * applications, documents and cache entries.
+ */
+public class HashUtils {
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private HashUtils() {
+  }
+
+  /**
+   * Create a new SHA-256 digest.
+   */
+  public static MessageDigest newSha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch(NoSuchAlgorithmException e) {
+      // every Java platform is required to support SHA-256
+      throw new IllegalStateException("SHA-256 not supported", e);
+    }
+  }
+
+  /**
+   * Encode the given bytes (typically a digest) as lower case hex.
+   */
+  public static String toHex(byte[] bytes) {
+    char[] hex = new char[bytes.length * 2];
+    for(int i = 0; i < bytes.length; i++) {
+      hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+      hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+    }
+    return new String(hex);
+  }
+
+  /**
+   * Read the given stream to the end and return the hex-encoded SHA-256
+   * digest of its content.  The stream is closed.
+   */
+  public static String sha256Hex(InputStream in) throws IOException {
+    MessageDigest digest = newSha256();
+    try {
+      byte[] buf = new byte[8192];
+      int read;
+      while((read = in.read(buf)) >= 0) {
+        digest.update(buf, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+    return toHex(digest.digest());
+  }
+
+  /**
+   * Return the hex-encoded SHA-256 digest of the content of the given
+   * file.
+   */
+  public static String sha256Hex(File file) throws IOException {
+    return sha256Hex(new FileInputStream(file));
+  }
+}
@@ -11,16 +11,29 @@
  */
 package gate.cloud.util;
 
+import static gate.cloud.io.IOConstants.PARAM_APPLICATION_FINGERPRINT;
 import static gate.cloud.io.IOConstants.PARAM_BATCH_FILE_LOCATION;
 import gate.CorpusController;
 import gate.Gate;
+import gate.cloud.batch.AggregateReportSink;
 import gate.cloud.batch.AnnotationSetDefinition;
 import gate.cloud.batch.Batch;
+import gate.cloud.batch.BinaryReportSink;
 import gate.cloud.batch.DocumentID;
+import gate.cloud.batch.JSONLinesReportSink;
+import gate.cloud.batch.NearDuplicateFilter;
+import gate.cloud.batch.ReportSink;
+import gate.cloud.batch.XMLReportSink;
+import gate.cloud.io.AntBasedDocumentEnumerator;
 import gate.cloud.io.DocumentEnumerator;
+import gate.cloud.io.DocumentPreFilter;
 import gate.cloud.io.InputHandler;
 import gate.cloud.io.OutputHandler;
 import gate.cloud.io.IOConstants;
+import gate.cloud.io.filter.CharacterClassPreFilter;
+import gate.cloud.io.filter.LanguagePreFilter;
+import gate.cloud.io.filter.MimeTypePreFilter;
+import gate.cloud.io.filter.SizePreFilter;
 import gate.util.GateException;
 import gate.util.persistence.PersistenceManager;
 
@@ -30,10 +43,13 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 import javax.xml.XMLConstants;
 import javax.xml.stream.FactoryConfigurationError;
@@ -51,6 +67,22 @@ public class XMLBatchParser{
   private static XMLInputFactory staxInputFactory =
     XMLInputFactory.newInstance();
 
+  /**
+   * Default maximum size of a result cache (1GB).
+   */
+  public static final long DEFAULT_RESULT_CACHE_MAX_SIZE = 1024L * 1024 * 1024;
+
+  /**
+   * Compute a fingerprint for a saved application, as the hex-encoded
+   * SHA-256 digest of the application file.  This does not cover any
+   * other files the application may load (gazetteer lists, grammars,
+   * etc.) so will not change if only those files change.
+   */
+  public static String applicationFingerprint(File appFile)
+          throws IOException {
+    return HashUtils.sha256Hex(appFile);
+  }
+
   /**
    * Load a batch definition from an XML file.
    *
@@ -68,6 +100,7 @@ public class XMLBatchParser{
     // JAR files that are loaded along with the GATE application.
     HandlerSpec inputHandlerSpec = null;
     List<HandlerSpec> outputHandlerSpecs =  new ArrayList<HandlerSpec>();
+    List<HandlerSpec> preFilterSpecs = new ArrayList<HandlerSpec>();
     List<Object> docIDsOrSpecs = null;
     InputStream inputStream =
             new BufferedInputStream(new FileInputStream(inputFile));
@@ -104,6 +137,7 @@ public class XMLBatchParser{
             batch.setGateApplication(
                     (CorpusController)PersistenceManager.loadObjectFromFile(
                             appFile));
+            batch.setApplicationFingerprint(applicationFingerprint(appFile));
           } else {
             Location location = xsr.getLocation();
             throw new GateException(
@@ -125,6 +159,7 @@ public class XMLBatchParser{
                               reportFileStr);
             }
             batch.setReportFile(repFile);
+            batch.setReportSink(extractReportSink(xsr, inputFile));
           } else {
             Location location = xsr.getLocation();
             throw new GateException(
@@ -136,6 +171,94 @@ public class XMLBatchParser{
           }
           // close this tag
           xsr.nextTag();
+        } else if(elemName.equals("resultCache")) {
+          String cacheDirStr =
+                  xsr.getAttributeValue(XMLConstants.NULL_NS_URI, "dir");
+          if(cacheDirStr != null) {
+            File cacheDir = new File(cacheDirStr);
+            if(!cacheDir.isAbsolute()) {
+              cacheDir = new File(inputFile.getParentFile().getAbsoluteFile(),
+                              cacheDirStr);
+            }
+            batch.setResultCacheDirectory(cacheDir);
+          } else {
+            Location location = xsr.getLocation();
+            throw new GateException(
+                    "No dir attribute provided for the resultCache element "
+                            + "at character offset: "
+                            + location.getCharacterOffset() + ", line: "
+                            + location.getLineNumber() + ", column: "
+                            + location.getColumnNumber());
+          }
+          String maxSizeStr =
+                  xsr.getAttributeValue(XMLConstants.NULL_NS_URI, "maxSize");
+          long maxSize = DEFAULT_RESULT_CACHE_MAX_SIZE;
+          if(maxSizeStr != null && maxSizeStr.length() > 0) {
+            try {
+              maxSize = Long.parseLong(maxSizeStr);
+            } catch(NumberFormatException e) {
+              throw new GateException("Invalid maxSize value \"" + maxSizeStr
+                      + "\" for the resultCache element (not an integer "
+                      + "number).", e);
+            }
+          }
+          batch.setResultCacheMaxSize(maxSize);
+          String ignoreFeaturesStr = xsr.getAttributeValue(
+                  XMLConstants.NULL_NS_URI, "ignoreFeatures");
+          if(ignoreFeaturesStr != null
+                  && ignoreFeaturesStr.trim().length() > 0) {
+            batch.setResultCacheIgnoredFeatures(Arrays.asList(
+                    ignoreFeaturesStr.trim().split("\\s*,\\s*")));
+          }
+          // close this tag
+          xsr.nextTag();
+        } else if(elemName.equals("nearDuplicates")) {
+          Map<String, String> config = new HashMap<String, String>();
+          for(int i = 0; i < xsr.getAttributeCount(); i++) {
+            config.put(xsr.getAttributeLocalName(i),
+                    xsr.getAttributeValue(i));
+          }
+          try {
+            // check the configuration now rather than when the batch starts
+            new NearDuplicateFilter(config);
+          } catch(IllegalArgumentException e) {
+            throw new GateException("Invalid nearDuplicates element: "
+                    + e.getMessage(), e);
+          }
+          batch.setNearDuplicateConfig(config);
+          // close this tag
+          xsr.nextTag();
+        } else if(elemName.equals("export")) {
+          String threadsStr =
+                  xsr.getAttributeValue(XMLConstants.NULL_NS_URI, "threads");
+          if(threadsStr == null || threadsStr.length() == 0) {
+            Location location = xsr.getLocation();
+            throw new GateException(
+                    "No threads attribute provided for the export element "
+                            + "at character offset: "
+                            + location.getCharacterOffset() + ", line: "
+                            + location.getLineNumber() + ", column: "
+                            + location.getColumnNumber());
+          }
+          int threads;
+          try {
+            threads = Integer.parseInt(threadsStr.trim());
+          } catch(NumberFormatException e) {
+            throw new GateException("Invalid threads value \"" + threadsStr
+                    + "\" for the export element (not an integer number).",
+                    e);
+          }
+          if(threads < 0) {
+            throw new GateException("Invalid threads value \"" + threadsStr
+                    + "\" for the export element (must not be negative).");
+          }
+          batch.setExportThreads(threads);
+          // close this tag
+          xsr.nextTag();
+        } else if(elemName.equals("preFilter")) {
+          preFilterSpecs.add(extractPreFilter(xsr, inputFile));
+          // close this tag
+          xsr.nextTag();
         } else if(elemName.equals("documents")) {
           docIDsOrSpecs = extractDocumentIDs(xsr, inputFile);
         } else {
@@ -163,20 +286,55 @@ public class XMLBatchParser{
       outputHandlers.add(ohs.toOutputHandler());
     }
     batch.setOutputHandlers(outputHandlers);
+    List<DocumentPreFilter> preFilters = new ArrayList<DocumentPreFilter>(
+            preFilterSpecs.size());
+    for(HandlerSpec pfs : preFilterSpecs) {
+      preFilters.add(pfs.toPreFilter());
+    }
+    batch.setPreFilters(preFilters);
 
     // if no doc IDs or enumerators then assume streaming mode
     if(docIDsOrSpecs != null && docIDsOrSpecs.size() > 0) {
+      // each item is either a list of IDs or an enumerator
+      List<Iterator<DocumentID>> sources = new ArrayList<Iterator<DocumentID>>();
       List<DocumentID> docIds = new LinkedList<DocumentID>();
+      boolean streaming = false;
       for(Object item : docIDsOrSpecs) {
         if(item instanceof DocumentID) {
           docIds.add((DocumentID)item);
         } else if(item instanceof HandlerSpec) {
-          DocumentEnumerator enumerator = ((HandlerSpec)item).toDocumentEnumerator();
-          while(enumerator.hasNext()) docIds.add(enumerator.next()); 
+          HandlerSpec enumSpec = (HandlerSpec)item;
+          if(batch.getApplicationFingerprint() != null) {
+            enumSpec.configData.put(PARAM_APPLICATION_FINGERPRINT,
+                    batch.getApplicationFingerprint());
+          }
+          DocumentEnumerator enumerator = enumSpec.toDocumentEnumerator();
+          if(enumerator instanceof AntBasedDocumentEnumerator
+                  && ((AntBasedDocumentEnumerator)enumerator).getManifest() != null) {
+            batch.addManifest(
+                    ((AntBasedDocumentEnumerator)enumerator).getManifest());
+          }
+          if(enumerator.isStreaming()) {
+            streaming = true;
+          }
+          sources.add(docIds.iterator());
+          sources.add(enumerator);
+          docIds = new LinkedList<DocumentID>();
         }
       }
-  
-      batch.setDocumentIDs(docIds.toArray(new DocumentID[docIds.size()]));
+      sources.add(docIds.iterator());
+      if(streaming) {
+        // pass the IDs to the batch as they are found, rather than
+        // waiting for the slowest enumerator to finish
+        batch.setDocumentIDIterator(new ConcatenatingIterator<DocumentID>(
+                sources.iterator()));
+      } else {
+        docIds = new LinkedList<DocumentID>();
+        for(Iterator<DocumentID> source : sources) {
+          while(source.hasNext()) docIds.add(source.next());
+        }
+        batch.setDocumentIDs(docIds.toArray(new DocumentID[docIds.size()]));
+      }
     }
 
     // check the batch got all the data it needed
@@ -389,6 +547,89 @@ public class XMLBatchParser{
     return docIDsOrSpecs;
   }
 
+  /**
+   * Create the report sink described by the attributes of a report
+   * element.  The sink class is given either by a <code>class</code>
+   * attribute or by a <code>format</code> (one of "xml", "jsonl",
+   * "binary" or "aggregate"), defaulting to XML, and any other attributes
+   * are passed to the sink as configuration options.
+   */
+  private static ReportSink extractReportSink(XMLStreamReader xsr,
+          File xmlFile) throws GateException {
+    HandlerSpec sinkSpec = new HandlerSpec();
+    sinkSpec.configData = new HashMap<String, String>();
+    String format = null;
+    for(int i = 0; i < xsr.getAttributeCount(); i++) {
+      String attrName = xsr.getAttributeLocalName(i);
+      if(attrName.equalsIgnoreCase("class")) {
+        sinkSpec.className = xsr.getAttributeValue(i);
+      } else if(attrName.equalsIgnoreCase("format")) {
+        format = xsr.getAttributeValue(i);
+      } else if(!attrName.equals("file")) {
+        sinkSpec.configData.put(attrName, xsr.getAttributeValue(i));
+      }
+    }
+    sinkSpec.configData.put(PARAM_BATCH_FILE_LOCATION,
+            xmlFile.getAbsolutePath());
+    if(sinkSpec.className == null) {
+      if(format == null || format.equals("xml")) {
+        sinkSpec.className = XMLReportSink.class.getName();
+      } else if(format.equals("jsonl")) {
+        sinkSpec.className = JSONLinesReportSink.class.getName();
+      } else if(format.equals("binary")) {
+        sinkSpec.className = BinaryReportSink.class.getName();
+      } else if(format.equals("aggregate")) {
+        sinkSpec.className = AggregateReportSink.class.getName();
+      } else {
+        throw new GateException("Unknown report format \"" + format
+                + "\", must be one of \"xml\", \"jsonl\", \"binary\" or "
+                + "\"aggregate\".");
+      }
+    }
+    return sinkSpec.toReportSink();
+  }
+
+  /**
+   * Read a preFilter element.  The filter class is given either by a
+   * <code>class</code> attribute or by a <code>type</code> (one of
+   * "size", "mimeType", "language" or "characters"), and any other
+   * attributes are passed to the filter as configuration options.
+   */
+  private static HandlerSpec extractPreFilter(XMLStreamReader xsr,
+          File xmlFile) throws GateException {
+    HandlerSpec filterSpec = new HandlerSpec();
+    filterSpec.configData = new HashMap<String, String>();
+    String type = null;
+    for(int i = 0; i < xsr.getAttributeCount(); i++) {
+      String attrName = xsr.getAttributeLocalName(i);
+      if(attrName.equalsIgnoreCase("class")) {
+        filterSpec.className = xsr.getAttributeValue(i);
+      } else if(attrName.equalsIgnoreCase("type")) {
+        type = xsr.getAttributeValue(i);
+      } else {
+        filterSpec.configData.put(attrName, xsr.getAttributeValue(i));
+      }
+    }
+    filterSpec.configData.put(PARAM_BATCH_FILE_LOCATION,
+            xmlFile.getAbsolutePath());
+    if(filterSpec.className == null) {
+      if("size".equals(type)) {
+        filterSpec.className = SizePreFilter.class.getName();
+      } else if("mimeType".equals(type)) {
+        filterSpec.className = MimeTypePreFilter.class.getName();
+      } else if("language".equals(type)) {
+        filterSpec.className = LanguagePreFilter.class.getName();
+      } else if("characters".equals(type)) {
+        filterSpec.className = CharacterClassPreFilter.class.getName();
+      } else {
+        throw new GateException("Unknown pre-filter type \"" + type
+                + "\", must be one of \"size\", \"mimeType\", "
+                + "\"language\" or \"characters\" (or give a class).");
+      }
+    }
+    return filterSpec;
+  }
+
   /**
    * "Struct" class holding the specification of an input or output
    * handler (or an enumerator) as parsed from the XML.
@@ -443,13 +684,70 @@ public class XMLBatchParser{
                 "Could not instantiate declared document enumerator.", e);
       }
     }
+
+    protected DocumentPreFilter toPreFilter() throws GateException {
+      try {
+        Class<? extends DocumentPreFilter> filterClass =
+                Class.forName(className, true, Gate.getClassLoader())
+                        .asSubclass(DocumentPreFilter.class);
+        DocumentPreFilter filter = filterClass.newInstance();
+        filter.config(configData);
+        return filter;
+      } catch(Exception e) {
+        throw new GateException(
+                "Could not instantiate declared pre-filter.", e);
+      }
+    }
+
+    protected ReportSink toReportSink() throws GateException {
+      try {
+        Class<? extends ReportSink> sinkClass =
+                Class.forName(className, true, Gate.getClassLoader())
+                        .asSubclass(ReportSink.class);
+        ReportSink sink = sinkClass.newInstance();
+        sink.config(configData);
+        return sink;
+      } catch(Exception e) {
+        throw new GateException(
+                "Could not instantiate declared report sink.", e);
+      }
+    }
+  }
+
+  /**
+   * Iterator that returns the elements of a sequence of iterators in turn,
+   * only moving on to each iterator when the previous ones are exhausted.
+   */
+  private static class ConcatenatingIterator<T> implements Iterator<T> {
+    private Iterator<? extends Iterator<T>> iterators;
+
+    private Iterator<T> current;
+
+    ConcatenatingIterator(Iterator<? extends Iterator<T>> iterators) {
+      this.iterators = iterators;
+    }
+
+    public boolean hasNext() {
+      while((current == null || !current.hasNext()) && iterators.hasNext()) {
+        current = iterators.next();
+      }
+      return current != null && current.hasNext();
+    }
+
+    public T next() {
+      if(!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return current.next();
+    }
   }
 
   public static void main(String... args) throws Exception {
     Gate.init();
     Batch aBatch = fromXml(new File("test/data/batch-test-0001.xml"));
     System.out.println(aBatch);
-    if(Boolean.getBoolean("gate.cloud.util.XMLBatchParser.showDocIds")) {
+    if(Boolean.getBoolean("gate.cloud.util.XMLBatchParser.showDocIds")
+            && aBatch.getDocumentIDs() != null) {
       System.out.println("\nDocument IDs:");
       for(DocumentID aDocId : aBatch.getDocumentIDs()){
         System.out.println(aDocId.toString());